@@ -1,6 +1,18 @@
 package com.ifeng.common.dm;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 
 /**
@@ -8,6 +20,9 @@ import java.util.Map;
  * 
  * <pre>
  * 基于内存Map的缓存DataManager,支持ID查询时使用缓存，淘汰策略由子类实现。
+ * 读缓存命中时不加锁，data必须是线程安全的Map(由子类保证)。
+ * 同一个id的并发未命中会合并为一次对内部DataManager的getById调用(single-flight)，
+ * 其它线程等待这次调用的结果。
  * </pre>
  * 
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
@@ -22,34 +37,227 @@ public abstract class AbstractCachedDataManager extends
 
 	private static final Object NON_EXIST = new Object();
 
+	/**
+	 * 正在调入的id。key: id; value: 调入该id的FutureTask
+	 */
+	private final ConcurrentMap loading = new ConcurrentHashMap();
+
+	/**
+	 * 命中/未命中/淘汰统计
+	 */
+	protected final CacheStats stats = new CacheStats();
+
 	public AbstractCachedDataManager(DataManager manager) {
 		super(manager);
 	}
-	
-	public synchronized Object getById(Object id) throws DataManagerException {
+
+	public Object getById(Object id) throws DataManagerException {
 		Object result = this.data.get(id);
 		if (result != null) { // including NON_EXIST
+			this.stats.recordHits(1);
 			return result == NON_EXIST ? null : result;
 		}
-		result = getManager().getById(id);
-		this.data.put(id, result == null ? NON_EXIST : result);
+		this.stats.recordMisses(1);
+		return load(id);
+	}
+
+	/**
+	 * 调入一个缓存中没有的对象。同一个id同时只有一个线程调用内部DataManager，
+	 * 其它线程等待其结果。
+	 */
+	private Object load(final Object id) throws DataManagerException {
+		FutureTask task = (FutureTask) this.loading.get(id);
+		if (task == null) {
+			FutureTask newTask = new FutureTask(new Callable() {
+				public Object call() throws Exception {
+					// 可能在等待期间已经被其它线程调入
+					Object result = data.get(id);
+					if (result != null) {
+						return result == NON_EXIST ? null : result;
+					}
+					result = getManager().getById(id);
+					putLoaded(id, result);
+					return result;
+				}
+			});
+			task = (FutureTask) this.loading.putIfAbsent(id, newTask);
+			if (task == null) {
+				task = newTask;
+				try {
+					task.run();
+				} finally {
+					this.loading.remove(id, task);
+				}
+			}
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DataManagerException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DataManagerException) {
+				throw (DataManagerException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new DataManagerException(cause);
+		}
+	}
+
+	/**
+	 * 命中的对象直接从缓存返回，所有未命中的id合并为一次内部DataManager的getByIds调用
+	 */
+	public Map getByIds(Collection ids) throws DataManagerException {
+		Map found = new HashMap();
+		List misses = new ArrayList();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			if (id == null || found.containsKey(id)) {
+				continue;
+			}
+			Object value = this.data.get(id);
+			if (value == null) {
+				misses.add(id);
+			}
+			found.put(id, value);
+		}
+		this.stats.recordHits(found.size() - misses.size());
+		this.stats.recordMisses(misses.size());
+		if (!misses.isEmpty()) {
+			Map loaded = getManager().getByIds(misses);
+			for (int i = 0; i < misses.size(); i++) {
+				Object id = misses.get(i);
+				Object value = loaded.get(id);
+				putLoaded(id, value);
+				found.put(id, value);
+			}
+		}
+		// 按照ids的顺序返回
+		Map result = new LinkedHashMap();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			Object value = found.get(id);
+			if (value != null && value != NON_EXIST) {
+				result.put(id, value);
+			}
+		}
 		return result;
 	}
 
-	public synchronized Object getBufferedById(Object id)
+	/**
+	 * 异步的getById。命中缓存时在调用者线程中完成(不切换线程)，
+	 * 否则在executor中调入。id为null时与getByIdsAsync一样当作不存在，结果是null；
+	 * 其它错误也通过future返回，不直接抛出
+	 */
+	public DataManagerFuture getByIdAsync(final Object id, Executor executor) {
+		try {
+			if (id == null) {
+				return DataManagerFuture.completed(null);
+			}
+			if (this.data.get(id) != null) {
+				// 用getById取得，保留子类(如后台刷新)的处理
+				return DataManagerFuture.completed(getById(id));
+			}
+			return DataManagerFuture.submit(executor, new Callable() {
+				public Object call() throws Exception {
+					return getById(id);
+				}
+			});
+		} catch (Exception e) {
+			return DataManagerFuture.failed(e);
+		}
+	}
+
+	/**
+	 * 异步的getByIds。全部命中缓存时在调用者线程中完成，否则在executor中调入。
+	 * null的id被忽略；错误通过future返回，不直接抛出
+	 */
+	public DataManagerFuture getByIdsAsync(final Collection ids,
+			Executor executor) {
+		try {
+			boolean allHit = true;
+			for (Iterator it = ids.iterator(); allHit && it.hasNext();) {
+				Object id = it.next();
+				allHit = id == null || this.data.get(id) != null;
+			}
+			if (allHit) {
+				return DataManagerFuture.completed(getByIds(ids));
+			}
+			return DataManagerFuture.submit(executor, new Callable() {
+				public Object call() throws Exception {
+					return getByIds(ids);
+				}
+			});
+		} catch (Exception e) {
+			return DataManagerFuture.failed(e);
+		}
+	}
+
+	/**
+	 * 把从内部DataManager调入的结果放入缓存。value为null时缓存"不存在"，
+	 * 以免反复调入。子类可以用它在后台重新调入对象
+	 */
+	protected void putLoaded(Object id, Object value) {
+		this.data.put(id, value == null ? NON_EXIST : value);
+	}
+
+	/**
+	 * @return 缓存的命中/未命中/淘汰统计
+	 */
+	public CacheStats getStats() {
+		return this.stats;
+	}
+
+	public Object getBufferedById(Object id)
 			throws DataManagerException {
 		Object result = this.data.get(id);
         return result == NON_EXIST ? null : result;
 	}
 	public void invalidate(Object id) throws DataManagerException {
 		this.data.remove(id);
+		invalidateInner(id);
 	}
 
 	public void invalidateAll() throws DataManagerException {
 		this.data.clear();
+		if (getManager() instanceof BufferedDataManager) {
+			((BufferedDataManager) getManager()).invalidateAll();
+		}
 	}
 
 	public void set(Object id, Object value) throws DataManagerException {
-		this.data.put(id, value);
+		if (value == null) {
+			// data可能是不允许null值的ConcurrentMap
+			this.data.remove(id);
+		} else {
+			this.data.put(id, value);
+		}
+		// 内部缓存(如OffHeapCachedDataManager)中的旧值不再有效
+		invalidateInner(id);
+	}
+
+	private void invalidateInner(Object id) throws DataManagerException {
+		if (getManager() instanceof BufferedDataManager) {
+			((BufferedDataManager) getManager()).invalidate(id);
+		}
+	}
+
+	/**
+	 * 由子类在缓存项被淘汰时调用。淘汰的对象交给内部缓存的onEvicted，
+	 * 由内部缓存决定是否保留(如OffHeapCachedDataManager)
+	 */
+	protected void evicted(Object id, Object value) {
+		this.stats.recordEviction();
+		if (value != NON_EXIST
+				&& getManager() instanceof AbstractReadOnlyBufferedDataManager) {
+			((AbstractReadOnlyBufferedDataManager) getManager()).onEvicted(id,
+					value);
+		}
 	}
 }
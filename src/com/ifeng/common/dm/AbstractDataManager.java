@@ -1,5 +1,8 @@
 package com.ifeng.common.dm;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import com.ifeng.common.dm.persist.HQuery;
@@ -217,6 +220,80 @@ public abstract class AbstractDataManager implements DataManager {
     protected abstract void doModify(Object obj, String[] fields, Map params) 
             throws DataManagerException;
 
+    /**
+     * 缺省实现，逐个调用add。子类可以override，以在一个事务中批量写入
+     */
+    public BatchResult addAll(Collection objs, Map params)
+            throws DataManagerException {
+        BatchResult result = new BatchResult(objs.size());
+        int index = 0;
+        for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+            Object obj = it.next();
+            try {
+                result.succeeded(index, add(obj, params));
+            } catch (DataManagerException e) {
+                result.failed(index, obj, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 缺省实现，逐个调用modify
+     */
+    public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+            throws DataManagerException {
+        BatchResult result = new BatchResult(objs.size());
+        int index = 0;
+        for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+            Object obj = it.next();
+            try {
+                modify(obj, fields, params);
+                result.succeeded(index, null);
+            } catch (DataManagerException e) {
+                result.failed(index, obj, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 缺省实现，逐个调用delete
+     */
+    public BatchResult deleteAll(Collection objs, Map params)
+            throws DataManagerException {
+        BatchResult result = new BatchResult(objs.size());
+        int index = 0;
+        for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+            Object obj = it.next();
+            try {
+                delete(obj, params);
+                result.succeeded(index, null);
+            } catch (DataManagerException e) {
+                result.failed(index, obj, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 缺省实现，逐个调用getById。子类可以override，以一次请求调入所有对象.
+     */
+    public Map getByIds(Collection ids) throws DataManagerException {
+        Map result = new LinkedHashMap();
+        for (Iterator it = ids.iterator(); it.hasNext();) {
+            Object id = it.next();
+            if (id == null || result.containsKey(id)) {
+                continue;
+            }
+            Object obj = getById(id);
+            if (obj != null) {
+                result.put(id, obj);
+            }
+        }
+        return result;
+    }
+
     /**
      * 因为子类可能不需要实现这个方法，这里提供一个缺省的实现.
      */
@@ -1,5 +1,6 @@
 package com.ifeng.common.dm;
 
+import java.util.Collection;
 import java.util.Map;
 
 import org.w3c.dom.Element;
@@ -76,10 +77,29 @@ public abstract class AbstractDataManagerDecorator implements DataManager,
 		manager.delete(obj, params);
 	}
 
+	public BatchResult addAll(Collection objs, Map params)
+			throws DataManagerException {
+		return manager.addAll(objs, params);
+	}
+
+	public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+			throws DataManagerException {
+		return manager.modifyAll(objs, fields, params);
+	}
+
+	public BatchResult deleteAll(Collection objs, Map params)
+			throws DataManagerException {
+		return manager.deleteAll(objs, params);
+	}
+
 	public Object getById(Object id) throws DataManagerException {
 		return manager.getById(id);
 	}
 
+	public Map getByIds(Collection ids) throws DataManagerException {
+		return manager.getByIds(ids);
+	}
+
 	public Object getId(Object object) throws DataManagerException {
 		try {
 			return BeanTools.getProperty(object, getIdFieldName());
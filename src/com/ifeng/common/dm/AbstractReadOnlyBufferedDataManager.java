@@ -1,5 +1,6 @@
 package com.ifeng.common.dm;
 
+import java.util.Collection;
 import java.util.Map;
 /**
  * <title>AbstractReadOnlyBufferedDataManager </title>
@@ -31,6 +32,25 @@ public abstract class AbstractReadOnlyBufferedDataManager extends AbstractDataMa
 		throw new UnsupportedOperationException("Read only data manager");
 		
 	}
+	public BatchResult addAll(Collection objs, Map params) throws DataManagerException {
+		throw new UnsupportedOperationException("Read only data manager");
+	}
+	public BatchResult modifyAll(Collection objs, String[] fields, Map params) throws DataManagerException {
+		throw new UnsupportedOperationException("Read only data manager");
+	}
+	public BatchResult deleteAll(Collection objs, Map params) throws DataManagerException {
+		throw new UnsupportedOperationException("Read only data manager");
+	}
+
+	/**
+	 * 外层的AbstractCachedDataManager淘汰一个对象时调用，子类可以保留这个对象
+	 * (如OffHeapCachedDataManager放入堆外缓存)。缺省什么也不做
+	 * @param id 淘汰的对象的id
+	 * @param value 淘汰的对象，不是null
+	 */
+	public void onEvicted(Object id, Object value) {
+		// 缺省不保留
+	}
 
 	/**
 	 * 子类实现
@@ -0,0 +1,380 @@
+package com.ifeng.common.dm;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ifeng.common.misc.PropertyAccessor;
+
+/**
+ * <title>Aggregation </title>
+ * 
+ * <pre>在内存数据的扫描中直接计算的聚合：count、sum、min、max，可以按一个字段分组.
+ * 扫描时每个满足条件的对象只累加到所在的组，不需要先生成结果的List。
+ * 结果是Map，key: 分组字段的值(不分组时为null)；value: Group，
+ * 按每组第一个对象出现的顺序排列。字段值为null的对象不参加sum/min/max，但计入count。
+ * sum的值都是整数(Integer、Long等)时用long累加，结果是精确的，溢出时改用BigDecimal；
+ * 有BigDecimal或BigInteger时用BigDecimal；否则(有浮点数)用double。
+ * 例如：
+ *   new Aggregation("category").sum("price").max("price")
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class Aggregation implements Serializable {
+    private static final long serialVersionUID = -6127365207413858813L;
+
+    private final String groupBy;
+
+    private final List sumFields = new ArrayList();
+
+    private final List minFields = new ArrayList();
+
+    private final List maxFields = new ArrayList();
+
+    /**
+     * 解析后的accessor：分组字段、sum字段、min字段、max字段
+     */
+    private transient PropertyAccessor[] accessors;
+
+    private static final byte SUM_LONG = 0;
+
+    private static final byte SUM_DOUBLE = 1;
+
+    private static final byte SUM_DECIMAL = 2;
+
+    /**
+     * 一组的聚合结果
+     */
+    public static class Group implements Serializable {
+        private static final long serialVersionUID = 2984433905127701374L;
+
+        private final Aggregation aggregation;
+
+        private final Object key;
+
+        private long count;
+
+        /**
+         * 每个sum字段当前的累加方式：SUM_LONG、SUM_DOUBLE或SUM_DECIMAL，
+         * 结果在对应的数组中
+         */
+        private final byte[] sumKinds;
+
+        private final long[] longSums;
+
+        private final double[] doubleSums;
+
+        private final BigDecimal[] decimalSums;
+
+        private final Comparable[] mins;
+
+        private final Comparable[] maxs;
+
+        Group(Aggregation aggregation, Object key) {
+            this.aggregation = aggregation;
+            this.key = key;
+            int sums = aggregation.sumFields.size();
+            this.sumKinds = new byte[sums];
+            this.longSums = new long[sums];
+            this.doubleSums = new double[sums];
+            this.decimalSums = new BigDecimal[sums];
+            this.mins = new Comparable[aggregation.minFields.size()];
+            this.maxs = new Comparable[aggregation.maxFields.size()];
+        }
+
+        /**
+         * @return 分组字段的值，不分组时为null
+         */
+        public Object getKey() {
+            return this.key;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * @return 和的double值，long或BigDecimal的和可能损失精度
+         * @see #getSumValue(String)
+         */
+        public double getSum(String field) {
+            int i = indexOf(this.aggregation.sumFields, field);
+            switch (this.sumKinds[i]) {
+            case SUM_LONG:
+                return this.longSums[i];
+            case SUM_DOUBLE:
+                return this.doubleSums[i];
+            default:
+                return this.decimalSums[i].doubleValue();
+            }
+        }
+
+        /**
+         * @return 和：值都是整数时是Long，有BigDecimal或BigInteger(或long溢出)时是BigDecimal，
+         *         否则是Double。所有值都是null时是Long 0
+         */
+        public Number getSumValue(String field) {
+            int i = indexOf(this.aggregation.sumFields, field);
+            switch (this.sumKinds[i]) {
+            case SUM_LONG:
+                return new Long(this.longSums[i]);
+            case SUM_DOUBLE:
+                return new Double(this.doubleSums[i]);
+            default:
+                return this.decimalSums[i];
+            }
+        }
+
+        /**
+         * @return 最小值，所有值都是null时返回null
+         */
+        public Object getMin(String field) {
+            return this.mins[indexOf(this.aggregation.minFields, field)];
+        }
+
+        /**
+         * @return 最大值，所有值都是null时返回null
+         */
+        public Object getMax(String field) {
+            return this.maxs[indexOf(this.aggregation.maxFields, field)];
+        }
+
+        void merge(Group other) {
+            this.count += other.count;
+            for (int i = 0; i < this.sumKinds.length; i++) {
+                switch (other.sumKinds[i]) {
+                case SUM_LONG:
+                    addLong(i, other.longSums[i]);
+                    break;
+                case SUM_DOUBLE:
+                    addDouble(i, other.doubleSums[i]);
+                    break;
+                default:
+                    addDecimal(i, other.decimalSums[i]);
+                }
+            }
+            for (int i = 0; i < this.mins.length; i++) {
+                this.mins[i] = min(this.mins[i], other.mins[i]);
+            }
+            for (int i = 0; i < this.maxs.length; i++) {
+                this.maxs[i] = max(this.maxs[i], other.maxs[i]);
+            }
+        }
+
+        void addSum(int i, Number value) {
+            if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte
+                    || value instanceof AtomicInteger
+                    || value instanceof AtomicLong) {
+                addLong(i, value.longValue());
+            } else if (value instanceof BigDecimal) {
+                addDecimal(i, (BigDecimal) value);
+            } else if (value instanceof BigInteger) {
+                addDecimal(i, new BigDecimal((BigInteger) value));
+            } else {
+                addDouble(i, value.doubleValue());
+            }
+        }
+
+        private void addLong(int i, long value) {
+            switch (this.sumKinds[i]) {
+            case SUM_LONG:
+                long sum = this.longSums[i] + value;
+                if (((this.longSums[i] ^ sum) & (value ^ sum)) < 0) {
+                    // 溢出
+                    addDecimal(i, BigDecimal.valueOf(value));
+                } else {
+                    this.longSums[i] = sum;
+                }
+                break;
+            case SUM_DOUBLE:
+                this.doubleSums[i] += value;
+                break;
+            default:
+                this.decimalSums[i] = this.decimalSums[i].add(BigDecimal
+                        .valueOf(value));
+            }
+        }
+
+        private void addDouble(int i, double value) {
+            switch (this.sumKinds[i]) {
+            case SUM_LONG:
+                this.doubleSums[i] = this.longSums[i] + value;
+                this.sumKinds[i] = SUM_DOUBLE;
+                break;
+            case SUM_DOUBLE:
+                this.doubleSums[i] += value;
+                break;
+            default:
+                this.decimalSums[i] = this.decimalSums[i].add(BigDecimal
+                        .valueOf(value));
+            }
+        }
+
+        private void addDecimal(int i, BigDecimal value) {
+            switch (this.sumKinds[i]) {
+            case SUM_LONG:
+                this.decimalSums[i] = BigDecimal.valueOf(this.longSums[i]);
+                this.sumKinds[i] = SUM_DECIMAL;
+                break;
+            case SUM_DOUBLE:
+                this.decimalSums[i] = BigDecimal.valueOf(this.doubleSums[i]);
+                this.sumKinds[i] = SUM_DECIMAL;
+                break;
+            default:
+                break;
+            }
+            this.decimalSums[i] = this.decimalSums[i].add(value);
+        }
+
+        public String toString() {
+            return "Group(" + this.key + ") count=" + this.count;
+        }
+    }
+
+    /**
+     * 不分组
+     */
+    public Aggregation() {
+        this(null);
+    }
+
+    /**
+     * @param groupBy 分组字段(路径语法同BeanTools.getProperty)，null表示不分组
+     */
+    public Aggregation(String groupBy) {
+        this.groupBy = groupBy;
+    }
+
+    public Aggregation sum(String field) {
+        this.sumFields.add(field);
+        this.accessors = null;
+        return this;
+    }
+
+    public Aggregation min(String field) {
+        this.minFields.add(field);
+        this.accessors = null;
+        return this;
+    }
+
+    public Aggregation max(String field) {
+        this.maxFields.add(field);
+        this.accessors = null;
+        return this;
+    }
+
+    public String getGroupBy() {
+        return this.groupBy;
+    }
+
+    private static int indexOf(List fields, String field) {
+        int index = fields.indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field not aggregated: "
+                    + field);
+        }
+        return index;
+    }
+
+    private PropertyAccessor[] getAccessors() {
+        PropertyAccessor[] result = this.accessors;
+        if (result == null) {
+            List paths = new ArrayList();
+            paths.add(this.groupBy);
+            paths.addAll(this.sumFields);
+            paths.addAll(this.minFields);
+            paths.addAll(this.maxFields);
+            result = new PropertyAccessor[paths.size()];
+            for (int i = 0; i < result.length; i++) {
+                String path = (String) paths.get(i);
+                result[i] = path == null ? null : PropertyAccessor
+                        .forPath(path);
+            }
+            this.accessors = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return 空的聚合结果，key: 分组值；value: Group
+     */
+    Map newResult() {
+        return new LinkedHashMap();
+    }
+
+    /**
+     * 把一个对象累加到聚合结果中
+     */
+    void accumulate(Map result, Object bean) throws DataManagerException {
+        PropertyAccessor[] acc = getAccessors();
+        try {
+            Object key = acc[0] == null ? null : acc[0].get(bean, null);
+            Group group = (Group) result.get(key);
+            if (group == null) {
+                group = new Group(this, key);
+                result.put(key, group);
+            }
+            group.count++;
+            int pos = 1;
+            for (int i = 0; i < group.sumKinds.length; i++, pos++) {
+                Object value = acc[pos].get(bean, null);
+                if (value != null) {
+                    group.addSum(i, (Number) value);
+                }
+            }
+            for (int i = 0; i < group.mins.length; i++, pos++) {
+                group.mins[i] = min(group.mins[i], (Comparable) acc[pos].get(
+                        bean, null));
+            }
+            for (int i = 0; i < group.maxs.length; i++, pos++) {
+                group.maxs[i] = max(group.maxs[i], (Comparable) acc[pos].get(
+                        bean, null));
+            }
+        } catch (Exception e) {
+            throw new DataManagerException(e);
+        }
+    }
+
+    /**
+     * 把part合并到result中，result中没有的组加在最后
+     */
+    void merge(Map result, Map part) {
+        for (Iterator it = part.values().iterator(); it.hasNext();) {
+            Group group = (Group) it.next();
+            Group existing = (Group) result.get(group.key);
+            if (existing == null) {
+                result.put(group.key, group);
+            } else {
+                existing.merge(group);
+            }
+        }
+    }
+
+    private static Comparable min(Comparable a, Comparable b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static Comparable max(Comparable a, Comparable b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null || a.compareTo(b) >= 0 ? a : b;
+    }
+
+    public String toString() {
+        return "Aggregation groupBy=" + this.groupBy + " sum=" + this.sumFields
+                + " min=" + this.minFields + " max=" + this.maxFields;
+    }
+}
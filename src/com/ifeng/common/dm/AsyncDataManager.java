@@ -0,0 +1,55 @@
+package com.ifeng.common.dm;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <title>AsyncDataManager </title>
+ * 
+ * <pre>DataManager的异步版本，每个方法立即返回DataManagerFuture.
+ * 结果和异常与DataManager的同名方法相同，通过DataManagerFuture.getResult得到。
+ * 一个页面需要调用多个DataManager时，先发出所有调用再等待结果，
+ * 总耗时接近最慢的一个调用，而不是所有调用之和。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface AsyncDataManager {
+    /**
+     * @see DataManager#getById(Object)
+     */
+    public DataManagerFuture getById(Object id);
+
+    /**
+     * @see DataManager#getByIds(Collection)
+     */
+    public DataManagerFuture getByIds(Collection ids);
+
+    /**
+     * @return 结果是QueryResult
+     * @see DataManager#query(Map, Map)
+     */
+    public DataManagerFuture query(Map obj, Map params);
+
+    /**
+     * @see DataManager#add(Object, Map)
+     */
+    public DataManagerFuture add(Object obj, Map params);
+
+    /**
+     * @return 结果是null
+     * @see DataManager#modify(Object, String[], Map)
+     */
+    public DataManagerFuture modify(Object obj, String[] fields, Map params);
+
+    /**
+     * @return 结果是null
+     * @see DataManager#delete(Object, Map)
+     */
+    public DataManagerFuture delete(Object obj, Map params);
+
+    /**
+     * @return 内部的同步DataManager
+     */
+    public DataManager getManager();
+}
@@ -0,0 +1,163 @@
+package com.ifeng.common.dm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <title>BatchResult </title>
+ * 
+ * <pre>批量写(addAll/modifyAll/deleteAll)的结果.
+ * 单个对象的失败不影响其它对象，失败的对象、序号和异常记录在getFailures()中。
+ * 序号是对象在传入的Collection中的迭代顺序(从0开始)。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class BatchResult implements Serializable {
+    private static final long serialVersionUID = -5184420137092871735L;
+
+    /**
+     * 一个失败的对象
+     */
+    public static class Failure implements Serializable {
+        private static final long serialVersionUID = 2920143617468031925L;
+
+        private final int index;
+
+        private final Object item;
+
+        private final Exception exception;
+
+        public Failure(int index, Object item, Exception exception) {
+            this.index = index;
+            this.item = item;
+            this.exception = exception;
+        }
+
+        public int getIndex() {
+            return this.index;
+        }
+
+        public Object getItem() {
+            return this.item;
+        }
+
+        public Exception getException() {
+            return this.exception;
+        }
+
+        public String toString() {
+            return "#" + this.index + ": " + this.exception;
+        }
+    }
+
+    /**
+     * 每个对象的结果：add时为新的id，其它为Boolean.TRUE；失败或未处理为null
+     */
+    private final Object[] results;
+
+    private final List failures = new ArrayList();
+
+    private int successCount;
+
+    /**
+     * @param size 对象个数
+     */
+    public BatchResult(int size) {
+        this.results = new Object[size];
+    }
+
+    /**
+     * 记录一个成功的对象
+     * @param index 序号
+     * @param id 新的id(add时)，可以是null
+     */
+    public synchronized void succeeded(int index, Object id) {
+        if (this.results[index] == null) {
+            this.successCount++;
+        }
+        this.results[index] = id == null ? Boolean.TRUE : id;
+    }
+
+    /**
+     * 记录一个失败的对象
+     */
+    public synchronized void failed(int index, Object item, Exception e) {
+        this.failures.add(new Failure(index, item, e));
+    }
+
+    /**
+     * 合并一个部分对象的结果
+     * @param part 部分对象的结果
+     * @param indexes part中第i个对象在本结果中的序号为indexes[i]
+     */
+    public synchronized void merge(BatchResult part, int[] indexes) {
+        for (int i = 0; i < part.results.length; i++) {
+            if (part.results[i] != null) {
+                if (this.results[indexes[i]] == null) {
+                    this.successCount++;
+                }
+                this.results[indexes[i]] = part.results[i];
+            }
+        }
+        for (int i = 0; i < part.failures.size(); i++) {
+            Failure failure = (Failure)part.failures.get(i);
+            this.failures.add(new Failure(indexes[failure.getIndex()], failure
+                    .getItem(), failure.getException()));
+        }
+    }
+
+    /**
+     * @return 对象总数
+     */
+    public int getSize() {
+        return this.results.length;
+    }
+
+    public synchronized int getSuccessCount() {
+        return this.successCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return this.failures.size();
+    }
+
+    /**
+     * @return true 如果所有对象都成功
+     */
+    public synchronized boolean isAllSucceeded() {
+        return this.successCount == this.results.length;
+    }
+
+    /**
+     * @param index 序号
+     * @return true 如果这个对象成功
+     */
+    public synchronized boolean isSucceeded(int index) {
+        return this.results[index] != null;
+    }
+
+    /**
+     * @return add时第index个对象的新id；失败时返回null
+     */
+    public synchronized Object getId(int index) {
+        Object result = this.results[index];
+        return result == Boolean.TRUE ? null : result;
+    }
+
+    /**
+     * @return 失败的对象，元素为Failure，按记录的顺序
+     */
+    public synchronized List getFailures() {
+        return Collections.unmodifiableList(new ArrayList(this.failures));
+    }
+
+    public synchronized String toString() {
+        return "BatchResult size=" + this.results.length + " succeeded="
+                + this.successCount + " failed=" + this.failures.size()
+                + (this.failures.isEmpty() ? "" : " first failure "
+                        + this.failures.get(0));
+    }
+}
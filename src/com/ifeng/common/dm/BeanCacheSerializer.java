@@ -0,0 +1,288 @@
+package com.ifeng.common.dm;
+
+import java.beans.PropertyDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.beanutils.PropertyUtils;
+
+import com.ifeng.common.misc.PropertyAccessor;
+
+/**
+ * <title>BeanCacheSerializer </title>
+ *
+ * <pre>OffHeapCachedDataManager缺省的CacheSerializer，紧凑的二进制格式.
+ * 每个bean类第一次遇到时生成一个计划：有getter和setter的属性
+ * 和它们的PropertyAccessor，计划有一个序号。
+ * 序列化的结果只有计划的序号和每个属性的值，不写类名和属性名；
+ * 字符串、数字、Boolean、Character、java.util.Date和byte[]按类型写成定长或带长度的字节，
+ * 其它类型的属性值(集合、嵌套的对象等)用java序列化。
+ * 不是bean的对象(没有public的无参构造函数、java.*中的类、数组、代理类等)整个用java序列化。
+ *
+ * 只保存有getter和setter的属性，其它的状态会丢失，这样的类需要配置JavaCacheSerializer。
+ * 计划的序号只在这个对象中有效，结果不能跨进程或者在重启后使用(如写到文件)。
+ *
+ * 配置：
+ *   &lt;serializer type=&quot;com.ifeng.common.dm.BeanCacheSerializer&quot;/&gt;
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class BeanCacheSerializer implements CacheSerializer {
+    private static final int NULL = 0;
+    private static final int OBJECT = 1;
+    private static final int BEAN = 2;
+    private static final int STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int FLOAT = 7;
+    private static final int SHORT = 8;
+    private static final int BYTE = 9;
+    private static final int BOOLEAN = 10;
+    private static final int CHARACTER = 11;
+    private static final int DATE = 12;
+    private static final int BYTES = 13;
+
+    /**
+     * 不是bean的类
+     */
+    private static final Plan NO_PLAN = new Plan(-1, null, null);
+
+    /**
+     * 一个bean类的属性计划
+     */
+    private static final class Plan {
+        final int index;
+        final Constructor constructor;
+        final PropertyAccessor[] accessors;
+
+        Plan(int index, Constructor constructor, PropertyAccessor[] accessors) {
+            this.index = index;
+            this.constructor = constructor;
+            this.accessors = accessors;
+        }
+    }
+
+    private final CacheSerializer fallback = new JavaCacheSerializer();
+
+    /**
+     * key: Class; value: Plan
+     */
+    private final ConcurrentMap plans = new ConcurrentHashMap();
+
+    /**
+     * 按序号的Plan
+     */
+    private final List planList = new CopyOnWriteArrayList();
+
+    public byte[] serialize(Object value) throws DataManagerException {
+        Plan plan = planOf(value.getClass());
+        if (plan == NO_PLAN) {
+            byte[] data = this.fallback.serialize(value);
+            byte[] result = new byte[data.length + 1];
+            result[0] = OBJECT;
+            System.arraycopy(data, 0, result, 1, data.length);
+            return result;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(BEAN);
+            out.writeInt(plan.index);
+            for (int i = 0; i < plan.accessors.length; i++) {
+                writeValue(out, plan.accessors[i].get(value, null));
+            }
+            out.close();
+        } catch (DataManagerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DataManagerException("Cannot serialize " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Object deserialize(byte[] data) throws DataManagerException {
+        if (data[0] == OBJECT) {
+            byte[] rest = new byte[data.length - 1];
+            System.arraycopy(data, 1, rest, 0, rest.length);
+            return this.fallback.deserialize(rest);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                data, 1, data.length - 1));
+        try {
+            Plan plan = (Plan) this.planList.get(in.readInt());
+            Object result = plan.constructor.newInstance(new Object[0]);
+            for (int i = 0; i < plan.accessors.length; i++) {
+                plan.accessors[i].set(result, readValue(in), false, null);
+            }
+            return result;
+        } catch (DataManagerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DataManagerException(e);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Object value)
+            throws IOException, DataManagerException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeBytes(out, ((String) value).getBytes("UTF-8"));
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double) value).doubleValue());
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat(((Float) value).floatValue());
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort(((Short) value).shortValue());
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte(((Byte) value).byteValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean) value).booleanValue());
+        } else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar(((Character) value).charValue());
+        } else if (value.getClass() == Date.class) {
+            // 子类(如java.sql.Timestamp)有其它状态，用java序列化
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) value);
+        } else {
+            out.writeByte(OBJECT);
+            writeBytes(out, this.fallback.serialize(value));
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private Object readValue(DataInputStream in) throws IOException,
+            DataManagerException {
+        int tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case STRING:
+            return new String(readBytes(in), "UTF-8");
+        case INTEGER:
+            return new Integer(in.readInt());
+        case LONG:
+            return new Long(in.readLong());
+        case DOUBLE:
+            return new Double(in.readDouble());
+        case FLOAT:
+            return new Float(in.readFloat());
+        case SHORT:
+            return new Short(in.readShort());
+        case BYTE:
+            return new Byte(in.readByte());
+        case BOOLEAN:
+            return Boolean.valueOf(in.readBoolean());
+        case CHARACTER:
+            return new Character(in.readChar());
+        case DATE:
+            return new Date(in.readLong());
+        case BYTES:
+            return readBytes(in);
+        case OBJECT:
+            return this.fallback.deserialize(readBytes(in));
+        default:
+            throw new DataManagerException("Unknown value tag " + tag);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private Plan planOf(Class clazz) {
+        Plan plan = (Plan) this.plans.get(clazz);
+        return plan != null ? plan : createPlan(clazz);
+    }
+
+    private synchronized Plan createPlan(Class clazz) {
+        Plan plan = (Plan) this.plans.get(clazz);
+        if (plan != null) {
+            return plan;
+        }
+        Constructor constructor = beanConstructor(clazz);
+        List names = new ArrayList();
+        if (constructor != null) {
+            PropertyDescriptor[] descs = PropertyUtils
+                    .getPropertyDescriptors(clazz);
+            for (int i = 0; descs != null && i < descs.length; i++) {
+                if (descs[i].getReadMethod() != null
+                        && descs[i].getWriteMethod() != null) {
+                    names.add(descs[i].getName());
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            plan = NO_PLAN;
+        } else {
+            PropertyAccessor[] accessors = new PropertyAccessor[names.size()];
+            for (int i = 0; i < accessors.length; i++) {
+                accessors[i] = PropertyAccessor.forPath((String) names.get(i));
+            }
+            plan = new Plan(this.planList.size(), constructor, accessors);
+            this.planList.add(plan);
+        }
+        this.plans.put(clazz, plan);
+        return plan;
+    }
+
+    /**
+     * @return bean类的public无参构造函数；不是bean的类返回null
+     */
+    private static Constructor beanConstructor(Class clazz) {
+        if (clazz.isArray() || clazz.isInterface()
+                || Modifier.isAbstract(clazz.getModifiers())
+                || !Modifier.isPublic(clazz.getModifiers())
+                || clazz.getName().startsWith("java.")
+                || clazz.getName().startsWith("javax.")
+                // cglib、javassist生成的代理类
+                || clazz.getName().indexOf("$$") >= 0) {
+            return null;
+        }
+        try {
+            return clazz.getConstructor(new Class[0]);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public String toString() {
+        return "BeanCacheSerializer " + this.planList.size() + " plans";
+    }
+}
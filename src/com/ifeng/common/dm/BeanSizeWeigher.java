@@ -0,0 +1,183 @@
+package com.ifeng.common.dm;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.dm.persist.intf.LazyCollection;
+import com.ifeng.common.misc.BeanTools;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>BeanSizeWeigher </title>
+ * 
+ * <pre>缺省的CacheWeigher，通过BeanTools遍历bean的属性估算对象占用的内存。
+ * 只是估算(按64位JVM、压缩指针的典型开销)，不追求精确。
+ * 同一个对象只计算一次；未调入的LazyCollection不计算其内容，以免触发调入；
+ * 超过max-depth层的对象不再深入。
+ * 每个类可读的属性名会被缓存。
+ * 
+ * 配置：
+ *   &lt;weigher type=&quot;com.ifeng.common.dm.BeanSizeWeigher&quot; max-depth=&quot;最大遍历深度，缺省8&quot;/&gt;
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class BeanSizeWeigher implements CacheWeigher, Configurable {
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    private static final int OBJECT_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int COLLECTION_ENTRY = 32;
+
+    private static final String[] NO_PROPERTIES = new String[0];
+
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+
+    /**
+     * key: Class; value: String[] 可读属性名
+     */
+    private final ConcurrentMap propertyNames = new ConcurrentHashMap();
+
+    public BeanSizeWeigher() {
+        // for config
+    }
+
+    public BeanSizeWeigher(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public long weightOf(Object value) {
+        return sizeOf(value, new IdentityHashMap(), 0);
+    }
+
+    private long sizeOf(Object value, IdentityHashMap visited, int depth) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            // String对象 + char[]
+            return OBJECT_HEADER + 8 + OBJECT_HEADER + 2 * ((String)value).length();
+        }
+        if (value instanceof Number || value instanceof Boolean
+                || value instanceof Character) {
+            return OBJECT_HEADER + 8;
+        }
+        if (value instanceof Date) {
+            return OBJECT_HEADER + 8;
+        }
+        if (value instanceof Class || value instanceof Enum) {
+            // 共享对象
+            return 0;
+        }
+        if (visited.put(value, value) != null) {
+            return 0;
+        }
+        Class clazz = value.getClass();
+        if (clazz.isArray()) {
+            return sizeOfArray(value, clazz.getComponentType(), visited, depth);
+        }
+        if (value instanceof LazyCollection) {
+            return OBJECT_HEADER + 4 * REFERENCE;
+        }
+        if (depth >= this.maxDepth) {
+            return OBJECT_HEADER;
+        }
+        if (value instanceof Collection) {
+            Collection c = (Collection)value;
+            long size = OBJECT_HEADER + 4 * REFERENCE;
+            for (Iterator it = c.iterator(); it.hasNext(); ) {
+                size += COLLECTION_ENTRY + sizeOf(it.next(), visited, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            Map m = (Map)value;
+            long size = OBJECT_HEADER + 6 * REFERENCE;
+            for (Iterator it = m.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry)it.next();
+                size += COLLECTION_ENTRY + sizeOf(entry.getKey(), visited, depth + 1)
+                        + sizeOf(entry.getValue(), visited, depth + 1);
+            }
+            return size;
+        }
+        String[] names = getPropertyNames(clazz);
+        long size = OBJECT_HEADER;
+        for (int i = 0; i < names.length; i++) {
+            Object prop;
+            try {
+                prop = BeanTools.getSimpleProperty(value, names[i]);
+            } catch (Exception e) {
+                // 忽略无法读取的属性
+                continue;
+            }
+            size += 8 + sizeOf(prop, visited, depth + 1);
+        }
+        return size;
+    }
+
+    private long sizeOfArray(Object array, Class componentType,
+            IdentityHashMap visited, int depth) {
+        if (componentType.isPrimitive()) {
+            int elemSize;
+            if (componentType == byte.class || componentType == boolean.class) {
+                elemSize = 1;
+            } else if (componentType == char.class || componentType == short.class) {
+                elemSize = 2;
+            } else if (componentType == int.class || componentType == float.class) {
+                elemSize = 4;
+            } else {
+                elemSize = 8;
+            }
+            return OBJECT_HEADER + (long)elemSize * Array.getLength(array);
+        }
+        Object[] objs = (Object[])array;
+        long size = OBJECT_HEADER + (long)REFERENCE * objs.length;
+        if (depth < this.maxDepth) {
+            for (int i = 0; i < objs.length; i++) {
+                size += sizeOf(objs[i], visited, depth + 1);
+            }
+        }
+        return size;
+    }
+
+    private String[] getPropertyNames(Class clazz) {
+        String[] names = (String[])this.propertyNames.get(clazz);
+        if (names == null) {
+            PropertyDescriptor[] descs = PropertyUtils.getPropertyDescriptors(clazz);
+            if (descs == null) {
+                names = NO_PROPERTIES;
+            } else {
+                List list = new ArrayList();
+                for (int i = 0; i < descs.length; i++) {
+                    if (descs[i].getReadMethod() != null
+                            && !"class".equals(descs[i].getName())) {
+                        list.add(descs[i].getName());
+                    }
+                }
+                names = (String[])list.toArray(new String[list.size()]);
+            }
+            this.propertyNames.putIfAbsent(clazz, names);
+        }
+        return names;
+    }
+
+    public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
+        this.maxDepth = XmlLoader.getAttributeAsInteger(configEle, "max-depth",
+                DEFAULT_MAX_DEPTH);
+        return this;
+    }
+}
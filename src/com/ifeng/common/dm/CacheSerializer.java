@@ -0,0 +1,26 @@
+package com.ifeng.common.dm;
+
+/**
+ * <title>CacheSerializer </title>
+ * 
+ * <pre>把缓存对象转换为字节数组，用于OffHeapCachedDataManager等把对象保存在堆外的缓存。
+ * 实现必须是线程安全的。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface CacheSerializer {
+    /**
+     * @param value 缓存的对象，不会是null
+     * @return 序列化后的字节
+     * @throws DataManagerException 不能序列化
+     */
+    public byte[] serialize(Object value) throws DataManagerException;
+
+    /**
+     * @param data serialize的结果
+     * @return 还原的对象
+     * @throws DataManagerException 不能还原
+     */
+    public Object deserialize(byte[] data) throws DataManagerException;
+}
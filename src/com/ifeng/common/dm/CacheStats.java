@@ -0,0 +1,68 @@
+package com.ifeng.common.dm;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <title>CacheStats </title>
+ * 
+ * <pre>缓存的命中、未命中、淘汰统计。计数器是线程安全的，不加锁。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class CacheStats implements Serializable {
+    private static final long serialVersionUID = -2205362358921734196L;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public void recordHits(int count) {
+        this.hitCount.addAndGet(count);
+    }
+
+    public void recordMisses(int count) {
+        this.missCount.addAndGet(count);
+    }
+
+    public void recordEviction() {
+        this.evictionCount.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+
+    public long getRequestCount() {
+        return getHitCount() + getMissCount();
+    }
+
+    /**
+     * @return 命中率，没有请求时返回1
+     */
+    public double getHitRate() {
+        long hits = getHitCount();
+        long requests = hits + getMissCount();
+        return requests == 0 ? 1.0 : (double)hits / requests;
+    }
+
+    public void reset() {
+        this.hitCount.set(0);
+        this.missCount.set(0);
+        this.evictionCount.set(0);
+    }
+
+    public String toString() {
+        return "hits=" + getHitCount() + " misses=" + getMissCount()
+                + " evictions=" + getEvictionCount() + " hitRate=" + getHitRate();
+    }
+}
@@ -0,0 +1,19 @@
+package com.ifeng.common.dm;
+
+/**
+ * <title>CacheWeigher </title>
+ * 
+ * <pre>估算缓存对象占用的内存，用于按字节数限制缓存的大小。
+ * 实现必须是线程安全的，而且应该足够快(每次放入缓存时调用一次)。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface CacheWeigher {
+    /**
+     * 估算一个缓存对象占用的字节数
+     * @param value 缓存的对象，不会是null
+     * @return 估算的字节数
+     */
+    public long weightOf(Object value);
+}
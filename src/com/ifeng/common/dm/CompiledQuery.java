@@ -0,0 +1,227 @@
+package com.ifeng.common.dm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.ifeng.common.dm.queryField.NormalQueryField;
+import com.ifeng.common.dm.queryField.NotQueryField;
+import com.ifeng.common.dm.queryField.NullQueryField;
+import com.ifeng.common.dm.queryField.RangeQueryField;
+import com.ifeng.common.dm.queryField.SetQueryField;
+import com.ifeng.common.misc.PropertyAccessor;
+
+/**
+ * <title>CompiledQuery </title>
+ * 
+ * <pre>把查询对象(Map，key: 字段名; value: QueryField)编译成一个可以重复使用的条件，
+ * 用于在内存中过滤数据(如MemoryDataManager)。
+ * 每个字段的PropertyAccessor只解析一次；条件按估计的选择性排序，最可能不满足的先检查；
+ * 不起作用的条件(如值为null的NormalQueryField)在编译时去掉。
+ * 字段的排序等只与查询的“形状”(字段名和QueryField的类型)有关，按形状缓存，
+ * 同样形状的查询只需要把QueryField填进去。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public final class CompiledQuery {
+    /**
+     * 缓存的查询形状的个数
+     */
+    private static final int MAX_CACHED_PLANS = 1024;
+
+    /**
+     * key: 形状; value: Plan
+     */
+    private static final Map plans = new ConcurrentLinkedHashMap.Builder()
+            .maximumWeightedCapacity(MAX_CACHED_PLANS).build();
+
+    private static final CompiledQuery ALWAYS = new CompiledQuery(
+            new PropertyAccessor[0], new QueryField[0]);
+
+    private final PropertyAccessor[] accessors;
+
+    private final QueryField[] fields;
+
+    private CompiledQuery(PropertyAccessor[] accessors, QueryField[] fields) {
+        this.accessors = accessors;
+        this.fields = fields;
+    }
+
+    /**
+     * @param query 查询对象，key: 字段名; value: QueryField。可以是null
+     */
+    public static CompiledQuery compile(Map query) {
+        return compile(query, null);
+    }
+
+    /**
+     * @param query 查询对象，key: 字段名; value: QueryField。可以是null
+     * @param skipField 不需要检查的字段(例如已经由索引保证)，可以是null
+     */
+    public static CompiledQuery compile(Map query, String skipField) {
+        if (query == null || query.isEmpty()) {
+            return ALWAYS;
+        }
+        String[] names = new String[query.size()];
+        QueryField[] qfs = new QueryField[names.length];
+        int n = 0;
+        for (Iterator it = query.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry)it.next();
+            String name = (String)entry.getKey();
+            QueryField qf = (QueryField)entry.getValue();
+            if (name.equals(skipField) || isTrivial(qf)) {
+                continue;
+            }
+            names[n] = name;
+            qfs[n] = qf;
+            n++;
+        }
+        if (n == 0) {
+            return ALWAYS;
+        }
+        Plan plan = getPlan(names, qfs, n);
+        PropertyAccessor[] accessors = new PropertyAccessor[n];
+        QueryField[] fields = new QueryField[n];
+        for (int i = 0; i < n; i++) {
+            int pos = plan.order[i];
+            accessors[i] = plan.accessors[i];
+            fields[i] = qfs[pos];
+        }
+        return new CompiledQuery(accessors, fields);
+    }
+
+    /**
+     * @return true 如果没有需要检查的条件
+     */
+    public boolean isEmpty() {
+        return this.fields.length == 0;
+    }
+
+    /**
+     * 测试一个对象是否满足所有条件
+     * @param bean 测试的对象
+     */
+    public boolean test(Object bean) throws DataManagerException {
+        for (int i = 0; i < this.fields.length; i++) {
+            Object value;
+            try {
+                value = this.accessors[i].get(bean, null);
+            } catch (Exception e) {
+                throw new DataManagerException(e);
+            }
+            // 注意：某些qf可能不支持testObject
+            if (!this.fields[i].testObject(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 过滤一组数据
+     * @return 满足条件的数据，保持原来的顺序
+     */
+    public List filter(List data) throws DataManagerException {
+        List result = new ArrayList();
+        for (int i = 0; i < data.size(); i++) {
+            Object item = data.get(i);
+            if (test(item)) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 对所有对象都成立的条件
+     */
+    private static boolean isTrivial(QueryField qf) {
+        if (qf instanceof NormalQueryField) {
+            return ((NormalQueryField)qf).getValue() == null;
+        } else if (qf instanceof SetQueryField) {
+            return ((SetQueryField)qf).getSet() == null;
+        } else if (qf instanceof RangeQueryField) {
+            return ((RangeQueryField)qf).getStart() == null
+                    && ((RangeQueryField)qf).getEnd() == null;
+        }
+        return false;
+    }
+
+    private static Plan getPlan(String[] names, QueryField[] qfs, int n) {
+        // 形状：按原来的顺序的字段名和QueryField类型。Map的迭代顺序对同样的key一般是稳定的
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < n; i++) {
+            buf.append(names[i]).append('=').append(qfs[i].getClass().getName())
+                    .append(';');
+        }
+        String shape = buf.toString();
+        Plan plan = (Plan)plans.get(shape);
+        if (plan == null) {
+            plan = new Plan(names, qfs, n);
+            plans.put(shape, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * 估计的选择性，越小越可能不满足，越先检查
+     */
+    private static int rank(QueryField qf, String name) {
+        int rank;
+        if (qf instanceof NormalQueryField) {
+            rank = 0;
+        } else if (qf instanceof NullQueryField) {
+            rank = 1;
+        } else if (qf instanceof SetQueryField) {
+            rank = 2;
+        } else if (qf instanceof RangeQueryField) {
+            rank = 3;
+        } else if (qf instanceof NotQueryField) {
+            rank = 5;
+        } else {
+            rank = 4;
+        }
+        // 嵌套的字段读取代价高一些，同样选择性时放在后面
+        return rank * 2 + (name.indexOf('.') >= 0 ? 1 : 0);
+    }
+
+    /**
+     * 一个形状的查询的检查顺序
+     */
+    private static final class Plan {
+        /**
+         * 第i个检查的条件在原来的顺序中的位置
+         */
+        final int[] order;
+
+        /**
+         * 按检查的顺序
+         */
+        final PropertyAccessor[] accessors;
+
+        Plan(final String[] names, final QueryField[] qfs, int n) {
+            Integer[] pos = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                pos[i] = new Integer(i);
+            }
+            Arrays.sort(pos, new Comparator() {
+                public int compare(Object o1, Object o2) {
+                    int i1 = ((Integer)o1).intValue();
+                    int i2 = ((Integer)o2).intValue();
+                    return rank(qfs[i1], names[i1]) - rank(qfs[i2], names[i2]);
+                }
+            });
+            this.order = new int[n];
+            this.accessors = new PropertyAccessor[n];
+            for (int i = 0; i < n; i++) {
+                this.order[i] = pos[i].intValue();
+                this.accessors[i] = PropertyAccessor.forPath(names[this.order[i]]);
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.ifeng.common.dm;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -22,6 +23,17 @@ public interface DataManager {
      * query时的排序字段列表
      */
     public static final String PARAM_ORDERBY_FIELDS = "dm-sort-fields";
+
+    /**
+     * query时的页号(Integer)，从1开始。和PARAM_PAGE_SIZE一起使用。
+     * 不支持分页的实现可以忽略它，返回全部结果
+     */
+    public static final String PARAM_PAGE_NO = "dm-page-no";
+
+    /**
+     * query时每页的行数(Integer)
+     */
+    public static final String PARAM_PAGE_SIZE = "dm-page-size";
     
     /**
      * 创建一个新的对象。
@@ -71,12 +83,44 @@ public interface DataManager {
      */
     public void modify(Object obj, String[] fields, Map params)
             throws DataManagerException;
+
+    /**
+     * 批量创建对象。单个对象失败(包括校验失败)不影响其它对象，记录在结果中
+     * @param objs 新的对象的数据
+     * @param params 参数
+     * @return 每个对象的结果，成功的对象有新的id
+     * @throws DataManagerException 整个批量操作无法进行的错误
+     */
+    public BatchResult addAll(Collection objs, Map params)
+            throws DataManagerException;
+
+    /**
+     * 批量修改对象。单个对象失败不影响其它对象，记录在结果中
+     * @param objs 对象的新的数据
+     * @param fields 所要修改的字段集合，如果为null，表示修改所有的字段
+     * @param params 参数
+     * @return 每个对象的结果
+     * @throws DataManagerException 整个批量操作无法进行的错误
+     */
+    public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+            throws DataManagerException;
+
+    /**
+     * 批量删除对象。单个对象失败不影响其它对象，记录在结果中
+     * @param objs 对象数据 (只要id字段有效即可)
+     * @param params 参数
+     * @return 每个对象的结果
+     * @throws DataManagerException 整个批量操作无法进行的错误
+     */
+    public BatchResult deleteAll(Collection objs, Map params)
+            throws DataManagerException;
     
     /**
      * 当参数均为空时，查询所有的对象。
      * @param obj 对象查询模板，如果为null，则查询所有对象
      *    key为字段名称  value为QueryField类型的实例
-     * @param params 参数  可以有PARAM_ORDERBY_FIELDS，指定排序字段
+     * @param params 参数  可以有PARAM_ORDERBY_FIELDS，指定排序字段；
+     *    可以有PARAM_PAGE_NO和PARAM_PAGE_SIZE，只返回一页
      * @return 符合条件的对象列表；如果没有符合条件的对象，返回空列表(非null)
      * @throws DataManagerException 错误
      */
@@ -97,6 +141,16 @@ public interface DataManager {
      * @throws DataManagerException 错误
      */
     public Object getById(Object id) throws DataManagerException;
+
+    /**
+     * 根据一组id批量查询对应的对象。
+     * 实现应当尽量把多个id合并为一次对后端的请求。
+     * @param ids 对象id属性值的集合
+     * @return key为id，value为查询出来的对象，顺序与ids相同；
+     *      没有对应对象的id不在结果中。返回值非null
+     * @throws DataManagerException 错误
+     */
+    public Map getByIds(Collection ids) throws DataManagerException;
     
     /**
      * 返回id字段的名称
@@ -0,0 +1,265 @@
+package com.ifeng.common.dm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.ifeng.common.misc.Logger;
+
+/**
+ * <title>DataManagerFuture </title>
+ * 
+ * <pre>AsyncDataManager返回的异步结果.
+ * 可以像Future一样等待，也可以用getResult直接得到结果或DataManagerException；
+ * 完成时依次调用addListener加入的Listener(在完成它的线程中，已完成时在调用者线程中)。
+ * 同时发出多个调用再逐个getResult，总的等待时间接近最慢的一个调用。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class DataManagerFuture implements Future {
+    private static final Logger log = Logger.getLogger(DataManagerFuture.class);
+
+    /**
+     * 完成时的回调
+     */
+    public static interface Listener {
+        /**
+         * @param future 已经完成(包括失败和取消)的future
+         */
+        public void completed(DataManagerFuture future);
+    }
+
+    private boolean done;
+
+    private boolean cancelled;
+
+    private Object value;
+
+    private Throwable exception;
+
+    private List listeners;
+
+    /**
+     * @return 已经完成的future
+     */
+    public static DataManagerFuture completed(Object value) {
+        DataManagerFuture future = new DataManagerFuture();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return 已经失败的future
+     */
+    public static DataManagerFuture failed(Throwable exception) {
+        DataManagerFuture future = new DataManagerFuture();
+        future.fail(exception);
+        return future;
+    }
+
+    /**
+     * 在executor中执行task，返回它的结果。executor拒绝时返回失败的future
+     */
+    public static DataManagerFuture submit(Executor executor,
+            final Callable task) {
+        final DataManagerFuture future = new DataManagerFuture();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        // 已经取消
+                        return;
+                    }
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.fail(new DataManagerException("Async call rejected", e));
+        }
+        return future;
+    }
+
+    /**
+     * 设置结果
+     * @return false 如果已经完成
+     */
+    public boolean complete(Object result) {
+        return finish(result, null, false);
+    }
+
+    /**
+     * 设置异常
+     * @return false 如果已经完成
+     */
+    public boolean fail(Throwable e) {
+        return finish(null, e, false);
+    }
+
+    /*
+     * 只标记为取消，不中断正在执行的调用
+     * 
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, null, true);
+    }
+
+    private boolean finish(Object result, Throwable e, boolean cancel) {
+        List toNotify;
+        synchronized (this) {
+            if (this.done) {
+                return false;
+            }
+            this.done = true;
+            this.value = result;
+            this.exception = e;
+            this.cancelled = cancel;
+            toNotify = this.listeners;
+            this.listeners = null;
+            notifyAll();
+        }
+        if (toNotify != null) {
+            for (int i = 0; i < toNotify.size(); i++) {
+                notifyListener((Listener) toNotify.get(i));
+            }
+        }
+        return true;
+    }
+
+    private void notifyListener(Listener listener) {
+        try {
+            listener.completed(this);
+        } catch (RuntimeException e) {
+            log.error("Error in DataManagerFuture listener", e);
+        }
+    }
+
+    /**
+     * 加入完成时的回调。已经完成时立即在当前线程中调用
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!this.done) {
+                if (this.listeners == null) {
+                    this.listeners = new ArrayList(1);
+                }
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    public synchronized boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return this.done;
+    }
+
+    public synchronized Object get() throws InterruptedException,
+            ExecutionException {
+        while (!this.done) {
+            wait();
+        }
+        return report();
+    }
+
+    public synchronized Object get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.done) {
+            long remain = deadline - System.nanoTime();
+            if (remain <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remain);
+        }
+        return report();
+    }
+
+    private Object report() throws ExecutionException {
+        if (this.cancelled) {
+            throw new CancellationException();
+        }
+        if (this.exception != null) {
+            throw new ExecutionException(this.exception);
+        }
+        return this.value;
+    }
+
+    /**
+     * 等待并返回结果
+     * @throws DataManagerException 调用的DataManagerException，或者等待被中断、被取消
+     */
+    public Object getResult() throws DataManagerException {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataManagerException(e);
+        } catch (CancellationException e) {
+            throw new DataManagerException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * 最多等待timeout，返回结果
+     * @throws DataManagerException 调用的DataManagerException，或者超时、等待被中断、被取消
+     */
+    public Object getResult(long timeout, TimeUnit unit)
+            throws DataManagerException {
+        try {
+            return get(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataManagerException(e);
+        } catch (CancellationException e) {
+            throw new DataManagerException(e);
+        } catch (TimeoutException e) {
+            throw new DataManagerException("Async call timed out", e);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static DataManagerException unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof DataManagerException) {
+            return (DataManagerException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new DataManagerException(cause);
+    }
+
+    public synchronized String toString() {
+        if (!this.done) {
+            return "DataManagerFuture(pending)";
+        }
+        if (this.cancelled) {
+            return "DataManagerFuture(cancelled)";
+        }
+        return this.exception == null ? "DataManagerFuture(" + this.value
+                + ")" : "DataManagerFuture(failed: " + this.exception + ")";
+    }
+}
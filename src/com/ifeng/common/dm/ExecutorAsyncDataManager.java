@@ -0,0 +1,243 @@
+package com.ifeng.common.dm;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigException;
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>ExecutorAsyncDataManager </title>
+ * 
+ * <pre>把任意DataManager适配为AsyncDataManager：每个调用在一个有界线程池中执行.
+ * 线程池的队列满时由调用者线程直接执行(返回已完成的future)，不会无限堆积。
+ * 内部DataManager是AbstractCachedDataManager，或者是只转发getById/getByIds的
+ * decorator(如QueuedWriteDataManager)包装的AbstractCachedDataManager时，
+ * getById/getByIds命中缓存直接返回已完成的future，不切换线程。
+ * 中间有改写了getById/getByIds的decorator(如MetricsDataManager)时总在线程池中执行，
+ * 不绕过它。
+ * 多个ExecutorAsyncDataManager可以共用一个Executor。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class ExecutorAsyncDataManager implements AsyncDataManager, Configurable {
+	public static final int DEFAULT_THREAD_NUM = 16;
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private DataManager manager;
+
+	/**
+	 * manager或者它只转发读操作的decorator链中的缓存，命中时不切换线程；没有时为null
+	 */
+	private AbstractCachedDataManager cache;
+
+	private Executor executor;
+
+	/**
+	 * 自己创建的线程池，shutdown时关闭
+	 */
+	private ThreadPoolExecutor ownExecutor;
+
+	public ExecutorAsyncDataManager() {
+		// for config
+	}
+
+	/**
+	 * @param manager 内部DataManager
+	 * @param threadNum 线程数
+	 * @param queueSize 等待执行的调用的最大个数
+	 */
+	public ExecutorAsyncDataManager(DataManager manager, int threadNum,
+			int queueSize) {
+		this.manager = manager;
+		this.cache = findCache(manager);
+		init(threadNum, queueSize);
+	}
+
+	/**
+	 * @param manager 内部DataManager
+	 * @param executor 执行调用的Executor，应该是有界的
+	 */
+	public ExecutorAsyncDataManager(DataManager manager, Executor executor) {
+		this.manager = manager;
+		this.cache = findCache(manager);
+		this.executor = executor;
+	}
+
+	/**
+	 * <pre>
+	 *    &lt;... type=&quot;com.ifeng.common.dm.ExecutorAsyncDataManager&quot;
+	 *        thread-num=&quot;线程数，缺省16&quot;
+	 *        queue-size=&quot;等待执行的调用的最大个数，满了以后在调用者线程执行，缺省1000&quot;&gt;
+	 *      &lt;data-manager ... 内部datamanager的配置/&gt;
+	 *    &lt;/...&gt;
+	 * </pre>
+	 */
+	public Object config(ConfigRoot configRoot, Object parent, Element configEle)
+			throws ConfigException {
+		this.manager = (DataManager) configRoot.createChildObject(this,
+				configEle, "data-manager", true);
+		this.cache = findCache(this.manager);
+		init(XmlLoader.getAttributeAsInteger(configEle, "thread-num",
+				DEFAULT_THREAD_NUM), XmlLoader.getAttributeAsInteger(
+				configEle, "queue-size", DEFAULT_QUEUE_SIZE));
+		return this;
+	}
+
+	/**
+	 * 沿着只转发getById/getByIds的decorator找到缓存
+	 * 
+	 * @return 缓存，没有时返回null
+	 */
+	private static AbstractCachedDataManager findCache(DataManager manager) {
+		while (true) {
+			if (manager instanceof AbstractCachedDataManager) {
+				return (AbstractCachedDataManager) manager;
+			}
+			if (!(manager instanceof AbstractDataManagerDecorator)
+					|| !forwardsReads(manager.getClass())) {
+				return null;
+			}
+			manager = ((AbstractDataManagerDecorator) manager).getManager();
+		}
+	}
+
+	/**
+	 * @return true 如果clazz的getById/getByIds是AbstractDataManagerDecorator的实现
+	 */
+	private static boolean forwardsReads(Class clazz) {
+		try {
+			return clazz.getMethod("getById", new Class[] { Object.class })
+					.getDeclaringClass() == AbstractDataManagerDecorator.class
+					&& clazz.getMethod("getByIds",
+							new Class[] { Collection.class })
+							.getDeclaringClass() == AbstractDataManagerDecorator.class;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	private void init(int threadNum, int queueSize) {
+		// 重新配置时关闭原来的线程池，已经提交的调用继续执行
+		shutdown();
+		final int pool = poolNumber.incrementAndGet();
+		final AtomicInteger threadNumber = new AtomicInteger();
+		int threads = Math.max(1, threadNum);
+		this.ownExecutor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue(Math.max(1,
+						queueSize)), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AsyncDataManager-"
+								+ pool + "-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor e) {
+						// 与CallerRunsPolicy不同，关闭后抛出异常，使future失败而不是永不完成
+						if (e.isShutdown()) {
+							throw new RejectedExecutionException(
+									"AsyncDataManager is shut down");
+						}
+						r.run();
+					}
+				});
+		this.executor = this.ownExecutor;
+	}
+
+	public DataManagerFuture getById(final Object id) {
+		if (this.cache != null) {
+			return this.cache.getByIdAsync(id, this.executor);
+		}
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				return manager.getById(id);
+			}
+		});
+	}
+
+	public DataManagerFuture getByIds(final Collection ids) {
+		if (this.cache != null) {
+			return this.cache.getByIdsAsync(ids, this.executor);
+		}
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				return manager.getByIds(ids);
+			}
+		});
+	}
+
+	public DataManagerFuture query(final Map obj, final Map params) {
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				return manager.query(obj, params);
+			}
+		});
+	}
+
+	public DataManagerFuture add(final Object obj, final Map params) {
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				return manager.add(obj, params);
+			}
+		});
+	}
+
+	public DataManagerFuture modify(final Object obj, final String[] fields,
+			final Map params) {
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				manager.modify(obj, fields, params);
+				return null;
+			}
+		});
+	}
+
+	public DataManagerFuture delete(final Object obj, final Map params) {
+		return DataManagerFuture.submit(this.executor, new Callable() {
+			public Object call() throws Exception {
+				manager.delete(obj, params);
+				return null;
+			}
+		});
+	}
+
+	public DataManager getManager() {
+		return this.manager;
+	}
+
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	/**
+	 * 关闭自己创建的线程池，已经提交的调用继续执行。使用外部Executor时不做任何事
+	 */
+	public void shutdown() {
+		if (this.ownExecutor != null) {
+			this.ownExecutor.shutdown();
+		}
+	}
+
+	public String toString() {
+		return "ExecutorAsyncDataManager of " + this.manager;
+	}
+}
@@ -0,0 +1,47 @@
+package com.ifeng.common.dm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * <title>JavaCacheSerializer </title>
+ * 
+ * <pre>使用java序列化的CacheSerializer。对象必须是Serializable。
+ * 保存对象的全部状态，但比BeanCacheSerializer大得多。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class JavaCacheSerializer implements CacheSerializer {
+
+    public byte[] serialize(Object value) throws DataManagerException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(value);
+            out.close();
+        } catch (IOException e) {
+            throw new DataManagerException("Cannot serialize " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public Object deserialize(byte[] data) throws DataManagerException {
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(data));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new DataManagerException(e);
+        } catch (ClassNotFoundException e) {
+            throw new DataManagerException(e);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import org.apache.commons.collections.map.LRUMap;
 import org.w3c.dom.Element;
 
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
 import com.ifeng.common.conf.ConfigRoot;
 import com.ifeng.common.misc.XmlLoader;
 
@@ -12,6 +14,8 @@ import com.ifeng.common.misc.XmlLoader;
  * 
  * <pre>
  *  基于LRU策略缓存固定的条数的DataManager,支持ID查询时使用缓存，LRU淘汰策略。
+ *  也可以按照估算的内存字节数限制缓存大小(max-bytes)，每个缓存对象的字节数由CacheWeigher估算。
+ *  内部DataManager可以是OffHeapCachedDataManager，淘汰的对象会被放到堆外的二级缓存中。
  * </pre>
  * 
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
@@ -21,36 +25,132 @@ import com.ifeng.common.misc.XmlLoader;
 
 public class LRUSizeCachedDataManager extends AbstractCachedDataManager {
 
+	/**
+	 * 每个缓存项除了对象本身之外的开销(key、链表节点等)的估计值
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	/**
+	 * ConcurrentLinkedHashMap的容量上限
+	 */
+	private static final long MAXIMUM_CAPACITY = 1 << 30;
+
+	/**
+	 * ConcurrentLinkedHashMap的单个对象权重上限
+	 */
+	private static final long MAXIMUM_WEIGHT = 1 << 29;
+
+	/**
+	 * 按字节数限制时，一个权重单位代表的字节数。超过1G时需要放大单位
+	 */
+	private long bytesPerUnit = 1;
+
+	private boolean weighted;
+
 	public LRUSizeCachedDataManager(DataManager manager, int size) {
 		super(manager);
 		//data = new LRUMap(size);
-		data = new ConcurrentLinkedHashMap.Builder()
-			    .maximumWeightedCapacity(size)
-			    .build();
-				
+		data = buildData(size, null);
+	}
+
+	/**
+	 * 按照字节数限制缓存大小
+	 * @param maxBytes 最大缓存的字节数(估算)
+	 * @param weigher 估算缓存对象字节数的CacheWeigher，null表示使用BeanSizeWeigher
+	 */
+	public LRUSizeCachedDataManager(DataManager manager, long maxBytes,
+			CacheWeigher weigher) {
+		super(manager);
+		initWeighted(maxBytes, weigher);
 	}
+
 	/**
 	 * for config
-	 *
+	 * 
 	 */
 	public LRUSizeCachedDataManager(){
 		super(null);
 	}
 
+	private void initWeighted(long maxBytes, CacheWeigher weigher) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("max-bytes must be positive: "
+					+ maxBytes);
+		}
+		this.weighted = true;
+		this.bytesPerUnit = 1;
+		while (maxBytes / this.bytesPerUnit > MAXIMUM_CAPACITY) {
+			this.bytesPerUnit <<= 1;
+		}
+		final CacheWeigher cacheWeigher = weigher == null ? new BeanSizeWeigher()
+				: weigher;
+		final long unit = this.bytesPerUnit;
+		data = buildData((int) (maxBytes / unit), new Weigher() {
+			public int weightOf(Object value) {
+				long bytes = cacheWeigher.weightOf(value) + ENTRY_OVERHEAD;
+				long units = (bytes + unit - 1) / unit;
+				return (int) Math.max(1, Math.min(units, MAXIMUM_WEIGHT));
+			}
+		});
+	}
+
+	private ConcurrentLinkedHashMap buildData(int capacity, Weigher weigher) {
+		ConcurrentLinkedHashMap.Builder builder = new ConcurrentLinkedHashMap.Builder()
+			    .maximumWeightedCapacity(capacity)
+			    .listener(new EvictionListener() {
+			    	public void onEviction(Object key, Object value) {
+			    		evicted(key, value);
+			    	}
+			    });
+		if (weigher != null) {
+			builder.weigher(weigher);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * @return 缓存的大小：按字节数限制时是估算的字节数，否则是缓存的项数
+	 */
+	public long getWeightedSize() {
+		return ((ConcurrentLinkedHashMap) data).weightedSize() * this.bytesPerUnit;
+	}
+
+	/**
+	 * @return 缓存的容量：按字节数限制时是字节数，否则是项数
+	 */
+	public long getCapacity() {
+		return ((ConcurrentLinkedHashMap) data).capacity() * this.bytesPerUnit;
+	}
+
+	public boolean isWeighted() {
+		return this.weighted;
+	}
+
 	/**
 	 * <pre>
 	 *   &lt;... type=&quot;com.ifeng.common.dm.LRUSizeCachedDataManager&quot; size=&quot;最大缓存的项数&quot;&gt;
 	 *     &lt;data-manager ... 内部datamanager的配置
 	 *     /&gt;
 	 *   &lt;/...&gt;
+	 * 或者按字节数限制：
+	 *   &lt;... type=&quot;com.ifeng.common.dm.LRUSizeCachedDataManager&quot; max-bytes=&quot;最大缓存的字节数，如512m&quot;&gt;
+	 *     &lt;weigher type=&quot;CacheWeigher的实现类，缺省为com.ifeng.common.dm.BeanSizeWeigher&quot;/&gt;  (可选)
+	 *     &lt;data-manager ... 内部datamanager的配置
+	 *     /&gt;
+	 *   &lt;/...&gt;
 	 * </pre>
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
 		//data = new LRUMap(XmlLoader.getAttributeAsInteger(configEle, "size"));
-		int size = XmlLoader.getAttributeAsInteger(configEle, "size");
-		data = new ConcurrentLinkedHashMap.Builder()
-	    .maximumWeightedCapacity(size)
-	    .build();
+		long maxBytes = XmlLoader.getAttributeAsByteSize(configEle, "max-bytes", -1);
+		if (maxBytes > 0) {
+			CacheWeigher weigher = (CacheWeigher) configRoot.createChildObject(
+					this, configEle, "weigher", false, BeanSizeWeigher.class);
+			initWeighted(maxBytes, weigher);
+		} else {
+			int size = XmlLoader.getAttributeAsInteger(configEle, "size");
+			data = buildData(size, null);
+		}
 		return super.config(configRoot, parent, configEle);
 	}
 }
@@ -0,0 +1,142 @@
+package com.ifeng.common.dm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <title>LatencyHistogram </title>
+ * 
+ * <pre>耗时(纳秒)的直方图，用于统计百分位数.
+ * 桶按对数-线性划分：小于16的值每个值一个桶，以后每个2的幂次区间分成16个桶，
+ * 相对误差不超过1/16。桶的个数固定，计数用AtomicLongArray，
+ * record不分配内存也不加锁，可以在每次调用时使用。
+ * 读取时各桶不是同一时刻的值，只用于监控。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * 最大的long值在第(62 - SUB_BITS + 1)个区间
+     */
+    private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一次耗时
+     * @param nanos 纳秒数，负数按0记录
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        this.buckets.incrementAndGet(bucketOf(nanos));
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+        long current = this.max.get();
+        while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+            current = this.max.get();
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * @return 桶中最大的值
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int shift = bucket / SUB_COUNT - 1;
+        long lower = ((long) (SUB_COUNT + bucket % SUB_COUNT)) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return 所有耗时的和(纳秒)
+     */
+    public long getTotal() {
+        return this.total.get();
+    }
+
+    /**
+     * @return 最大耗时(纳秒)
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @return 平均耗时(纳秒)，没有记录时返回0
+     */
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getTotal() / n;
+    }
+
+    /**
+     * @param percentile 百分位，如99或99.9
+     * @return 不超过这个百分位的耗时的上界(纳秒)，没有记录时返回0
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(Math.min(100, Math.max(0, percentile))
+                * n / 100);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.buckets.set(i, 0);
+        }
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+    public String toString() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + "ns p99="
+                + getPercentile(99) + "ns max=" + getMax() + "ns";
+    }
+}
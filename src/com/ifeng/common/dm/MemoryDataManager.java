@@ -2,28 +2,53 @@ package com.ifeng.common.dm;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.w3c.dom.Element;
 
 import com.ifeng.common.conf.ConfigRoot;
 import com.ifeng.common.conf.Configurable;
 import com.ifeng.common.dm.persist.WholeQueryResult;
+import com.ifeng.common.dm.queryField.NormalQueryField;
+import com.ifeng.common.dm.queryField.RangeQueryField;
+import com.ifeng.common.dm.queryField.SetQueryField;
 import com.ifeng.common.misc.BeanTools;
 import com.ifeng.common.misc.XmlLoader;
 
 /**
  * <title>MemoryDataManager </title>
  * 
- * <pre>DataManager内存实现，可以在测试时使用。
+ * <pre>DataManager内存实现，可以在测试时使用，也可以存放数据量不大的参考数据。
  * 可以通过配置的方式注入数据。
+ * 数据按id建立hash索引，getById/delete/modify不需要遍历。
+ * 另外可以声明二级索引：hash索引用于NormalQueryField和SetQueryField，
+ * sorted索引用于RangeQueryField(也可用于NormalQueryField和SetQueryField)。
+ * 查询时选择候选数据最少的索引，只对候选数据检查其余的条件。
+ * 候选数据不少于2*parallel-threshold时，分段在多个线程中同时检查(ParallelScan)，
+ * 结果仍按加入的顺序。aggregate在扫描中直接计算count/sum/min/max/分组，不生成结果List。
+ * 索引在add/modify/delete时维护，所以修改已有的对象后要调用modify。
+ * 配置的data都被保留，包括id为null或重复的(它们只能被query查到，getById返回第一个)。
  * 配置方式为:
  *  &lt;  ... type="com.ifeng.common.dm.MemoryDataManager" bean-class="bean类型"
- *       [id-field-name="id字段名"] [autoid="true|false"] &gt;
+ *       [id-field-name="id字段名"] [autoid="true|false"]
+ *       [parallel-threshold="并行扫描时每段的最少数据个数，0表示不并行，缺省50000"] &gt;
+ *     &lt;index field="字段名" [type="hash|sorted"]/&gt;
+ *     ...
  *     &lt;data.../&gt;
  *     &lt;data.../&gt;
  *     ...
@@ -37,21 +62,57 @@ import com.ifeng.common.misc.XmlLoader;
 
 public class MemoryDataManager extends AbstractDataManager implements Configurable {
     private static Random random = new Random();
-    private List data = Collections.synchronizedList(new ArrayList());
+
+    /**
+     * 按加入顺序排列的数据对象的迭代顺序
+     */
+    private static final Comparator ROW_ORDER = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            long s1 = ((Row)o1).seq;
+            long s2 = ((Row)o2).seq;
+            return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+        }
+    };
+
+    /**
+     * key: id; value: Row。保持加入的顺序。
+     * 配置的data中id为null或重复的对象以一个新的Object为key，只能被query查到
+     */
+    private final Map rows = new LinkedHashMap();
+
+    /**
+     * rows中不以id为key的对象个数。不为0时按id的查询不能只用rows
+     */
+    private int unkeyedCount;
+
+    /**
+     * key: 字段名; value: Index
+     */
+    private final Map indexes = new LinkedHashMap();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long nextSeq;
+
     private String idFieldName = "id";
     private boolean autoId = true;
 
+    /**
+     * 并行扫描时每段的最少数据个数，0表示不并行
+     */
+    private volatile int parallelThreshold = ParallelScan.DEFAULT_THRESHOLD;
+
     /**
      * for config
      */
     public MemoryDataManager() {
         // for config
     }
-    
+
     public MemoryDataManager(Class beanClass) {
         super(beanClass);
     }
-    
+
     public MemoryDataManager(Class beanClass, String idFieldName, boolean autoId) {
         super(beanClass);
         this.idFieldName = idFieldName;
@@ -62,7 +123,9 @@ public class MemoryDataManager extends AbstractDataManager implements Configurab
      * 配置配置。
      * <pre>
      * &lt;  ... type="com.ifeng.common.dm.MemoryDataManager" bean-class="bean类型"
-     *    [id-field-name="id字段名"] [autoid="true|false"] &gt;
+     *    [id-field-name="id字段名"] [autoid="true|false"]
+     *    [parallel-threshold="并行扫描时每段的最少数据个数"] &gt;
+     *   &lt;index field="字段名" [type="hash|sorted"]/&gt;
      *   &lt;data.../&gt;
      *   &lt;data.../&gt;
      *   ...
@@ -74,21 +137,112 @@ public class MemoryDataManager extends AbstractDataManager implements Configurab
         setBeanClass(XmlLoader.getAttributeAsClass(configEle, "bean-class"));
         this.idFieldName = XmlLoader.getAttribute(configEle, "id-field-name", "id");
         this.autoId = XmlLoader.getAttributeAsBoolean(configEle, "autoid", true);
-        this.data.addAll(configRoot.createChildObjects(this, configEle, "data",
-                getBeanClass()));
+        this.parallelThreshold = XmlLoader.getAttributeAsInteger(configEle,
+                "parallel-threshold", ParallelScan.DEFAULT_THRESHOLD);
+        Element[] indexEles = XmlLoader.getChildElements(configEle, null, "index");
+        for (int i = 0; i < indexEles.length; i++) {
+            String type = XmlLoader.getAttribute(indexEles[i], "type", "hash");
+            boolean sorted;
+            if ("sorted".equals(type)) {
+                sorted = true;
+            } else if ("hash".equals(type)) {
+                sorted = false;
+            } else {
+                throw new IllegalArgumentException("Unknown index type " + type
+                        + " at " + XmlLoader.getElementLocation(indexEles[i]));
+            }
+            addIndex(XmlLoader.getAttribute(indexEles[i], "field"), sorted);
+        }
+        List list = configRoot.createChildObjects(this, configEle, "data",
+                getBeanClass());
+        for (int i = 0; i < list.size(); i++) {
+            try {
+                addRawObj(list.get(i));
+            } catch (DataManagerException e) {
+                throw new IllegalArgumentException("Invalid data at "
+                        + XmlLoader.getElementLocation(configEle), e);
+            }
+        }
         return this;
     }
 
     public void setIdFieldName(String idFieldName) {
         this.idFieldName = idFieldName;
     }
-    
+
     public void setAutoId(boolean autoId) {
         this.autoId = autoId;
     }
 
-    protected void addRawObj(Object obj) {
-        this.data.add(obj);
+    /**
+     * @param parallelThreshold 并行扫描时每段的最少数据个数，0表示不并行
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getParallelThreshold() {
+        return this.parallelThreshold;
+    }
+
+    /**
+     * 在一个字段上建立索引，已有的数据也被加入索引
+     * @param field 字段名
+     * @param sorted true为sorted索引，支持范围查询；false为hash索引
+     */
+    public void addIndex(String field, boolean sorted) {
+        Index index = sorted ? (Index)new SortedIndex() : new HashIndex();
+        this.lock.writeLock().lock();
+        try {
+            // 先建好新的索引，成功后才修改已有的数据
+            Object[] values = new Object[this.rows.size()];
+            int n = 0;
+            for (Iterator it = this.rows.values().iterator(); it.hasNext(); n++) {
+                Row row = (Row)it.next();
+                values[n] = BeanTools.getProperty(row.obj, field);
+                index.add(values[n], row);
+            }
+            int pos = this.indexes.size();
+            n = 0;
+            for (Iterator it = this.rows.values().iterator(); it.hasNext(); n++) {
+                Row row = (Row)it.next();
+                Object[] keys = new Object[pos + 1];
+                if (row.keys != null) {
+                    System.arraycopy(row.keys, 0, keys, 0, row.keys.length);
+                }
+                keys[pos] = values[n];
+                row.keys = keys;
+            }
+            this.indexes.put(field, index);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot index field " + field, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 加入配置的对象。id为null或重复的对象也被保留
+     */
+    protected void addRawObj(Object obj) throws DataManagerException {
+        Object id = getId(obj);
+        Object[] keys = indexKeys(obj);
+        this.lock.writeLock().lock();
+        try {
+            Row row = new Row(this.nextSeq);
+            row.obj = obj;
+            index(row, keys);
+            row.keys = keys;
+            this.nextSeq++;
+            if (id == null || this.rows.containsKey(id)) {
+                this.rows.put(new Object(), row);
+                this.unkeyedCount++;
+            } else {
+                this.rows.put(id, row);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
     protected Object doAdd(Object obj, Map params) throws DataManagerException {
@@ -103,59 +257,260 @@ public class MemoryDataManager extends AbstractDataManager implements Configurab
         } else {
             newId = getId(obj);
         }
-        data.add(obj);
+        put(newId, obj);
         return newId;
     }
 
     protected void doDelete(Object obj, Map params) throws DataManagerException {
         Object idVal = getId(obj);
-        for (int i = 0; i < data.size(); i++) {
-            if (getId(data.get(i)).equals(idVal)) {
-                data.remove(i);
-                break;
+        this.lock.writeLock().lock();
+        try {
+            Row row = (Row)this.rows.remove(idVal);
+            if (row != null) {
+                unindex(row, row.keys);
             }
+        } finally {
+            this.lock.writeLock().unlock();
         }
     }
 
     protected void doModify(Object obj, String[] fields, Map params)
             throws DataManagerException {
         //这是一个暂时实现，并没有考虑是否要真的修改某些字段。
-        doDelete(obj, params);
-        doAdd(obj, params);
+        // 保持原来的id和顺序，重建索引
+        put(getId(obj), obj);
+    }
+
+    /**
+     * 加入或替换一个对象，维护索引。替换时保持原来的顺序。
+     * 索引失败(如sorted索引的字段类型不能比较)时数据和索引都不变
+     */
+    private void put(Object id, Object obj) throws DataManagerException {
+        if (id == null) {
+            addRawObj(obj);
+            return;
+        }
+        Object[] keys = indexKeys(obj);
+        this.lock.writeLock().lock();
+        try {
+            Row row = (Row)this.rows.get(id);
+            if (row == null) {
+                row = new Row(this.nextSeq);
+                row.obj = obj;
+                index(row, keys);
+                this.nextSeq++;
+                this.rows.put(id, row);
+            } else {
+                unindex(row, row.keys);
+                try {
+                    index(row, keys);
+                } catch (DataManagerException e) {
+                    // 恢复原来的索引
+                    index(row, row.keys);
+                    throw e;
+                }
+                row.obj = obj;
+            }
+            row.keys = keys;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 把row按keys加入所有索引，失败时撤销已经加入的。需在锁内调用
+     */
+    private void index(Row row, Object[] keys) throws DataManagerException {
+        int i = 0;
+        try {
+            for (Iterator it = this.indexes.values().iterator(); it.hasNext(); i++) {
+                ((Index)it.next()).add(keys[i], row);
+            }
+        } catch (RuntimeException e) {
+            int j = 0;
+            for (Iterator it = this.indexes.values().iterator(); j < i; j++) {
+                ((Index)it.next()).remove(keys[j], row);
+            }
+            throw new DataManagerException("Cannot index values "
+                    + Arrays.asList(keys), e);
+        }
+    }
+
+    /**
+     * 需在锁内调用
+     */
+    private void unindex(Row row, Object[] keys) {
+        int i = 0;
+        for (Iterator it = this.indexes.values().iterator(); it.hasNext(); i++) {
+            ((Index)it.next()).remove(keys[i], row);
+        }
+    }
+
+    private Object[] indexKeys(Object obj) throws DataManagerException {
+        // 索引的字段在加锁之前读取。indexes只在配置时修改
+        Object[] keys = new Object[this.indexes.size()];
+        int i = 0;
+        for (Iterator it = this.indexes.keySet().iterator(); it.hasNext(); i++) {
+            try {
+                keys[i] = BeanTools.getProperty(obj, (String)it.next());
+            } catch (Exception e) {
+                throw new DataManagerException(e);
+            }
+        }
+        return keys;
     }
 
     public QueryResult query(Map obj, Map params) throws DataManagerException {
-        if (obj == null) {
-            // 没有查询条件，返回所有数据
-            return new WholeQueryResult(data);
-        } else {
-            List result = new ArrayList();
-            // 遍历所有数据，找出符合条件的数据
-            for (int i = 0; i < data.size(); i++) {
-                Object item = data.get(i);
-                boolean testOk = true;
-                for (Iterator it = obj.entrySet().iterator(); it.hasNext();) {
-                    Map.Entry entry = (Map.Entry)it.next();
-                    String name = (String)entry.getKey();
-                    QueryField qf = (QueryField)entry.getValue();
-                    Object field;
-                    try {
-                    	field = BeanTools.getProperty(item, name);
-                    } catch (Exception e) {
-                        throw new DataManagerException(e);
-                    }
-                    // 注意：某些qf可能不支持testObject
-                    if (!qf.testObject(field)) {
-                        testOk = false;
-                        break;
-                    }
+        List result;
+        this.lock.readLock().lock();
+        try {
+            String[] indexed = new String[1];
+            Collection candidates = select(obj, indexed);
+            if (obj == null || obj.isEmpty()) {
+                // 没有查询条件，返回所有数据
+                result = new ArrayList(candidates.size());
+                for (Iterator it = candidates.iterator(); it.hasNext(); ) {
+                    result.add(((Row)it.next()).obj);
                 }
-                if (testOk) {
-                    result.add(item);
+            } else {
+                // 只对候选数据检查其余的条件
+                CompiledQuery rest = CompiledQuery.compile(obj, indexed[0]);
+                result = ParallelScan.filter(objects(candidates),
+                        candidates.size(), rest, this.parallelThreshold);
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        return new WholeQueryResult(page(result, params));
+    }
+
+    /**
+     * 对满足条件的数据计算聚合，不生成结果的List
+     * @param obj 查询条件，同query
+     * @param aggregation 聚合
+     * @return key: 分组的值(不分组时为null)；value: Aggregation.Group。没有满足条件的数据时为空
+     */
+    public Map aggregate(Map obj, Aggregation aggregation)
+            throws DataManagerException {
+        this.lock.readLock().lock();
+        try {
+            String[] indexed = new String[1];
+            Collection candidates = select(obj, indexed);
+            CompiledQuery rest = CompiledQuery.compile(obj, indexed[0]);
+            return ParallelScan.aggregate(objects(candidates), candidates
+                    .size(), rest.isEmpty() ? null : rest, aggregation,
+                    this.parallelThreshold);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 用索引选出候选数据，按加入的顺序。需在锁内调用
+     * @param indexed 返回使用了索引的字段，没有使用索引时为null
+     * @return 候选的Row
+     */
+    private Collection select(Map obj, String[] indexed) {
+        if (obj == null || obj.isEmpty()) {
+            return this.rows.values();
+        }
+        Collection candidates = null;
+        for (Iterator it = obj.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry)it.next();
+            String name = (String)entry.getKey();
+            Collection c = candidates(name, (QueryField)entry.getValue());
+            if (c != null && (candidates == null || c.size() < candidates.size())) {
+                indexed[0] = name;
+                candidates = c;
+                if (c.isEmpty()) {
+                    return c;
+                }
+            }
+        }
+        if (candidates == null) {
+            return this.rows.values();
+        }
+        if (candidates.size() > 1) {
+            // 恢复加入的顺序
+            List sorted = new ArrayList(candidates);
+            Collections.sort(sorted, ROW_ORDER);
+            return sorted;
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Row中的数据对象，用于分段扫描
+     */
+    private static Object[] objects(Collection rows) {
+        Object[] result = new Object[rows.size()];
+        int i = 0;
+        for (Iterator it = rows.iterator(); it.hasNext(); i++) {
+            result[i] = ((Row)it.next()).obj;
+        }
+        return result;
+    }
+
+    /**
+     * 用索引找出满足一个条件的候选数据。需在锁内调用
+     * @return 候选的Row，null表示这个条件不能使用索引
+     */
+    private Collection candidates(String name, QueryField qf) {
+        if (name.equals(this.idFieldName) && qf instanceof NormalQueryField
+                && ((NormalQueryField)qf).getValue() != null
+                && this.unkeyedCount == 0) {
+            Object row = this.rows.get(((NormalQueryField)qf).getValue());
+            return row == null ? Collections.EMPTY_SET : Collections.singleton(row);
+        }
+        Index index = (Index)this.indexes.get(name);
+        if (index == null) {
+            return null;
+        }
+        try {
+            if (qf instanceof NormalQueryField) {
+                Object value = ((NormalQueryField)qf).getValue();
+                return value == null ? null : index.get(value);
+            } else if (qf instanceof SetQueryField) {
+                Object[] set = ((SetQueryField)qf).getSet();
+                if (set == null) {
+                    return null;
+                }
+                if (set.length == 1) {
+                    return index.get(set[0]);
+                }
+                Set result = new LinkedHashSet();
+                for (int i = 0; i < set.length; i++) {
+                    result.addAll(index.get(set[i]));
+                }
+                return result;
+            } else if (qf instanceof RangeQueryField && index instanceof SortedIndex) {
+                RangeQueryField range = (RangeQueryField)qf;
+                if (range.getStart() == null && range.getEnd() == null) {
+                    return null;
                 }
+                return ((SortedIndex)index).range(range.getStart(), range.getEnd());
             }
-            return new WholeQueryResult(result);
+        } catch (ClassCastException e) {
+            // 条件的类型和字段不一致，不使用索引，由testObject处理
         }
+        return null;
+    }
+
+    /**
+     * 如果params中有PARAM_PAGE_NO和PARAM_PAGE_SIZE，返回其中的一页
+     */
+    private static List page(List list, Map params) {
+        if (params == null || params.get(PARAM_PAGE_NO) == null
+                || params.get(PARAM_PAGE_SIZE) == null) {
+            return list;
+        }
+        int pageSize = ((Integer)params.get(PARAM_PAGE_SIZE)).intValue();
+        int start = (((Integer)params.get(PARAM_PAGE_NO)).intValue() - 1) * pageSize;
+        int size = list.size();
+        if (start >= size) {
+            return new ArrayList();
+        }
+        return new ArrayList(list.subList(start, Math.min(size, start + pageSize)));
     }
 
     public Object queryById(Object id) throws DataManagerException {
@@ -167,22 +522,19 @@ public class MemoryDataManager extends AbstractDataManager implements Configurab
     }
 
     public Object getById(Object id) throws DataManagerException {
+        this.lock.readLock().lock();
         try {
-            for (int i = 0; i < data.size(); i++) {
-                if (id.equals(getId(data.get(i)))) {
-                    return data.get(i);
-                }
-            }
-            return null;
-        } catch (Exception e) {
-            throw new DataManagerException(e);
+            Row row = (Row)this.rows.get(id);
+            return row == null ? null : row.obj;
+        } finally {
+            this.lock.readLock().unlock();
         }
     }
 
     public String getIdFieldName() throws DataManagerException {
         return this.idFieldName;
     }
-    
+
     public Object getId(Object obj) throws DataManagerException {
     	try {
             return BeanTools.getProperty(obj, getIdFieldName());
@@ -200,4 +552,101 @@ public class MemoryDataManager extends AbstractDataManager implements Configurab
 		throw new UnsupportedOperationException("not impl.");
 	}
 
+    /**
+     * 一个数据对象，以及加入索引时索引字段的值(用于从索引中删除)
+     */
+    private static class Row {
+        final long seq;
+        Object obj;
+        Object[] keys;
+
+        Row(long seq) {
+            this.seq = seq;
+        }
+    }
+
+    private abstract static class Index {
+        protected abstract Map buckets();
+
+        void add(Object key, Row row) {
+            Set bucket = (Set)buckets().get(key);
+            if (bucket == null) {
+                bucket = new LinkedHashSet();
+                buckets().put(key, bucket);
+            }
+            bucket.add(row);
+        }
+
+        void remove(Object key, Row row) {
+            Set bucket = (Set)buckets().get(key);
+            if (bucket != null) {
+                bucket.remove(row);
+                if (bucket.isEmpty()) {
+                    buckets().remove(key);
+                }
+            }
+        }
+
+        Collection get(Object key) {
+            Set bucket = (Set)buckets().get(key);
+            return bucket == null ? Collections.EMPTY_SET : bucket;
+        }
+    }
+
+    private static class HashIndex extends Index {
+        private final Map buckets = new HashMap();
+
+        protected Map buckets() {
+            return this.buckets;
+        }
+    }
+
+    /**
+     * 字段值为null的数据不加入sorted索引，它们不会满足范围条件
+     */
+    private static class SortedIndex extends Index {
+        private final NavigableMap buckets = new TreeMap();
+
+        protected Map buckets() {
+            return this.buckets;
+        }
+
+        void add(Object key, Row row) {
+            if (key != null) {
+                super.add(key, row);
+            }
+        }
+
+        void remove(Object key, Row row) {
+            if (key != null) {
+                super.remove(key, row);
+            }
+        }
+
+        Collection get(Object key) {
+            return key == null ? Collections.EMPTY_SET : super.get(key);
+        }
+
+        /**
+         * @param start 包含，null表示不限
+         * @param end 包含，null表示不限
+         */
+        Collection range(Object start, Object end) {
+            NavigableMap sub;
+            if (start == null) {
+                sub = this.buckets.headMap(end, true);
+            } else if (end == null) {
+                sub = this.buckets.tailMap(start, true);
+            } else if (((Comparable)start).compareTo(end) > 0) {
+                return Collections.EMPTY_SET;
+            } else {
+                sub = this.buckets.subMap(start, true, end, true);
+            }
+            List result = new ArrayList();
+            for (Iterator it = sub.values().iterator(); it.hasNext(); ) {
+                result.addAll((Set)it.next());
+            }
+            return result;
+        }
+    }
 }
@@ -0,0 +1,581 @@
+package com.ifeng.common.dm;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigException;
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>MetricsDataManager </title>
+ * 
+ * <pre>统计内部DataManager每个操作的调用次数、错误数和耗时分布(LatencyHistogram)的修饰.
+ * 在DataManager链的每一层之间放一个(用不同的name)，就可以看出耗时在缓存、队列还是数据库。
+ * 同时给出内部DataManager是缓存时的命中率、是QueuedWriteDataManager时的队列长度，
+ * 以及正在执行的调用个数。
+ * 统计可以用getSnapshot/getSnapshots读取，也可以注册为JMX MBean：
+ *   com.ifeng.common.dm:type=MetricsDataManager,name=&lt;name&gt;
+ * 注册时这个名字已经被另一个MetricsDataManager使用，认为是重新配置，替换原来的并记录警告，
+ * 原来的不再被MBeanServer引用。
+ * 统计不加锁，不分配内存，每次调用的额外开销是两次System.nanoTime和几个原子操作。
+ * </pre>
+ * 
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class MetricsDataManager extends AbstractDataManagerDecorator implements
+		MetricsDataManagerMBean {
+	private static final Logger log = Logger
+			.getLogger(MetricsDataManager.class);
+
+	public static final int ADD = 0;
+
+	public static final int DEEP_ADD = 1;
+
+	public static final int MODIFY = 2;
+
+	public static final int DEEP_MODIFY = 3;
+
+	public static final int DELETE = 4;
+
+	public static final int ADD_ALL = 5;
+
+	public static final int MODIFY_ALL = 6;
+
+	public static final int DELETE_ALL = 7;
+
+	public static final int QUERY = 8;
+
+	public static final int QUERY_BY_ID = 9;
+
+	public static final int GET_BY_ID = 10;
+
+	public static final int GET_BY_IDS = 11;
+
+	private static final String[] OPERATION_NAMES = { "add", "deepAdd",
+			"modify", "deepModify", "delete", "addAll", "modifyAll",
+			"deleteAll", "query", "queryById", "getById", "getByIds" };
+
+	private static final String JMX_DOMAIN = "com.ifeng.common.dm";
+
+	/**
+	 * 一个操作的统计
+	 */
+	private static final class Operation {
+		final AtomicLong errors = new AtomicLong();
+
+		final LatencyHistogram latency = new LatencyHistogram();
+	}
+
+	/**
+	 * 一个操作在某一时刻的统计，耗时的单位是纳秒
+	 */
+	public static class OperationSnapshot implements Serializable {
+		private static final long serialVersionUID = 4718822417460871374L;
+
+		private final String operation;
+
+		private final long count;
+
+		private final long errorCount;
+
+		private final double mean;
+
+		private final long p50;
+
+		private final long p90;
+
+		private final long p99;
+
+		private final long p999;
+
+		private final long max;
+
+		OperationSnapshot(String operation, Operation op) {
+			LatencyHistogram latency = op.latency;
+			this.operation = operation;
+			this.count = latency.getCount();
+			this.errorCount = op.errors.get();
+			this.mean = latency.getMean();
+			this.p50 = latency.getPercentile(50);
+			this.p90 = latency.getPercentile(90);
+			this.p99 = latency.getPercentile(99);
+			this.p999 = latency.getPercentile(99.9);
+			this.max = latency.getMax();
+		}
+
+		public String getOperation() {
+			return this.operation;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getErrorCount() {
+			return this.errorCount;
+		}
+
+		public double getMean() {
+			return this.mean;
+		}
+
+		public long getP50() {
+			return this.p50;
+		}
+
+		public long getP90() {
+			return this.p90;
+		}
+
+		public long getP99() {
+			return this.p99;
+		}
+
+		public long getP999() {
+			return this.p999;
+		}
+
+		public long getMax() {
+			return this.max;
+		}
+
+		public String toString() {
+			return this.operation + " count=" + this.count + " errors="
+					+ this.errorCount + " mean=" + millis(this.mean)
+					+ "ms p50=" + millis(this.p50) + "ms p99="
+					+ millis(this.p99) + "ms max=" + millis(this.max) + "ms";
+		}
+	}
+
+	private final Operation[] operations = new Operation[OPERATION_NAMES.length];
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private String name;
+
+	/**
+	 * 当前注册的MetricsDataManager。key: ObjectName。
+	 * 同时用作注册/注销的锁，保证objectName与MBeanServer中的注册一致
+	 */
+	private static final Map registered = new HashMap();
+
+	private ObjectName objectName;
+
+	public MetricsDataManager() {
+		// for config
+		for (int i = 0; i < this.operations.length; i++) {
+			this.operations[i] = new Operation();
+		}
+	}
+
+	/**
+	 * @param manager 内部DataManager
+	 * @param name 名称，用于区分DataManager链中的各层
+	 */
+	public MetricsDataManager(DataManager manager, String name) {
+		this();
+		setManager(manager);
+		this.name = name;
+	}
+
+	/**
+	 * <pre>
+	 *    &lt;... type=&quot;com.ifeng.common.dm.MetricsDataManager&quot;
+	 *        name=&quot;名称，jmx为true时必须配置且在JVM中唯一；否则缺省为内部DataManager的类名&quot;
+	 *        jmx=&quot;true|false，是否注册为JMX MBean，缺省true&quot;&gt;
+	 *      &lt;data-manager ... 内部datamanager的配置/&gt;
+	 *    &lt;/...&gt;
+	 * </pre>
+	 */
+	public Object config(ConfigRoot configRoot, Object parent, Element configEle)
+			throws ConfigException {
+		Object result = super.config(configRoot, parent, configEle);
+		// 重新配置时先注销原来的名字
+		unregisterMBean();
+		boolean jmx = XmlLoader.getAttributeAsBoolean(configEle, "jmx", true);
+		if (jmx) {
+			// 缺省的类名在包装同一种缓存的多个链之间会重复
+			this.name = XmlLoader.getAttribute(configEle, "name");
+			registerMBean();
+		} else {
+			this.name = XmlLoader.getAttribute(configEle, "name", getManager()
+					.getClass().getName());
+		}
+		return result;
+	}
+
+	/**
+	 * 注册为JMX MBean。名字已经被使用时替换原来的MBean并记录警告。
+	 * 没有名字或注册失败时只记录日志
+	 */
+	public void registerMBean() {
+		if (getName() == null) {
+			log.warn("MetricsDataManager without name is not registered as MBean: "
+					+ this);
+			return;
+		}
+		synchronized (registered) {
+			if (this.objectName != null) {
+				return;
+			}
+			try {
+				ObjectName objName = new ObjectName(JMX_DOMAIN
+						+ ":type=MetricsDataManager,name="
+						+ ObjectName.quote(getName()));
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				if (server.isRegistered(objName)) {
+					MetricsDataManager old = (MetricsDataManager) registered
+							.remove(objName);
+					log.warn("MBean " + objName + " is already registered by "
+							+ (old == null ? "another object" : old.toString())
+							+ ", replacing it with " + this);
+					server.unregisterMBean(objName);
+					if (old != null) {
+						old.objectName = null;
+					}
+				}
+				server.registerMBean(this, objName);
+				registered.put(objName, this);
+				this.objectName = objName;
+			} catch (Exception e) {
+				log.warn("Cannot register MBean for " + getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * 注销JMX MBean。已经被同名的MetricsDataManager替换时什么也不做
+	 */
+	public void unregisterMBean() {
+		synchronized (registered) {
+			if (this.objectName == null) {
+				return;
+			}
+			if (registered.get(this.objectName) == this) {
+				registered.remove(this.objectName);
+				try {
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+							this.objectName);
+				} catch (Exception e) {
+					log.warn("Cannot unregister MBean " + this.objectName, e);
+				}
+			}
+			this.objectName = null;
+		}
+	}
+
+	private long begin() {
+		this.inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	private void end(int operation, long start, boolean succeeded) {
+		long elapsed = System.nanoTime() - start;
+		this.inFlight.decrementAndGet();
+		Operation op = this.operations[operation];
+		op.latency.record(elapsed);
+		if (!succeeded) {
+			op.errors.incrementAndGet();
+		}
+	}
+
+	public Object add(Object obj, Map params) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			Object result = super.add(obj, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(ADD, start, succeeded);
+		}
+	}
+
+	public Object deepAdd(Object obj, Map params) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			Object result = super.deepAdd(obj, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(DEEP_ADD, start, succeeded);
+		}
+	}
+
+	public void modify(Object obj, String[] fields, Map params)
+			throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			super.modify(obj, fields, params);
+			succeeded = true;
+		} finally {
+			end(MODIFY, start, succeeded);
+		}
+	}
+
+	public void deepModify(Object obj, String[] fields, Map params)
+			throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			super.deepModify(obj, fields, params);
+			succeeded = true;
+		} finally {
+			end(DEEP_MODIFY, start, succeeded);
+		}
+	}
+
+	public void delete(Object obj, Map params) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			super.delete(obj, params);
+			succeeded = true;
+		} finally {
+			end(DELETE, start, succeeded);
+		}
+	}
+
+	/*
+	 * 部分对象失败时不算错误，失败的对象在BatchResult中
+	 * 
+	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#addAll(java.util.Collection,
+	 *      java.util.Map)
+	 */
+	public BatchResult addAll(Collection objs, Map params)
+			throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			BatchResult result = super.addAll(objs, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(ADD_ALL, start, succeeded);
+		}
+	}
+
+	public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+			throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			BatchResult result = super.modifyAll(objs, fields, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(MODIFY_ALL, start, succeeded);
+		}
+	}
+
+	public BatchResult deleteAll(Collection objs, Map params)
+			throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			BatchResult result = super.deleteAll(objs, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(DELETE_ALL, start, succeeded);
+		}
+	}
+
+	public QueryResult query(Map obj, Map params) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			QueryResult result = super.query(obj, params);
+			succeeded = true;
+			return result;
+		} finally {
+			end(QUERY, start, succeeded);
+		}
+	}
+
+	public Object queryById(Object id) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			Object result = super.queryById(id);
+			succeeded = true;
+			return result;
+		} finally {
+			end(QUERY_BY_ID, start, succeeded);
+		}
+	}
+
+	public Object getById(Object id) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			Object result = super.getById(id);
+			succeeded = true;
+			return result;
+		} finally {
+			end(GET_BY_ID, start, succeeded);
+		}
+	}
+
+	public Map getByIds(Collection ids) throws DataManagerException {
+		long start = begin();
+		boolean succeeded = false;
+		try {
+			Map result = super.getByIds(ids);
+			succeeded = true;
+			return result;
+		} finally {
+			end(GET_BY_IDS, start, succeeded);
+		}
+	}
+
+	private static double millis(double nanos) {
+		return nanos / 1000000.0;
+	}
+
+	/**
+	 * @throws IllegalArgumentException 没有这个操作
+	 */
+	private static int indexOf(String operation) {
+		for (int i = 0; i < OPERATION_NAMES.length; i++) {
+			if (OPERATION_NAMES[i].equals(operation)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown operation: " + operation);
+	}
+
+	/**
+	 * @param operation 操作名，如getById
+	 * @return 这个操作当前的统计
+	 */
+	public OperationSnapshot getSnapshot(String operation) {
+		return getSnapshot(indexOf(operation));
+	}
+
+	/**
+	 * @param operation ADD、GET_BY_ID等
+	 * @return 这个操作当前的统计
+	 */
+	public OperationSnapshot getSnapshot(int operation) {
+		return new OperationSnapshot(OPERATION_NAMES[operation],
+				this.operations[operation]);
+	}
+
+	/**
+	 * @return 调用过的操作的统计(OperationSnapshot)
+	 */
+	public List getSnapshots() {
+		List result = new ArrayList();
+		for (int i = 0; i < this.operations.length; i++) {
+			if (this.operations[i].latency.getCount() > 0) {
+				result.add(getSnapshot(i));
+			}
+		}
+		return result;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	public double getCacheHitRate() {
+		CacheStats stats = null;
+		if (getManager() instanceof AbstractCachedDataManager) {
+			stats = ((AbstractCachedDataManager) getManager()).getStats();
+		} else if (getManager() instanceof OffHeapCachedDataManager) {
+			stats = ((OffHeapCachedDataManager) getManager()).getStats();
+		}
+		return stats == null ? -1 : stats.getHitRate();
+	}
+
+	public int getQueueDepth() {
+		if (getManager() instanceof QueuedWriteDataManager) {
+			return ((QueuedWriteDataManager) getManager()).getPendingCount();
+		}
+		return -1;
+	}
+
+	public long getTotalCount() {
+		long count = 0;
+		for (int i = 0; i < this.operations.length; i++) {
+			count += this.operations[i].latency.getCount();
+		}
+		return count;
+	}
+
+	public long getTotalErrorCount() {
+		long count = 0;
+		for (int i = 0; i < this.operations.length; i++) {
+			count += this.operations[i].errors.get();
+		}
+		return count;
+	}
+
+	public String[] getOperationSummaries() {
+		List snapshots = getSnapshots();
+		String[] result = new String[snapshots.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = snapshots.get(i).toString();
+		}
+		return result;
+	}
+
+	public long getCount(String operation) {
+		return this.operations[indexOf(operation)].latency.getCount();
+	}
+
+	public long getErrorCount(String operation) {
+		return this.operations[indexOf(operation)].errors.get();
+	}
+
+	public double getMeanMillis(String operation) {
+		return millis(this.operations[indexOf(operation)].latency.getMean());
+	}
+
+	public double getPercentileMillis(String operation, double percentile) {
+		return millis(this.operations[indexOf(operation)].latency
+				.getPercentile(percentile));
+	}
+
+	public double getMaxMillis(String operation) {
+		return millis(this.operations[indexOf(operation)].latency.getMax());
+	}
+
+	public void reset() {
+		for (int i = 0; i < this.operations.length; i++) {
+			this.operations[i].latency.reset();
+			this.operations[i].errors.set(0);
+		}
+	}
+
+	public String toString() {
+		return "MetricsDataManager " + this.name + " of " + super.toString();
+	}
+}
@@ -0,0 +1,54 @@
+package com.ifeng.common.dm;
+
+/**
+ * <title>MetricsDataManagerMBean </title>
+ * 
+ * <pre>MetricsDataManager的JMX接口.
+ * 操作名为add、deepAdd、modify、deepModify、delete、addAll、modifyAll、deleteAll、
+ * query、queryById、getById、getByIds。耗时的单位是毫秒。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface MetricsDataManagerMBean {
+    public String getName();
+
+    /**
+     * @return 正在执行的调用个数
+     */
+    public int getInFlight();
+
+    /**
+     * @return 内部DataManager是缓存时它的命中率，否则为-1
+     */
+    public double getCacheHitRate();
+
+    /**
+     * @return 内部DataManager是QueuedWriteDataManager时等待写出的个数，否则为-1
+     */
+    public int getQueueDepth();
+
+    public long getTotalCount();
+
+    public long getTotalErrorCount();
+
+    /**
+     * @return 每个调用过的操作一行：次数、错误数、平均/p50/p99/最大耗时
+     */
+    public String[] getOperationSummaries();
+
+    public long getCount(String operation);
+
+    public long getErrorCount(String operation);
+
+    public double getMeanMillis(String operation);
+
+    public double getPercentileMillis(String operation, double percentile);
+
+    public double getMaxMillis(String operation);
+
+    /**
+     * 清除所有统计
+     */
+    public void reset();
+}
@@ -0,0 +1,339 @@
+package com.ifeng.common.dm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>OffHeapCachedDataManager </title>
+ * 
+ * <pre>
+ * 堆外的二级缓存。对象序列化后保存在若干个direct ByteBuffer(slab)中，不占用java堆，
+ * 也不增加GC的负担。
+ * 一般作为LRUSizeCachedDataManager等AbstractCachedDataManager的内部DataManager使用：
+ * 一级缓存淘汰的对象被放入这里；一级缓存未命中时先从这里取，取到的对象回到一级缓存，
+ * 同时从这里删除；都没有命中时才访问内部DataManager。
+ * 
+ * slab按顺序写入，写满后写下一个；所有slab都用过后，最早的slab被整个回收，
+ * 其中的对象被淘汰(FIFO)。slab在第一次使用时才分配。
+ * 缺省用BeanCacheSerializer按属性写成紧凑的二进制；对象有不能通过getter/setter
+ * 保存的状态时，配置JavaCacheSerializer或其它CacheSerializer。
+ * </pre>
+ * 
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class OffHeapCachedDataManager extends AbstractReadOnlyBufferedDataManager {
+	private static final Logger log = Logger
+			.getLogger(OffHeapCachedDataManager.class);
+
+	public static final long DEFAULT_CAPACITY = 256L * 1024 * 1024;
+
+	public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * 一个对象在slab中的位置
+	 */
+	private static final class Location {
+		final int slab;
+		final int generation;
+		final int offset;
+		final int length;
+
+		Location(int slab, int generation, int offset, int length) {
+			this.slab = slab;
+			this.generation = generation;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static final class Slab {
+		ByteBuffer buffer;
+		/**
+		 * 每回收一次加1，用于判断Location是否还有效
+		 */
+		int generation;
+		int used;
+		/**
+		 * 写入这个slab的id，回收时用于清理index
+		 */
+		final List ids = new ArrayList();
+	}
+
+	private CacheSerializer serializer;
+
+	private int slabSize;
+
+	private Slab[] slabs;
+
+	private int current;
+
+	/**
+	 * key: id; value: Location
+	 */
+	private final ConcurrentMap index = new ConcurrentHashMap();
+
+	/**
+	 * 读slab用读锁，写入和回收slab用写锁
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final CacheStats stats = new CacheStats();
+
+	/**
+	 * @param capacity 最大占用的堆外内存字节数
+	 * @param slabSize 每个slab的字节数，单个对象序列化后不能超过它
+	 * @param serializer null表示使用BeanCacheSerializer
+	 */
+	public OffHeapCachedDataManager(DataManager manager, long capacity,
+			int slabSize, CacheSerializer serializer) {
+		super(manager);
+		init(capacity, slabSize, serializer);
+	}
+
+	/**
+	 * for config
+	 */
+	public OffHeapCachedDataManager() {
+		super(null);
+	}
+
+	private void init(long capacity, int slabSize0, CacheSerializer serializer0) {
+		if (slabSize0 <= 0 || capacity < slabSize0) {
+			throw new IllegalArgumentException("Invalid capacity " + capacity
+					+ " or slab-size " + slabSize0);
+		}
+		this.slabSize = slabSize0;
+		this.serializer = serializer0 == null ? new BeanCacheSerializer()
+				: serializer0;
+		int count = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize0);
+		this.slabs = new Slab[count];
+		for (int i = 0; i < count; i++) {
+			this.slabs[i] = new Slab();
+		}
+		this.current = 0;
+	}
+
+	/**
+	 * <pre>
+	 *   &lt;... type=&quot;com.ifeng.common.dm.OffHeapCachedDataManager&quot; capacity=&quot;最大堆外内存，如2g，缺省256m&quot;
+	 *        slab-size=&quot;每个slab的大小，缺省16m&quot;&gt;
+	 *     &lt;serializer type=&quot;CacheSerializer的实现类，缺省为com.ifeng.common.dm.BeanCacheSerializer&quot;/&gt;  (可选)
+	 *     &lt;data-manager ... 内部datamanager的配置
+	 *     /&gt;
+	 *   &lt;/...&gt;
+	 * </pre>
+	 */
+	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
+		long capacity = XmlLoader.getAttributeAsByteSize(configEle, "capacity",
+				DEFAULT_CAPACITY);
+		long slabSize0 = XmlLoader.getAttributeAsByteSize(configEle, "slab-size",
+				DEFAULT_SLAB_SIZE);
+		if (slabSize0 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("slab-size too large: " + slabSize0);
+		}
+		CacheSerializer serializer0 = (CacheSerializer) configRoot.createChildObject(
+				this, configEle, "serializer", false, BeanCacheSerializer.class);
+		init(capacity, (int) slabSize0, serializer0);
+		return super.config(configRoot, parent, configEle);
+	}
+
+	/**
+	 * 命中时对象从这里删除(由调用者放回一级缓存)
+	 */
+	public Object getById(Object id) throws DataManagerException {
+		Object result = read(id, true);
+		if (result != null) {
+			this.stats.recordHits(1);
+			return result;
+		}
+		this.stats.recordMisses(1);
+		return getManager().getById(id);
+	}
+
+	public Map getByIds(Collection ids) throws DataManagerException {
+		Map found = new HashMap();
+		List misses = new ArrayList();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			if (id == null || found.containsKey(id)) {
+				continue;
+			}
+			Object value = read(id, true);
+			if (value == null) {
+				misses.add(id);
+			}
+			found.put(id, value);
+		}
+		this.stats.recordHits(found.size() - misses.size());
+		this.stats.recordMisses(misses.size());
+		if (!misses.isEmpty()) {
+			found.putAll(getManager().getByIds(misses));
+		}
+		Map result = new LinkedHashMap();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			Object value = found.get(id);
+			if (value != null) {
+				result.put(id, value);
+			}
+		}
+		return result;
+	}
+
+	public Object getBufferedById(Object id) throws DataManagerException {
+		return read(id, false);
+	}
+
+	/**
+	 * 一级缓存淘汰的对象放入堆外缓存
+	 */
+	public void onEvicted(Object id, Object value) {
+		demote(id, value);
+	}
+
+	/**
+	 * 放入一个(一级缓存淘汰的)对象。不能序列化或太大的对象被忽略
+	 */
+	public void demote(Object id, Object value) {
+		byte[] bytes;
+		try {
+			bytes = this.serializer.serialize(value);
+		} catch (DataManagerException e) {
+			log.warn("Cannot put " + id + " off heap", e);
+			return;
+		}
+		write(id, bytes);
+	}
+
+	public void invalidate(Object id) throws DataManagerException {
+		this.index.remove(id);
+	}
+
+	public void invalidateAll() throws DataManagerException {
+		this.lock.writeLock().lock();
+		try {
+			this.index.clear();
+			for (int i = 0; i < this.slabs.length; i++) {
+				Slab slab = this.slabs[i];
+				slab.generation++;
+				slab.used = 0;
+				slab.ids.clear();
+			}
+			this.current = 0;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public void set(Object id, Object value) throws DataManagerException {
+		if (value == null) {
+			invalidate(id);
+		} else {
+			write(id, this.serializer.serialize(value));
+		}
+	}
+
+	private Object read(Object id, boolean remove) throws DataManagerException {
+		Location loc = (Location) this.index.get(id);
+		if (loc == null) {
+			return null;
+		}
+		byte[] bytes = new byte[loc.length];
+		this.lock.readLock().lock();
+		try {
+			Slab slab = this.slabs[loc.slab];
+			if (slab.generation != loc.generation) {
+				this.index.remove(id, loc);
+				return null;
+			}
+			ByteBuffer buf = slab.buffer.duplicate();
+			buf.position(loc.offset);
+			buf.get(bytes);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		if (remove) {
+			// 空间在slab回收时释放
+			this.index.remove(id, loc);
+		}
+		return this.serializer.deserialize(bytes);
+	}
+
+	private void write(Object id, byte[] bytes) {
+		if (bytes.length > this.slabSize) {
+			this.index.remove(id);
+			return;
+		}
+		this.lock.writeLock().lock();
+		try {
+			Slab slab = this.slabs[this.current];
+			if (slab.used + bytes.length > this.slabSize) {
+				this.current = (this.current + 1) % this.slabs.length;
+				slab = this.slabs[this.current];
+				recycle(slab);
+			}
+			if (slab.buffer == null) {
+				slab.buffer = ByteBuffer.allocateDirect(this.slabSize);
+			}
+			ByteBuffer buf = slab.buffer.duplicate();
+			buf.position(slab.used);
+			buf.put(bytes);
+			this.index.put(id, new Location(this.current, slab.generation,
+					slab.used, bytes.length));
+			slab.used += bytes.length;
+			slab.ids.add(id);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * 回收一个slab，淘汰其中仍然有效的对象。需要持有写锁
+	 */
+	private void recycle(Slab slab) {
+		for (Iterator it = slab.ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			Location loc = (Location) this.index.get(id);
+			if (loc != null && loc.slab == this.current
+					&& loc.generation == slab.generation) {
+				this.index.remove(id, loc);
+				this.stats.recordEviction();
+			}
+		}
+		slab.ids.clear();
+		slab.generation++;
+		slab.used = 0;
+	}
+
+	/**
+	 * @return 堆外缓存的命中/未命中/淘汰统计
+	 */
+	public CacheStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @return 当前缓存的对象个数
+	 */
+	public int size() {
+		return this.index.size();
+	}
+}
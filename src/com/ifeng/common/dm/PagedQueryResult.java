@@ -0,0 +1,88 @@
+package com.ifeng.common.dm;
+
+import java.util.List;
+
+/**
+ * <title>PagedQueryResult </title>
+ * 
+ * <pre>一页查询结果加上符合条件的总行数.
+ * 总数可能是近似的：数到上限就停止时，isTotalExact()返回false，
+ * getTotalCount()返回上限，界面可以显示为“10000+”(getTotalText())。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class PagedQueryResult implements QueryResult {
+    private static final long serialVersionUID = 6280593473012987145L;
+
+    private final QueryResult page;
+
+    private final int totalCount;
+
+    private final boolean totalExact;
+
+    /**
+     * @param page 本页数据
+     * @param totalCount 总行数(或上限)
+     * @param totalExact 总行数是否精确
+     */
+    public PagedQueryResult(QueryResult page, int totalCount, boolean totalExact) {
+        this.page = page;
+        this.totalCount = totalCount;
+        this.totalExact = totalExact;
+    }
+
+    /**
+     * @return 本页的行数
+     */
+    public int getRowCount() {
+        return this.page.getRowCount();
+    }
+
+    public List getData(int start, int end) {
+        return this.page.getData(start, end);
+    }
+
+    public Object getData(int index) {
+        return this.page.getData(index);
+    }
+
+    /**
+     * @return 本页数据
+     */
+    public QueryResult getPage() {
+        return this.page;
+    }
+
+    /**
+     * @return 符合条件的总行数；isTotalExact()为false时是总数的下限
+     */
+    public int getTotalCount() {
+        return this.totalCount;
+    }
+
+    public boolean isTotalExact() {
+        return this.totalExact;
+    }
+
+    /**
+     * @return 用于显示的总数，如“12345”或“10000+”
+     */
+    public String getTotalText() {
+        return this.totalExact ? String.valueOf(this.totalCount)
+                : this.totalCount + "+";
+    }
+
+    /**
+     * @param pageSize 每页行数
+     * @return 总页数(近似总数时按下限计算)
+     */
+    public int getPageCount(int pageSize) {
+        return pageSize <= 0 ? 1 : (this.totalCount + pageSize - 1) / pageSize;
+    }
+
+    public String toString() {
+        return "PagedQueryResult rows=" + getRowCount() + " total="
+                + getTotalText();
+    }
+}
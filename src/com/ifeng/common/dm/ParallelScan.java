@@ -0,0 +1,192 @@
+package com.ifeng.common.dm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <title>ParallelScan </title>
+ * 
+ * <pre>把内存中的一组对象分成几段，在多个线程中同时过滤或聚合.
+ * 每段至少threshold个对象，段数不超过CPU个数；数据少于2*threshold时在调用者线程中顺序扫描。
+ * 最后一段由调用者线程扫描，其余的在共用的线程池中执行，线程池满时也由调用者线程执行。
+ * 各段的结果按段的顺序合并，所以过滤的结果保持原来的顺序。
+ * 扫描期间数据不能被修改(由调用者保证，如持有读锁)。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public final class ParallelScan {
+    /**
+     * 每段的最少对象数的缺省值
+     */
+    public static final int DEFAULT_THRESHOLD = 50000;
+
+    private static final int PARALLELISM = Runtime.getRuntime()
+            .availableProcessors();
+
+    private static final AtomicInteger threadNumber = new AtomicInteger();
+
+    private static ThreadPoolExecutor executor;
+
+    private ParallelScan() {
+        // no instance
+    }
+
+    /**
+     * 扫描一段数据
+     */
+    private static interface Scanner {
+        /**
+         * @return 这一段的结果
+         */
+        public Object scan(Object[] data, int from, int to)
+                throws DataManagerException;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 60,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue(PARALLELISM * 4),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "ParallelScan-"
+                                    + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * @return 段数，1表示顺序扫描
+     */
+    private static int partitions(int size, int threshold) {
+        if (threshold <= 0 || PARALLELISM <= 1) {
+            return 1;
+        }
+        return Math.max(1, Math.min(PARALLELISM, size / threshold));
+    }
+
+    /**
+     * @return 每一段的结果，按段的顺序
+     */
+    private static List run(final Object[] data, int size, int threshold,
+            final Scanner scanner) throws DataManagerException {
+        int n = partitions(size, threshold);
+        List results = new ArrayList(n);
+        if (n == 1) {
+            results.add(scanner.scan(data, 0, size));
+            return results;
+        }
+        FutureTask[] tasks = new FutureTask[n - 1];
+        for (int i = 0; i < n - 1; i++) {
+            final int from = (int) ((long) size * i / n);
+            final int to = (int) ((long) size * (i + 1) / n);
+            tasks[i] = new FutureTask(new Callable() {
+                public Object call() throws Exception {
+                    return scanner.scan(data, from, to);
+                }
+            });
+            getExecutor().execute(tasks[i]);
+        }
+        Object last = scanner.scan(data, (int) ((long) size * (n - 1) / n),
+                size);
+        for (int i = 0; i < n - 1; i++) {
+            try {
+                results.add(tasks[i].get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataManagerException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DataManagerException) {
+                    throw (DataManagerException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new DataManagerException(cause);
+            }
+        }
+        results.add(last);
+        return results;
+    }
+
+    /**
+     * 过滤data的前size个对象
+     * @param query 条件
+     * @param threshold 每段的最少对象数，0表示顺序扫描
+     * @return 满足条件的对象，保持原来的顺序
+     */
+    public static List filter(Object[] data, int size,
+            final CompiledQuery query, int threshold)
+            throws DataManagerException {
+        List parts = run(data, size, threshold, new Scanner() {
+            public Object scan(Object[] d, int from, int to)
+                    throws DataManagerException {
+                List part = new ArrayList();
+                for (int i = from; i < to; i++) {
+                    if (query.test(d[i])) {
+                        part.add(d[i]);
+                    }
+                }
+                return part;
+            }
+        });
+        if (parts.size() == 1) {
+            return (List) parts.get(0);
+        }
+        int total = 0;
+        for (int i = 0; i < parts.size(); i++) {
+            total += ((List) parts.get(i)).size();
+        }
+        List result = new ArrayList(total);
+        for (int i = 0; i < parts.size(); i++) {
+            result.addAll((List) parts.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 对data的前size个对象中满足条件的计算聚合
+     * @param query 条件，null表示所有对象
+     * @param threshold 每段的最少对象数，0表示顺序扫描
+     * @return key: 分组的值；value: Aggregation.Group
+     */
+    public static Map aggregate(Object[] data, int size,
+            final CompiledQuery query, final Aggregation aggregation,
+            int threshold) throws DataManagerException {
+        List parts = run(data, size, threshold, new Scanner() {
+            public Object scan(Object[] d, int from, int to)
+                    throws DataManagerException {
+                Map part = aggregation.newResult();
+                for (int i = from; i < to; i++) {
+                    if (query == null || query.test(d[i])) {
+                        aggregation.accumulate(part, d[i]);
+                    }
+                }
+                return part;
+            }
+        });
+        Map result = (Map) parts.get(0);
+        for (int i = 1; i < parts.size(); i++) {
+            aggregation.merge(result, (Map) parts.get(i));
+        }
+        return result;
+    }
+}
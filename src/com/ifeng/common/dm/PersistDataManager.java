@@ -1,21 +1,31 @@
 package com.ifeng.common.dm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import org.w3c.dom.Element;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.ifeng.common.conf.ConfigException;
 import com.ifeng.common.conf.ConfigRoot;
 import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.dm.persist.CursorQueryResult;
 import com.ifeng.common.dm.persist.HQuery;
+import com.ifeng.common.dm.persist.PageCursor;
 import com.ifeng.common.dm.persist.exception.PersistException;
 import com.ifeng.common.dm.persist.intf.PersistManager;
 import com.ifeng.common.dm.persist.intf.PersistManagerFactory;
+import com.ifeng.common.dm.queryField.SetQueryField;
 import com.ifeng.common.misc.BeanTools;
 import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.TimeLimitedMap;
 import com.ifeng.common.misc.XmlLoader;
 
 /**
@@ -49,6 +59,41 @@ import com.ifeng.common.misc.XmlLoader;
 public class PersistDataManager extends AbstractDataManager implements Configurable {
     private static final Logger log = Logger.getLogger(PersistDataManager.class);
     private static final String ALWAYS_EQUAL = " 1=1 ";
+
+    /**
+     * query时键集分页的游标(PageCursor，或者PageCursor.toToken()得到的字符串，
+     * 配置了cursor-secret时用toToken(secret)生成)，
+     * 和PARAM_PAGE_SIZE一起使用，此时忽略PARAM_PAGE_NO。
+     * 只返回游标之后的一页数据，翻页的代价与页的深度无关。
+     * 没有PARAM_ORDERBY_FIELDS时按游标的排序字段排序；有的话排序必须与游标一致
+     */
+    public static final String PARAM_PAGE_CURSOR = "dm-page-cursor";
+    
+    /**
+     * getByIds时每次in查询的缺省id个数
+     */
+    public static final int DEFAULT_ID_BATCH_SIZE = 100;
+
+    /**
+     * scroll时每次调入的缺省行数
+     */
+    public static final int DEFAULT_SCROLL_WINDOW_SIZE = 500;
+
+    /**
+     * addAll等批量写入时每个事务的缺省对象个数
+     */
+    public static final int DEFAULT_BATCH_TRANSACTION_SIZE = 1000;
+
+    /**
+     * 批量写入时每次flush的缺省对象个数，与HibernateConfig.DEFAULT_JDBC_BATCH_SIZE一致
+     * (HibernateConfig配置了jdbc-batch-size时flush使用JDBC batch)
+     */
+    public static final int DEFAULT_BATCH_FLUSH_SIZE = 50;
+
+    /**
+     * queryPage缓存的总数的最大个数
+     */
+    public static final int DEFAULT_COUNT_CACHE_SIZE = 1000;
     
     /**
      * 持久层管理对象实例，可供子类重载方法时使用
@@ -59,6 +104,22 @@ public class PersistDataManager extends AbstractDataManager implements Configura
     private String filter = ALWAYS_EQUAL;    
     private List filterParams;
     private String idFieldName;
+    private int idBatchSize = DEFAULT_ID_BATCH_SIZE;
+    private int scrollWindowSize = DEFAULT_SCROLL_WINDOW_SIZE;
+    private int batchTransactionSize = DEFAULT_BATCH_TRANSACTION_SIZE;
+    private int batchFlushSize = DEFAULT_BATCH_FLUSH_SIZE;
+    /**
+     * queryPage数总数的上限，&lt;=0表示精确计数
+     */
+    private int countLimit;
+    /**
+     * queryPage的总数缓存，key: 查询语句和参数; value: Integer，null表示不缓存
+     */
+    private Map countCache;
+    /**
+     * 验证游标token签名的密钥，null表示使用PageCursor的缺省密钥
+     */
+    private String cursorSecret;
 
     /**
      * used in configuration
@@ -81,6 +142,14 @@ public class PersistDataManager extends AbstractDataManager implements Configura
      * <pre>
      * &lt;... type="com.ifeng.common.dm.PersistDataManager 
      *      bean-class="bean类型" [pm-factory="persist manager factory的配置名称"]
+     *      [id-batch-size="getByIds时每条in查询的最大id个数，缺省100"]
+     *      [scroll-window-size="scroll时每次调入的行数，缺省500"]
+     *      [batch-transaction-size="addAll等批量写入时每个事务的对象个数，缺省1000"]
+     *      [batch-flush-size="批量写入时每次flush的对象个数，缺省50，一般与hibernate.jdbc.batch_size相同"]
+     *      [count-limit="queryPage数总数的上限，超过时显示为xxx+，缺省0即精确计数"]
+     *      [count-cache-time="queryPage总数的缓存时间(毫秒)，缺省0即不缓存"]
+     *      [count-cache-size="queryPage缓存的总数的最大个数，缺省1000"]
+     *      [cursor-secret="验证PARAM_PAGE_CURSOR的token签名的密钥，缺省使用PageCursor的缺省密钥"]
      *  /&gt;
      * persist-manager缺省使用PersistManagerFactory.ROLE的配置
      * </pre>
@@ -88,6 +157,21 @@ public class PersistDataManager extends AbstractDataManager implements Configura
     public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
     	
         setBeanClass(XmlLoader.getAttributeAsClass(configEle, "bean-class"));
+        this.idBatchSize = XmlLoader.getAttributeAsInteger(configEle,
+                "id-batch-size", DEFAULT_ID_BATCH_SIZE);
+        this.scrollWindowSize = XmlLoader.getAttributeAsInteger(configEle,
+                "scroll-window-size", DEFAULT_SCROLL_WINDOW_SIZE);
+        this.batchTransactionSize = XmlLoader.getAttributeAsInteger(configEle,
+                "batch-transaction-size", DEFAULT_BATCH_TRANSACTION_SIZE);
+        this.batchFlushSize = XmlLoader.getAttributeAsInteger(configEle,
+                "batch-flush-size", DEFAULT_BATCH_FLUSH_SIZE);
+        this.countLimit = XmlLoader.getAttributeAsInteger(configEle,
+                "count-limit", 0);
+        setCountCache(XmlLoader.getAttributeAsInteger(configEle,
+                "count-cache-time", 0), XmlLoader.getAttributeAsInteger(
+                configEle, "count-cache-size", DEFAULT_COUNT_CACHE_SIZE));
+        this.cursorSecret = XmlLoader.getAttribute(configEle, "cursor-secret",
+                null);
         PersistManagerFactory factory = null; 
         String pmFactoryName = null;
         try{
@@ -210,6 +294,96 @@ public class PersistDataManager extends AbstractDataManager implements Configura
         }
     }
    
+    private static final int BATCH_ADD = 0;
+    private static final int BATCH_MODIFY = 1;
+    private static final int BATCH_DELETE = 2;
+
+    /**
+     * 批量创建。每batch-transaction-size个对象一个事务，每batch-flush-size个对象
+     * 用JDBC batch写入一次并清空session。校验失败或写入失败的对象记录在结果中，
+     * 不影响其它对象。不能在已经开始的事务中调用
+     * @see com.ifeng.common.dm.DataManager#addAll(java.util.Collection, java.util.Map)
+     */
+    public BatchResult addAll(Collection objs, Map params)
+            throws DataManagerException {
+        return writeBatch(BATCH_ADD, objs, null, params);
+    }
+
+    /**
+     * 批量修改，见addAll
+     * @see com.ifeng.common.dm.DataManager#modifyAll(java.util.Collection, java.lang.String[], java.util.Map)
+     */
+    public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+            throws DataManagerException {
+        return writeBatch(BATCH_MODIFY, objs, fields, params);
+    }
+
+    /**
+     * 批量删除，见addAll
+     * @see com.ifeng.common.dm.DataManager#deleteAll(java.util.Collection, java.util.Map)
+     */
+    public BatchResult deleteAll(Collection objs, Map params)
+            throws DataManagerException {
+        return writeBatch(BATCH_DELETE, objs, null, params);
+    }
+
+    private BatchResult writeBatch(int kind, Collection objs, String[] fields,
+            Map params) throws DataManagerException {
+        BatchResult result = new BatchResult(objs.size());
+        // 先逐个校验，通过的对象再批量写入
+        List valid = new ArrayList(objs.size());
+        int[] indexes = new int[objs.size()];
+        int index = 0;
+        for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+            Object obj = it.next();
+            try {
+                if (obj == null) {
+                    throw new DataManagerException("Null object in batch");
+                }
+                Object checked;
+                if (kind == BATCH_ADD) {
+                    checked = checkValidAdd(obj, params);
+                } else if (kind == BATCH_MODIFY) {
+                    checked = checkValidModify(obj, fields, params);
+                } else {
+                    checked = checkValidDelete(obj, params);
+                }
+                indexes[valid.size()] = index;
+                valid.add(ensureBeanClass(checkValidation(checked, obj)));
+            } catch (DataManagerException e) {
+                result.failed(index, obj, e);
+            }
+        }
+        if (valid.isEmpty()) {
+            return result;
+        }
+        try {
+            openSession();
+            BatchResult written;
+            if (kind == BATCH_ADD) {
+                written = persistManager.addAll(valid,
+                        this.batchTransactionSize, this.batchFlushSize);
+            } else if (kind == BATCH_MODIFY) {
+                written = persistManager.modifyAll(valid, fields,
+                        this.batchTransactionSize, this.batchFlushSize);
+            } else {
+                written = persistManager.deleteAll(valid,
+                        this.batchTransactionSize, this.batchFlushSize);
+            }
+            result.merge(written, indexes);
+        } catch (PersistException e) {
+            log.error(e.getMessage(), e);
+            throw new DataManagerException(e);
+        } finally {
+            closeSession();
+        }
+        if (result.getFailureCount() > 0) {
+            log.warn("Batch write of " + getBeanClass().getName() + ": "
+                    + result);
+        }
+        return result;
+    }
+
     /**
      * 设置filter；子类实现
      */
@@ -297,6 +471,25 @@ public class PersistDataManager extends AbstractDataManager implements Configura
 
     public QueryResult query(Map obj, Map params)
             throws DataManagerException {
+        return this.query(buildQuery(obj, params));
+    }
+
+    private PageCursor parseCursor(String token) {
+        return this.cursorSecret == null ? PageCursor.fromToken(token)
+                : PageCursor.fromToken(token, this.cursorSecret);
+    }
+
+    /**
+     * 设置验证游标token签名的密钥，null表示使用PageCursor的缺省密钥
+     */
+    public void setCursorSecret(String cursorSecret) {
+        this.cursorSecret = cursorSecret;
+    }
+
+    /**
+     * 根据查询对象和参数生成HQuery
+     */
+    private HQuery buildQuery(Map obj, Map params) throws DataManagerException {
         //allow null parameter
         HQuery hquery = new HQuery();
         StringBuffer sb = new StringBuffer("select o from ");
@@ -322,8 +515,68 @@ public class PersistDataManager extends AbstractDataManager implements Configura
         hquery.setParalist(paraList);
         if (params != null) {
             hquery.setOrderby((String)params.get(PARAM_ORDERBY_FIELDS));
+            Integer pageNo = (Integer)params.get(PARAM_PAGE_NO);
+            Integer pageSize = (Integer)params.get(PARAM_PAGE_SIZE);
+            Object cursor = params.get(PARAM_PAGE_CURSOR);
+            if (cursor != null) {
+                try {
+                    hquery.setPageCursor(cursor instanceof String ? parseCursor(
+                            (String)cursor) : (PageCursor)cursor);
+                } catch (IllegalArgumentException e) {
+                    throw new DataManagerException(e.getMessage(), e);
+                }
+                if (pageSize != null) {
+                    hquery.setPerPageSize(pageSize.intValue());
+                }
+            } else if (pageNo != null && pageSize != null) {
+                hquery.setPageStartNo(pageNo.intValue());
+                hquery.setPerPageSize(pageSize.intValue());
+                if (hquery.getOrderby() == null) {
+                    // 分页需要稳定的顺序
+                    hquery.setOrderby("order by o." + getIdFieldName());
+                }
+            }
+        }
+        return hquery;
+    }
+
+    /**
+     * 逐行处理查询结果，不把所有结果一次调入内存。用于导出、批处理等大数据量的查询。
+     * 结果以游标方式读取，每scroll-window-size行转换一次，处理过的行从session中清除
+     * @param obj 查询对象，同query
+     * @param params 参数，同query
+     * @param visitor 处理每行数据
+     * @return 处理的行数
+     * @throws DataManagerException 错误
+     */
+    public int scroll(Map obj, Map params, RowVisitor visitor)
+            throws DataManagerException {
+        return scroll(buildQuery(obj, params), visitor);
+    }
+
+    /**
+     * @see #scroll(Map, Map, RowVisitor)
+     */
+    public int scroll(HQuery hql, RowVisitor visitor)
+            throws DataManagerException {
+        try {
+            openSession();
+            if (log.isDebugEnabled()) {
+                log.debug("scroll: " + hql.getQueryString());
+            }
+            CursorQueryResult result = persistManager.scroll(hql,
+                    this.scrollWindowSize);
+            try {
+                return result.visit(visitor);
+            } finally {
+                result.close();
+            }
+        } catch (PersistException e) {
+            log.error(e.getMessage(), e);
+            throw new DataManagerException(e);
+        } finally {
+            closeSession();
         }
-        return this.query(hquery);
     }
 
     public QueryResult query(HQuery hql) throws DataManagerException {
@@ -356,6 +609,73 @@ public class PersistDataManager extends AbstractDataManager implements Configura
         }
     }
 
+    /**
+     * 查询一页数据和总行数，在同一个Session中完成。
+     * 配置了count-limit时，总数最多数到count-limit，超过时PagedQueryResult.isTotalExact()
+     * 为false；配置了count-cache-time时，同样条件的总数在这段时间内不再重新计算。
+     * 键集分页(PageCursor)时总数也是整个查询的行数，与游标无关，每一页相同
+     * @param obj 查询对象，同query
+     * @param params 参数，同query，一般包含分页参数
+     * @return 一页数据和总数
+     * @throws DataManagerException 错误
+     */
+    public PagedQueryResult queryPage(Map obj, Map params)
+            throws DataManagerException {
+        return queryPage(buildQuery(obj, params));
+    }
+
+    /**
+     * @see #queryPage(Map, Map)
+     */
+    public PagedQueryResult queryPage(HQuery hql) throws DataManagerException {
+        try {
+            openSession();
+            if (log.isDebugEnabled()) {
+                log.debug("queryPage: " + hql.getQueryString());
+            }
+            QueryResult page = persistManager.query(hql);
+            boolean paged = hql.getPageCursor() != null ? hql
+                    .getPerPageSize() > 0 : hql.getPageStartNo() != 0;
+            if (!paged || hql.getPageStartNo() == 1
+                    && page.getRowCount() < hql.getPerPageSize()) {
+                // 没有分页，或者第一页不满，不需要count
+                return new PagedQueryResult(page, page.getRowCount(), true);
+            }
+            int total = getCachedResultSize(hql);
+            boolean exact = this.countLimit <= 0 || total <= this.countLimit;
+            return new PagedQueryResult(page, exact ? total : this.countLimit,
+                    exact);
+        } catch (PersistException e) {
+            log.error(e.getMessage(), e);
+            throw new DataManagerException(e);
+        } finally {
+            closeSession();
+        }
+    }
+
+    /**
+     * 从缓存或数据库得到总数，session已经打开
+     */
+    private int getCachedResultSize(HQuery hql) throws PersistException {
+        Map cache = this.countCache;
+        Object key = null;
+        if (cache != null) {
+            // 总数与排序、分页无关
+            key = Arrays.asList(new Object[] {hql.getQueryString(),
+                    hql.getParalist() == null ? null
+                            : new ArrayList(hql.getParalist())});
+            Integer cached = (Integer)cache.get(key);
+            if (cached != null) {
+                return cached.intValue();
+            }
+        }
+        int total = persistManager.getResultSize(hql, this.countLimit);
+        if (cache != null) {
+            cache.put(key, new Integer(total));
+        }
+        return total;
+    }
+
     public Object queryById(Object id) throws DataManagerException {
         try {
             if (id == null) {
@@ -386,6 +706,106 @@ public class PersistDataManager extends AbstractDataManager implements Configura
         }
     }
 
+    /**
+     * 在一个session中，用where id in (...)的HQL查询调入所有对象。
+     * id数量超过idBatchSize时分成多条查询
+     */
+    public Map getByIds(Collection ids) throws DataManagerException {
+        List idList = new ArrayList(new LinkedHashSet(ids));
+        idList.remove(null);
+        Map found = new HashMap();
+        if (!idList.isEmpty()) {
+            String idField = "o." + getIdFieldName();
+            try {
+                openSession();
+                for (int start = 0; start < idList.size(); start += this.idBatchSize) {
+                    List chunk = idList.subList(start,
+                            Math.min(start + this.idBatchSize, idList.size()));
+                    StringBuffer sb = new StringBuffer("select o from ");
+                    sb.append(getBeanClass().getName());
+                    sb.append(" o where ");
+                    SetQueryField idSet = new SetQueryField(chunk.toArray());
+                    idSet.getQL(idField, sb);
+                    List paraList = new ArrayList();
+                    idSet.getParameters(paraList);
+                    HQuery hquery = new HQuery();
+                    hquery.setQueryString(sb.toString());
+                    hquery.setParalist(paraList);
+                    if (log.isDebugEnabled()) {
+                        log.debug("query: " + hquery.getQueryString());
+                    }
+                    QueryResult chunkResult = persistManager.query(hquery);
+                    int size = chunkResult.getRowCount();
+                    for (int i = 0; i < size; i++) {
+                        Object obj = chunkResult.getData(i);
+                        found.put(getId(obj), obj);
+                    }
+                }
+            } catch (PersistException e) {
+                log.error(e.getMessage(), e);
+                throw new DataManagerException(e);
+            } finally {
+                closeSession();
+            }
+        }
+        Map result = new LinkedHashMap();
+        for (int i = 0; i < idList.size(); i++) {
+            Object obj = found.get(idList.get(i));
+            if (obj != null) {
+                result.put(idList.get(i), obj);
+            }
+        }
+        return result;
+    }
+
+    public void setIdBatchSize(int idBatchSize) {
+        this.idBatchSize = idBatchSize;
+    }
+
+    public void setScrollWindowSize(int scrollWindowSize) {
+        this.scrollWindowSize = scrollWindowSize;
+    }
+
+    public void setBatchTransactionSize(int batchTransactionSize) {
+        this.batchTransactionSize = batchTransactionSize;
+    }
+
+    public void setBatchFlushSize(int batchFlushSize) {
+        this.batchFlushSize = batchFlushSize;
+    }
+
+    /**
+     * @param countLimit queryPage数总数的上限，&lt;=0表示精确计数
+     */
+    public void setCountLimit(int countLimit) {
+        this.countLimit = countLimit;
+    }
+
+    /**
+     * 设置queryPage总数的缓存
+     * @param time 缓存时间(毫秒)，&lt;=0表示不缓存
+     * @param size 缓存的最大个数
+     */
+    public void setCountCache(int time, int size) {
+        if (time <= 0) {
+            this.countCache = null;
+        } else {
+            this.countCache = new TimeLimitedMap(
+                    new ConcurrentLinkedHashMap.Builder()
+                            .maximumWeightedCapacity(size).build(), time);
+        }
+    }
+
+    /**
+     * 清除queryPage缓存的总数，例如在批量增删之后
+     */
+    public void clearCountCache() {
+        Map cache = this.countCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
     /**
      * 构建一个set子句
      * @param toSet
@@ -1,18 +1,47 @@
 package com.ifeng.common.dm;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.w3c.dom.Element;
 
+import com.ifeng.common.conf.ConfigException;
 import com.ifeng.common.conf.ConfigRoot;
 import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.XmlLoader;
 /**
  * <title>QueuedWriteDataManager </title>
  * 
- * <pre>提供写异步能力的DataManager。采用固定线程数的Executor来完成写操作。
- * 
+ * <pre>提供写异步能力(write-behind)的DataManager。
+ * 写操作按对象的id分到thread-num个通道(lane)，每个通道一个线程，
+ * 同一个id的写操作总在同一个通道中按顺序执行。
+ * 通道中的写操作攒够flush-size个，或者最早的一个等待了flush-interval毫秒后，
+ * 成批交给内部DataManager(连续的同类操作用addAll/modifyAll/deleteAll)。
+ * 还没有写出的同一个id的操作会合并：
+ *   modify之后的modify(字段包含前一个的字段)：只写最后一个
+ *   add之后的modify(全部字段)：用最新的对象add
+ *   modify之后的delete：只delete
+ * 队列的总长度有限制(queue-size)，满了以后按overflow的设置：
+ *   block 等待，reject 抛出DataManagerException，caller-runs 调用者线程写出一批
+ * add总是返回null，addAll等的BatchResult只表示对象已经进入队列；写的错误只记录在日志中。
+ * 配置了journal-dir时，写操作先追加到本地的预写日志(WriteJournal)再返回，
+ * 写入内部DataManager成功后从日志中删除；进程退出时还没有写出的操作，
+ * 下次启动时重新进入队列。写失败的操作移到日志目录中的dead-letter文件，
+ * 不占用日志段，可以用retryDeadLetters重新进入队列。
+ * journal-sync为group时，写操作等到日志写到磁盘(group commit)后才返回。
+ * 日志的总大小达到journal-max-size时，新的写操作按overflow的设置等待、拒绝或由调用者写出。
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
@@ -21,48 +50,728 @@ public class QueuedWriteDataManager extends AbstractDataManagerDecorator {
 	private static final Logger log = Logger
 			.getLogger(QueuedWriteDataManager.class);
 
-	private Executor executor;
+	/**
+	 * 队列满时等待
+	 */
+	public static final int OVERFLOW_BLOCK = 0;
+
+	/**
+	 * 队列满时抛出DataManagerException
+	 */
+	public static final int OVERFLOW_REJECT = 1;
+
+	/**
+	 * 队列满时由调用者线程写出一批
+	 */
+	public static final int OVERFLOW_CALLER_RUNS = 2;
+
+	public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+	public static final int DEFAULT_FLUSH_SIZE = 100;
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+	private static final int ADD = 0;
+
+	private static final int MODIFY = 1;
+
+	private static final int DELETE = 2;
+
+	private static final int DEEP_ADD = 3;
+
+	private static final int DEEP_MODIFY = 4;
+
+	private static final String[] OP_NAMES = { "add", "modify", "delete",
+			"deepAdd", "deepModify" };
+
+	private Lane[] lanes;
+
+	private volatile int queueSize = DEFAULT_QUEUE_SIZE;
+
+	private volatile int flushSize = DEFAULT_FLUSH_SIZE;
+
+	private volatile long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	private volatile int overflow = OVERFLOW_BLOCK;
+
+	private volatile boolean closed;
+
+	/**
+	 * 预写日志，null表示不使用
+	 */
+	private volatile WriteJournal journal;
+
+	/**
+	 * true 写操作等到日志写到磁盘再返回
+	 */
+	private volatile boolean journalSync;
+
+	private final CacheSerializer journalSerializer = new JavaCacheSerializer();
+
+	/**
+	 * 没有id的对象(如自动生成id的add)轮流分到各通道
+	 */
+	private final AtomicInteger nextLane = new AtomicInteger();
+
+	private final AtomicLong enqueuedCount = new AtomicLong();
+
+	private final AtomicLong coalescedCount = new AtomicLong();
+
+	private final AtomicLong writtenCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong errorCount = new AtomicLong();
 
 	public QueuedWriteDataManager() {
 		// for config
 	}
 
+	/**
+	 * @param manager 内部DataManager
+	 * @param threadNum 通道(线程)数
+	 */
+	public QueuedWriteDataManager(DataManager manager, int threadNum) {
+		super(manager);
+		start(threadNum);
+	}
+
 	/**
 	 * <pre>
-	 *    &lt;... type=&quot;com.ifeng.common.dm.QueuedWriteDataManager&quot;&gt;
+	 *    &lt;... type=&quot;com.ifeng.common.dm.QueuedWriteDataManager&quot;
+	 *        queue-size=&quot;等待写出的操作的最大个数，缺省10000&quot;
+	 *        overflow=&quot;block|reject|caller-runs，队列满时的处理，缺省block&quot;
+	 *        flush-size=&quot;一批写出的最大个数，缺省100&quot;
+	 *        flush-interval=&quot;操作最多等待的毫秒数，缺省100&quot;
+	 *        journal-dir=&quot;预写日志的目录，缺省不使用日志&quot;
+	 *        journal-segment-size=&quot;日志文件段的字节数，缺省64M&quot;
+	 *        journal-sync=&quot;none|group，group表示等到日志写到磁盘再返回，缺省none&quot;
+	 *        journal-sync-interval=&quot;日志写到磁盘的间隔毫秒数，缺省10&quot;
+	 *        journal-max-size=&quot;日志文件段的最大总字节数，缺省1G，0表示不限&quot;&gt;
 	 *      &lt;data-manager ... 内部datamanager的配置/&gt;
-	 *      &lt;thread-num ... executor的线程数/&gt;
+	 *      &lt;thread-num ... 通道(线程)数/&gt;
 	 *    &lt;/...&gt;
 	 * </pre>
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
-		this.executor = Executors.newFixedThreadPool((Integer) configRoot
-				.createChildObject(this, configEle, "thread-num", true,
-						Integer.class));
-		return super.config(configRoot, parent, configEle);
+		this.queueSize = XmlLoader.getAttributeAsInteger(configEle,
+				"queue-size", DEFAULT_QUEUE_SIZE);
+		this.flushSize = XmlLoader.getAttributeAsInteger(configEle,
+				"flush-size", DEFAULT_FLUSH_SIZE);
+		this.flushInterval = XmlLoader.getAttributeAsInteger(configEle,
+				"flush-interval", (int) DEFAULT_FLUSH_INTERVAL);
+		String overflowName = XmlLoader.getAttribute(configEle, "overflow",
+				"block");
+		if ("block".equals(overflowName)) {
+			this.overflow = OVERFLOW_BLOCK;
+		} else if ("reject".equals(overflowName)) {
+			this.overflow = OVERFLOW_REJECT;
+		} else if ("caller-runs".equals(overflowName)) {
+			this.overflow = OVERFLOW_CALLER_RUNS;
+		} else {
+			throw new ConfigException(configEle, "Unknown overflow: "
+					+ overflowName);
+		}
+		Integer threadNum = (Integer) configRoot.createChildObject(this,
+				configEle, "thread-num", true, Integer.class);
+		String journalSyncName = XmlLoader.getAttribute(configEle,
+				"journal-sync", "none");
+		if ("group".equals(journalSyncName)) {
+			this.journalSync = true;
+		} else if (!"none".equals(journalSyncName)) {
+			throw new ConfigException(configEle, "Unknown journal-sync: "
+					+ journalSyncName);
+		}
+		Object result = super.config(configRoot, parent, configEle);
+		start(threadNum.intValue());
+		String journalDir = XmlLoader.getAttribute(configEle, "journal-dir",
+				null);
+		if (journalDir != null) {
+			try {
+				setJournal(new WriteJournal(new File(journalDir), XmlLoader
+						.getAttributeAsInteger(configEle,
+								"journal-segment-size",
+								WriteJournal.DEFAULT_SEGMENT_SIZE), XmlLoader
+						.getAttributeAsInteger(configEle,
+								"journal-sync-interval",
+								(int) WriteJournal.DEFAULT_SYNC_INTERVAL),
+						XmlLoader.getAttributeAsLong(configEle,
+								"journal-max-size",
+								WriteJournal.DEFAULT_MAX_SIZE)));
+			} catch (DataManagerException e) {
+				throw new ConfigException(configEle, "Cannot open journal: "
+						+ e.getMessage());
+			}
+		}
+		return result;
 	}
 
-	/*
-	 * add总是返回null，调用者不能依赖于返回值
+	private void start(int threadNum) {
+		this.lanes = new Lane[Math.max(1, threadNum)];
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i] = new Lane(i);
+			this.lanes[i].start();
+		}
+	}
+
+	/**
+	 * 一个写操作
+	 */
+	private static final class Op {
+		int kind;
+
+		final Object id;
+
+		Object obj;
+
+		String[] fields;
+
+		final Map params;
+
+		final long time = System.currentTimeMillis();
+
+		/**
+		 * 日志中的序号(Long)，包括合并掉的操作；null表示不使用日志
+		 */
+		List seqs;
+
+		Op(int kind, Object id, Object obj, String[] fields, Map params) {
+			this.kind = kind;
+			this.id = id;
+			this.obj = obj;
+			this.fields = fields;
+			this.params = params;
+		}
+
+		void addSeq(long seq) {
+			if (seq <= 0) {
+				return;
+			}
+			if (this.seqs == null) {
+				this.seqs = new ArrayList(1);
+			}
+			this.seqs.add(new Long(seq));
+		}
+
+		/**
+		 * 与后面的同类操作是否可以一批写出
+		 */
+		boolean sameBatch(Op other) {
+			return this.kind == other.kind
+					&& this.kind <= DELETE
+					&& (this.params == null ? other.params == null
+							: this.params.equals(other.params))
+					&& Arrays.equals(this.fields, other.fields);
+		}
+	}
+
+	/**
+	 * 一个通道：一个队列和一个写线程
+	 */
+	private final class Lane extends Thread {
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition notEmpty = this.lock.newCondition();
+
+		private final Condition notFull = this.lock.newCondition();
+
+		private final LinkedList queue = new LinkedList();
+
+		/**
+		 * id -&gt; 队列中这个id的最后一个操作
+		 */
+		private final Map lastOps = new HashMap();
+
+		/**
+		 * 保证同一通道的批次按顺序写出(写线程和caller-runs的调用者线程)
+		 */
+		private final ReentrantLock flushLock = new ReentrantLock();
+
+		Lane(int index) {
+			super("QueuedWriteDataManager lane " + index);
+			setDaemon(true);
+		}
+
+		/**
+		 * @param data 要追加到日志的数据，null表示不追加
+		 * @param replaySeq 从日志恢复的操作在日志中的序号，否则为0
+		 * @return 操作在日志中的序号，不使用日志时为0
+		 */
+		long enqueue(int kind, Object id, Object obj, String[] fields,
+				Map params, byte[] data, long replaySeq)
+				throws DataManagerException {
+			while (true) {
+				this.lock.lock();
+				try {
+					Op last = coalesce(kind, id, obj, fields, params);
+					if (last != null) {
+						long seq = appendJournal(kind, data, replaySeq);
+						merge(last, kind, obj, fields);
+						last.addSeq(seq);
+						coalescedCount.incrementAndGet();
+						return seq;
+					}
+					int capacity = Math.max(1, queueSize / lanes.length);
+					if (this.queue.size() < capacity) {
+						// 在通道的锁中追加日志，日志中同一个id的操作与队列中的顺序相同
+						long seq = appendJournal(kind, data, replaySeq);
+						Op op = new Op(kind, id, obj, fields, params);
+						op.addSeq(seq);
+						this.queue.addLast(op);
+						if (id != null) {
+							this.lastOps.put(id, op);
+						}
+						enqueuedCount.incrementAndGet();
+						if (this.queue.size() == 1
+								|| this.queue.size() >= flushSize) {
+							this.notEmpty.signal();
+						}
+						return seq;
+					}
+					// 恢复的操作总是等待，不拒绝
+					if (overflow == OVERFLOW_REJECT && replaySeq <= 0) {
+						rejectedCount.incrementAndGet();
+						throw new DataManagerException("Write queue is full: "
+								+ this.queue.size());
+					} else if (overflow == OVERFLOW_BLOCK || replaySeq > 0) {
+						this.notFull.await();
+						continue;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DataManagerException(
+							"Interrupted waiting for write queue", e);
+				} finally {
+					this.lock.unlock();
+				}
+				// caller-runs: 在调用者线程写出一批，腾出空间
+				flushOnce();
+			}
+		}
+
+		/**
+		 * 找到队列中可以与这个操作合并的、同一个id的最后一个操作
+		 * 
+		 * @return 可以合并的操作，null表示不能合并
+		 */
+		private Op coalesce(int kind, Object id, Object obj,
+				String[] fields, Map params) {
+			if (id == null) {
+				return null;
+			}
+			Op last = (Op) this.lastOps.get(id);
+			if (last == null
+					|| !(params == null ? last.params == null : params
+							.equals(last.params))) {
+				return null;
+			}
+			if (kind == MODIFY && last.kind == MODIFY
+					&& covers(fields, last.fields)
+					|| kind == MODIFY && last.kind == ADD && fields == null
+					|| kind == DELETE && last.kind == MODIFY) {
+				return last;
+			}
+			return null;
+		}
+
+		/**
+		 * 把操作合并到last中，last是coalesce的结果
+		 */
+		private void merge(Op last, int kind, Object obj, String[] fields) {
+			last.obj = obj;
+			if (kind == DELETE) {
+				last.kind = DELETE;
+				last.fields = null;
+			} else if (last.kind == MODIFY) {
+				last.fields = fields;
+			}
+		}
+
+		/**
+		 * 从队列头取出一批并写出
+		 * 
+		 * @return 写出的个数
+		 */
+		int flushOnce() {
+			this.flushLock.lock();
+			try {
+				List batch;
+				this.lock.lock();
+				try {
+					int n = Math.min(this.queue.size(), Math.max(1, flushSize));
+					batch = new ArrayList(n);
+					for (int i = 0; i < n; i++) {
+						Op op = (Op) this.queue.removeFirst();
+						if (op.id != null && this.lastOps.get(op.id) == op) {
+							this.lastOps.remove(op.id);
+						}
+						batch.add(op);
+					}
+					if (n > 0) {
+						this.notFull.signalAll();
+					}
+				} finally {
+					this.lock.unlock();
+				}
+				write(batch);
+				return batch.size();
+			} finally {
+				this.flushLock.unlock();
+			}
+		}
+
+		int size() {
+			this.lock.lock();
+			try {
+				return this.queue.size();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		void wakeUp() {
+			this.lock.lock();
+			try {
+				this.notEmpty.signal();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * 等到攒够一批、最早的操作到时或者关闭
+		 */
+		private void awaitBatch() throws InterruptedException {
+			this.lock.lock();
+			try {
+				while (!closed && this.queue.size() < flushSize) {
+					if (this.queue.isEmpty()) {
+						this.notEmpty.await();
+					} else {
+						long wait = ((Op) this.queue.getFirst()).time
+								+ flushInterval - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
+						}
+						this.notEmpty.await(wait, TimeUnit.MILLISECONDS);
+					}
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					awaitBatch();
+					if (flushOnce() == 0 && closed) {
+						break;
+					}
+				} catch (InterruptedException e) {
+					if (closed) {
+						break;
+					}
+				} catch (Throwable e) {
+					log.error("Error in write lane " + getName(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true 如果newFields包含oldFields(null表示全部字段)
+	 */
+	private static boolean covers(String[] newFields, String[] oldFields) {
+		if (newFields == null) {
+			return true;
+		}
+		if (oldFields == null) {
+			return false;
+		}
+		return Arrays.asList(newFields).containsAll(Arrays.asList(oldFields));
+	}
+
+	/**
+	 * 按顺序写出一批操作，连续的同类操作一次交给内部DataManager
+	 */
+	private void write(List batch) {
+		int start = 0;
+		while (start < batch.size()) {
+			Op first = (Op) batch.get(start);
+			int end = start + 1;
+			while (end < batch.size() && first.sameBatch((Op) batch.get(end))) {
+				end++;
+			}
+			BatchResult result = null;
+			boolean succeeded = false;
+			try {
+				if (end - start == 1) {
+					writeOne(first);
+				} else {
+					List objs = new ArrayList(end - start);
+					for (int i = start; i < end; i++) {
+						objs.add(((Op) batch.get(i)).obj);
+					}
+					result = writeAll(first, objs);
+				}
+				succeeded = true;
+			} catch (Exception e) {
+				this.errorCount.addAndGet(end - start);
+				log.error("Error in queued " + OP_NAMES[first.kind], e);
+			}
+			for (int i = start; i < end; i++) {
+				ack((Op) batch.get(i), succeeded
+						&& (result == null || result.isSucceeded(i - start)));
+			}
+			this.writtenCount.addAndGet(end - start);
+			start = end;
+		}
+	}
+
+	private void writeOne(Op op) throws DataManagerException {
+		switch (op.kind) {
+		case ADD:
+			getManager().add(op.obj, op.params);
+			break;
+		case MODIFY:
+			getManager().modify(op.obj, op.fields, op.params);
+			break;
+		case DELETE:
+			getManager().delete(op.obj, op.params);
+			break;
+		case DEEP_ADD:
+			getManager().deepAdd(op.obj, op.params);
+			break;
+		default:
+			getManager().deepModify(op.obj, op.fields, op.params);
+		}
+	}
+
+	/**
+	 * @return 内部DataManager返回的结果，可能为null
+	 */
+	private BatchResult writeAll(Op first, List objs)
+			throws DataManagerException {
+		BatchResult result;
+		switch (first.kind) {
+		case ADD:
+			result = getManager().addAll(objs, first.params);
+			break;
+		case MODIFY:
+			result = getManager().modifyAll(objs, first.fields, first.params);
+			break;
+		default:
+			result = getManager().deleteAll(objs, first.params);
+		}
+		logFailures(OP_NAMES[first.kind], result);
+		return result;
+	}
+
+	/**
+	 * 写出成功的操作从日志中删除。失败的操作移到dead-letter文件，
+	 * 不会一直占用日志段；不能写dead-letter文件时留在日志中，下次启动时重试
+	 */
+	private void ack(Op op, boolean succeeded) {
+		WriteJournal journal = this.journal;
+		if (journal == null || op.seqs == null) {
+			return;
+		}
+		for (int i = 0; i < op.seqs.size(); i++) {
+			long seq = ((Long) op.seqs.get(i)).longValue();
+			if (succeeded) {
+				journal.ack(seq);
+				continue;
+			}
+			try {
+				journal.deadLetter(seq);
+			} catch (DataManagerException e) {
+				log.error("Keep failed " + OP_NAMES[op.kind] + " of " + op.obj
+						+ " in journal", e);
+			}
+		}
+		if (!succeeded) {
+			log.error("Moved failed " + OP_NAMES[op.kind] + " of " + op.obj
+					+ " to dead letters");
+		}
+	}
+
+	/**
+	 * 在通道的锁中调用
 	 * 
-	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#add(java.lang.Object,
-	 *      java.util.Map)
+	 * @return 日志中的序号，不使用日志时为0
 	 */
-	public Object add(final Object obj, final Map params)
+	private long appendJournal(int kind, byte[] data, long replaySeq)
 			throws DataManagerException {
+		if (replaySeq > 0) {
+			return replaySeq;
+		}
+		WriteJournal journal = this.journal;
+		if (journal == null || data == null) {
+			return 0;
+		}
+		return journal.append(kind, data);
+	}
+
+	private void logFailures(String op, BatchResult result) {
+		if (result == null) {
+			return;
+		}
+		List failures = result.getFailures();
+		this.errorCount.addAndGet(failures.size());
+		for (int i = 0; i < failures.size(); i++) {
+			BatchResult.Failure failure = (BatchResult.Failure) failures.get(i);
+			log.error("Error in queued " + op + " of " + failure.getItem(),
+					failure.getException());
+		}
+	}
+
+	private void enqueue(int kind, Object obj, String[] fields, Map params)
+			throws DataManagerException {
+		if (this.closed) {
+			throw new DataManagerException("QueuedWriteDataManager is closed");
+		}
+		WriteJournal journal = this.journal;
+		byte[] data = null;
+		if (journal != null) {
+			awaitJournal(journal);
+			// 在锁外序列化
+			data = this.journalSerializer.serialize(new Object[] { obj, fields,
+					params });
+		}
+		long seq = enqueue(kind, obj, fields, params, data, 0);
+		if (seq > 0 && this.journalSync) {
+			journal.awaitSync(seq);
+		}
+	}
+
+	/**
+	 * 日志满时按overflow的设置等待、拒绝或由调用者写出，不在通道的锁中调用
+	 */
+	private void awaitJournal(WriteJournal journal)
+			throws DataManagerException {
+		if (!journal.isFull()) {
+			return;
+		}
+		if (this.overflow == OVERFLOW_REJECT) {
+			this.rejectedCount.incrementAndGet();
+			throw new DataManagerException("Write journal is full: " + journal);
+		} else if (this.overflow == OVERFLOW_CALLER_RUNS) {
+			// 写出队列中的操作，ack后释放日志段
+			flush();
+		}
+		journal.awaitCapacity();
+	}
+
+	/**
+	 * @return obj的id，不能取得时返回null
+	 */
+	private Object idOf(Object obj) {
+		if (obj == null) {
+			return null;
+		}
 		try {
-			this.executor.execute(new Runnable() {
-				public void run() {
-					try {
-						getManager().add(obj, params);
-					} catch (DataManagerException e) {
-						log.error("Error in queued add", e);
-					}
-				}
-			});
+			return getId(obj);
 		} catch (Exception e) {
-			throw new DataManagerException(e);
+			return null;
+		}
+	}
+
+	private long enqueue(int kind, Object obj, String[] fields, Map params,
+			byte[] data, long replaySeq) throws DataManagerException {
+		// 不能取得id时不合并
+		Object id = idOf(obj);
+		int index;
+		if (id == null) {
+			index = this.nextLane.getAndIncrement();
+		} else {
+			index = id.hashCode();
+		}
+		return this.lanes[(index & Integer.MAX_VALUE) % this.lanes.length]
+				.enqueue(kind, id, obj, fields, params, data, replaySeq);
+	}
+
+	/**
+	 * 使用预写日志。日志中已有的操作(上次没有写出的)按顺序重新进入队列
+	 * 
+	 * @param journal 预写日志
+	 * @throws DataManagerException 不能读出日志
+	 */
+	public void setJournal(final WriteJournal journal)
+			throws DataManagerException {
+		this.journal = journal;
+		final int[] count = new int[1];
+		journal.replay(new RowVisitor() {
+			public boolean visit(Object row) throws DataManagerException {
+				WriteJournal.Entry entry = (WriteJournal.Entry) row;
+				Object[] op;
+				try {
+					op = (Object[]) journalSerializer.deserialize(entry
+							.getData());
+				} catch (DataManagerException e) {
+					log.error("Move unreadable journal record "
+							+ entry.getSeq() + " to dead letters", e);
+					journal.deadLetter(entry.getSeq());
+					return true;
+				}
+				enqueue(entry.getKind(), op[0], (String[]) op[1], (Map) op[2],
+						null, entry.getSeq());
+				count[0]++;
+				return true;
+			}
+		});
+		if (count[0] > 0) {
+			log.info("Replayed " + count[0] + " queued writes from journal");
 		}
+	}
+
+	/**
+	 * 把dead-letter文件中的操作(以前写失败的)重新放入队列，如后端恢复之后
+	 * 
+	 * @return 重新放入队列的个数
+	 * @throws DataManagerException 没有使用日志，或者不能读出dead-letter文件
+	 */
+	public int retryDeadLetters() throws DataManagerException {
+		WriteJournal journal = this.journal;
+		if (journal == null) {
+			throw new DataManagerException("No write journal");
+		}
+		List entries = journal.takeDeadLetters();
+		int count = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			WriteJournal.Entry entry = (WriteJournal.Entry) entries.get(i);
+			try {
+				Object[] op = (Object[]) this.journalSerializer
+						.deserialize(entry.getData());
+				enqueue(entry.getKind(), op[0], (String[]) op[1], (Map) op[2]);
+				count++;
+			} catch (DataManagerException e) {
+				log.error("Cannot retry dead letter " + entry.getSeq(), e);
+				journal.deadLetter(entry);
+			}
+		}
+		return count;
+	}
+
+	public WriteJournal getJournal() {
+		return this.journal;
+	}
+
+	/**
+	 * @param journalSync true 写操作等到日志写到磁盘(group commit)再返回
+	 */
+	public void setJournalSync(boolean journalSync) {
+		this.journalSync = journalSync;
+	}
+
+	/*
+	 * add总是返回null，调用者不能依赖于返回值
+	 * 
+	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#add(java.lang.Object,
+	 *      java.util.Map)
+	 */
+	public Object add(Object obj, Map params) throws DataManagerException {
+		enqueue(ADD, obj, null, params);
 		return null;
 	}
 
@@ -72,21 +781,8 @@ public class QueuedWriteDataManager extends AbstractDataManagerDecorator {
 	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#delete(java.lang.Object,
 	 *      java.util.Map)
 	 */
-	public void delete(final Object obj, final Map params)
-			throws DataManagerException {
-		try {
-			this.executor.execute(new Runnable() {
-				public void run() {
-					try {
-						getManager().delete(obj, params);
-					} catch (DataManagerException e) {
-						log.error("Error in queued delete", e);
-					}
-				}
-			});
-		} catch (Exception e) {
-			throw new DataManagerException(e);
-		}
+	public void delete(Object obj, Map params) throws DataManagerException {
+		enqueue(DELETE, obj, null, params);
 	}
 
 	/*
@@ -95,59 +791,168 @@ public class QueuedWriteDataManager extends AbstractDataManagerDecorator {
 	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#modify(java.lang.Object,
 	 *      java.lang.String[], java.util.Map)
 	 */
-	public void modify(final Object obj, final String[] fields, final Map params)
+	public void modify(Object obj, String[] fields, Map params)
 			throws DataManagerException {
-		try {
-			this.executor.execute(new Runnable() {
-				public void run() {
-					try {
-						getManager().modify(obj, fields, params);
-					} catch (DataManagerException e) {
-						log.error("Error in queued modify", e);
-					}
-				}
-			});
-		} catch (Exception e) {
-			throw new DataManagerException(e);
-		}
+		enqueue(MODIFY, obj, fields, params);
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#deepAdd(java.lang.Object, java.util.Map)
 	 */
-	public Object deepAdd(final Object obj, final Map params) throws DataManagerException {
-		try {
-            this.executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        getManager().deepAdd(obj, params);
-                    } catch (DataManagerException e) {
-                        log.error("Error in queued add", e);
-                    }
-                }
-            });
-        } catch (Exception e) {
-            throw new DataManagerException(e);
-        }
-        return null;
+	public Object deepAdd(Object obj, Map params) throws DataManagerException {
+		enqueue(DEEP_ADD, obj, null, params);
+		return null;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#deepModify(java.lang.Object, java.lang.String[], java.util.Map)
 	 */
-	public void deepModify(final Object obj, final String[] fields, final Map params) throws DataManagerException {
-        try {
-            this.executor.execute(new Runnable() {
-                public void run() {
-                    try {
-                        getManager().deepModify(obj, fields, params);
-                    } catch (DataManagerException e) {
-                        log.error("Error in queued modify", e);
-                    }
-                }
-            });
-        } catch (Exception e) {
-            throw new DataManagerException(e);
-        }
+	public void deepModify(Object obj, String[] fields, Map params)
+			throws DataManagerException {
+		enqueue(DEEP_MODIFY, obj, fields, params);
+	}
+
+	/**
+	 * 每个对象单独进入队列(可以合并)
+	 * @return 进入队列的对象记为成功(id是对象中已有的id，没有时为null)，
+	 *         不能进入队列的(如已经关闭)记为失败。实际写入时的失败记录在日志中
+	 */
+	private BatchResult enqueueAll(int kind, Collection objs, String[] fields,
+			Map params) {
+		BatchResult result = new BatchResult(objs.size());
+		int index = 0;
+		for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+			Object obj = it.next();
+			try {
+				enqueue(kind, obj, fields, params);
+				result.succeeded(index, idOf(obj));
+			} catch (DataManagerException e) {
+				result.failed(index, obj, e);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * 见enqueueAll
+	 * 
+	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#addAll(java.util.Collection,
+	 *      java.util.Map)
+	 */
+	public BatchResult addAll(Collection objs, Map params)
+			throws DataManagerException {
+		return enqueueAll(ADD, objs, null, params);
+	}
+
+	/*
+	 * 见enqueueAll
+	 * 
+	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#modifyAll(java.util.Collection,
+	 *      java.lang.String[], java.util.Map)
+	 */
+	public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+			throws DataManagerException {
+		return enqueueAll(MODIFY, objs, fields, params);
+	}
+
+	/*
+	 * 见enqueueAll
+	 * 
+	 * @see com.ifeng.common.dm.AbstractDataManagerDecorator#deleteAll(java.util.Collection,
+	 *      java.util.Map)
+	 */
+	public BatchResult deleteAll(Collection objs, Map params)
+			throws DataManagerException {
+		return enqueueAll(DELETE, objs, null, params);
+	}
+
+	/**
+	 * 在调用者线程中写出所有等待的操作
+	 */
+	public void flush() {
+		for (int i = 0; i < this.lanes.length; i++) {
+			while (this.lanes[i].flushOnce() > 0) {
+				// 直到通道为空
+			}
+		}
+	}
+
+	/**
+	 * 写出所有等待的操作，停止写线程，关闭日志。关闭后不再接受写操作
+	 */
+	public void close() {
+		this.closed = true;
+		flush();
+		for (int i = 0; i < this.lanes.length; i++) {
+			this.lanes[i].wakeUp();
+		}
+		if (this.journal != null) {
+			this.journal.close();
+		}
+	}
+
+	/**
+	 * @return 等待写出的操作个数
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (int i = 0; i < this.lanes.length; i++) {
+			count += this.lanes[i].size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return 进入队列的操作个数(不包括合并掉的)
+	 */
+	public long getEnqueuedCount() {
+		return this.enqueuedCount.get();
+	}
+
+	/**
+	 * @return 与队列中的操作合并掉的操作个数
+	 */
+	public long getCoalescedCount() {
+		return this.coalescedCount.get();
+	}
+
+	/**
+	 * @return 交给内部DataManager的操作个数
+	 */
+	public long getWrittenCount() {
+		return this.writtenCount.get();
+	}
+
+	/**
+	 * @return 因为队列满而拒绝的操作个数
+	 */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * @return 写出失败的操作个数
+	 */
+	public long getErrorCount() {
+		return this.errorCount.get();
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public void setFlushSize(int flushSize) {
+		this.flushSize = flushSize;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	/**
+	 * @param overflow OVERFLOW_BLOCK, OVERFLOW_REJECT或OVERFLOW_CALLER_RUNS
+	 */
+	public void setOverflow(int overflow) {
+		this.overflow = overflow;
 	}
 }
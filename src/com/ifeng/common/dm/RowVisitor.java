@@ -0,0 +1,20 @@
+package com.ifeng.common.dm;
+
+/**
+ * <title>RowVisitor </title>
+ * 
+ * <pre>逐行处理查询结果的回调，用于导出等大数据量的处理。
+ * 查询结果不会一次全部调入内存，处理过的行不应再被引用。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface RowVisitor {
+    /**
+     * 处理一行数据
+     * @param row 一行数据(已经转换，与query的结果相同)
+     * @return true 继续处理下一行；false 停止
+     * @throws DataManagerException 错误，遍历中止
+     */
+    public boolean visit(Object row) throws DataManagerException;
+}
@@ -1,18 +1,40 @@
 package com.ifeng.common.dm;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.w3c.dom.Element;
 
 import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.TimerManager;
+import com.ifeng.common.misc.XmlLoader;
 
 /**
- * <title>LRUSizeCachedDataManager </title>
+ * <title>StaticCachedDataManager </title>
  * 
  * <pre>
  *  缓存全部数据的DataManager,支持ID查询时使用缓存。适用于小数据量但高查询频率的场景，会在初次使用时加载数据。
+ *  全部数据保存在一个不可变的快照中，查询不加锁。
+ *  数据在后台分页调入，不阻塞读者：调入完成之前，还没有调入的id直接访问内部DataManager。
+ *  reload()(或者配置reload-interval定期)在后台重新调入全部数据，生成新的快照后整体替换，
+ *  替换之前继续使用旧的快照。
+ *  set/invalidate的结果保存在快照之外(优先于快照)，直到下一次替换快照。
+ *  invalidateAll不等待正在进行的调入：它增加代数并清空快照，代数改变后的调入结果被丢弃。
+ *  每个实例使用自己的Timer线程调入，一个慢的调入不影响其它实例。
  * </pre>
  * 
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
@@ -21,46 +43,279 @@ import com.ifeng.common.conf.ConfigRoot;
  */
 
 public class StaticCachedDataManager extends AbstractCachedDataManager {
-	
+	private static final Logger log = Logger
+			.getLogger(StaticCachedDataManager.class);
+
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private static final AtomicInteger instanceNumber = new AtomicInteger();
+
+	/**
+	 * 调入用的Timer，第一次使用时创建
+	 */
+	private volatile Timer timer;
+
+	/**
+	 * 不可变的全部数据。key: id; value: 对象
+	 */
+	private volatile Map snapshot = Collections.EMPTY_MAP;
+
+	/**
+	 * 快照中已经失效的id
+	 */
+	private final ConcurrentMap invalidated = new ConcurrentHashMap();
+
+	/**
+	 * 调入过程中被set/invalidate的id，替换快照时保留它们在data和invalidated中的状态
+	 */
+	private final ConcurrentMap touched = new ConcurrentHashMap();
+
+	private volatile boolean reloading;
+
+	private final Object reloadLock = new Object();
+
+	/**
+	 * 每次invalidateAll加1。调入开始后代数改变，说明数据已经全部失效，调入的结果不能使用
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicBoolean started = new AtomicBoolean();
+
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	private long reloadInterval;
+
 	public StaticCachedDataManager(DataManager manager) {
 		super(manager);
+		this.data = new ConcurrentHashMap();
 	}
 	public StaticCachedDataManager(){
 		super(null);
 	}
 	/**
 	 * <pre>
-	 *    &lt;... type=&quot;com.ifeng.common.dm.StaticCachedDataManager&quot;&quot;&gt;
+	 *    &lt;... type=&quot;com.ifeng.common.dm.StaticCachedDataManager&quot;
+	 *         page-size=&quot;每次调入的行数，缺省1000&quot;
+	 *         reload-interval=&quot;可选，定期重新调入的间隔(毫秒)&quot;&gt;
 	 *      &lt;data-manager ... 内部datamanager的配置/&gt;
 	 *    &lt;/...&gt;
 	 * </pre>
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
-		this.data = Collections.synchronizedMap(new HashMap());
+		this.data = new ConcurrentHashMap();
+		this.pageSize = XmlLoader.getAttributeAsInteger(configEle, "page-size",
+				DEFAULT_PAGE_SIZE);
+		this.reloadInterval = XmlLoader.getAttributeAsLong(configEle,
+				"reload-interval", 0);
 		return super.config(configRoot, parent, configEle);
 	}
 
-	
-	private synchronized Map getData() throws DataManagerException {
-		if (this.data.size() == 0) {
-			this.data = Collections.synchronizedMap(new HashMap());
-			QueryResult allResult = this.getManager().query(null,null);
-			int size = allResult.getRowCount();
-			for (int i = 0; i < size; i++) {
-				Object obj = allResult.getData(i);
-				this.data.put(getId(obj), obj);
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public void setReloadInterval(long reloadInterval) {
+		this.reloadInterval = reloadInterval;
+	}
+
+	/**
+	 * 第一次使用时在后台开始调入
+	 */
+	private void start() {
+		if (this.started.get() || !this.started.compareAndSet(false, true)) {
+			return;
+		}
+		Timer timer = TimerManager.createTimer("StaticCachedDataManager Timer-"
+				+ instanceNumber.incrementAndGet());
+		this.timer = timer;
+		timer.schedule(new TimerTask() {
+			public void run() {
+				reloadQuietly();
 			}
+		}, 0);
+		if (this.reloadInterval > 0) {
+			timer.schedule(new TimerTask() {
+				public void run() {
+					reloadQuietly();
+				}
+			}, this.reloadInterval, this.reloadInterval);
 		}
-		return this.data;
+	}
+
+	private void reloadQuietly() {
+		try {
+			reload();
+		} catch (Throwable e) {
+			log.error("Error in reloading data", e);
+		}
+	}
+
+	/**
+	 * 分页调入全部数据，生成新的快照并替换旧的快照。同时只有一个reload在进行。
+	 * 第一次调入时，已经调入的部分马上可以使用。
+	 * 调入过程中有invalidateAll时放弃这次调入(invalidateAll会安排新的调入)。
+	 */
+	public void reload() throws DataManagerException {
+		synchronized (this.reloadLock) {
+			long gen = this.generation.get();
+			boolean initial = this.snapshot.isEmpty();
+			ConcurrentMap overlay = (ConcurrentMap) this.data;
+			this.touched.clear();
+			this.reloading = true;
+			try {
+				Map newSnapshot = new HashMap();
+				Map params = new HashMap();
+				params.put(PARAM_PAGE_SIZE, new Integer(this.pageSize));
+				for (int page = 1;; page++) {
+					if (this.generation.get() != gen) {
+						log.info("Reload abandoned by invalidateAll");
+						return;
+					}
+					params.put(PARAM_PAGE_NO, new Integer(page));
+					QueryResult result = getManager().query(null, params);
+					int count = result.getRowCount();
+					List rows = result.getData(0, count);
+					if (page > 1 && !rows.isEmpty()
+							&& newSnapshot.containsKey(getId(rows.get(0)))) {
+						// 内部DataManager忽略了分页参数
+						break;
+					}
+					for (int i = 0; i < rows.size(); i++) {
+						Object obj = rows.get(i);
+						Object id = getId(obj);
+						newSnapshot.put(id, obj);
+						if (initial && !this.touched.containsKey(id)
+								&& overlay.putIfAbsent(id, obj) == null
+								&& this.generation.get() != gen) {
+							// 与invalidateAll同时发生，不能留下旧的数据
+							overlay.remove(id, obj);
+						}
+					}
+					// 内部DataManager不支持分页时，一次返回全部数据
+					if (count != this.pageSize) {
+						break;
+					}
+				}
+				if (this.generation.get() != gen) {
+					log.info("Reload abandoned by invalidateAll");
+					return;
+				}
+				this.snapshot = Collections.unmodifiableMap(newSnapshot);
+				if (this.generation.get() != gen) {
+					// 替换的同时有invalidateAll
+					this.snapshot = Collections.EMPTY_MAP;
+					return;
+				}
+				retainTouched(overlay.keySet());
+				retainTouched(this.invalidated.keySet());
+			} finally {
+				this.reloading = false;
+			}
+		}
+	}
+
+	private void retainTouched(Collection ids) {
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			if (!this.touched.containsKey(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	private void touch(Object id) {
+		if (this.reloading) {
+			this.touched.put(id, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * @return 快照中的对象。如果data中有这个id(set过或者调入过)或者快照中的已经失效，返回null
+	 */
+	private Object fromSnapshot(Object id) {
+		if (this.data.containsKey(id) || this.invalidated.containsKey(id)) {
+			return null;
+		}
+		return this.snapshot.get(id);
 	}
 
 	public Object getById(Object id) throws DataManagerException {
-		getData();
+		start();
+		Object result = fromSnapshot(id);
+		if (result != null) {
+			this.stats.recordHits(1);
+			return result;
+		}
 		return super.getById(id);
 	}
 
+	public Map getByIds(Collection ids) throws DataManagerException {
+		start();
+		Map found = new HashMap();
+		List rest = new ArrayList();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			if (id == null || found.containsKey(id)) {
+				continue;
+			}
+			Object value = fromSnapshot(id);
+			if (value == null) {
+				rest.add(id);
+			} else {
+				found.put(id, value);
+			}
+		}
+		this.stats.recordHits(found.size());
+		if (!rest.isEmpty()) {
+			found.putAll(super.getByIds(rest));
+		}
+		Map result = new LinkedHashMap();
+		for (Iterator it = ids.iterator(); it.hasNext();) {
+			Object id = it.next();
+			Object value = found.get(id);
+			if (value != null) {
+				result.put(id, value);
+			}
+		}
+		return result;
+	}
+
 	public Object getBufferedById(Object id) throws DataManagerException {
-		getData();
-		return super.getBufferedById(id); 
+		start();
+		Object result = fromSnapshot(id);
+		return result != null ? result : super.getBufferedById(id);
+	}
+
+	public void invalidate(Object id) throws DataManagerException {
+		touch(id);
+		this.invalidated.put(id, Boolean.TRUE);
+		super.invalidate(id);
+	}
+
+	/**
+	 * 丢弃全部数据，在后台重新调入。不等待正在进行的调入
+	 */
+	public void invalidateAll() throws DataManagerException {
+		this.generation.incrementAndGet();
+		this.snapshot = Collections.EMPTY_MAP;
+		this.invalidated.clear();
+		super.invalidateAll();
+		Timer timer = this.timer;
+		if (timer == null) {
+			// 第一次使用时再调入
+			return;
+		}
+		timer.schedule(new TimerTask() {
+			public void run() {
+				reloadQuietly();
+			}
+		}, 0);
+	}
+
+	public void set(Object id, Object value) throws DataManagerException {
+		touch(id);
+		if (value == null) {
+			this.invalidated.put(id, Boolean.TRUE);
+		}
+		super.set(id, value);
 	}
 }
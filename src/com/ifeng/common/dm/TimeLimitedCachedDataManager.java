@@ -1,10 +1,20 @@
 package com.ifeng.common.dm;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.w3c.dom.Element;
 
 import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.misc.Logger;
 import com.ifeng.common.misc.TimeLimitedMap;
 import com.ifeng.common.misc.XmlLoader;
 
@@ -13,6 +23,10 @@ import com.ifeng.common.misc.XmlLoader;
  * 
  * <pre>
  *  基于超时的DataManager,支持ID查询时使用缓存，超时淘汰策略。
+ *  可以打开提前刷新(refresh-ahead)：对象在缓存中的时间超过超时时间的一定比例后，
+ *  被访问时在后台线程中重新调入一次，读者继续得到当前的值，避免对象过期时大量读者同时访问内部DataManager。
+ *  如果设置了stale-grace，对象超时后还可以在这段时间内继续使用(同时后台刷新)，
+ *  刷新失败时也是如此，直到超时时间加上stale-grace后才真正删除。
  * </pre>
  * 
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
@@ -21,26 +35,182 @@ import com.ifeng.common.misc.XmlLoader;
  */
 
 public class TimeLimitedCachedDataManager extends AbstractCachedDataManager {
+	private static final Logger log = Logger
+			.getLogger(TimeLimitedCachedDataManager.class);
 
+	public static final int DEFAULT_REFRESH_THREADS = 2;
+
+	public static final int DEFAULT_REFRESH_QUEUE_SIZE = 1000;
+
+	private int timeOut;
+
+	/**
+	 * 超时时间的比例，超过它之后访问时后台刷新。0表示不刷新
+	 */
+	private double refreshAhead;
+
+	private int staleGrace;
+
+	private ThreadPoolExecutor refreshExecutor;
+
+	/**
+	 * 正在刷新的id，保证同一个id只有一个刷新任务。
+	 * key: id；value: 这次刷新的标记，invalidate/set时删除，刷新完成时据此判断结果是否已经过时
+	 */
+	private final ConcurrentMap refreshing = new ConcurrentHashMap();
 
 	public TimeLimitedCachedDataManager(DataManager manager, int time) {
 		super(manager);
-		data = new TimeLimitedMap(new HashMap(), time);
+		init(time, 0, 0, 0, 0);
 	}
+
+	/**
+	 * @param time 超时时间(毫秒)
+	 * @param refreshAhead 超过time的这个比例后访问时后台刷新，0到1之间
+	 * @param refreshThreads 刷新的线程数
+	 * @param staleGrace 超时后还可以继续使用的时间(毫秒)
+	 */
+	public TimeLimitedCachedDataManager(DataManager manager, int time,
+			double refreshAhead, int refreshThreads, int staleGrace) {
+		super(manager);
+		init(time, refreshAhead, refreshThreads, DEFAULT_REFRESH_QUEUE_SIZE,
+				staleGrace);
+	}
+
 	public TimeLimitedCachedDataManager(){
 		super(null);
 	}
+
+	private void init(int time, double refreshAhead0, int refreshThreads,
+			int queueSize, int staleGrace0) {
+		if (this.refreshExecutor != null) {
+			// 重新初始化时关闭原来的线程池，正在执行的刷新照常完成
+			this.refreshExecutor.shutdown();
+			this.refreshExecutor = null;
+		}
+		this.timeOut = time;
+		this.refreshAhead = refreshAhead0;
+		this.staleGrace = refreshAhead0 > 0 ? staleGrace0 : 0;
+		data = new TimeLimitedMap(new ConcurrentHashMap(), time + this.staleGrace);
+		if (refreshAhead0 > 0) {
+			this.refreshExecutor = new ThreadPoolExecutor(refreshThreads,
+					refreshThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue(queueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r,
+									"TimeLimitedCachedDataManager refresh");
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.AbortPolicy());
+		}
+	}
+
 	/**
 	 * <pre>
-	 *   &lt;... type=&quot;com.ifeng.common.dm.TimeLimitedCachedDataManager&quot; time-out=&quot;缓存时间（单位毫秒）&quot;&gt;
+	 *   &lt;... type=&quot;com.ifeng.common.dm.TimeLimitedCachedDataManager&quot; time-out=&quot;缓存时间（单位毫秒）&quot;
+	 *        refresh-ahead=&quot;可选，0到1之间，缓存时间超过time-out的这个比例后，访问时在后台刷新&quot;
+	 *        refresh-threads=&quot;刷新的线程数，缺省2&quot;
+	 *        refresh-queue-size=&quot;等待刷新的最大个数，超过时不再刷新，缺省1000&quot;
+	 *        stale-grace=&quot;超时后还可以继续使用的时间(毫秒)，缺省0，只在refresh-ahead时有效&quot;&gt;
 	 *     &lt;data-manager ... 内部datamanager的配置
 	 *     /&gt;
 	 *   &lt;/...&gt;
 	 * </pre>
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
-		data = new TimeLimitedMap(new HashMap(), (XmlLoader
-				.getAttributeAsInteger(configEle, "time-out")));
+		double refreshAhead0 = XmlLoader.getAttributeAsDouble(configEle,
+				"refresh-ahead", 0);
+		if (refreshAhead0 < 0 || refreshAhead0 > 1) {
+			throw new IllegalArgumentException(
+					"refresh-ahead must be between 0 and 1: " + refreshAhead0);
+		}
+		init(XmlLoader.getAttributeAsInteger(configEle, "time-out"),
+				refreshAhead0,
+				XmlLoader.getAttributeAsInteger(configEle, "refresh-threads",
+						DEFAULT_REFRESH_THREADS),
+				XmlLoader.getAttributeAsInteger(configEle, "refresh-queue-size",
+						DEFAULT_REFRESH_QUEUE_SIZE),
+				XmlLoader.getAttributeAsInteger(configEle, "stale-grace", 0));
 		return super.config(configRoot, parent, configEle);
 	}
+
+	public Object getById(Object id) throws DataManagerException {
+		Object result = super.getById(id);
+		if (this.refreshExecutor != null) {
+			checkRefresh(id);
+		}
+		return result;
+	}
+
+	public Map getByIds(Collection ids) throws DataManagerException {
+		Map result = super.getByIds(ids);
+		if (this.refreshExecutor != null) {
+			for (Iterator it = result.keySet().iterator(); it.hasNext();) {
+				checkRefresh(it.next());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 如果对象在缓存中的时间超过了刷新的阈值，启动一个后台刷新
+	 */
+	private void checkRefresh(Object id) {
+		long remaining = ((TimeLimitedMap) data).getRemainingTime(id);
+		if (remaining < 0) {
+			return;
+		}
+		long age = this.timeOut + this.staleGrace - remaining;
+		if (age >= this.refreshAhead * this.timeOut) {
+			scheduleRefresh(id);
+		}
+	}
+
+	private void scheduleRefresh(final Object id) {
+		final Object token = new Object();
+		if (this.refreshing.putIfAbsent(id, token) != null) {
+			return;
+		}
+		try {
+			this.refreshExecutor.execute(new Runnable() {
+				public void run() {
+					boolean loaded = false;
+					try {
+						putLoaded(id, getManager().getById(id));
+						loaded = true;
+					} catch (Exception e) {
+						// 继续使用旧值，直到stale-grace结束
+						log.warn("Error in refreshing " + id, e);
+					} finally {
+						if (!refreshing.remove(id, token) && loaded) {
+							// 刷新期间被invalidate或set，调入的值可能已经过时
+							data.remove(id);
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// 队列已满或已关闭，下次访问时再刷新
+			this.refreshing.remove(id, token);
+		}
+	}
+
+	/**
+	 * 先取消正在进行的刷新，再删除缓存项：刷新如果在这之前放入了旧值，也会在这里被删除
+	 */
+	public void invalidate(Object id) throws DataManagerException {
+		this.refreshing.remove(id);
+		super.invalidate(id);
+	}
+
+	public void invalidateAll() throws DataManagerException {
+		this.refreshing.clear();
+		super.invalidateAll();
+	}
+
+	public void set(Object id, Object value) throws DataManagerException {
+		this.refreshing.remove(id);
+		super.set(id, value);
+	}
 }
@@ -1,15 +1,21 @@
 package com.ifeng.common.dm;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.w3c.dom.Element;
 
 import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.dm.bus.InvalidationBus;
+import com.ifeng.common.misc.XmlLoader;
 /**
  * <title>WritableBufferedDataManager </title>
  * 
  * <pre>可写的DataManager ，包装只读的DataManager.
  * 读操作使用包装的只读的BufferedDataManager,写操作使用backManager。
+ * 如果配置了InvalidationBus，写操作和失效通知还会通过bus通知其它节点，
+ * 其它节点上同一个channel的readManager收到后使对应的数据失效。
  * 
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
@@ -20,6 +26,10 @@ public class WritableBufferedDataManager extends AbstractDataManagerDecorator
 
 	private BufferedDataManager readManager;
 
+	private InvalidationBus bus;
+
+	private String channel;
+
 	/**
 	 * 一般backManager也应当是readManager的内部manager
      * @param backManager 写操作将delegate到backManager
@@ -39,14 +49,41 @@ public class WritableBufferedDataManager extends AbstractDataManagerDecorator
 	 *    &lt;... type=&quot;com.ifeng.common.dm.WritableBufferedDataManager&quot;&quot;&gt;
 	 *      &lt;data-manager ... 内部提供写能力的datamanager /&gt;
 	 *      &lt;read-manager ... 内部提供读能力的datamanager应该是一个BufferedDataManager /&gt;
+	 *      &lt;bus ... 可选，InvalidationBus，一般用ReferenceConfig引用 /&gt;
 	 *    &lt;/...&gt;
+	 * 配置了bus时，需要channel属性：各节点上同一种数据使用相同的channel
 	 * </pre>
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
 		setReadManager((BufferedDataManager) configRoot.createChildObject(this, configEle,
 				"read-manager", true));
+		InvalidationBus bus0 = (InvalidationBus) configRoot.createChildObject(
+				this, configEle, "bus", false);
+		if (bus0 != null) {
+			setBus(bus0, XmlLoader.getAttribute(configEle, "channel"));
+		}
 		return super.config(configRoot, parent, configEle);
 	}
+
+	/**
+	 * 设置InvalidationBus，并在channel上接收其它节点的失效通知
+	 */
+	public void setBus(InvalidationBus bus, String channel) {
+		if (this.bus != null && this.readManager != null) {
+			this.bus.unregister(this.channel, this.readManager);
+		}
+		this.bus = bus;
+		this.channel = channel;
+		if (bus != null && this.readManager != null) {
+			bus.register(channel, this.readManager);
+		}
+	}
+
+	private void publish(Object id) {
+		if (this.bus != null) {
+			this.bus.publish(this.channel, id);
+		}
+	}
 	public Object getBufferedById(Object id) throws DataManagerException {
 		return readManager.getBufferedById(id);
 	}
@@ -55,7 +92,18 @@ public class WritableBufferedDataManager extends AbstractDataManagerDecorator
 		return readManager;
 	}
 
+	/**
+	 * 已经设置了bus时，在channel上接收通知的也改为新的readManager
+	 */
 	public void setReadManager(BufferedDataManager readManager) {
+		if (this.bus != null) {
+			if (this.readManager != null) {
+				this.bus.unregister(this.channel, this.readManager);
+			}
+			if (readManager != null) {
+				this.bus.register(this.channel, readManager);
+			}
+		}
 		this.readManager = readManager;
 	}
 
@@ -71,52 +119,122 @@ public class WritableBufferedDataManager extends AbstractDataManagerDecorator
 		return readManager.getById(id);
 	}
 
+	public Map getByIds(Collection ids) throws DataManagerException {
+		return readManager.getByIds(ids);
+	}
+
 	public void invalidate(Object id) throws DataManagerException {
 		this.readManager.invalidate(id);
+		publish(id);
 	}
 
 	public void invalidateAll() throws DataManagerException {
 		this.readManager.invalidateAll();
+		if (this.bus != null) {
+			this.bus.publishAll(this.channel);
+		}
 	}
 
 	public void set(Object id, Object value) throws DataManagerException {
 		this.readManager.set(id, value);
+		publish(id);
 	}
 
 	public Object add(Object obj, Map params) throws DataManagerException {
 		Object id = getManager().add(obj, params);
 		readManager.set(id, obj);
+		publish(id);
 		return id;
 	}
 
 	public void delete(Object obj, Map params) throws DataManagerException {
 		getManager().delete(obj, params);
-		readManager.invalidate(getId(obj));
+		Object id = getId(obj);
+		readManager.invalidate(id);
+		publish(id);
 	}
 
 	public void modify(Object obj, String[] fields, Map params)
 			throws DataManagerException {
 		getManager().modify(obj, fields, params);
+		Object id = getId(obj);
 		if (fields == null) {
-			readManager.set(getId(obj), obj);
+			readManager.set(id, obj);
 		} else {
-			readManager.invalidate(getId(obj));
+			readManager.invalidate(id);
+		}
+		publish(id);
+	}
+
+	public BatchResult addAll(Collection objs, Map params)
+			throws DataManagerException {
+		BatchResult result = getManager().addAll(objs, params);
+		int index = 0;
+		for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+			Object obj = it.next();
+			if (result.isSucceeded(index)) {
+				Object id = result.getId(index);
+				if (id == null) {
+					// 内部manager没有返回id(如QueuedWriteDataManager)，不能放入缓存
+					continue;
+				}
+				readManager.set(id, obj);
+				publish(id);
+			}
+		}
+		return result;
+	}
+
+	public BatchResult modifyAll(Collection objs, String[] fields, Map params)
+			throws DataManagerException {
+		BatchResult result = getManager().modifyAll(objs, fields, params);
+		int index = 0;
+		for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+			Object obj = it.next();
+			if (result.isSucceeded(index)) {
+				Object id = getId(obj);
+				if (fields == null) {
+					readManager.set(id, obj);
+				} else {
+					readManager.invalidate(id);
+				}
+				publish(id);
+			}
+		}
+		return result;
+	}
+
+	public BatchResult deleteAll(Collection objs, Map params)
+			throws DataManagerException {
+		BatchResult result = getManager().deleteAll(objs, params);
+		int index = 0;
+		for (Iterator it = objs.iterator(); it.hasNext(); index++) {
+			Object obj = it.next();
+			if (result.isSucceeded(index)) {
+				Object id = getId(obj);
+				readManager.invalidate(id);
+				publish(id);
+			}
 		}
+		return result;
 	}
 
 	public Object deepAdd(Object obj, Map params) throws DataManagerException {
 		Object id = getManager().deepAdd(obj, params);
 		readManager.set(id, obj);
+		publish(id);
 		return id;
 	}
 
 	public void deepModify(Object obj, String[] fields, Map params)
 			throws DataManagerException {
 		getManager().deepModify(obj, fields, params);
+		Object id = getId(obj);
 		if (fields == null) {
-			readManager.set(getId(obj), obj);
+			readManager.set(id, obj);
 		} else {
-			readManager.invalidate(getId(obj));
+			readManager.invalidate(id);
 		}
+		publish(id);
 	}
 }
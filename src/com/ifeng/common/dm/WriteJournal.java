@@ -0,0 +1,657 @@
+package com.ifeng.common.dm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.ifeng.common.misc.Logger;
+
+/**
+ * <title>WriteJournal </title>
+ * 
+ * <pre>QueuedWriteDataManager的预写日志(write-ahead journal).
+ * 只追加，写在内存映射(mmap)的文件段中，一个段写满后换一个新段。
+ * 每条记录：长度(4) CRC32(4) 序号(8) 类型(1) 数据，启动时根据CRC找到最后一条完整的记录。
+ * 数据写进映射的内存即返回，进程崩溃也不会丢失(在操作系统的page cache中)；
+ * 后台线程每sync-interval毫秒force一次，把一段时间内的所有记录一起写到磁盘(group commit)。
+ * 要求操作系统崩溃也不丢失时，用group-commit模式：append之后awaitSync，
+ * 等到包含这条记录的force完成。
+ * 记录写入后端之后调用ack，在记录的类型字节上标记已确认(不需要force)，
+ * 一个段中的所有记录都ack之后删除这个段。
+ * 打开时，没有ack的记录用replay交给调用者重新执行。
+ * 写入后端失败的记录用deadLetter移到同一目录的dead-letter.log(同样的记录格式)，
+ * 不再占用日志段，可以用takeDeadLetters取出后重试。
+ * 配置了max-size时，所有段的总大小达到max-size后isFull返回true，
+ * 调用者可以用awaitCapacity等待已有的记录被ack(反压)。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class WriteJournal {
+    private static final Logger log = Logger.getLogger(WriteJournal.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    public static final long DEFAULT_SYNC_INTERVAL = 10;
+
+    /**
+     * QueuedWriteDataManager使用的所有段的缺省最大总字节数
+     */
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+    /**
+     * 长度、CRC、序号、类型
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1;
+
+    /**
+     * 类型字节在记录中的位置
+     */
+    private static final int KIND_OFFSET = 4 + 4 + 8;
+
+    /**
+     * 类型字节的最高位表示已经ack
+     */
+    private static final int ACKED = 0x80;
+
+    private static final String PREFIX = "journal-";
+
+    private static final String SUFFIX = ".log";
+
+    private static final String DEAD_LETTER = "dead-letter.log";
+
+    /**
+     * 一条记录
+     */
+    public static final class Entry {
+        private final long seq;
+
+        private final int kind;
+
+        private final byte[] data;
+
+        Entry(long seq, int kind, byte[] data) {
+            this.seq = seq;
+            this.kind = kind;
+            this.data = data;
+        }
+
+        public long getSeq() {
+            return this.seq;
+        }
+
+        public int getKind() {
+            return this.kind;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+
+    /**
+     * 一个文件段
+     */
+    private static final class Segment {
+        final File file;
+
+        final long firstSeq;
+
+        final MappedByteBuffer buffer;
+
+        /**
+         * 还没有ack的记录数
+         */
+        int pending;
+
+        /**
+         * 第i条记录(序号firstSeq+i)在段中的位置
+         */
+        int[] offsets = new int[1024];
+
+        int count;
+
+        Segment(File file, long firstSeq, MappedByteBuffer buffer) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.buffer = buffer;
+        }
+
+        void addOffset(int offset) {
+            if (this.count == this.offsets.length) {
+                int[] newOffsets = new int[this.count * 2];
+                System.arraycopy(this.offsets, 0, newOffsets, 0, this.count);
+                this.offsets = newOffsets;
+            }
+            this.offsets[this.count++] = offset;
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final long syncInterval;
+
+    /**
+     * 所有段的最大总字节数，0表示不限
+     */
+    private final long maxSize;
+
+    /**
+     * dead-letter文件，第一次写入时打开
+     */
+    private DataOutputStream deadLetterOut;
+
+    private FileOutputStream deadLetterFile;
+
+    /**
+     * firstSeq(Long) -&gt; Segment
+     */
+    private final TreeMap segments = new TreeMap();
+
+    private Segment current;
+
+    private long nextSeq = 1;
+
+    /**
+     * 序号不大于syncedSeq的记录都已经写到磁盘
+     */
+    private long syncedSeq;
+
+    private boolean closed;
+
+    private final Thread syncer;
+
+    /**
+     * 打开目录中的日志，检查已有的记录
+     * @param dir 日志目录，不存在时创建
+     * @param segmentSize 每个文件段的大小
+     * @param syncInterval force的间隔(毫秒)
+     * @throws DataManagerException 不能打开
+     */
+    public WriteJournal(File dir, int segmentSize, long syncInterval)
+            throws DataManagerException {
+        this(dir, segmentSize, syncInterval, 0);
+    }
+
+    /**
+     * 打开目录中的日志，检查已有的记录
+     * @param dir 日志目录，不存在时创建
+     * @param segmentSize 每个文件段的大小
+     * @param syncInterval force的间隔(毫秒)
+     * @param maxSize 所有段的最大总字节数，0表示不限；至少为两个段
+     * @throws DataManagerException 不能打开
+     */
+    public WriteJournal(File dir, int segmentSize, long syncInterval,
+            long maxSize) throws DataManagerException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncInterval = Math.max(1, syncInterval);
+        this.maxSize = maxSize <= 0 ? 0 : Math.max(maxSize,
+                2L * segmentSize);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new DataManagerException("Cannot create journal dir " + dir);
+        }
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        // 文件名中的序号是定长的16进制，按名字排序就是按序号排序
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++) {
+            openSegment(files[i]);
+        }
+        this.current = createSegment(this.nextSeq);
+        this.syncer = new Thread("WriteJournal sync " + dir) {
+            public void run() {
+                syncLoop();
+            }
+        };
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+        if (log.isInfoEnabled()) {
+            log.info("Opened journal " + dir + ", " + getPendingCount()
+                    + " records to replay");
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    size);
+        } finally {
+            // 关闭文件不影响已经映射的内存
+            raf.close();
+        }
+    }
+
+    private void openSegment(File file) throws DataManagerException {
+        String name = file.getName();
+        long firstSeq;
+        try {
+            firstSeq = Long.parseLong(name.substring(PREFIX.length(), name
+                    .length()
+                    - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            log.warn("Ignore unknown journal file " + file);
+            return;
+        }
+        Segment segment;
+        try {
+            segment = new Segment(file, firstSeq, map(file, file.length()));
+        } catch (IOException e) {
+            throw new DataManagerException("Cannot open journal " + file, e);
+        }
+        long lastSeq = scan(segment, null);
+        if (segment.pending == 0) {
+            deleteSegment(segment);
+        } else {
+            this.segments.put(new Long(firstSeq), segment);
+            this.nextSeq = Math.max(this.nextSeq, lastSeq + 1);
+        }
+    }
+
+    /**
+     * 读出段中的完整记录，停在第一条不完整(长度为0或CRC不符)的记录
+     * @param visitor 处理每条没有ack的记录(Entry)；null时只计数
+     * @return 最后一条记录的序号
+     */
+    private long scan(Segment segment, RowVisitor visitor)
+            throws DataManagerException {
+        MappedByteBuffer buffer = (MappedByteBuffer) segment.buffer
+                .duplicate();
+        buffer.position(0);
+        long lastSeq = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int offset = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            long seq = buffer.getLong();
+            int kind = buffer.get();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] data = new byte[length];
+            buffer.get(data);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Journal " + segment.file + " truncated at record "
+                        + seq);
+                break;
+            }
+            lastSeq = seq;
+            if (visitor == null) {
+                segment.addOffset(offset);
+                if ((kind & ACKED) == 0) {
+                    segment.pending++;
+                }
+            } else if ((kind & ACKED) == 0
+                    && !visitor.visit(new Entry(seq, kind, data))) {
+                break;
+            }
+        }
+        return lastSeq;
+    }
+
+    private Segment createSegment(long firstSeq) throws DataManagerException {
+        String hex = Long.toHexString(firstSeq);
+        File file = new File(this.dir, PREFIX
+                + "0000000000000000".substring(hex.length()) + hex + SUFFIX);
+        try {
+            Segment segment = new Segment(file, firstSeq, map(file,
+                    this.segmentSize));
+            this.segments.put(new Long(firstSeq), segment);
+            return segment;
+        } catch (IOException e) {
+            throw new DataManagerException("Cannot create journal " + file, e);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        this.segments.remove(new Long(segment.firstSeq));
+        if (!segment.file.delete()) {
+            log.warn("Cannot delete journal " + segment.file);
+            segment.file.deleteOnExit();
+        }
+    }
+
+    /**
+     * 把打开时已有的、没有ack的记录按顺序交给visitor。只能在append之前调用
+     * @param visitor 处理每条记录(Entry)
+     */
+    public void replay(RowVisitor visitor) throws DataManagerException {
+        Object[] old;
+        synchronized (this) {
+            old = this.segments.values().toArray();
+        }
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] != this.current) {
+                scan((Segment) old[i], visitor);
+            }
+        }
+    }
+
+    /**
+     * 追加一条记录。返回时记录已在映射的内存中，但不一定已经写到磁盘
+     * @param kind 记录的类型(0-127)
+     * @param data 记录的数据
+     * @return 记录的序号
+     * @throws DataManagerException 日志已关闭或记录太大
+     */
+    public long append(int kind, byte[] data) throws DataManagerException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        int size = HEADER_SIZE + data.length;
+        synchronized (this) {
+            if (this.closed) {
+                throw new DataManagerException("Journal is closed");
+            }
+            // 段的最后至少留4个字节的0作为结束标记
+            if (size + 4 > this.segmentSize) {
+                throw new DataManagerException("Journal record too large: "
+                        + size);
+            }
+            if (this.current.buffer.remaining() < size + 4) {
+                rotate();
+            }
+            long seq = this.nextSeq++;
+            this.current.addOffset(this.current.buffer.position());
+            this.current.buffer.putInt(data.length).putInt(
+                    (int) crc.getValue()).putLong(seq).put((byte) kind).put(
+                    data);
+            this.current.pending++;
+            return seq;
+        }
+    }
+
+    private void rotate() throws DataManagerException {
+        Segment old = this.current;
+        // 旧段的记录都写到磁盘，syncedSeq只需要关心当前段
+        old.buffer.force();
+        this.current = createSegment(this.nextSeq);
+        if (old.pending == 0) {
+            deleteSegment(old);
+        }
+    }
+
+    /**
+     * 等到序号为seq的记录写到磁盘
+     */
+    public synchronized void awaitSync(long seq) throws DataManagerException {
+        while (this.syncedSeq < seq && !this.closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataManagerException(
+                        "Interrupted waiting for journal sync", e);
+            }
+        }
+    }
+
+    /**
+     * 序号为seq的记录已经写入后端，不再需要
+     */
+    public synchronized void ack(long seq) {
+        Segment segment = segmentOf(seq);
+        if (segment == null) {
+            return;
+        }
+        int position = segment.offsets[(int) (seq - segment.firstSeq)]
+                + KIND_OFFSET;
+        byte kind = segment.buffer.get(position);
+        if ((kind & ACKED) != 0) {
+            return;
+        }
+        segment.buffer.put(position, (byte) (kind | ACKED));
+        if (--segment.pending <= 0 && segment != this.current) {
+            deleteSegment(segment);
+            // 有了空间
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return 包含序号为seq的记录的段，没有时返回null
+     */
+    private Segment segmentOf(long seq) {
+        Map.Entry entry = this.segments.floorEntry(new Long(seq));
+        if (entry == null) {
+            return null;
+        }
+        Segment segment = (Segment) entry.getValue();
+        return seq - segment.firstSeq < segment.count ? segment : null;
+    }
+
+    /**
+     * 把序号为seq的记录(写入后端失败的)追加到dead-letter文件并写到磁盘，然后ack。
+     * 不能写dead-letter文件时记录留在日志中
+     */
+    public synchronized void deadLetter(long seq) throws DataManagerException {
+        Segment segment = segmentOf(seq);
+        if (segment == null) {
+            return;
+        }
+        int offset = segment.offsets[(int) (seq - segment.firstSeq)];
+        int kind = segment.buffer.get(offset + KIND_OFFSET);
+        if ((kind & ACKED) != 0) {
+            return;
+        }
+        byte[] data = new byte[segment.buffer.getInt(offset)];
+        MappedByteBuffer buffer = (MappedByteBuffer) segment.buffer
+                .duplicate();
+        buffer.position(offset + HEADER_SIZE);
+        buffer.get(data);
+        writeDeadLetter(new Entry(seq, kind, data));
+        ack(seq);
+    }
+
+    /**
+     * 把一条记录(如takeDeadLetters取出后不能重试的)追加到dead-letter文件
+     */
+    public synchronized void deadLetter(Entry entry)
+            throws DataManagerException {
+        writeDeadLetter(entry);
+    }
+
+    private void writeDeadLetter(Entry entry) throws DataManagerException {
+        CRC32 crc = new CRC32();
+        crc.update(entry.data);
+        try {
+            if (this.deadLetterOut == null) {
+                this.deadLetterFile = new FileOutputStream(new File(this.dir,
+                        DEAD_LETTER), true);
+                this.deadLetterOut = new DataOutputStream(this.deadLetterFile);
+            }
+            this.deadLetterOut.writeInt(entry.data.length);
+            this.deadLetterOut.writeInt((int) crc.getValue());
+            this.deadLetterOut.writeLong(entry.seq);
+            this.deadLetterOut.writeByte(entry.kind);
+            this.deadLetterOut.write(entry.data);
+            this.deadLetterOut.flush();
+            this.deadLetterFile.getFD().sync();
+        } catch (IOException e) {
+            throw new DataManagerException("Cannot write dead letter "
+                    + entry.seq, e);
+        }
+    }
+
+    /**
+     * 取出dead-letter文件中的所有记录(Entry)并删除文件
+     * @return 按写入的顺序
+     */
+    public synchronized List takeDeadLetters() throws DataManagerException {
+        closeDeadLetters();
+        File file = new File(this.dir, DEAD_LETTER);
+        List result = new ArrayList();
+        if (!file.exists()) {
+            return result;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int checksum = in.readInt();
+                    long seq = in.readLong();
+                    int kind = in.readByte();
+                    if (length <= 0 || length > this.segmentSize) {
+                        throw new IOException("Bad record length " + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    crc.reset();
+                    crc.update(data);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Bad checksum at record " + seq);
+                    }
+                    result.add(new Entry(seq, kind, data));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.error("Dead letter file " + file + " truncated after "
+                    + result.size() + " records", e);
+        }
+        if (!file.delete()) {
+            throw new DataManagerException("Cannot delete " + file);
+        }
+        return result;
+    }
+
+    private void closeDeadLetters() {
+        if (this.deadLetterOut != null) {
+            try {
+                this.deadLetterOut.close();
+            } catch (IOException e) {
+                log.warn("Cannot close dead letter file", e);
+            }
+            this.deadLetterOut = null;
+            this.deadLetterFile = null;
+        }
+    }
+
+    /**
+     * @return true 如果所有段的总大小已经达到max-size
+     */
+    public synchronized boolean isFull() {
+        return this.maxSize > 0
+                && (long) this.segments.size() * this.segmentSize >= this.maxSize;
+    }
+
+    /**
+     * 等到所有段的总大小小于max-size(已有的记录被ack后删除段)，或者日志关闭
+     */
+    public synchronized void awaitCapacity() throws DataManagerException {
+        while (isFull() && !this.closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataManagerException(
+                        "Interrupted waiting for journal space", e);
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            Segment segment;
+            long seq;
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                segment = this.current;
+                seq = this.nextSeq - 1;
+            }
+            if (seq > this.syncedSeq) {
+                // 在锁外force，不影响append
+                segment.buffer.force();
+                synchronized (this) {
+                    this.syncedSeq = seq;
+                    notifyAll();
+                }
+            }
+            try {
+                Thread.sleep(this.syncInterval);
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * @return 没有ack的记录数
+     */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (Iterator it = this.segments.values().iterator(); it.hasNext();) {
+            count += ((Segment) it.next()).pending;
+        }
+        return count;
+    }
+
+    /**
+     * @return 文件段的个数
+     */
+    public synchronized int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * 写到磁盘并关闭。没有ack的记录在下次打开时replay
+     */
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            closeDeadLetters();
+            this.current.buffer.force();
+            if (this.current.pending == 0) {
+                deleteSegment(this.current);
+            }
+            notifyAll();
+        }
+        this.syncer.interrupt();
+    }
+
+    public String toString() {
+        return "WriteJournal " + this.dir + " pending=" + getPendingCount();
+    }
+}
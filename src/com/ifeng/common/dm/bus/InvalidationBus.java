@@ -0,0 +1,321 @@
+package com.ifeng.common.dm.bus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.dm.DataManagerListener;
+import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.TimerManager;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>InvalidationBus </title>
+ * 
+ * <pre>集群内的缓存失效通知。
+ * 本节点publish的失效id按channel合并、去重后，每隔flush-interval(或者积累到max-batch个)
+ * 批量发送给其它节点；其它节点把它们通知给在同一个channel上register的DataManagerListener
+ * (一般是BufferedDataManager)。一个channel上有invalidateAll时，同一批的id被合并掉。
+ * 收到的重复消息(同一节点同一序号)被忽略，自己发出的消息也被忽略。
+ * 
+ * 配置：
+ *   &lt;... type=&quot;com.ifeng.common.dm.bus.InvalidationBus&quot; flush-interval=&quot;发送间隔(毫秒)，缺省50&quot;
+ *       max-batch=&quot;积累多少个id立即发送，缺省500&quot; send-count=&quot;每个消息发送的次数，缺省1&quot;&gt;
+ *     &lt;transport type=&quot;InvalidationTransport的实现类，缺省为MulticastInvalidationTransport&quot;/&gt;
+ *   &lt;/...&gt;
+ * 多个DataManager共享一个bus时，用ReferenceConfig引用它。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class InvalidationBus implements Configurable, InvalidationTransport.Receiver {
+    private static final Logger log = Logger.getLogger(InvalidationBus.class);
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 50;
+
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    /**
+     * 单个消息编码后的最大字节数，超过时拆分
+     */
+    private static final int MAX_PACKET_SIZE = 60000;
+
+    /**
+     * 记住最近收到的多少个消息，用于去重
+     */
+    private static final int DEDUP_WINDOW = 4096;
+
+    private static final Object ALL = new Object();
+
+    private static final Timer timer = TimerManager.getTimer("InvalidationBus Timer");
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private InvalidationTransport transport;
+
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    private int maxBatch = DEFAULT_MAX_BATCH;
+
+    private int sendCount = 1;
+
+    /**
+     * key: channel; value: List of DataManagerListener
+     */
+    private final ConcurrentMap listeners = new ConcurrentHashMap();
+
+    /**
+     * 等待发送的失效通知。key: channel; value: Set of id或者ALL
+     */
+    private Map pending = new LinkedHashMap();
+
+    private int pendingCount;
+
+    private final Object pendingLock = new Object();
+
+    /**
+     * 最近收到的消息，key: source + '#' + sequence
+     */
+    private final Map received = new LinkedHashMap(16, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > DEDUP_WINDOW;
+        }
+    };
+
+    private TimerTask flushTask;
+
+    public InvalidationBus() {
+        // for config
+    }
+
+    public InvalidationBus(InvalidationTransport transport, long flushInterval,
+            int maxBatch) throws IOException {
+        this.transport = transport;
+        this.flushInterval = flushInterval;
+        this.maxBatch = maxBatch;
+        start();
+    }
+
+    public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
+        this.flushInterval = XmlLoader.getAttributeAsLong(configEle,
+                "flush-interval", DEFAULT_FLUSH_INTERVAL);
+        this.maxBatch = XmlLoader.getAttributeAsInteger(configEle, "max-batch",
+                DEFAULT_MAX_BATCH);
+        this.sendCount = XmlLoader.getAttributeAsInteger(configEle, "send-count", 1);
+        this.transport = (InvalidationTransport)configRoot.createChildObject(
+                this, configEle, "transport", false,
+                MulticastInvalidationTransport.class);
+        try {
+            start();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot start invalidation bus at "
+                    + XmlLoader.getElementLocation(configEle), e);
+        }
+        return this;
+    }
+
+    private void start() throws IOException {
+        this.transport.start(this);
+        this.flushTask = new TimerTask() {
+            public void run() {
+                flush();
+            }
+        };
+        timer.schedule(this.flushTask, this.flushInterval, this.flushInterval);
+    }
+
+    /**
+     * 发送所有等待的通知，停止接收
+     */
+    public void close() {
+        this.flushTask.cancel();
+        flush();
+        this.transport.close();
+    }
+
+    public String getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * 接收channel上其它节点的失效通知
+     */
+    public void register(String channel, DataManagerListener listener) {
+        List list = (List)this.listeners.get(channel);
+        if (list == null) {
+            List newList = new CopyOnWriteArrayList();
+            list = (List)this.listeners.putIfAbsent(channel, newList);
+            if (list == null) {
+                list = newList;
+            }
+        }
+        list.add(listener);
+    }
+
+    public void unregister(String channel, DataManagerListener listener) {
+        List list = (List)this.listeners.get(channel);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+
+    /**
+     * 通知其它节点一个id失效(异步、批量)。
+     * id不是Integer/Long/String时不能在消息中传送，改为通知channel上的所有数据失效
+     */
+    public void publish(String channel, Object id) {
+        if (!InvalidationMessage.isSupportedId(id)) {
+            log.warn("Unsupported id " + id + " in " + channel
+                    + ", invalidating all");
+            publishAll(channel);
+            return;
+        }
+        boolean full;
+        synchronized (this.pendingLock) {
+            Object ids = this.pending.get(channel);
+            if (ids == ALL) {
+                return;
+            }
+            if (ids == null) {
+                ids = new LinkedHashSet();
+                this.pending.put(channel, ids);
+            }
+            if (((Set)ids).add(id)) {
+                this.pendingCount++;
+            }
+            full = this.pendingCount >= this.maxBatch;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * 通知其它节点channel上的所有数据失效
+     */
+    public void publishAll(String channel) {
+        synchronized (this.pendingLock) {
+            Object ids = this.pending.put(channel, ALL);
+            if (ids instanceof Set) {
+                this.pendingCount -= ((Set)ids).size();
+            }
+        }
+    }
+
+    /**
+     * 立即发送所有等待的通知
+     */
+    public void flush() {
+        Map toSend;
+        synchronized (this.pendingLock) {
+            if (this.pending.isEmpty()) {
+                return;
+            }
+            toSend = this.pending;
+            this.pending = new LinkedHashMap();
+            this.pendingCount = 0;
+        }
+        for (Iterator it = toSend.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry)it.next();
+            String channel = (String)entry.getKey();
+            try {
+                if (entry.getValue() == ALL) {
+                    send(new InvalidationMessage(this.nodeId,
+                            this.sequence.incrementAndGet(), channel, true,
+                            new ArrayList()));
+                } else {
+                    send(channel, new ArrayList((Set)entry.getValue()));
+                }
+            } catch (IOException e) {
+                log.error("Error in sending invalidation of " + channel, e);
+            }
+        }
+    }
+
+    /**
+     * 发送一批id，编码后太大时拆分
+     */
+    private void send(String channel, List ids) throws IOException {
+        InvalidationMessage message = new InvalidationMessage(this.nodeId,
+                this.sequence.incrementAndGet(), channel, false, ids);
+        byte[] packet = message.encode();
+        if (packet.length > MAX_PACKET_SIZE && ids.size() > 1) {
+            int half = ids.size() / 2;
+            send(channel, new ArrayList(ids.subList(0, half)));
+            send(channel, new ArrayList(ids.subList(half, ids.size())));
+            return;
+        }
+        send(packet);
+    }
+
+    private void send(InvalidationMessage message) throws IOException {
+        send(message.encode());
+    }
+
+    private void send(byte[] packet) throws IOException {
+        for (int i = 0; i < this.sendCount; i++) {
+            this.transport.send(packet);
+        }
+    }
+
+    public void received(byte[] packet) {
+        InvalidationMessage message;
+        try {
+            message = InvalidationMessage.decode(packet);
+        } catch (IOException e) {
+            log.warn("Invalid invalidation message", e);
+            return;
+        }
+        if (this.nodeId.equals(message.getSource())) {
+            return;
+        }
+        String key = message.getSource() + '#' + message.getSequence();
+        synchronized (this.received) {
+            if (this.received.put(key, Boolean.TRUE) != null) {
+                return;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("received: " + message);
+        }
+        List list = (List)this.listeners.get(message.getChannel());
+        if (list == null) {
+            return;
+        }
+        for (Iterator it = list.iterator(); it.hasNext(); ) {
+            DataManagerListener listener = (DataManagerListener)it.next();
+            try {
+                if (message.isAll()) {
+                    listener.invalidateAll();
+                } else {
+                    List ids = message.getIds();
+                    for (int i = 0; i < ids.size(); i++) {
+                        listener.invalidate(ids.get(i));
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error in applying " + message, e);
+            }
+        }
+    }
+}
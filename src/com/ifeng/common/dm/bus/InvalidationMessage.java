@@ -0,0 +1,164 @@
+package com.ifeng.common.dm.bus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <title>InvalidationMessage </title>
+ * 
+ * <pre>InvalidationBus在节点间传送的消息：一个channel上一批失效的id，或者全部失效。
+ * 编码是紧凑的二进制格式，id只能是Integer/Long/String，按类型逐个字段编码。
+ * 消息来自不可信的网络，所以不使用java序列化，解码时也检查长度。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class InvalidationMessage {
+    private static final short MAGIC = (short)0x1FB5;
+    private static final byte VERSION = 1;
+
+    private static final byte TYPE_INTEGER = 'I';
+    private static final byte TYPE_LONG = 'L';
+    private static final byte TYPE_STRING = 'S';
+
+    /**
+     * 一个id编码后的最少字节数(类型 + 空字符串的长度)
+     */
+    private static final int MIN_ID_SIZE = 3;
+
+    private final String source;
+    private final long sequence;
+    private final String channel;
+    private final boolean all;
+    private final List ids;
+
+    /**
+     * @param source 发送的节点
+     * @param sequence 发送节点上的序号，用于去重
+     * @param channel 频道，一般对应一种数据
+     * @param all 是否全部失效
+     * @param ids 失效的id，all为true时忽略
+     */
+    public InvalidationMessage(String source, long sequence, String channel,
+            boolean all, List ids) {
+        this.source = source;
+        this.sequence = sequence;
+        this.channel = channel;
+        this.all = all;
+        this.ids = ids;
+    }
+
+    public String getSource() {
+        return this.source;
+    }
+
+    public long getSequence() {
+        return this.sequence;
+    }
+
+    public String getChannel() {
+        return this.channel;
+    }
+
+    public boolean isAll() {
+        return this.all;
+    }
+
+    public List getIds() {
+        return this.ids;
+    }
+
+    /**
+     * @return id是否可以在消息中传送
+     */
+    public static boolean isSupportedId(Object id) {
+        return id instanceof Integer || id instanceof Long
+                || id instanceof String;
+    }
+
+    /**
+     * @throws IOException 有不支持的id类型时
+     */
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + this.ids.size() * 9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(this.source);
+        out.writeLong(this.sequence);
+        out.writeUTF(this.channel);
+        out.writeBoolean(this.all);
+        if (this.all) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(this.ids.size());
+            for (int i = 0; i < this.ids.size(); i++) {
+                writeId(out, this.ids.get(i));
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeId(DataOutputStream out, Object id) throws IOException {
+        if (id instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(((Integer)id).intValue());
+        } else if (id instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Long)id).longValue());
+        } else if (id instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String)id);
+        } else {
+            throw new IOException("Unsupported id type: "
+                    + (id == null ? "null" : id.getClass().getName()));
+        }
+    }
+
+    public static InvalidationMessage decode(byte[] packet) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet));
+        if (in.readShort() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Not an invalidation message");
+        }
+        String source = in.readUTF();
+        long sequence = in.readLong();
+        String channel = in.readUTF();
+        boolean all = in.readBoolean();
+        int count = in.readInt();
+        // count来自网络，先按剩余长度检查，避免分配过大的List
+        if (count < 0 || (all && count != 0)
+                || count > in.available() / MIN_ID_SIZE) {
+            throw new IOException("Invalid id count: " + count);
+        }
+        List ids = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(readId(in));
+        }
+        return new InvalidationMessage(source, sequence, channel, all, ids);
+    }
+
+    private static Object readId(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_INTEGER:
+            return new Integer(in.readInt());
+        case TYPE_LONG:
+            return new Long(in.readLong());
+        case TYPE_STRING:
+            return in.readUTF();
+        default:
+            throw new IOException("Unknown id type: " + type);
+        }
+    }
+
+    public String toString() {
+        return this.source + "#" + this.sequence + " " + this.channel + " "
+                + (this.all ? "ALL" : this.ids.toString());
+    }
+}
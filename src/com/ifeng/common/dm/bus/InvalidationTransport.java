@@ -0,0 +1,44 @@
+package com.ifeng.common.dm.bus;
+
+import java.io.IOException;
+
+/**
+ * <title>InvalidationTransport </title>
+ * 
+ * <pre>InvalidationBus在节点之间传送消息的方式。
+ * 消息是已经编码的字节数组，transport只负责发送给所有节点(可以包括自己)，
+ * 不需要保证不重复，去重由InvalidationBus完成。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface InvalidationTransport {
+    /**
+     * 收到消息时的回调
+     */
+    public interface Receiver {
+        /**
+         * @param packet 收到的一个完整的消息
+         */
+        public void received(byte[] packet);
+    }
+
+    /**
+     * 开始接收消息
+     * @param receiver 收到消息时调用
+     * @throws IOException 错误
+     */
+    public void start(Receiver receiver) throws IOException;
+
+    /**
+     * 发送一个消息给所有节点
+     * @param packet 消息
+     * @throws IOException 错误
+     */
+    public void send(byte[] packet) throws IOException;
+
+    /**
+     * 停止接收，释放资源
+     */
+    public void close();
+}
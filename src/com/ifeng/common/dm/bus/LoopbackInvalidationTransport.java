@@ -0,0 +1,83 @@
+package com.ifeng.common.dm.bus;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>LoopbackInvalidationTransport </title>
+ * 
+ * <pre>在同一个JVM中传送消息的InvalidationTransport，用于测试。
+ * 同名(group)的transport之间互相发送，消息在send的线程中同步投递。
+ * 配置：
+ *   &lt;transport type=&quot;com.ifeng.common.dm.bus.LoopbackInvalidationTransport&quot; group=&quot;组名，缺省default&quot;/&gt;
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class LoopbackInvalidationTransport implements InvalidationTransport,
+        Configurable {
+    /**
+     * key: group; value: List of LoopbackInvalidationTransport
+     */
+    private static final ConcurrentMap groups = new ConcurrentHashMap();
+
+    private String group = "default";
+
+    private volatile Receiver receiver;
+
+    public LoopbackInvalidationTransport() {
+        // for config
+    }
+
+    public LoopbackInvalidationTransport(String group) {
+        this.group = group;
+    }
+
+    public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
+        this.group = XmlLoader.getAttribute(configEle, "group", "default");
+        return this;
+    }
+
+    private List members() {
+        List list = (List)groups.get(this.group);
+        if (list == null) {
+            List newList = new CopyOnWriteArrayList();
+            list = (List)groups.putIfAbsent(this.group, newList);
+            if (list == null) {
+                list = newList;
+            }
+        }
+        return list;
+    }
+
+    public void start(Receiver receiver0) throws IOException {
+        this.receiver = receiver0;
+        members().add(this);
+    }
+
+    public void send(byte[] packet) throws IOException {
+        for (Iterator it = members().iterator(); it.hasNext(); ) {
+            Receiver r = ((LoopbackInvalidationTransport)it.next()).receiver;
+            if (r != null) {
+                byte[] copy = new byte[packet.length];
+                System.arraycopy(packet, 0, copy, 0, packet.length);
+                r.received(copy);
+            }
+        }
+    }
+
+    public void close() {
+        members().remove(this);
+        this.receiver = null;
+    }
+}
@@ -0,0 +1,129 @@
+package com.ifeng.common.dm.bus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+
+import org.w3c.dom.Element;
+
+import com.ifeng.common.conf.ConfigRoot;
+import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.XmlLoader;
+
+/**
+ * <title>MulticastInvalidationTransport </title>
+ * 
+ * <pre>使用UDP组播的InvalidationTransport。组播不保证送达，
+ * 可以配合InvalidationBus的send-count重复发送。
+ * 配置：
+ *   &lt;transport type=&quot;com.ifeng.common.dm.bus.MulticastInvalidationTransport&quot;
+ *       group=&quot;组播地址，缺省239.255.27.1&quot; port=&quot;端口，缺省45627&quot;
+ *       ttl=&quot;组播的TTL，缺省1(只在本网段)&quot; interface=&quot;可选，使用的网卡地址&quot;/&gt;
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class MulticastInvalidationTransport implements InvalidationTransport,
+        Configurable {
+    private static final Logger log = Logger
+            .getLogger(MulticastInvalidationTransport.class);
+
+    public static final String DEFAULT_GROUP = "239.255.27.1";
+
+    public static final int DEFAULT_PORT = 45627;
+
+    private static final int MAX_PACKET_SIZE = 65507;
+
+    private String groupAddress = DEFAULT_GROUP;
+
+    private int port = DEFAULT_PORT;
+
+    private int ttl = 1;
+
+    private String interfaceAddress;
+
+    private InetAddress group;
+
+    private MulticastSocket socket;
+
+    private volatile boolean closed;
+
+    public MulticastInvalidationTransport() {
+        // for config
+    }
+
+    public MulticastInvalidationTransport(String groupAddress, int port, int ttl) {
+        this.groupAddress = groupAddress;
+        this.port = port;
+        this.ttl = ttl;
+    }
+
+    public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
+        this.groupAddress = XmlLoader.getAttribute(configEle, "group",
+                DEFAULT_GROUP);
+        this.port = XmlLoader.getAttributeAsInteger(configEle, "port",
+                DEFAULT_PORT);
+        this.ttl = XmlLoader.getAttributeAsInteger(configEle, "ttl", 1);
+        this.interfaceAddress = XmlLoader.getAttribute(configEle, "interface",
+                null);
+        return this;
+    }
+
+    public void start(final Receiver receiver) throws IOException {
+        this.group = InetAddress.getByName(this.groupAddress);
+        this.socket = new MulticastSocket(this.port);
+        this.socket.setTimeToLive(this.ttl);
+        if (this.interfaceAddress != null) {
+            this.socket.setInterface(InetAddress.getByName(this.interfaceAddress));
+        }
+        this.socket.joinGroup(this.group);
+        Thread thread = new Thread("MulticastInvalidationTransport "
+                + this.groupAddress + ":" + this.port) {
+            public void run() {
+                byte[] buf = new byte[MAX_PACKET_SIZE];
+                while (!closed) {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    try {
+                        socket.receive(packet);
+                    } catch (IOException e) {
+                        if (!closed) {
+                            log.error("Error in receiving invalidation", e);
+                        }
+                        continue;
+                    }
+                    byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(buf, packet.getOffset(), data, 0, data.length);
+                    try {
+                        receiver.received(data);
+                    } catch (Throwable e) {
+                        log.error("Error in applying invalidation", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void send(byte[] packet) throws IOException {
+        if (packet.length > MAX_PACKET_SIZE) {
+            throw new IOException("Packet too large: " + packet.length);
+        }
+        this.socket.send(new DatagramPacket(packet, packet.length, this.group,
+                this.port));
+    }
+
+    public void close() {
+        this.closed = true;
+        if (this.socket != null) {
+            try {
+                this.socket.leaveGroup(this.group);
+            } catch (IOException e) {
+                // ignore
+            }
+            this.socket.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.ifeng.common.dm.persist;
+
+import java.util.Iterator;
+
+import com.ifeng.common.dm.DataManagerException;
+import com.ifeng.common.dm.QueryResult;
+import com.ifeng.common.dm.RowVisitor;
+import com.ifeng.common.dm.persist.intf.LazyCollectionHandler;
+
+/**
+ * <title>CursorQueryResult </title>
+ * 
+ * <pre>以游标方式读取的查询结果，数据按固定大小的窗口调入和转换，适用于大数据量的查询。
+ * 只能向前读取：getData的行号不能小于已经读过的行号；iterator和visit从当前位置继续。
+ * 依赖打开它的session，使用完后必须close，而且要在session关闭之前。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public interface CursorQueryResult extends QueryResult {
+    /**
+     * @return 从当前位置开始，逐行返回转换后的数据
+     */
+    public Iterator iterator();
+
+    /**
+     * 从当前位置开始，逐行处理数据，直到结束或visitor返回false
+     * @param visitor 处理每行数据
+     * @return 处理的行数
+     * @throws DataManagerException 错误
+     */
+    public int visit(RowVisitor visitor) throws DataManagerException;
+
+    /**
+     * 设置转换出的LazyCollection的handler
+     */
+    public void setLazyCollectionHandler(LazyCollectionHandler handler);
+
+    /**
+     * 释放游标
+     */
+    public void close();
+}
@@ -7,6 +7,7 @@ import java.util.List;
  * 
  * <pre>HQL的语句封装类.
  * 该对象封装HQL的查询语句，参数集合，排序参数，分组参数，单页起始地址.
+ * 设置了pageCursor时使用键集分页：只取pageCursor之后的perPageSize行，忽略pageStartNo.
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
@@ -37,6 +38,10 @@ public class HQuery implements Serializable {
     * 每页大小
     */
     private int perPageSize;
+    /**
+    * 键集分页的游标
+    */
+    private PageCursor pageCursor;
     
     /**
     * 取得一个的query字符串
@@ -134,5 +139,21 @@ public class HQuery implements Serializable {
     public void setPerPageSize(int perPageSize) {
         this.perPageSize = perPageSize;
     }
-}
 
+    /**
+    * 取得键集分页的游标
+    * @return 游标，null表示不使用键集分页
+    */
+    public PageCursor getPageCursor() {
+        return pageCursor;
+    }
+    
+    /**
+     * 设置键集分页的游标.
+     * 没有设置orderby时，使用游标的排序字段排序
+     * @param pageCursor 游标
+     */
+    public void setPageCursor(PageCursor pageCursor) {
+        this.pageCursor = pageCursor;
+    }
+}
@@ -0,0 +1,561 @@
+package com.ifeng.common.dm.persist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.ifeng.common.dm.QueryResult;
+import com.ifeng.common.misc.PropertyAccessor;
+
+/**
+ * <title>PageCursor </title>
+ * 
+ * <pre>键集(keyset/seek)分页的游标.
+ * 与按页号分页(setFirstResult)不同，下一页的条件是“排序字段大于上一页最后一行的值”，
+ * 数据库可以直接从索引定位，翻到多深的页代价都一样。
+ * 排序字段必须唯一确定一行的顺序(一般最后一个字段是id)，且值不能为null。
+ * 游标可以序列化，也可以用toToken()转成一个不透明的字符串交给客户端，
+ * 再用fromToken()还原。token按字段显式编码(值只能是String、Number、Date)，
+ * 并带有HMAC签名，被修改过的token会被拒绝。签名的密钥缺省是每个JVM随机生成的，
+ * 多个节点之间传递token时用setDefaultSecret设置相同的密钥。
+ * 用法：
+ *   PageCursor cursor = new PageCursor(new String[] {"createTime", "id"},
+ *           new boolean[] {true, true});
+ *   params.put(PersistDataManager.PARAM_PAGE_CURSOR, cursor);
+ *   params.put(DataManager.PARAM_PAGE_SIZE, new Integer(50));
+ *   QueryResult page = dm.query(queryObj, params);
+ *   cursor = cursor.next(page, 50);  // 下一页的游标，没有更多数据时返回null
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class PageCursor implements Serializable {
+    private static final long serialVersionUID = -2716344960870352187L;
+
+    private static final String DEFAULT_ALIAS = "o";
+
+    private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+            + "abcdefghijklmnopqrstuvwxyz0123456789-_").toCharArray();
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * token中签名的字节数
+     */
+    private static final int MAC_SIZE = 16;
+
+    private static final byte TOKEN_VERSION = 1;
+
+    /**
+     * token中排序字段的最大个数
+     */
+    private static final int MAX_FIELDS = 16;
+
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_INTEGER = 'I';
+    private static final byte TYPE_LONG = 'L';
+    private static final byte TYPE_SHORT = 'H';
+    private static final byte TYPE_BYTE = 'B';
+    private static final byte TYPE_DOUBLE = 'D';
+    private static final byte TYPE_FLOAT = 'F';
+    private static final byte TYPE_BIG_DECIMAL = 'M';
+    private static final byte TYPE_BIG_INTEGER = 'N';
+    private static final byte TYPE_DATE = 'T';
+    private static final byte TYPE_SQL_DATE = 'd';
+    private static final byte TYPE_TIMESTAMP = 't';
+
+    /**
+     * 字段名和别名只能是标识符，它们会拼到HQL中
+     */
+    private static final Pattern PATH = Pattern
+            .compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+
+    private static volatile byte[] defaultKey = randomKey();
+
+    /**
+     * 排序字段(bean的属性名，可以是嵌套属性)
+     */
+    private final String[] fields;
+
+    /**
+     * 每个字段是否降序
+     */
+    private final boolean[] descending;
+
+    /**
+     * HQL中bean的别名
+     */
+    private final String alias;
+
+    /**
+     * 上一页最后一行的排序字段值；null表示第一页
+     */
+    private final Object[] lastValues;
+
+    /**
+     * 第一页的游标，所有字段升序
+     * @param fields 排序字段
+     */
+    public PageCursor(String[] fields) {
+        this(fields, new boolean[fields.length]);
+    }
+
+    /**
+     * 第一页的游标
+     * @param fields 排序字段
+     * @param descending 每个字段是否降序
+     */
+    public PageCursor(String[] fields, boolean[] descending) {
+        this(fields, descending, DEFAULT_ALIAS, null);
+    }
+
+    /**
+     * @param fields 排序字段
+     * @param descending 每个字段是否降序
+     * @param alias HQL中bean的别名
+     * @param lastValues 上一页最后一行的排序字段值，null表示第一页
+     */
+    public PageCursor(String[] fields, boolean[] descending, String alias,
+            Object[] lastValues) {
+        if (fields.length == 0 || fields.length != descending.length) {
+            throw new IllegalArgumentException(
+                    "Sort fields and directions don't match");
+        }
+        if (lastValues != null && lastValues.length != fields.length) {
+            throw new IllegalArgumentException(
+                    "Sort fields and values don't match");
+        }
+        if (!PATH.matcher(alias).matches()) {
+            throw new IllegalArgumentException("Invalid alias: " + alias);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null || !PATH.matcher(fields[i]).matches()) {
+                throw new IllegalArgumentException("Invalid sort field: "
+                        + fields[i]);
+            }
+        }
+        this.fields = fields;
+        this.descending = descending;
+        this.alias = alias;
+        this.lastValues = lastValues;
+    }
+
+    public String[] getFields() {
+        return this.fields;
+    }
+
+    public boolean[] getDescending() {
+        return this.descending;
+    }
+
+    public String getAlias() {
+        return this.alias;
+    }
+
+    public Object[] getLastValues() {
+        return this.lastValues;
+    }
+
+    /**
+     * @return true 如果是第一页(没有上一页的值)
+     */
+    public boolean isFirst() {
+        return this.lastValues == null;
+    }
+
+    /**
+     * 以row为上一页最后一行的游标
+     * @param row 上一页的最后一行
+     */
+    public PageCursor next(Object row) {
+        Object[] values = new Object[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            try {
+                values[i] = PropertyAccessor.forPath(this.fields[i]).get(row,
+                        null);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot read sort field "
+                        + this.fields[i] + ": " + e.getMessage());
+            }
+            if (values[i] == null) {
+                throw new IllegalArgumentException("Sort field "
+                        + this.fields[i] + " is null");
+            }
+        }
+        return new PageCursor(this.fields, this.descending, this.alias, values);
+    }
+
+    /**
+     * 根据本页的数据得到下一页的游标
+     * @param page 本页数据
+     * @param pageSize 每页大小
+     * @return 下一页的游标；本页不满时说明没有更多数据，返回null
+     */
+    public PageCursor next(QueryResult page, int pageSize) {
+        int count = page.getRowCount();
+        if (count == 0 || count < pageSize) {
+            return null;
+        }
+        return next(page.getData(count - 1));
+    }
+
+    /**
+     * 生成排序子句，如order by o.createTime desc, o.id desc
+     */
+    public String getOrderby() {
+        StringBuffer sb = new StringBuffer("order by ");
+        for (int i = 0; i < this.fields.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(this.alias).append('.').append(this.fields[i]);
+            if (this.descending[i]) {
+                sb.append(" desc");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 生成“在上一页最后一行之后”的条件，参数加到paraList后面。
+     * HQL不支持(a, b) &gt; (?, ?)的写法，展开为
+     * (o.a &gt; ? or (o.a = ? and o.b &gt; ?))
+     * @param sb 条件加到这里
+     * @param paraList 参数
+     * @return false 如果是第一页，没有条件
+     */
+    public boolean getQL(StringBuffer sb, List paraList) {
+        if (this.lastValues == null) {
+            return false;
+        }
+        sb.append('(');
+        for (int i = 0; i < this.fields.length; i++) {
+            if (i > 0) {
+                sb.append(" or ");
+            }
+            sb.append('(');
+            for (int j = 0; j < i; j++) {
+                sb.append(this.alias).append('.').append(this.fields[j])
+                        .append(" = ? and ");
+            }
+            sb.append(this.alias).append('.').append(this.fields[i])
+                    .append(this.descending[i] ? " < ?" : " > ?");
+            sb.append(')');
+        }
+        sb.append(')');
+        getParameters(paraList);
+        return true;
+    }
+
+    /**
+     * 只生成getQL的参数。条件的字符串只与排序字段有关，可以缓存
+     * @param paraList 参数加到后面
+     */
+    public void getParameters(List paraList) {
+        if (this.lastValues == null) {
+            return;
+        }
+        for (int i = 0; i < this.fields.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                paraList.add(this.lastValues[j]);
+            }
+        }
+    }
+
+    /**
+     * 设置toToken/fromToken缺省使用的签名密钥。
+     * 多个节点之间传递token，或者重启后token仍然有效时需要设置
+     */
+    public static void setDefaultSecret(String secret) {
+        defaultKey = toKey(secret);
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private static byte[] toKey(String secret) {
+        if (secret == null || secret.length() == 0) {
+            throw new IllegalArgumentException("Empty cursor secret");
+        }
+        try {
+            return secret.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static byte[] sign(byte[] key, byte[] data, int length) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            mac.update(data, 0, length);
+            byte[] result = new byte[MAC_SIZE];
+            System.arraycopy(mac.doFinal(), 0, result, 0, MAC_SIZE);
+            return result;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign cursor: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * 转换成不透明的字符串(URL安全)，可以交给客户端。使用缺省的密钥签名
+     */
+    public String toToken() {
+        return toToken(defaultKey);
+    }
+
+    /**
+     * 转换成不透明的字符串(URL安全)，可以交给客户端
+     * @param secret 签名的密钥
+     */
+    public String toToken(String secret) {
+        return toToken(toKey(secret));
+    }
+
+    private String toToken(byte[] key) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TOKEN_VERSION);
+            out.writeUTF(this.alias);
+            out.writeByte(this.fields.length);
+            for (int i = 0; i < this.fields.length; i++) {
+                out.writeUTF(this.fields[i]);
+                out.writeBoolean(this.descending[i]);
+            }
+            out.writeBoolean(this.lastValues != null);
+            if (this.lastValues != null) {
+                for (int i = 0; i < this.lastValues.length; i++) {
+                    writeValue(out, this.lastValues[i]);
+                }
+            }
+            out.write(sign(key, bytes.toByteArray(), bytes.size()));
+            out.close();
+            return encode(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot encode cursor: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * 从toToken()生成的字符串还原，使用缺省的密钥验证签名
+     * @throws IllegalArgumentException 字符串不是有效的游标，或者签名不对
+     */
+    public static PageCursor fromToken(String token) {
+        return fromToken(token, defaultKey);
+    }
+
+    /**
+     * 从toToken(secret)生成的字符串还原
+     * @param secret 签名的密钥
+     * @throws IllegalArgumentException 字符串不是有效的游标，或者签名不对
+     */
+    public static PageCursor fromToken(String token, String secret) {
+        return fromToken(token, toKey(secret));
+    }
+
+    private static PageCursor fromToken(String token, byte[] key) {
+        byte[] data = decode(token);
+        int length = data.length - MAC_SIZE;
+        if (length <= 0) {
+            throw new IllegalArgumentException("Invalid page cursor: too short");
+        }
+        byte[] mac = new byte[MAC_SIZE];
+        System.arraycopy(data, length, mac, 0, MAC_SIZE);
+        if (!MessageDigest.isEqual(mac, sign(key, data, length))) {
+            throw new IllegalArgumentException(
+                    "Invalid page cursor: bad signature");
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    data, 0, length));
+            if (in.readByte() != TOKEN_VERSION) {
+                throw new IOException("unknown version");
+            }
+            String alias = in.readUTF();
+            int count = in.readByte();
+            if (count <= 0 || count > MAX_FIELDS) {
+                throw new IOException("bad field count " + count);
+            }
+            String[] fields = new String[count];
+            boolean[] descending = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                fields[i] = in.readUTF();
+                descending[i] = in.readBoolean();
+            }
+            Object[] values = null;
+            if (in.readBoolean()) {
+                values = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = readValue(in);
+                }
+            }
+            if (in.available() > 0) {
+                throw new IOException("trailing data");
+            }
+            return new PageCursor(fields, descending, alias, values);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid page cursor: "
+                    + e.getMessage());
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value)
+            throws IOException {
+        if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String)value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INTEGER);
+            out.writeInt(((Integer)value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong(((Long)value).longValue());
+        } else if (value instanceof Short) {
+            out.writeByte(TYPE_SHORT);
+            out.writeShort(((Short)value).shortValue());
+        } else if (value instanceof Byte) {
+            out.writeByte(TYPE_BYTE);
+            out.writeByte(((Byte)value).byteValue());
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(((Float)value).floatValue());
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(TYPE_BIG_DECIMAL);
+            out.writeUTF(value.toString());
+        } else if (value instanceof BigInteger) {
+            out.writeByte(TYPE_BIG_INTEGER);
+            out.writeUTF(value.toString());
+        } else if (value instanceof Timestamp) {
+            out.writeByte(TYPE_TIMESTAMP);
+            out.writeLong(((Timestamp)value).getTime());
+            out.writeInt(((Timestamp)value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            out.writeByte(TYPE_SQL_DATE);
+            out.writeLong(((Date)value).getTime());
+        } else if (value instanceof Date) {
+            out.writeByte(TYPE_DATE);
+            out.writeLong(((Date)value).getTime());
+        } else {
+            throw new IOException("Unsupported sort value type: "
+                    + (value == null ? "null" : value.getClass().getName()));
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case TYPE_STRING:
+            return in.readUTF();
+        case TYPE_INTEGER:
+            return new Integer(in.readInt());
+        case TYPE_LONG:
+            return new Long(in.readLong());
+        case TYPE_SHORT:
+            return new Short(in.readShort());
+        case TYPE_BYTE:
+            return new Byte(in.readByte());
+        case TYPE_DOUBLE:
+            return new Double(in.readDouble());
+        case TYPE_FLOAT:
+            return new Float(in.readFloat());
+        case TYPE_BIG_DECIMAL:
+            return new BigDecimal(in.readUTF());
+        case TYPE_BIG_INTEGER:
+            return new BigInteger(in.readUTF());
+        case TYPE_TIMESTAMP: {
+            Timestamp ts = new Timestamp(in.readLong());
+            ts.setNanos(in.readInt());
+            return ts;
+        }
+        case TYPE_SQL_DATE:
+            return new java.sql.Date(in.readLong());
+        case TYPE_DATE:
+            return new Date(in.readLong());
+        default:
+            throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    private static String encode(byte[] data) {
+        StringBuffer sb = new StringBuffer((data.length * 4 + 2) / 3);
+        for (int i = 0; i < data.length; i += 3) {
+            int n = Math.min(3, data.length - i);
+            int bits = (data[i] & 0xff) << 16;
+            if (n > 1) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            if (n > 2) {
+                bits |= data[i + 2] & 0xff;
+            }
+            for (int j = 0; j <= n; j++) {
+                sb.append(BASE64[(bits >> (18 - 6 * j)) & 0x3f]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] decode(String str) {
+        int[] index = new int[128];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < BASE64.length; i++) {
+            index[BASE64[i]] = i;
+        }
+        int len = str.length();
+        if (len % 4 == 1) {
+            throw new IllegalArgumentException("Bad token length");
+        }
+        byte[] result = new byte[len * 3 / 4];
+        int pos = 0;
+        for (int i = 0; i < len; i += 4) {
+            int n = Math.min(4, len - i);
+            int bits = 0;
+            for (int j = 0; j < 4; j++) {
+                int v = 0;
+                if (j < n) {
+                    char c = str.charAt(i + j);
+                    v = c < 128 ? index[c] : -1;
+                    if (v < 0) {
+                        throw new IllegalArgumentException("Bad token char: " + c);
+                    }
+                }
+                bits = (bits << 6) | v;
+            }
+            for (int j = 0; j < n - 1; j++) {
+                result[pos++] = (byte)(bits >> (16 - 8 * j));
+            }
+        }
+        return result;
+    }
+
+    public String toString() {
+        return "PageCursor" + Arrays.asList(this.fields)
+                + (this.lastValues == null ? "" : " after "
+                        + Arrays.asList(this.lastValues));
+    }
+}
@@ -1,9 +1,13 @@
 package com.ifeng.common.dm.persist;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import com.ifeng.common.dm.BatchResult;
 import com.ifeng.common.dm.QueryResult;
 import com.ifeng.common.dm.persist.exception.PersistException;
 import com.ifeng.common.dm.persist.intf.LazyCollection;
@@ -146,6 +150,24 @@ public class ThreadLocalPersistManager implements PersistManager {
         this.persistManagerImpl.modify(getCurrentSession(), obj, fields);
     }
 
+    public BatchResult addAll(List objs, int transactionSize, int flushSize)
+            throws PersistException {
+        return this.persistManagerImpl.addAll(getCurrentSession(), objs,
+                transactionSize, flushSize);
+    }
+
+    public BatchResult modifyAll(List objs, String[] fields,
+            int transactionSize, int flushSize) throws PersistException {
+        return this.persistManagerImpl.modifyAll(getCurrentSession(), objs,
+                fields, transactionSize, flushSize);
+    }
+
+    public BatchResult deleteAll(List objs, int transactionSize, int flushSize)
+            throws PersistException {
+        return this.persistManagerImpl.deleteAll(getCurrentSession(), objs,
+                transactionSize, flushSize);
+    }
+
     private LazyCollectionHandler lazyCollectionHandler = new LazyCollectionHandlerImpl();
     /**
      * 在客户端处理LazyCollection，触发服务器端调入一个LazyCollection
@@ -176,10 +198,23 @@ public class ThreadLocalPersistManager implements PersistManager {
         return wrapper.getQueryResult();
     }
 
+    public CursorQueryResult scroll(HQuery hql, int windowSize)
+            throws PersistException {
+        CursorQueryResult result = this.persistManagerImpl.scroll(
+                getCurrentSession(), hql, windowSize);
+        result.setLazyCollectionHandler(this.lazyCollectionHandler);
+        return result;
+    }
+
     public int getResultSize(HQuery hql) throws PersistException {
         return this.persistManagerImpl.getResultSize(getCurrentSession(), hql);
     }
 
+    public int getResultSize(HQuery hql, int limit) throws PersistException {
+        return this.persistManagerImpl.getResultSize(getCurrentSession(), hql,
+                limit);
+    }
+
     public Object queryById(Object id, Class clazz) throws PersistException {
         ObjectWrapper wrapper = this.persistManagerImpl.queryById(
                 getCurrentSession(), id, clazz);
@@ -194,15 +229,151 @@ public class ThreadLocalPersistManager implements PersistManager {
         return wrapper.getObject();
     }
 
+    /**
+     * 同一个查询结果中的LazyCollection共用一个handler。访问其中一个时，
+     * 同时批量调入其它还没有调入的，每个调入的结果交给只持有它自己的LoadedCollectionHandler。
+     * 一次没有调入的(超过批量大小或其它集合属性)交给一个新的BatchLazyCollectionHandler，
+     * 访问其中一个时再批量调入。批量调入以后不再引用这些LazyCollection和manager，
+     * 保留一个DTO不会使同一查询的其它DTO不能回收
+     */
+    private static class BatchLazyCollectionHandler implements LazyCollectionHandler {
+        private ThreadLocalPersistManager manager;
+
+        /**
+         * 还没有调入的LazyCollection。LazyCollection的equals/hashCode会触发调入，
+         * 所以只能用==比较，不能放在HashSet里。批量调入以后是null
+         */
+        private List pending;
+
+        /**
+         * 已经批量调入、还没有交给LoadedCollectionHandler的，key: LazyCollection
+         */
+        private final Map loaded = new IdentityHashMap();
+
+        /**
+         * 批量调入以后，没有调入的LazyCollection的handler
+         */
+        private LazyCollectionHandler next;
+
+        BatchLazyCollectionHandler(ThreadLocalPersistManager manager,
+                List lazyCollections) {
+            this.manager = manager;
+            this.pending = new ArrayList(lazyCollections);
+        }
+
+        public Collection handle(LazyCollection lazyCollection) {
+            Collection result;
+            Map batchResult;
+            List remain;
+            LazyCollectionHandler nextHandler;
+            synchronized (this) {
+                result = (Collection)this.loaded.remove(lazyCollection);
+                if (result != null) {
+                    return result;
+                }
+                nextHandler = this.next;
+                if (this.pending == null) {
+                    // 批量调入以后、换handler之前访问的，还没有调入的集合
+                    batchResult = null;
+                    remain = null;
+                } else {
+                    ThreadLocalPersistManager m = this.manager;
+                    List batch = new ArrayList(this.pending.size());
+                    batch.add(lazyCollection);
+                    for (int i = 0; i < this.pending.size(); i++) {
+                        if (this.pending.get(i) != lazyCollection) {
+                            batch.add(this.pending.get(i));
+                        }
+                    }
+                    try {
+                        // 如果没有打开过session，这里打开一个
+                        m.openSession();
+                        try {
+                            ObjectWrapper wrapper = m.persistManagerImpl
+                                    .loadLazyCollections(m.getCurrentSession(), batch);
+                            m.processWrapper(wrapper);
+                            batchResult = (Map)wrapper.getObject();
+                        } finally {
+                            m.closeSession();
+                        }
+                    } catch (PersistException e) {
+                        log.error(e.getMessage(), e);
+                        throw new RuntimeException(e);
+                    }
+                    remain = new ArrayList();
+                    for (int i = 0; i < this.pending.size(); i++) {
+                        Object c = this.pending.get(i);
+                        if (c != lazyCollection && !batchResult.containsKey(c)) {
+                            remain.add(c);
+                        }
+                    }
+                    if (remain.size() > 1) {
+                        nextHandler = new BatchLazyCollectionHandler(m, remain);
+                    } else {
+                        nextHandler = m.lazyCollectionHandler;
+                    }
+                    this.next = nextHandler;
+                    this.pending = null;
+                    this.loaded.putAll(batchResult);
+                    result = (Collection)this.loaded.remove(lazyCollection);
+                    if (result == null) {
+                        // 批量查询没有返回这个集合，单独调入
+                        result = m.lazyCollectionHandler.handle(lazyCollection);
+                    }
+                    batchResult = new IdentityHashMap(this.loaded);
+                }
+            }
+            if (batchResult == null) {
+                return nextHandler.handle(lazyCollection);
+            }
+            // 在锁外换handler：setHandler要锁住LazyCollection，而正在读它的线程可能在等待这个handler。
+            // 那样的线程会先从loaded或next中得到结果
+            for (Iterator it = batchResult.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry)it.next();
+                ((LazyCollection)entry.getKey()).setHandler(
+                        new LoadedCollectionHandler((Collection)entry.getValue()));
+            }
+            for (int i = 0; i < remain.size(); i++) {
+                ((LazyCollection)remain.get(i)).setHandler(nextHandler);
+            }
+            synchronized (this) {
+                this.loaded.clear();
+                this.manager = null;
+                this.next = null;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 已经批量调入的LazyCollection的handler，只持有这一个LazyCollection的结果
+     */
+    private static class LoadedCollectionHandler implements LazyCollectionHandler {
+        private final Collection collection;
+
+        LoadedCollectionHandler(Collection collection) {
+            this.collection = collection;
+        }
+
+        public Collection handle(LazyCollection lazyCollection) {
+            return this.collection;
+        }
+    }
+
     /**
      * @param wrapper
      */
     void processWrapper(ObjectWrapper wrapper) {
         List lazyCollections = wrapper.getLazyCollections(); 
-        if (lazyCollections != null) {
+        if (lazyCollections != null && !lazyCollections.isEmpty()) {
+            // 多个LazyCollection时批量调入
+            LazyCollectionHandler handler = this.lazyCollectionHandler;
+            if (lazyCollections.size() > 1) {
+                handler = new BatchLazyCollectionHandler(this, lazyCollections);
+            }
             for (Iterator it = lazyCollections.iterator(); it.hasNext();) {
                 LazyCollection lazyCollection = (LazyCollection)it.next();
-                lazyCollection.setHandler(this.lazyCollectionHandler);
+                lazyCollection.setHandler(handler);
             }
         }
     }
@@ -3,13 +3,19 @@ package com.ifeng.common.dm.persist;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
+import com.ifeng.common.dm.Aggregation;
+import com.ifeng.common.dm.CompiledQuery;
+import com.ifeng.common.dm.DataManagerException;
+import com.ifeng.common.dm.ParallelScan;
 import com.ifeng.common.dm.QueryResult;
 
 /**
  * <title>WholeQueryResult </title>
  * 
  * <pre>用于一次得到所有结果的QueryResult，一般适用于数据量较小的查询结果
+ * 结果较大时可以用filter/aggregate在内存中再过滤或聚合，数据多时分段并行扫描(ParallelScan)
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
@@ -43,6 +49,43 @@ public class WholeQueryResult implements QueryResult, Serializable {
         return null;
     }
 
+    /**
+     * 在结果中再过滤，保持原来的顺序
+     * @param query 查询对象，key: 字段名; value: QueryField
+     */
+    public WholeQueryResult filter(Map query) throws DataManagerException {
+        return filter(query, ParallelScan.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold 并行扫描时每段的最少数据个数，0表示不并行
+     */
+    public WholeQueryResult filter(Map query, int threshold)
+            throws DataManagerException {
+        return new WholeQueryResult(ParallelScan.filter(result.toArray(),
+                result.size(), CompiledQuery.compile(query), threshold));
+    }
+
+    /**
+     * 对结果中满足条件的数据计算聚合
+     * @param query 查询对象，null表示所有数据
+     * @return key: 分组的值；value: Aggregation.Group
+     */
+    public Map aggregate(Map query, Aggregation aggregation)
+            throws DataManagerException {
+        return aggregate(query, aggregation, ParallelScan.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold 并行扫描时每段的最少数据个数，0表示不并行
+     */
+    public Map aggregate(Map query, Aggregation aggregation, int threshold)
+            throws DataManagerException {
+        CompiledQuery compiled = CompiledQuery.compile(query);
+        return ParallelScan.aggregate(result.toArray(), result.size(),
+                compiled.isEmpty() ? null : compiled, aggregation, threshold);
+    }
+
     private List result;
 
 }
@@ -0,0 +1,227 @@
+package com.ifeng.common.dm.persist.hibernate;
+
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.AbstractComponentType;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.Type;
+
+/**
+ * <title>ConversionPlan </title>
+ * 
+ * <pre>PersistentObjectConvertor和DTO2POConvertor使用的、按实体类缓存的转换计划.
+ * 一个实体类的EntityPersister、构造函数、属性名，以及每个属性应该怎样转换
+ * (集合的元素和key类型、数组的元素类、组件的子属性)只在第一次遇到这个类时
+ * 从SessionFactory查出，以后转换同一个类的对象只需要按算好的槽位循环。
+ * 集合的计划按role缓存。计划与映射有关，保存在QueryPlanCache中，
+ * SessionFactory重新生成后自动失效。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+final class ConversionPlan {
+	/**
+	 * 不需要转换的值(基本类型、字符串、日期等)
+	 */
+	static final int PLAIN = 0;
+
+	/**
+	 * 集合、Map或数组
+	 */
+	static final int COLLECTION = 1;
+
+	/**
+	 * 关联的实体(包括any)
+	 */
+	static final int ENTITY = 2;
+
+	/**
+	 * 组件
+	 */
+	static final int COMPONENT = 3;
+
+	private static final ValuePlan PLAIN_VALUE = new ValuePlan(null, PLAIN,
+			null, null, null, null);
+
+	private static final QueryPlanCache cache = new QueryPlanCache(
+			"conversion", QueryPlanCache.DEFAULT_CAPACITY);
+
+	/**
+	 * 一个值(属性、集合元素等)的转换方法
+	 */
+	static final class ValuePlan {
+		final Type type;
+
+		final int kind;
+
+		/**
+		 * 集合：Map的key
+		 */
+		final ValuePlan key;
+
+		/**
+		 * 集合：元素
+		 */
+		final ValuePlan element;
+
+		/**
+		 * 集合：数组元素的类
+		 */
+		final Class elementClass;
+
+		/**
+		 * 组件：每个子属性
+		 */
+		final ValuePlan[] subplans;
+
+		ValuePlan(Type type, int kind, ValuePlan key, ValuePlan element,
+				Class elementClass, ValuePlan[] subplans) {
+			this.type = type;
+			this.kind = kind;
+			this.key = key;
+			this.element = element;
+			this.elementClass = elementClass;
+			this.subplans = subplans;
+		}
+	}
+
+	final EntityPersister persister;
+
+	final String[] propertyNames;
+
+	/**
+	 * 每个属性的转换方法，与persister.getPropertyTypes()一一对应
+	 */
+	final ValuePlan[] properties;
+
+	/**
+	 * true 如果所有属性都不需要转换
+	 */
+	final boolean plain;
+
+	private final Map propertyIndexes;
+
+	private final Constructor constructor;
+
+	private ConversionPlan(Class clazz, EntityPersister persister,
+			SessionFactoryImplementor factory) {
+		this.persister = persister;
+		this.propertyNames = persister.getPropertyNames();
+		this.propertyIndexes = new HashMap(this.propertyNames.length * 2);
+		for (int i = 0; i < this.propertyNames.length; i++) {
+			this.propertyIndexes.put(this.propertyNames[i], new Integer(i));
+		}
+		Type[] types = persister.getPropertyTypes();
+		this.properties = new ValuePlan[types.length];
+		boolean allPlain = true;
+		for (int i = 0; i < types.length; i++) {
+			this.properties[i] = valuePlan(types[i], factory);
+			allPlain &= this.properties[i].kind == PLAIN;
+		}
+		this.plain = allPlain;
+		Constructor ctor;
+		try {
+			ctor = clazz.getDeclaredConstructor(new Class[0]);
+			ctor.setAccessible(true);
+		} catch (Exception e) {
+			// DTO2POConvertor不需要构造对象
+			ctor = null;
+		}
+		this.constructor = ctor;
+	}
+
+	/**
+	 * @return 与obj同一个类的空对象
+	 */
+	Object newInstance() throws Exception {
+		if (this.constructor == null) {
+			throw new InstantiationException("No default constructor: "
+					+ this.persister.getEntityName());
+		}
+		return this.constructor.newInstance(new Object[0]);
+	}
+
+	/**
+	 * @return 属性的序号
+	 * @throws IllegalArgumentException 没有这个属性
+	 */
+	int indexOf(String propertyName) {
+		int index = findProperty(propertyName);
+		if (index < 0) {
+			throw new IllegalArgumentException("No property " + propertyName
+					+ " in " + this.persister.getEntityName());
+		}
+		return index;
+	}
+
+	/**
+	 * @return 属性的序号，没有这个属性(如嵌套属性a.b)时返回-1
+	 */
+	int findProperty(String propertyName) {
+		Integer index = (Integer) this.propertyIndexes.get(propertyName);
+		return index == null ? -1 : index.intValue();
+	}
+
+	/**
+	 * 得到obj所属实体类的转换计划
+	 */
+	static ConversionPlan forObject(SessionImplementor session, Object obj)
+			throws HibernateException {
+		SessionFactoryImplementor factory = session.getFactory();
+		Class clazz = obj.getClass();
+		ConversionPlan plan = (ConversionPlan) cache.get(clazz, factory);
+		if (plan == null) {
+			plan = new ConversionPlan(clazz, session.getEntityPersister(null,
+					obj), factory);
+			cache.put(clazz, plan, factory);
+		}
+		return plan;
+	}
+
+	/**
+	 * 得到一个集合属性的转换计划
+	 */
+	static ValuePlan forCollection(CollectionType type,
+			SessionFactoryImplementor factory) {
+		ValuePlan plan = (ValuePlan) cache.get(type.getRole(), factory);
+		if (plan == null) {
+			CollectionPersister persister = factory.getCollectionPersister(type
+					.getRole());
+			Type elementType = persister.getElementType();
+			plan = new ValuePlan(type, COLLECTION, valuePlan(persister
+					.getKeyType(), factory), valuePlan(elementType, factory),
+					elementType.getReturnedClass(), null);
+			cache.put(type.getRole(), plan, factory);
+		}
+		return plan;
+	}
+
+	private static ValuePlan valuePlan(Type type,
+			SessionFactoryImplementor factory) {
+		if (type.isCollectionType()) {
+			return forCollection((CollectionType) type, factory);
+		} else if (type.isEntityType() || type.isAnyType()) {
+			return new ValuePlan(type, ENTITY, null, null, null, null);
+		} else if (type.isComponentType()) {
+			Type[] subtypes = ((AbstractComponentType) type).getSubtypes();
+			ValuePlan[] subplans = new ValuePlan[subtypes.length];
+			for (int i = 0; i < subtypes.length; i++) {
+				subplans[i] = valuePlan(subtypes[i], factory);
+			}
+			return new ValuePlan(type, COMPONENT, null, null, null, subplans);
+		} else {
+			return PLAIN_VALUE;
+		}
+	}
+
+	static QueryPlanCache getCache() {
+		return cache;
+	}
+}
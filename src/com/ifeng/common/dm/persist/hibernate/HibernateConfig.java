@@ -1,9 +1,12 @@
 package com.ifeng.common.dm.persist.hibernate;
 
 import java.net.URL;
+import java.util.Iterator;
 
 import org.hibernate.SessionFactory;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.Environment;
+import org.hibernate.mapping.PersistentClass;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -26,6 +29,11 @@ import com.sun.org.apache.xerces.internal.dom.DocumentImpl;
  *  <br>
  * 特别提示：最好不要在Hibernate配置中配置mapping，而要在具体模块中用MappingConfig来配置，
  * 以降低模块之间的依赖程度
+ * jdbc-batch-size=&quot;n&quot;时设置hibernate.jdbc.batch_size(Hibernate配置中没有设置时)，
+ * 批量写入(PersistDataManager.addAll等)flush时使用JDBC batch。
+ * 不设置时不改变Hibernate的缺省行为，推荐值为DEFAULT_JDBC_BATCH_SIZE
+ * dynamic-update=&quot;true&quot;时所有映射的类都使用dynamic-update，
+ * update语句只包含改变了的列(与mapping中的dynamic-update=&quot;true&quot;相同)
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
@@ -34,9 +42,24 @@ public final class HibernateConfig {
 
     private static final Logger log = Logger.getLogger(HibernateConfig.class);
 
+    /**
+     * 推荐的hibernate.jdbc.batch_size，与PersistDataManager的batch-flush-size的缺省值相同
+     */
+    public static final int DEFAULT_JDBC_BATCH_SIZE = 50;
+
     private static SessionFactory sessionFactory;
     private static Configuration config = new Configuration();
 
+    /**
+     * 所有的类都使用dynamic-update
+     */
+    private static boolean dynamicUpdate;
+
+    /**
+     * 配置中没有hibernate.jdbc.batch_size时使用的值，0表示不设置
+     */
+    private static int jdbcBatchSize;
+
     private HibernateConfig() {
         // utility class
     }
@@ -45,6 +68,14 @@ public final class HibernateConfig {
      * 嵌入的配置
      */
     public static void config(ConfigRoot configRoot, Element configEle) {
+        if (XmlLoader.getAttributeAsBoolean(configEle, "dynamic-update", false)) {
+            setDynamicUpdate(true);
+        }
+        int batchSize = XmlLoader.getAttributeAsInteger(configEle,
+                "jdbc-batch-size", 0);
+        if (batchSize > 0) {
+            setJdbcBatchSize(batchSize);
+        }
         String file = XmlLoader.getAttribute(configEle, "config-file", null);
         // 默认 protocol 为 null
         String protocol = XmlLoader.getAttribute(configEle, "protocol", null);
@@ -135,8 +166,40 @@ public final class HibernateConfig {
         config.addResource(resource);
     }
 
+    /**
+     * @param dynamicUpdate true: 所有映射的类都使用dynamic-update，
+     *            update语句只包含改变了的列
+     */
+    public static synchronized void setDynamicUpdate(boolean dynamicUpdate) {
+        if (HibernateConfig.dynamicUpdate != dynamicUpdate) {
+            resetSessionFactory();
+            HibernateConfig.dynamicUpdate = dynamicUpdate;
+        }
+    }
+
+    /**
+     * @param jdbcBatchSize Hibernate配置中没有hibernate.jdbc.batch_size时使用的值，
+     *            0表示不设置(使用Hibernate的缺省值)
+     */
+    public static synchronized void setJdbcBatchSize(int jdbcBatchSize) {
+        if (HibernateConfig.jdbcBatchSize != jdbcBatchSize) {
+            resetSessionFactory();
+            HibernateConfig.jdbcBatchSize = jdbcBatchSize;
+        }
+    }
+
     public static synchronized SessionFactory getSessionFactory() {
         if (sessionFactory == null) {
+            if (dynamicUpdate) {
+                for (Iterator it = config.getClassMappings(); it.hasNext();) {
+                    ((PersistentClass) it.next()).setDynamicUpdate(true);
+                }
+            }
+            if (jdbcBatchSize > 0
+                    && config.getProperty(Environment.STATEMENT_BATCH_SIZE) == null) {
+                config.setProperty(Environment.STATEMENT_BATCH_SIZE, String
+                        .valueOf(jdbcBatchSize));
+            }
             sessionFactory = config.buildSessionFactory();
         }
         return sessionFactory;
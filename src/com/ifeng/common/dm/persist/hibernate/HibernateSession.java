@@ -1,32 +1,96 @@
 package com.ifeng.common.dm.persist.hibernate;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 
-import com.ifeng.common.misc.IDGenerator;
+import com.ifeng.common.misc.Logger;
 
 /**
  * <title>Hibernate SessionFactory的封装</title>
  * 
  * <pre>Hibernate的SessionFactory的包装.<br>
+ * 打开的Session登记在一个ConcurrentMap中，不同线程的open/close/get互不阻塞；
+ * 每个Session的事务等状态放在它自己的SessionState中，PersistManagerHibernate
+ * 通过SessionWrapper直接引用，不再经过按字符串查找的变量表。
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
  */
 public final class HibernateSession {
+    private static final Logger log = Logger.getLogger(HibernateSession.class);
 
     private static SessionFactory sessionFactory = HibernateConfig.getSessionFactory();
     
-    // it is synchronized in methods
-    private static Map sessionMap = new HashMap();
+    /**
+     * key: sessionId; value: SessionState
+     */
+    private static final ConcurrentMap sessionMap = new ConcurrentHashMap();
     
-    private static IDGenerator sessionIDGenerator = new IDGenerator("HSES", false);
-    private static IDGenerator objectIDGenerator = new IDGenerator("OBJ", false);
-    private static Map sessionValueMap = new HashMap();
+    private static final AtomicLong sessionCounter = new AtomicLong(
+            new Random().nextInt() & 0xffffffffL);
+    private static final AtomicLong objectCounter = new AtomicLong();
+
+    /**
+     * 一个打开的Session和它的状态。
+     * 一个Session同时只被一个线程使用，字段不需要同步
+     */
+    static final class SessionState {
+        final String id;
+
+        /**
+         * 出现异常后由renew换成新的Session
+         */
+        Session session;
+
+        /**
+         * 当前的事务，没有时为null
+         */
+        Transaction transaction;
+
+        /**
+         * 事务的嵌套层数
+         */
+        int transactionCount;
+
+        /**
+         * setSessionVariable设置的变量，用到时才创建
+         */
+        private Map variables;
+
+        SessionState(String id, Session session) {
+            this.id = id;
+            this.session = session;
+        }
+
+        /**
+         * 关闭当前的Session，换成一个新打开的。
+         * Hibernate的Session出现异常后状态不确定，必须丢弃，不能clear后继续使用
+         */
+        void renew() throws HibernateException {
+            Session old = this.session;
+            this.session = sessionFactory.openSession();
+            try {
+                old.close();
+            } catch (HibernateException e) {
+                log.warn("Exception closing failed session " + this.id, e);
+            }
+        }
+
+        synchronized Map getVariables(boolean create) {
+            if (this.variables == null && create) {
+                this.variables = new ConcurrentHashMap();
+            }
+            return this.variables;
+        }
+    }
 
     private HibernateSession() {
         // 
@@ -35,57 +99,78 @@ public final class HibernateSession {
     public static SessionFactory getSessionFactory() {
         return sessionFactory;
     }
+
+    /**
+     * 打开一个Session并登记
+     */
+    static SessionState openState() throws HibernateException {
+        Session session = sessionFactory.openSession();
+        String sessionId = "HSES"
+                + Long.toHexString(sessionCounter.incrementAndGet());
+        SessionState state = new SessionState(sessionId, session);
+        sessionMap.put(sessionId, state);
+        return state;
+    }
+
+    /**
+     * @throws RuntimeException 如果sessionId不存在(已经close)
+     */
+    static SessionState getState(String sessionId) {
+        SessionState state = (SessionState)sessionMap.get(sessionId);
+        if (state == null) {
+            throw new RuntimeException("Can't find session: " + sessionId);
+        }
+        return state;
+    }
     
-    public static synchronized String open() throws HibernateException {
-        Session session = sessionFactory
-                .openSession();
-        String sessionId = sessionIDGenerator.nextId();
-        sessionMap.put(sessionId, session);
-        return sessionId;
+    public static String open() throws HibernateException {
+        return openState().id;
     }
 
-    public static synchronized void close(String sessionId)
+    public static void close(String sessionId)
             throws HibernateException {
-        Session session = (Session)sessionMap.get(sessionId);
-        if (session != null) {
-            session.close();
-            sessionMap.remove(sessionId);
-            sessionValueMap.remove(sessionId);
+        SessionState state = (SessionState)sessionMap.remove(sessionId);
+        if (state != null) {
+            state.session.close();
         } else {
             throw new RuntimeException("Can't find session: " + sessionId);
         }
     }
 
-    public static synchronized String setSessionVariable(String sessionId,
+    public static String setSessionVariable(String sessionId,
             String valueId, Object value) {
         if (valueId == null) {
-            valueId = objectIDGenerator.nextId();
+            valueId = "OBJ" + Long.toHexString(objectCounter.incrementAndGet());
         }
-        Map valueMap = (Map)sessionValueMap.get(sessionId);
-        if (valueMap == null) {
-            valueMap = new HashMap();
-            sessionValueMap.put(sessionId, valueMap);
+        Map valueMap = getState(sessionId).getVariables(true);
+        if (value == null) {
+            // ConcurrentHashMap不能放null
+            valueMap.remove(valueId);
+        } else {
+            valueMap.put(valueId, value);
         }
-        valueMap.put(valueId, value);
         return valueId;
     }
 
-    public static synchronized Object getSessionVariable(String sessionId,
+    public static Object getSessionVariable(String sessionId,
             String valueId) {
-        Map valueMap = (Map)sessionValueMap.get(sessionId);
+        SessionState state = (SessionState)sessionMap.get(sessionId);
+        Map valueMap = state == null ? null : state.getVariables(false);
         if (valueMap == null) {
             return null;
         }
         return valueMap.get(valueId);
     }
 
-    public static synchronized Session getSession(String sessionId) {
-        Session session = (Session)sessionMap.get(sessionId);
-        if (session != null) {
-            return session;
-        } else {
-            throw new RuntimeException("Can't find session: " + sessionId);
-        }
+    public static Session getSession(String sessionId) {
+        return getState(sessionId).session;
+    }
+
+    /**
+     * @return 当前打开的Session个数
+     */
+    public static int getOpenSessionCount() {
+        return sessionMap.size();
     }
 
 }
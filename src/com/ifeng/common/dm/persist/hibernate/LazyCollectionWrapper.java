@@ -95,9 +95,12 @@ public class LazyCollectionWrapper implements LazyCollection {
         return orgCollection.toString();
     }
     private synchronized void read() {
-        if (this.handler != null) {
+        // 调入一次以后不再调入
+        if (this.handler != null && !this.converted) {
             this.orgCollection = handler.handle(this);
             this.converted = true;
+            // 不再需要handler，不要通过它引用同一查询的其它对象
+            this.handler = null;
         }
     }
 
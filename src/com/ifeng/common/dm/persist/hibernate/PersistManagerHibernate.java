@@ -1,32 +1,42 @@
 package com.ifeng.common.dm.persist.hibernate;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.EntityMode;
 import org.hibernate.Hibernate;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.UnresolvableObjectException;
 import org.hibernate.collection.PersistentCollection;
+import org.hibernate.dialect.Dialect;
 import org.hibernate.engine.CollectionKey;
 import org.hibernate.engine.CollectionSnapshot;
+import org.hibernate.engine.SessionFactoryImplementor;
 import org.hibernate.engine.SessionImplementor;
 import org.hibernate.hql.ast.QueryTranslatorImpl;
 import org.hibernate.persister.collection.CollectionPersister;
 import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.Type;
 import org.w3c.dom.Element;
 
 import com.ifeng.common.conf.ConfigRoot;
 import com.ifeng.common.conf.Configurable;
+import com.ifeng.common.dm.BatchResult;
 import com.ifeng.common.dm.QueryResult;
+import com.ifeng.common.dm.persist.CursorQueryResult;
 import com.ifeng.common.dm.persist.HQuery;
 import com.ifeng.common.dm.persist.ObjectWrapper;
+import com.ifeng.common.dm.persist.PageCursor;
 import com.ifeng.common.dm.persist.QueryResultWrapper;
 import com.ifeng.common.dm.persist.WholeQueryResult;
 import com.ifeng.common.dm.persist.exception.ConstraintViolationException;
@@ -38,6 +48,7 @@ import com.ifeng.common.dm.persist.intf.PersistManagerImpl;
 import com.ifeng.common.dm.persist.intf.PersistSession;
 import com.ifeng.common.misc.BeanTools;
 import com.ifeng.common.misc.Logger;
+import com.ifeng.common.misc.XmlLoader;
 /**
  * <title>PersistManagerHibernate </title>
  * 
@@ -51,13 +62,36 @@ import com.ifeng.common.misc.Logger;
 public class PersistManagerHibernate implements PersistManagerImpl,
 		Configurable {
 
-	private static final String SESSION_VARIABLE_TRANSACTION_COUNT = "TRANSACTION_COUNT";
-
-	private static final String SESSION_VARIABLE_TRANSACTION = "TRANSACTION";
-
 	private static final Logger log = Logger
 			.getLogger(PersistManagerHibernate.class);
 
+	/**
+	 * 完整的HQL字符串，key: 查询语句+排序+分组+键集分页的字段
+	 */
+	private static final QueryPlanCache queryPlanCache = new QueryPlanCache(
+			"hql", QueryPlanCache.DEFAULT_CAPACITY);
+
+	/**
+	 * 翻译好的count SQL，key: 查询语句
+	 */
+	private static final QueryPlanCache countPlanCache = new QueryPlanCache(
+			"count", QueryPlanCache.DEFAULT_CAPACITY);
+
+	/**
+	 * 缺省一次批量调入的lazy collection个数
+	 */
+	public static final int DEFAULT_LAZY_BATCH_SIZE = 50;
+
+	/**
+	 * modify时只复制改变了的属性
+	 */
+	private boolean dirtyOnlyModify;
+
+	/**
+	 * 一次批量调入的lazy collection个数
+	 */
+	private int lazyBatchSize = DEFAULT_LAZY_BATCH_SIZE;
+
 	/**
 	 * public允许在配置中生成这个对象
 	 */
@@ -76,12 +110,26 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 
 		String sessionId;
 
+		/**
+		 * 直接引用Session的状态，不用每次到HibernateSession中查找；
+		 * 序列化后再根据sessionId找回
+		 */
+		private transient HibernateSession.SessionState state;
+
 		public SessionWrapper() throws HibernateException {
-			this.sessionId = HibernateSession.open();
+			this.state = HibernateSession.openState();
+			this.sessionId = this.state.id;
+		}
+
+		HibernateSession.SessionState getState() {
+			if (this.state == null) {
+				this.state = HibernateSession.getState(this.sessionId);
+			}
+			return this.state;
 		}
 
 		public Session getSession() {
-			return HibernateSession.getSession(this.sessionId);
+			return getState().session;
 		}
 
 		public void close() throws HibernateException {
@@ -115,11 +163,9 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 	public void closeSession(PersistSession session) throws PersistException {
 		try {
 			try {
-				String sessionId = ((SessionWrapper) session).sessionId;
 				// 强制rollback未完成的transaction
-				Transaction transaction = (Transaction) HibernateSession
-						.getSessionVariable(sessionId,
-								SESSION_VARIABLE_TRANSACTION);
+				Transaction transaction = ((SessionWrapper) session)
+						.getState().transaction;
 				if (transaction != null) {
 					if (log.isInfoEnabled()) {
 						log
@@ -149,24 +195,14 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 			if (log.isDebugEnabled()) {
 				log.debug("Starting transaction in this thread");
 			}
-			String sessionId = ((SessionWrapper) session).sessionId;
-			Transaction transaction = (Transaction) HibernateSession
-					.getSessionVariable(sessionId, SESSION_VARIABLE_TRANSACTION);
-			Integer transactionCount;
-			if (transaction != null) {
-				transactionCount = (Integer) HibernateSession
-						.getSessionVariable(sessionId,
-								SESSION_VARIABLE_TRANSACTION_COUNT);
-				transactionCount = new Integer(transactionCount.intValue() + 1);
+			HibernateSession.SessionState state = ((SessionWrapper) session)
+					.getState();
+			if (state.transaction != null) {
+				state.transactionCount++;
 			} else {
-				transactionCount = new Integer(1);
-				transaction = ((SessionWrapper) session).getSession()
-						.beginTransaction();
-				HibernateSession.setSessionVariable(sessionId,
-						SESSION_VARIABLE_TRANSACTION, transaction);
-			}
-			HibernateSession.setSessionVariable(sessionId,
-					SESSION_VARIABLE_TRANSACTION_COUNT, transactionCount);
+				state.transaction = state.session.beginTransaction();
+				state.transactionCount = 1;
+			}
 		} catch (HibernateException e) {
 			throw new PersistException("Exception begining Transaction: "
 					+ e.getMessage(), e);
@@ -180,17 +216,14 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 	 */
 	public void commitTransaction(PersistSession session)
 			throws PersistException {
-		String sessionId = ((SessionWrapper) session).sessionId;
-		Transaction transaction = (Transaction) HibernateSession
-				.getSessionVariable(sessionId, SESSION_VARIABLE_TRANSACTION);
+		HibernateSession.SessionState state = ((SessionWrapper) session)
+				.getState();
+		Transaction transaction = state.transaction;
 		if (transaction == null) {
 			throw new PersistException("No transaction to commit");
 		}
 		try {
-			Integer transactionCount = (Integer) HibernateSession
-					.getSessionVariable(sessionId,
-							SESSION_VARIABLE_TRANSACTION_COUNT);
-			if (transactionCount.intValue() <= 1) {
+			if (state.transactionCount <= 1) {
 				// 已经达到嵌套的最上层，执行实际的commit
 				if (!transaction.wasCommitted() && !transaction.wasRolledBack()) {
 					if (log.isDebugEnabled()) {
@@ -198,20 +231,16 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 					}
 					transaction.commit();
 				}
-				HibernateSession.setSessionVariable(sessionId,
-						SESSION_VARIABLE_TRANSACTION, null);
+				state.transaction = null;
 			} else {
 				// 没有达到最上层，只是将计数减1
-				HibernateSession.setSessionVariable(sessionId,
-						SESSION_VARIABLE_TRANSACTION_COUNT, new Integer(
-								transactionCount.intValue() - 1));
+				state.transactionCount--;
 			}
 		} catch (HibernateException e) {
 			try {
 				rollbackTransaction(transaction);
 			} finally {
-				HibernateSession.setSessionVariable(sessionId,
-						SESSION_VARIABLE_TRANSACTION, null);
+				state.transaction = null;
 			}
 			if (e instanceof org.hibernate.exception.ConstraintViolationException) {
 				// 转换异常
@@ -330,6 +359,15 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 	 */
 	private void copyFieldsToPO(Session session, Object po, Object obj,
 			String[] fields) throws Exception {
+		if (this.dirtyOnlyModify) {
+			int changed = copyDirtyFieldsToPO((SessionImplementor) session,
+					po, obj, fields);
+			if (log.isDebugEnabled()) {
+				log.debug(changed == 0 ? "modify: nothing changed, no update"
+						: "modify: " + changed + " properties changed");
+			}
+			return;
+		}
 		if (fields == null) {
 			EntityPersister persister = ((SessionImplementor) session)
 					.getEntityPersister(null, po);
@@ -341,6 +379,54 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 		}
 	}
 
+	/**
+	 * 只把与PO不同的属性复制到PO上。比较的方法与Hibernate flush时的脏检查相同
+	 * (Type.isDirty)。没有属性改变时PO保持原样，flush时不会生成update语句；
+	 * 配合HibernateConfig的dynamic-update，update语句只包含改变了的列。
+	 * 
+	 * @return 改变的属性个数
+	 */
+	private int copyDirtyFieldsToPO(SessionImplementor session, Object po,
+			Object obj, String[] fields) throws Exception {
+		ConversionPlan plan = ConversionPlan.forObject(session, po);
+		EntityPersister persister = plan.persister;
+		Type[] types = persister.getPropertyTypes();
+		int count = fields == null ? types.length : fields.length;
+		int changed = 0;
+		for (int i = 0; i < count; i++) {
+			int index = fields == null ? i : plan.findProperty(fields[i]);
+			if (index < 0) {
+				// 嵌套属性等，不能比较，照原来的方法复制
+				BeanTools.setProperty(po, fields[i], BeanTools.getProperty(obj,
+						fields[i]));
+				changed++;
+				continue;
+			}
+			Object value = persister.getPropertyValue(obj, index,
+					EntityMode.POJO);
+			if (value instanceof LazyCollectionWrapper) {
+				// 没有读取过的延迟集合是只读的，不可能被修改
+				continue;
+			}
+			Object old = persister.getPropertyValue(po, index, EntityMode.POJO);
+			if (isDirty(types[index], old, value, session)) {
+				persister.setPropertyValue(po, index, value, EntityMode.POJO);
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	private static boolean isDirty(Type type, Object old, Object value,
+			SessionImplementor session) {
+		try {
+			return type.isDirty(old, value, session);
+		} catch (HibernateException e) {
+			// 不能比较(如关联的对象没有id)，按改变处理
+			return true;
+		}
+	}
+
 	/**
 	 * 得到一个id相同的Persist Object。如果没找到，返回null
 	 */
@@ -359,31 +445,158 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 		}
 	}
 
-	public QueryResultWrapper query(PersistSession session, HQuery hql)
-			throws PersistException {
-		try {
-			// 生成HQL字符串
-			StringBuffer queryStr = new StringBuffer(hql.getQueryString());
-			if (hql.getOrderby() != null) {
-				queryStr.append(" ").append(hql.getOrderby());
+	/**
+	 * 根据HQuery生成Query，设置参数和分页
+	 */
+	private Query createQuery(Session innerSession, HQuery hql)
+			throws HibernateException {
+		List list = hql.getParalist();
+		PageCursor cursor = hql.getPageCursor();
+		if (cursor != null && !cursor.isFirst()) {
+			// 键集分页条件的参数加在最后
+			List cursorParams = new ArrayList();
+			if (list != null) {
+				cursorParams.addAll(list);
 			}
-			if (hql.getGroupby() != null) {
-				queryStr.append(" ").append(hql.getGroupby());
+			cursor.getParameters(cursorParams);
+			list = cursorParams;
+		}
+		Query query = innerSession.createQuery(getQueryString(innerSession
+				.getSessionFactory(), hql));
+		if (list != null) {
+			for (int i = 0; i < list.size(); i++) {
+				query.setParameter(i, list.get(i));
 			}
-			Session innerSession = ((SessionWrapper) session).getSession();
-			Query query = innerSession.createQuery(queryStr.toString());
-			if (hql.getParalist() != null) {
-				List list = hql.getParalist();
-				for (int i = 0; i < list.size(); i++) {
-					query.setParameter(i, list.get(i));
-				}
+		}
+		if (cursor != null) {
+			if (hql.getPerPageSize() > 0) {
+				query.setMaxResults(hql.getPerPageSize());
 			}
-			if (hql.getPageStartNo() != 0) {
-				int pageno = hql.getPageStartNo();
-				int perpagesize = hql.getPerPageSize();
-				query.setFirstResult((pageno - 1) * perpagesize);
-				query.setMaxResults(perpagesize);
+		} else if (hql.getPageStartNo() != 0) {
+			int pageno = hql.getPageStartNo();
+			int perpagesize = hql.getPerPageSize();
+			query.setFirstResult((pageno - 1) * perpagesize);
+			query.setMaxResults(perpagesize);
+		}
+		return query;
+	}
+
+	/**
+	 * 生成完整的HQL字符串(加上键集分页条件、排序、分组)，结果按语句的各部分缓存
+	 */
+	private static String getQueryString(SessionFactory factory, HQuery hql) {
+		PageCursor cursor = hql.getPageCursor();
+		StringBuffer key = new StringBuffer(hql.getQueryString());
+		key.append('\0').append(hql.getOrderby()).append('\0').append(
+				hql.getGroupby());
+		if (cursor != null) {
+			key.append('\0').append(cursor.getOrderby()).append(
+					cursor.isFirst() ? "" : " after");
+		}
+		String cacheKey = key.toString();
+		String result = (String) queryPlanCache.get(cacheKey, factory);
+		if (result != null) {
+			return result;
+		}
+		StringBuffer queryStr = new StringBuffer(hql.getQueryString());
+		String orderby = hql.getOrderby();
+		if (cursor != null) {
+			// 键集分页：where (排序字段) > (上一页最后的值)
+			StringBuffer cond = new StringBuffer();
+			if (cursor.getQL(cond, new ArrayList())) {
+				addCondition(queryStr, cond.toString());
 			}
+			if (orderby == null) {
+				orderby = cursor.getOrderby();
+			}
+		}
+		if (orderby != null) {
+			queryStr.append(" ").append(orderby);
+		}
+		if (hql.getGroupby() != null) {
+			queryStr.append(" ").append(hql.getGroupby());
+		}
+		result = queryStr.toString();
+		queryPlanCache.put(cacheKey, result, factory);
+		return result;
+	}
+
+	/**
+	 * 把条件与查询语句最外层原有的where条件用and连接：
+	 * where (原有条件) and (cond)；没有where子句时加上where cond。
+	 * 条件加在最外层的group by/order by/having之前
+	 */
+	private static void addCondition(StringBuffer queryStr, String cond) {
+		String str = queryStr.toString();
+		int where = findKeyword(str, "where", 0);
+		int from = where < 0 ? 0 : where + 5;
+		int end = str.length();
+		String[] tails = { "group", "order", "having" };
+		for (int i = 0; i < tails.length; i++) {
+			int pos = findKeyword(str, tails[i], from);
+			if (pos >= 0 && pos < end) {
+				end = pos;
+			}
+		}
+		String tail = str.substring(end);
+		if (where < 0) {
+			queryStr.setLength(end);
+			queryStr.append(" where ").append(cond);
+		} else {
+			String predicate = str.substring(from, end).trim();
+			queryStr.setLength(from);
+			queryStr.append(" (").append(predicate).append(") and ").append(
+					cond);
+		}
+		if (tail.length() > 0) {
+			queryStr.append(' ').append(tail);
+		}
+	}
+
+	/**
+	 * 在查询语句的最外层查找关键字，跳过字符串常量和括号(子查询)中的内容
+	 * @return 关键字的位置，没有时返回-1
+	 */
+	private static int findKeyword(String str, String keyword, int from) {
+		int depth = 0;
+		int len = str.length();
+		for (int i = from; i < len; i++) {
+			char c = str.charAt(i);
+			if (c == '\'') {
+				// 字符串常量，''是转义的单引号
+				for (i++; i < len; i++) {
+					if (str.charAt(i) == '\'') {
+						if (i + 1 < len && str.charAt(i + 1) == '\'') {
+							i++;
+						} else {
+							break;
+						}
+					}
+				}
+			} else if (c == '(') {
+				depth++;
+			} else if (c == ')') {
+				depth--;
+			} else if (depth == 0
+					&& str.regionMatches(true, i, keyword, 0, keyword.length())
+					&& (i == 0 || !isIdentifierPart(str.charAt(i - 1)))
+					&& (i + keyword.length() == len || !isIdentifierPart(str
+							.charAt(i + keyword.length())))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isJavaIdentifierPart(c) || c == '.' || c == ':';
+	}
+
+	public QueryResultWrapper query(PersistSession session, HQuery hql)
+			throws PersistException {
+		try {
+			Session innerSession = ((SessionWrapper) session).getSession();
+			Query query = createQuery(innerSession, hql);
 			if (log.isDebugEnabled()) {
 				log.debug("Querying objects by HQL in Session " + session);
 			}
@@ -401,6 +614,31 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#scroll(com.ifeng.common.dm.persist.intf.PersistSession,
+	 *      com.ifeng.common.dm.persist.HQuery, int)
+	 */
+	public CursorQueryResult scroll(PersistSession session, HQuery hql,
+			int windowSize) throws PersistException {
+		try {
+			Session innerSession = ((SessionWrapper) session).getSession();
+			Query query = createQuery(innerSession, hql);
+			// 只读，session不保留脏检查用的快照
+			query.setReadOnly(true);
+			query.setFetchSize(windowSize);
+			if (log.isDebugEnabled()) {
+				log.debug("Scrolling objects by HQL in Session " + session);
+			}
+			return new ScrollQueryResult(this, session, hql, query
+					.scroll(ScrollMode.FORWARD_ONLY), windowSize);
+		} catch (HibernateException e) {
+			throw new PersistException("Exception scrolling object: "
+					+ e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * 将一个“普通”的select查询语句转换成count查询语句。
 	 * <p>
@@ -420,16 +658,53 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 	 */
 	private String convertToCountQueryString(String queryStr)
 			throws PersistException {
+		SessionFactory factory = HibernateSession.getSessionFactory();
+		String result = (String) countPlanCache.get(queryStr, factory);
+		if (result != null) {
+			return result;
+		}
+		result = "select count(*) from (" + translateToSql(queryStr, factory)
+				+ ") rwxcommonxtempt";
+		countPlanCache.put(queryStr, result, factory);
+		return result;
+	}
+
+	/**
+	 * 与convertToCountQueryString相同，但子查询最多取limit行(limit的值作为最后一个
+	 * 或第一个参数，见Dialect.bindLimitParametersFirst)，数据库不用数完所有的行
+	 * 
+	 * @return 带limit的count语句；如果数据库不支持参数化的limit，返回null
+	 */
+	private String convertToLimitedCountQueryString(String queryStr,
+			Dialect dialect) throws PersistException {
+		if (!dialect.supportsLimit() || !dialect.supportsVariableLimit()) {
+			return null;
+		}
+		SessionFactory factory = HibernateSession.getSessionFactory();
+		String key = queryStr + "\0limit";
+		String result = (String) countPlanCache.get(key, factory);
+		if (result != null) {
+			return result;
+		}
+		result = "select count(*) from ("
+				+ dialect.getLimitString(translateToSql(queryStr, factory),
+						false) + ") rwxcommonxtempt";
+		countPlanCache.put(key, result, factory);
+		return result;
+	}
+
+	/**
+	 * 把HQL翻译成SQL
+	 */
+	private static String translateToSql(String queryStr,
+			SessionFactory factory) {
 		QueryTranslatorImpl queryTranslator = new QueryTranslatorImpl(
 				queryStr,
 				Collections.EMPTY_MAP,
-				(org.hibernate.engine.SessionFactoryImplementor) HibernateSession
-						.getSessionFactory());
+				(SessionFactoryImplementor) factory);
 
 		queryTranslator.compile(Collections.EMPTY_MAP, false);
-
-		return "select count(*) from (" + queryTranslator.getSQLString()
-				+ ") rwxcommonxtempt";
+		return queryTranslator.getSQLString();
 	}
 
 	/*
@@ -440,8 +715,61 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 	 */
 	public int getResultSize(PersistSession session, HQuery hql)
 			throws PersistException {
-		StringBuffer queryStr = new StringBuffer(hql.getQueryString());
-		String newQueryStr = convertToCountQueryString(queryStr.toString());
+		return getResultSize(session, hql, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#getResultSize(com.ifeng.common.dm.persist.intf.PersistSession,
+	 *      com.ifeng.common.dm.persist.HQuery, int)
+	 */
+	public int getResultSize(PersistSession session, HQuery hql, int limit)
+			throws PersistException {
+		// 总数与键集分页的游标无关，每一页得到相同的总数
+		return getResultSize(session, hql, limit, false);
+	}
+
+	/**
+	 * 键集分页的游标之后的行数，用于ScrollQueryResult.getRowCount
+	 */
+	int getResultSizeAfterCursor(PersistSession session, HQuery hql)
+			throws PersistException {
+		return getResultSize(session, hql, 0, true);
+	}
+
+	/**
+	 * @param afterCursor 是否加上键集分页的条件，只数游标之后的行
+	 */
+	private int getResultSize(PersistSession session, HQuery hql, int limit,
+			boolean afterCursor) throws PersistException {
+		List paramList = hql.getParalist();
+		String queryStr = hql.getQueryString();
+		PageCursor cursor = hql.getPageCursor();
+		if (afterCursor && cursor != null && !cursor.isFirst()) {
+			// 参数与createQuery一致加在最后
+			List cursorParams = new ArrayList();
+			if (paramList != null) {
+				cursorParams.addAll(paramList);
+			}
+			StringBuffer cond = new StringBuffer();
+			cursor.getQL(cond, cursorParams);
+			StringBuffer cursorQueryStr = new StringBuffer(queryStr);
+			addCondition(cursorQueryStr, cond.toString());
+			queryStr = cursorQueryStr.toString();
+			paramList = cursorParams;
+		}
+		String newQueryStr = null;
+		Dialect dialect = null;
+		if (limit > 0) {
+			dialect = ((SessionFactoryImplementor) HibernateSession
+					.getSessionFactory()).getDialect();
+			newQueryStr = convertToLimitedCountQueryString(queryStr, dialect);
+		}
+		boolean limited = newQueryStr != null;
+		if (!limited) {
+			newQueryStr = convertToCountQueryString(queryStr);
+		}
 		if (log.isDebugEnabled()) {
 			log.debug("count query string:" + newQueryStr);
 		}
@@ -450,14 +778,21 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 			Session innerSession = ((SessionWrapper) session).getSession();
 			Query countQuery = innerSession.createSQLQuery(newQueryStr)
 					.addScalar("count(*)", Hibernate.INTEGER);
-			if (hql.getParalist() != null) {
-				List list = hql.getParalist();
-				for (int i = 0; i < list.size(); i++) {
-					countQuery.setParameter(i, list.get(i));
+			int pos = 0;
+			if (limited && dialect.bindLimitParametersFirst()) {
+				countQuery.setInteger(pos++, limit + 1);
+			}
+			if (paramList != null) {
+				for (int i = 0; i < paramList.size(); i++) {
+					countQuery.setParameter(pos++, paramList.get(i));
 				}
 			}
+			if (limited && !dialect.bindLimitParametersFirst()) {
+				countQuery.setInteger(pos++, limit + 1);
+			}
 			List list = countQuery.list();
-			return Integer.valueOf(list.get(0).toString()).intValue();
+			int count = Integer.valueOf(list.get(0).toString()).intValue();
+			return limit > 0 ? Math.min(count, limit + 1) : count;
 		} catch (HibernateException e) {
 			throw new PersistException("Exception querying result size: "
 					+ e.getMessage(), e);
@@ -522,16 +857,72 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 		return new ObjectWrapper(convertor.lazyCollections, result);
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * 除了HibernateConfig的配置之外，可以有
+	 * plan-cache-size=&quot;HQL和count SQL缓存的语句个数，缺省1000&quot;
+	 * modify-dirty-only=&quot;true|false，modify时只复制与数据库中不同的属性，缺省false&quot;
+	 * lazy-batch-size=&quot;访问查询结果中的lazy collection时，一次批量调入的个数，缺省50&quot;
 	 * 
 	 * @see com.ifeng.common.conf.Configurable#config(com.ifeng.common.conf.ConfigRoot,
 	 *      java.lang.Object, org.w3c.dom.Element)
 	 */
 	public Object config(ConfigRoot configRoot, Object parent, Element configEle) {
 		HibernateConfig.config(configRoot, configEle);
+		int planCacheSize = XmlLoader.getAttributeAsInteger(configEle,
+				"plan-cache-size", QueryPlanCache.DEFAULT_CAPACITY);
+		queryPlanCache.setCapacity(planCacheSize);
+		countPlanCache.setCapacity(planCacheSize);
+		this.dirtyOnlyModify = XmlLoader.getAttributeAsBoolean(configEle,
+				"modify-dirty-only", false);
+		setLazyBatchSize(XmlLoader.getAttributeAsInteger(configEle,
+				"lazy-batch-size", DEFAULT_LAZY_BATCH_SIZE));
 		return this;
 	}
+
+	/**
+	 * @param lazyBatchSize 一次批量调入的lazy collection个数，1表示不批量调入
+	 */
+	public void setLazyBatchSize(int lazyBatchSize) {
+		this.lazyBatchSize = Math.max(1, lazyBatchSize);
+	}
+
+	public int getLazyBatchSize() {
+		return this.lazyBatchSize;
+	}
+
+	/**
+	 * @param dirtyOnlyModify true: modify时只复制与PO不同的属性，
+	 *            没有改变时不生成update语句
+	 */
+	public void setDirtyOnlyModify(boolean dirtyOnlyModify) {
+		this.dirtyOnlyModify = dirtyOnlyModify;
+	}
+
+	public boolean isDirtyOnlyModify() {
+		return this.dirtyOnlyModify;
+	}
+
+	/**
+	 * @return 完整HQL字符串的缓存，可用于查看命中率
+	 */
+	public static QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * @return count SQL的缓存，可用于查看命中率
+	 */
+	public static QueryPlanCache getCountPlanCache() {
+		return countPlanCache;
+	}
+
+	/**
+	 * @return 查询结果转换计划(按实体类和集合role)的缓存，可用于查看命中率
+	 */
+	public static QueryPlanCache getConversionPlanCache() {
+		return ConversionPlan.getCache();
+	}
+
 	public ObjectWrapper loadLazyCollection(PersistSession session,
             LazyCollection collection) throws PersistException {
         SessionImplementor innerSession = (SessionImplementor)((SessionWrapper)session)
@@ -546,23 +937,8 @@ public class PersistManagerHibernate implements PersistManagerImpl,
                 return new ObjectWrapper(Collections.EMPTY_LIST, collWrapper
                         .getOrgCollection());
             }
-            PersistentCollection orgPersistColl = collWrapper
-                    .getOrgPersistentCollection();
-            Object poOwner = getPO(innerSession, collWrapper.getOwner());
-            CollectionPersister collPersister = innerSession.getFactory()
-                    .getCollectionPersister(collWrapper.getType().getRole());
-            CollectionSnapshot snapshot = orgPersistColl
-                    .getCollectionSnapshot();
-            CollectionKey collKey = new CollectionKey(collPersister, snapshot
-                    .getKey(), EntityMode.POJO);
-            orgPersistColl = innerSession.getPersistenceContext()
-                    .getCollection(collKey);
-            innerSession.initializeCollection(orgPersistColl, false);
-
-            EntityPersister persister = innerSession.getEntityPersister(null,
-                    poOwner);
-            persister.setPropertyValue(poOwner, collWrapper.getLocation(),
-                    orgPersistColl, EntityMode.POJO);
+            PersistentCollection orgPersistColl = loadCollection(innerSession,
+                    collWrapper);
             PersistentObjectConvertor convertor = new PersistentObjectConvertor(
                     innerSession);
             Collection result = convertor.convertCollection(collWrapper
@@ -574,6 +950,134 @@ public class PersistManagerHibernate implements PersistManagerImpl,
                     "Exception while load lazy collection: ", e);
         }
     }
+
+    /**
+     * 重新调入owner，初始化其中的一个集合
+     */
+    private PersistentCollection loadCollection(
+            SessionImplementor innerSession, LazyCollectionWrapper collWrapper)
+            throws PersistException {
+        Object poOwner = getPO((Session) innerSession, collWrapper.getOwner());
+        CollectionPersister collPersister = innerSession.getFactory()
+                .getCollectionPersister(collWrapper.getType().getRole());
+        PersistentCollection orgPersistColl = getCollection(innerSession,
+                collPersister, collWrapper);
+        innerSession.initializeCollection(orgPersistColl, false);
+
+        EntityPersister persister = innerSession.getEntityPersister(null,
+                poOwner);
+        persister.setPropertyValue(poOwner, collWrapper.getLocation(),
+                orgPersistColl, EntityMode.POJO);
+        return orgPersistColl;
+    }
+
+    /**
+     * @return 当前session中与collWrapper对应的集合，没有时返回null
+     */
+    private static PersistentCollection getCollection(
+            SessionImplementor innerSession, CollectionPersister collPersister,
+            LazyCollectionWrapper collWrapper) {
+        CollectionKey collKey = new CollectionKey(collPersister,
+                getCollectionKey(collWrapper), EntityMode.POJO);
+        return innerSession.getPersistenceContext().getCollection(collKey);
+    }
+
+    private static Serializable getCollectionKey(
+            LazyCollectionWrapper collWrapper) {
+        CollectionSnapshot snapshot = collWrapper.getOrgPersistentCollection()
+                .getCollectionSnapshot();
+        return snapshot.getKey();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#loadLazyCollections(com.ifeng.common.dm.persist.intf.PersistSession,
+     *      java.util.List)
+     */
+    public ObjectWrapper loadLazyCollections(PersistSession session,
+            List collections) throws PersistException {
+        SessionImplementor innerSession = (SessionImplementor)((SessionWrapper)session)
+                .getSession();
+        LazyCollectionWrapper first = (LazyCollectionWrapper) collections
+                .get(0);
+        Map result = new IdentityHashMap();
+        if (first.isConverted()) {
+            result.put(first, first.getOrgCollection());
+            return new ObjectWrapper(Collections.EMPTY_LIST, result);
+        }
+        // 与第一个同一个集合属性、还没有调入的
+        String role = first.getType().getRole();
+        List batch = new ArrayList();
+        for (int i = 0; i < collections.size()
+                && batch.size() < this.lazyBatchSize; i++) {
+            LazyCollectionWrapper collWrapper = (LazyCollectionWrapper) collections
+                    .get(i);
+            if (!collWrapper.isConverted()
+                    && role.equals(collWrapper.getType().getRole())) {
+                batch.add(collWrapper);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Load " + batch.size() + " lazy collections of " + role
+                    + " in Session " + session);
+        }
+        try {
+            CollectionPersister collPersister = innerSession.getFactory()
+                    .getCollectionPersister(role);
+            if (batch.size() > 1) {
+                fetchCollections(innerSession, collPersister, batch);
+            }
+            // 同一个convertor，批量调入的集合中相同的对象只转换一次
+            PersistentObjectConvertor convertor = new PersistentObjectConvertor(
+                    innerSession);
+            for (int i = 0; i < batch.size(); i++) {
+                LazyCollectionWrapper collWrapper = (LazyCollectionWrapper) batch
+                        .get(i);
+                PersistentCollection coll = getCollection(innerSession,
+                        collPersister, collWrapper);
+                if (coll == null || !coll.wasInitialized()) {
+                    // 没有批量调入(如集合的key不是owner的id)，单独调入
+                    coll = loadCollection(innerSession, collWrapper);
+                }
+                result.put(collWrapper, convertor.convertCollection(
+                        collWrapper.getType(), coll, null, 0));
+            }
+            return new ObjectWrapper(convertor.lazyCollections, result);
+        } catch (HibernateException e) {
+            throw new PersistException(
+                    "Exception while load lazy collections: ", e);
+        }
+    }
+
+    /**
+     * 用一个查询调入多个owner及其集合：
+     * select o from Owner o left join fetch o.items where o.id in (:ids)
+     * 集合的key一般就是owner的id
+     */
+    private void fetchCollections(SessionImplementor innerSession,
+            CollectionPersister collPersister, List batch)
+            throws HibernateException {
+        EntityPersister ownerPersister = collPersister
+                .getOwnerEntityPersister();
+        String idName = ownerPersister.getIdentifierPropertyName();
+        String ownerName = ownerPersister.getEntityName();
+        String role = collPersister.getRole();
+        if (idName == null || !role.startsWith(ownerName + ".")) {
+            // 复合主键等，只能单独调入
+            return;
+        }
+        List keys = new ArrayList(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            keys.add(getCollectionKey((LazyCollectionWrapper) batch.get(i)));
+        }
+        ((Session) innerSession).createQuery(
+                "select o from " + ownerName + " o left join fetch o."
+                        + role.substring(ownerName.length() + 1)
+                        + " where o." + idName + " in (:ids)")
+                .setParameterList("ids", keys, collPersister.getKeyType())
+                .list();
+    }
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -653,6 +1157,168 @@ public class PersistManagerHibernate implements PersistManagerImpl,
 		}
 	}
 
+	/**
+	 * 批量操作中对一个对象的操作
+	 */
+	private abstract static class BatchOperation {
+		/**
+		 * @return 新的id(add时)，或null
+		 */
+		abstract Object apply(PersistSession session, Object obj)
+				throws PersistException;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#addAll(com.ifeng.common.dm.persist.intf.PersistSession,
+	 *      java.util.List, int, int)
+	 */
+	public BatchResult addAll(PersistSession session, List objs,
+			int transactionSize, int flushSize) throws PersistException {
+		return writeBatch(session, new BatchOperation() {
+			Object apply(PersistSession session0, Object obj)
+					throws PersistException {
+				return add(session0, obj);
+			}
+		}, objs, transactionSize, flushSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#modifyAll(com.ifeng.common.dm.persist.intf.PersistSession,
+	 *      java.util.List, java.lang.String[], int, int)
+	 */
+	public BatchResult modifyAll(PersistSession session, List objs,
+			final String[] fields, int transactionSize, int flushSize)
+			throws PersistException {
+		return writeBatch(session, new BatchOperation() {
+			Object apply(PersistSession session0, Object obj)
+					throws PersistException {
+				modify(session0, obj, fields);
+				return null;
+			}
+		}, objs, transactionSize, flushSize);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.ifeng.common.dm.persist.intf.PersistManagerImpl#deleteAll(com.ifeng.common.dm.persist.intf.PersistSession,
+	 *      java.util.List, int, int)
+	 */
+	public BatchResult deleteAll(PersistSession session, List objs,
+			int transactionSize, int flushSize) throws PersistException {
+		return writeBatch(session, new BatchOperation() {
+			Object apply(PersistSession session0, Object obj)
+					throws PersistException {
+				delete(session0, obj);
+				return null;
+			}
+		}, objs, transactionSize, flushSize);
+	}
+
+	/**
+	 * 分块执行批量操作。每块一个事务；块失败时回滚，再逐个对象重做以找出失败的对象
+	 */
+	private BatchResult writeBatch(PersistSession session,
+			BatchOperation operation, List objs, int transactionSize,
+			int flushSize) throws PersistException {
+		HibernateSession.SessionState state = ((SessionWrapper) session)
+				.getState();
+		if (state.transaction != null) {
+			throw new PersistException(
+					"Batch write can't run in an existing transaction");
+		}
+		transactionSize = Math.max(1, transactionSize);
+		flushSize = Math.max(1, flushSize);
+		BatchResult result = new BatchResult(objs.size());
+		if (log.isDebugEnabled()) {
+			log.debug("Writing " + objs.size() + " objects in Session "
+					+ session);
+		}
+		for (int start = 0; start < objs.size(); start += transactionSize) {
+			int end = Math.min(objs.size(), start + transactionSize);
+			if (!writeChunk(session, state, operation, objs, start, end,
+					flushSize, result)) {
+				if (log.isInfoEnabled()) {
+					log.info("Batch of objects " + start + "-" + end
+							+ " failed, retrying one by one");
+				}
+				for (int i = start; i < end; i++) {
+					writeChunk(session, state, operation, objs, i, i + 1, 1,
+							result);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 在一个事务中执行objs[start, end)的操作，成功时记录到result中。
+	 * 失败时回滚，并把Session换成新的(出现异常的Session不能再使用)；
+	 * 如果只有一个对象，把失败记录到result中
+	 * 
+	 * @return true 如果成功提交
+	 */
+	private boolean writeChunk(PersistSession session,
+			HibernateSession.SessionState state, BatchOperation operation,
+			List objs, int start, int end, int flushSize, BatchResult result) {
+		Session innerSession = state.session;
+		Object[] ids = new Object[end - start];
+		boolean committed = false;
+		try {
+			state.transaction = innerSession.beginTransaction();
+			state.transactionCount = 1;
+			for (int i = start; i < end; i++) {
+				ids[i - start] = operation.apply(session, objs.get(i));
+				if ((i - start + 1) % flushSize == 0) {
+					// 写入数据库(JDBC batch)，释放session中的对象
+					innerSession.flush();
+					innerSession.clear();
+				}
+			}
+			state.transaction.commit();
+			committed = true;
+			for (int i = start; i < end; i++) {
+				result.succeeded(i, ids[i - start]);
+			}
+			return true;
+		} catch (Exception e) {
+			try {
+				rollbackTransaction(state.transaction);
+			} catch (PersistException e1) {
+				log.warn("Exception rolling back batch", e1);
+			}
+			if (end - start == 1) {
+				result.failed(start, objs.get(start), toPersistException(e));
+			}
+			return false;
+		} finally {
+			state.transaction = null;
+			try {
+				if (committed) {
+					innerSession.clear();
+				} else {
+					state.renew();
+				}
+			} catch (HibernateException e) {
+				log.warn("Exception resetting session after batch", e);
+			}
+		}
+	}
+
+	private static PersistException toPersistException(Exception e) {
+		if (e instanceof PersistException) {
+			return (PersistException) e;
+		} else if (e instanceof org.hibernate.exception.ConstraintViolationException) {
+			return new ConstraintViolationException(e.getMessage(), e);
+		}
+		return new PersistException("Exception in batch write: "
+				+ e.getMessage(), e);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -10,22 +10,19 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Map.Entry;
 
 import org.hibernate.EntityMode;
-import org.hibernate.MappingException;
 import org.hibernate.Session;
 import org.hibernate.collection.PersistentCollection;
 import org.hibernate.collection.PersistentMap;
 import org.hibernate.engine.SessionImplementor;
-import org.hibernate.persister.collection.CollectionPersister;
 import org.hibernate.persister.entity.EntityPersister;
 import org.hibernate.type.AbstractComponentType;
 import org.hibernate.type.ArrayType;
 import org.hibernate.type.CollectionType;
 import org.hibernate.type.MapType;
-import org.hibernate.type.Type;
 
+import com.ifeng.common.dm.persist.hibernate.ConversionPlan.ValuePlan;
 import com.ifeng.common.misc.Logger;
 import com.ifeng.common.misc.Primitives;
 
@@ -33,6 +30,7 @@ import com.ifeng.common.misc.Primitives;
  * <title>PersistentObjectConvertor </title>
  * 
  * <pre>将一个PO包装为可以在网络上传输的对象. 主要是对PersistentCollection进行转换.<br>
+ * 每个实体类的属性类型等元数据由ConversionPlan缓存，转换大量同类对象时不再重复查找。
  * </pre>
  * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
  * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
@@ -59,40 +57,39 @@ public class PersistentObjectConvertor {
 
 	public Collection convertCollection(CollectionType type,
 			PersistentCollection collection, Object owner, int location) {
+		return convertCollection(ConversionPlan.forCollection(type,
+				this.session.getFactory()), collection, owner, location);
+	}
+
+	private Collection convertCollection(ValuePlan plan,
+			PersistentCollection collection, Object owner, int location) {
 		Collection result = (Collection) this.convertedCollections
 				.get(collection);
 		if (result != null) {
 			return result;
 		}
 		if (!collection.wasInitialized()) {
-			result = new LazyCollectionWrapper(type, collection, owner,
-					location);
+			result = new LazyCollectionWrapper((CollectionType) plan.type,
+					collection, owner, location);
 			this.convertedCollections.put(collection, result);
 			this.lazyCollections.add(result);
 		} else {
-			CollectionPersister persister;
-			try {
-				persister = this.session.getFactory().getCollectionPersister(
-						type.getRole());
-			} catch (MappingException e) {
-				throw new RuntimeException(e);
-			}
-			Type elementType = persister.getElementType();
+			ValuePlan elementPlan = plan.element;
 			Collection innerColl = (Collection) collection.getValue();
 			if (collection instanceof Set) {
-				result = new HashSet(innerColl.size());
+				result = new HashSet(innerColl.size() * 4 / 3 + 1);
 			} else {
 				result = new ArrayList(innerColl.size());
 			}
 			for (Iterator it = innerColl.iterator(); it.hasNext();) {
-				result.add(convertValue(null, elementType, it.next(),
+				result.add(convertValue(null, elementPlan, it.next(),
 								location));
 			}
 		}
 		return result;
 	}
 
-	private Object convertArray(ArrayType type, Object array, int location) {
+	private Object convertArray(ValuePlan plan, Object array, int location) {
 		Collection result = (Collection) this.convertedCollections.get(array);
 		if (result != null) {
 			return result;
@@ -100,29 +97,34 @@ public class PersistentObjectConvertor {
 		if (array == null) {
 			return null;
 		}
-		Type elemType = type.getElementType(this.session.getFactory());
-		Class elemClass = elemType.getReturnedClass();
 		int length = Array.getLength(array);
 		if (log.isDebugEnabled()) {
 			log.debug("array length:" + length + ", array element type:"
-					+ elemType + ", array element class:" + elemClass);
+					+ plan.element.type + ", array element class:"
+					+ plan.elementClass);
 		}
 
-		Object newObj = Array.newInstance(elemClass, length);
+		Object newObj = Array.newInstance(plan.elementClass, length);
+		if (plan.element.kind == ConversionPlan.PLAIN) {
+			// 基本类型等不需要转换，直接复制
+			System.arraycopy(array, 0, newObj, 0, length);
+			return newObj;
+		}
+		Object[] elements = (Object[]) array;
+		Object[] newElements = (Object[]) newObj;
 		for (int i = 0; i < length; i++) {
-			Object elemValue = Array.get(array, i);
-			if (log.isDebugEnabled()) {
-				log.debug("convert array element, index:" + i + ", value:"
-						+ elemValue);
-			}
-			Array.set(newObj, i, convertValue(null, elemType, elemValue,
-					location));
-
+			newElements[i] = convertValue(null, plan.element, elements[i],
+					location);
 		}
 		return newObj;
 	}
 
 	public Map convertMap(MapType type, PersistentMap map, int location) {
+		return convertMap(ConversionPlan.forCollection(type, this.session
+				.getFactory()), map, location);
+	}
+
+	private Map convertMap(ValuePlan plan, PersistentMap map, int location) {
 		Map result = (Map) this.convertedCollections.get(map);
 		if (result != null) {
 			return result;
@@ -130,23 +132,14 @@ public class PersistentObjectConvertor {
 		if (!map.wasInitialized()) {
 			throw new ClassCastException("Don't support lazy map");
 		} else {
-			CollectionPersister persister;
-			try {
-				persister = this.session.getFactory().getCollectionPersister(
-						type.getRole());
-			} catch (MappingException e) {
-				throw new RuntimeException(e);
-			}
-			Type keyType = persister.getKeyType();
-			Type elementType = persister.getElementType();
 			// map不是Collection接口，需要特别处理
 			Map innerMap = (Map) map.getValue();
-			result = new HashMap();
+			result = new HashMap(innerMap.size() * 4 / 3 + 1);
 			for (Iterator it = innerMap.entrySet().iterator(); it.hasNext();) {
 				Map.Entry entry = (Map.Entry) it.next();
 				result.put(
-						convertValue(null, keyType, entry.getKey(), location),
-						convertValue(null, elementType, entry.getValue(),
+						convertValue(null, plan.key, entry.getKey(), location),
+						convertValue(null, plan.element, entry.getValue(),
 								location));
 			}
 		}
@@ -155,6 +148,10 @@ public class PersistentObjectConvertor {
 
 	public List convertCollectionItems(Collection collection) {
 		List result = new ArrayList(collection.size());
+		if (this.convertedObjs.isEmpty()) {
+			// 大的查询结果，预先分配足够的空间，避免反复扩容
+			this.convertedObjs = new IdentityHashMap(collection.size());
+		}
 		this.convertedCollections.put(collection, result);
 		for (Iterator it = collection.iterator(); it.hasNext();) {
 			result.add(convertObject(it.next()));
@@ -170,51 +167,51 @@ public class PersistentObjectConvertor {
 		if (obj == null) {
 			return null;
 		}
+		if (obj instanceof String
+				|| Primitives.isPrimitiveClass(obj.getClass())) {
+			// 基本类型直接返回，这主要是为了处理HQL语句类似
+			// "select t.id from Table t" 时的情况。不可变，不需要记录
+			return obj;
+		}
 		Object newObj = this.convertedObjs.get(obj);
 		if (newObj != null) {
 			return newObj;
 		}
 		try {
-			if (obj.getClass().isArray()) {
+			if (obj instanceof Object[]) {
 				// 如果是数组，直接返回，这主要是为了处理HQL语句类似
 				// "select t.f1,t.f2 from Table t" 时的情况
+				Object[] row = (Object[]) obj;
+				Object[] newRow = new Object[row.length];
+				this.convertedObjs.put(obj, newRow);
+				for (int i = 0; i < row.length; i++) {
+					newRow[i] = convertObject(row[i]);
+				}
+				newObj = newRow;
+			} else if (obj.getClass().isArray()) {
 				int length = Array.getLength(obj);
 				newObj = Array.newInstance(Object.class, length);
 				for (int i = 0; i < length; i++) {
 					Array.set(newObj, i, convertObject(Array.get(obj, i)));
 				}
 				this.convertedObjs.put(obj, newObj);
-			} else if (Primitives.isPrimitiveClass(obj.getClass())) {
-				// 基本类型直接返回，这主要是为了处理HQL语句类似
-				// "select t.id from Table t" 时的情况
-				newObj = obj;
-				this.convertedObjs.put(obj, newObj);
-			} else if (obj instanceof String) {
-				// 基本类型直接返回，这主要是为了处理HQL语句类似
-				// "select t.id from Table t" 时的情况
-				newObj = obj;
-				this.convertedObjs.put(obj, newObj);
 			} else if (obj instanceof Map) {
 				// 处理类似的查询：
 				// String hql = "select new Map(p.id,p.template.templateName)
 				// from " + TemplateExpression.class.getName()
 				// + " p where p.id=1";
-				Map newMap = new HashMap();
-				Iterator it = ((Map) obj).entrySet().iterator();
-				while (it.hasNext()) {
-					Entry entry = (Entry) it.next();
-					newMap.put(entry.getKey(), entry.getValue());
-				}
-				newObj = newMap;
+				newObj = new HashMap((Map) obj);
 			} else {
-				newObj = obj.getClass().newInstance();
+				ConversionPlan plan = ConversionPlan.forObject(this.session,
+						obj);
+				EntityPersister persister = plan.persister;
+				newObj = plan.newInstance();
 				this.convertedObjs.put(obj, newObj);
-				EntityPersister persister = this.session.getEntityPersister(
-						null, obj);
-				Type[] types = persister.getPropertyTypes();
 				Object[] values = persister.getPropertyValues(obj,
 						EntityMode.POJO);
-				convertValues(newObj, types, values);
+				if (!plan.plain) {
+					convertValues(newObj, plan.properties, values);
+				}
 				persister.setIdentifier(newObj, persister.getIdentifier(obj,
 						EntityMode.POJO), EntityMode.POJO);
 				persister.setPropertyValues(newObj, values, EntityMode.POJO);
@@ -230,64 +227,60 @@ public class PersistentObjectConvertor {
 		}
 	}
 
-	private void convertValues(Object owner, Type[] types, Object[] values) {
-		for (int i = 0; i < types.length; i++) {
-			if (values[i] != null) {
-				values[i] = convertValue(owner, types[i], values[i], i);
+	private void convertValues(Object owner, ValuePlan[] plans, Object[] values) {
+		for (int i = 0; i < plans.length; i++) {
+			if (values[i] != null && plans[i].kind != ConversionPlan.PLAIN) {
+				values[i] = convertValue(owner, plans[i], values[i], i);
 			}
 		}
 	}
 
 	/**
 	 * @param owner
-	 * @param type
+	 * @param plan 值的转换计划
 	 * @param value
 	 * @param location
 	 * @return 转换后的 dto 对象
 	 */
-	private Object convertValue(Object owner, Type type, Object value,
+	private Object convertValue(Object owner, ValuePlan plan, Object value,
 			int location) {
-		if (type.isCollectionType()) {
+		switch (plan.kind) {
+		case ConversionPlan.COLLECTION:
 			if (value instanceof PersistentMap) {
 				// Map需要特殊处理
-				return convertMap((MapType) type, (PersistentMap) value,
-						location);
+				return convertMap(plan, (PersistentMap) value, location);
 			} else if (value instanceof PersistentCollection) {
-				return convertCollection((CollectionType) type,
-						(PersistentCollection) value, owner, location);
+				return convertCollection(plan, (PersistentCollection) value,
+						owner, location);
+			} else if (plan.type instanceof ArrayType) {
+				// 如果是数组
+				return convertArray(plan, value, location);
 			} else {
-				if (type instanceof ArrayType) {
-					// 如果是数组
-					return convertArray((ArrayType) type, value, location);
-				} else {
-					// 没有预料到的其他collection
-					if (log.isWarnEnabled()) {
-						log.warn("WARN! NOT supported collection type:"
-								+ type.toString());
-					}
-					return value;
+				// 没有预料到的其他collection
+				if (log.isWarnEnabled()) {
+					log.warn("WARN! NOT supported collection type:"
+							+ plan.type.toString());
 				}
+				return value;
 			}
-		} else if (type.isEntityType()) {
+		case ConversionPlan.ENTITY:
 			return convertObject(value);
-		} else if (type.isAnyType()) {
-			return convertObject(value);
-		} else if (type.isComponentType()) {
-			return convertComponent((AbstractComponentType) type, value);
-		} else {
+		case ConversionPlan.COMPONENT:
+			return convertComponent(plan, value);
+		default:
 			return value;
 		}
 	}
 
-	private Object convertComponent(AbstractComponentType type, Object obj) {
+	private Object convertComponent(ValuePlan plan, Object obj) {
 		if (obj == null) {
 			return null;
 		}
 		try {
+			AbstractComponentType type = (AbstractComponentType) plan.type;
 			Object newObj = obj.getClass().newInstance();
-			Type[] types = type.getSubtypes();
 			Object[] values = type.getPropertyValues(obj, EntityMode.POJO);
-			convertValues(newObj, types, values);
+			convertValues(newObj, plan.subplans, values);
 			type.setPropertyValues(newObj, values, EntityMode.POJO);
 			return newObj;
 		} catch (Exception e) {
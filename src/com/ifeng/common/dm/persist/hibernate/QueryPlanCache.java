@@ -0,0 +1,107 @@
+package com.ifeng.common.dm.persist.hibernate;
+
+import org.hibernate.SessionFactory;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.ifeng.common.dm.CacheStats;
+
+/**
+ * <title>QueryPlanCache </title>
+ * 
+ * <pre>查询语句翻译结果的缓存(如HQL翻译成的count SQL)，有大小限制，LRU淘汰，线程安全.
+ * 翻译的结果与SessionFactory(映射、方言)有关：缓存记住生成结果时的SessionFactory，
+ * 如果HibernateConfig重新生成了SessionFactory，第一次访问时清空缓存。
+ * getStats()得到命中/未命中/淘汰的统计。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public final class QueryPlanCache {
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private final String name;
+
+	private final CacheStats stats = new CacheStats();
+
+	private final ConcurrentLinkedHashMap cache;
+
+	/**
+	 * 缓存内容对应的SessionFactory
+	 */
+	private volatile SessionFactory sessionFactory;
+
+	public QueryPlanCache(String name, int capacity) {
+		this.name = name;
+		this.cache = new ConcurrentLinkedHashMap.Builder()
+				.maximumWeightedCapacity(capacity).listener(
+						new EvictionListener() {
+							public void onEviction(Object key, Object value) {
+								stats.recordEviction();
+							}
+						}).build();
+	}
+
+	/**
+	 * @param key 查询语句等
+	 * @param factory 当前的SessionFactory
+	 * @return 缓存的翻译结果，没有时返回null
+	 */
+	public Object get(Object key, SessionFactory factory) {
+		checkFactory(factory);
+		Object value = this.cache.get(key);
+		if (value == null) {
+			this.stats.recordMisses(1);
+		} else {
+			this.stats.recordHits(1);
+		}
+		return value;
+	}
+
+	/**
+	 * @param key 查询语句等
+	 * @param value 翻译结果
+	 * @param factory 生成value时使用的SessionFactory
+	 */
+	public void put(Object key, Object value, SessionFactory factory) {
+		checkFactory(factory);
+		this.cache.put(key, value);
+	}
+
+	private void checkFactory(SessionFactory factory) {
+		if (this.sessionFactory != factory) {
+			synchronized (this) {
+				if (this.sessionFactory != factory) {
+					// 映射可能变了，旧的翻译结果不能再用
+					this.cache.clear();
+					this.sessionFactory = factory;
+				}
+			}
+		}
+	}
+
+	public void setCapacity(int capacity) {
+		this.cache.setCapacity(capacity);
+	}
+
+	public int getCapacity() {
+		return this.cache.capacity();
+	}
+
+	public int size() {
+		return this.cache.size();
+	}
+
+	public void clear() {
+		this.cache.clear();
+	}
+
+	public CacheStats getStats() {
+		return this.stats;
+	}
+
+	public String toString() {
+		return "QueryPlanCache(" + this.name + ") size=" + size() + " "
+				+ this.stats;
+	}
+}
@@ -0,0 +1,319 @@
+package com.ifeng.common.dm.persist.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.hibernate.HibernateException;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+
+import com.ifeng.common.dm.DataManagerException;
+import com.ifeng.common.dm.RowVisitor;
+import com.ifeng.common.dm.persist.CursorQueryResult;
+import com.ifeng.common.dm.persist.HQuery;
+import com.ifeng.common.dm.persist.exception.PersistException;
+import com.ifeng.common.dm.persist.intf.LazyCollection;
+import com.ifeng.common.dm.persist.intf.LazyCollectionHandler;
+import com.ifeng.common.dm.persist.intf.PersistSession;
+import com.ifeng.common.misc.Logger;
+
+/**
+ * <title>ScrollQueryResult </title>
+ * 
+ * <pre>基于Hibernate ScrollableResults的CursorQueryResult.<br>
+ * 每次从游标读取windowSize行，用PersistentObjectConvertor转换；
+ * 读取下一个窗口之前从session中去掉上一个窗口装入的PO(包括随PO一起装入的关联对象)，
+ * 内存中只保留一个窗口的数据。session中原来就有的PO保留，没有flush的修改先flush，不会丢失。
+ * getRowCount需要另外执行一次count查询(读完之后则不需要)。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class ScrollQueryResult implements CursorQueryResult {
+	private static final long serialVersionUID = -4263371829145283017L;
+
+	private static final Logger log = Logger.getLogger(ScrollQueryResult.class);
+
+	/**
+	 * 没有更多数据
+	 */
+	private static final Object END = new Object();
+
+	private static final Object NONE = new Object();
+
+	private final transient PersistManagerHibernate persistManager;
+
+	private final transient PersistSession persistSession;
+
+	private final transient Session session;
+
+	private final transient ScrollableResults scroll;
+
+	private final HQuery hql;
+
+	private final int windowSize;
+
+	/**
+	 * 当前窗口转换后的数据
+	 */
+	private transient List window = Collections.EMPTY_LIST;
+
+	/**
+	 * 当前窗口第一行的行号
+	 */
+	private int windowStart;
+
+	/**
+	 * 下一个读取的行号
+	 */
+	private int position;
+
+	private boolean exhausted;
+
+	private boolean closed;
+
+	private int rowCount = -1;
+
+	private transient LazyCollectionHandler lazyCollectionHandler;
+
+	/**
+	 * 开始scroll时session中已经有的PO的EntityKey，这些PO不能evict。
+	 * null表示开始时session是空的，可以直接clear
+	 */
+	private final transient Set retained;
+
+	ScrollQueryResult(PersistManagerHibernate persistManager,
+			PersistSession persistSession, HQuery hql,
+			ScrollableResults scroll, int windowSize) {
+		this.persistManager = persistManager;
+		this.persistSession = persistSession;
+		this.session = ((PersistManagerHibernate.SessionWrapper) persistSession)
+				.getSession();
+		this.hql = hql;
+		this.scroll = scroll;
+		this.windowSize = windowSize;
+		Map entities = getPersistenceContext().getEntitiesByKey();
+		if (entities.isEmpty()) {
+			this.retained = null;
+		} else {
+			// 在外层的session中scroll，调用者的PO不能被清除
+			this.retained = new HashSet(entities.keySet());
+		}
+	}
+
+	public void setLazyCollectionHandler(LazyCollectionHandler handler) {
+		this.lazyCollectionHandler = handler;
+	}
+
+	/**
+	 * 调入下一个窗口
+	 * 
+	 * @return false 如果没有更多数据
+	 */
+	private boolean fill() {
+		if (this.exhausted || this.closed) {
+			return false;
+		}
+		clearWindow();
+		this.windowStart += this.window.size();
+		List raw = new ArrayList(this.windowSize);
+		while (raw.size() < this.windowSize && this.scroll.next()) {
+			Object[] row = this.scroll.get();
+			// 与Query.list()一致：只有一列时不用数组
+			raw.add(row.length == 1 ? row[0] : row);
+		}
+		if (raw.size() < this.windowSize) {
+			this.exhausted = true;
+		}
+		PersistentObjectConvertor convertor = new PersistentObjectConvertor(
+				this.session);
+		this.window = convertor.convertCollectionItems(raw);
+		if (this.lazyCollectionHandler != null) {
+			for (Iterator it = convertor.lazyCollections.iterator(); it
+					.hasNext();) {
+				((LazyCollection) it.next())
+						.setHandler(this.lazyCollectionHandler);
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Scrolled rows " + this.windowStart + "-"
+					+ (this.windowStart + raw.size()) + " in Session "
+					+ this.persistSession);
+		}
+		return !raw.isEmpty();
+	}
+
+	/**
+	 * 从session中去掉scroll装入的PO，释放当前窗口的PO和它们的关联对象。
+	 * 只evict每行的PO不够：没有级联evict的many-to-one等关联对象会一直留在session中。
+	 * 开始时session是空的就直接clear，否则只evict开始以后装入的
+	 */
+	private void clearWindow() {
+		if (this.window.isEmpty()) {
+			return;
+		}
+		if (this.session.isDirty()) {
+			// 调用者(如visitor中)没有flush的修改，clear/evict以后会丢失
+			this.session.flush();
+		}
+		if (this.retained == null) {
+			this.session.clear();
+			return;
+		}
+		// evict会级联修改这个Map，先复制
+		List entities = new ArrayList(getPersistenceContext()
+				.getEntitiesByKey().entrySet());
+		for (int i = 0; i < entities.size(); i++) {
+			Map.Entry entry = (Map.Entry) entities.get(i);
+			if (!this.retained.contains(entry.getKey())) {
+				Object entity = entry.getValue();
+				if (this.session.contains(entity)) {
+					this.session.evict(entity);
+				}
+			}
+		}
+	}
+
+	private PersistenceContext getPersistenceContext() {
+		return ((SessionImplementor) this.session).getPersistenceContext();
+	}
+
+	/**
+	 * @return 下一行数据，没有时返回END
+	 */
+	private Object nextRow() {
+		while (this.position >= this.windowStart + this.window.size()) {
+			if (!fill()) {
+				return END;
+			}
+		}
+		return this.window.get(this.position++ - this.windowStart);
+	}
+
+	public Iterator iterator() {
+		return new Iterator() {
+			private Object pending = NONE;
+
+			public boolean hasNext() {
+				if (this.pending == NONE) {
+					this.pending = nextRow();
+				}
+				return this.pending != END;
+			}
+
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Object result = this.pending;
+				this.pending = NONE;
+				return result;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	public int visit(RowVisitor visitor) throws DataManagerException {
+		int count = 0;
+		try {
+			for (Object row = nextRow(); row != END; row = nextRow()) {
+				count++;
+				if (!visitor.visit(row)) {
+					break;
+				}
+			}
+		} catch (HibernateException e) {
+			throw new DataManagerException("Exception scrolling query result: "
+					+ e.getMessage(), e);
+		}
+		return count;
+	}
+
+	public int getRowCount() {
+		if (this.rowCount < 0) {
+			if (this.exhausted) {
+				this.rowCount = this.windowStart + this.window.size();
+			} else {
+				try {
+					int total;
+					if (this.hql.getPageCursor() != null) {
+						// 与query一致，只数游标之后的行
+						total = this.persistManager.getResultSizeAfterCursor(
+								this.persistSession, this.hql);
+						if (this.hql.getPerPageSize() > 0) {
+							total = Math.min(total, this.hql.getPerPageSize());
+						}
+					} else {
+						total = this.persistManager.getResultSize(
+								this.persistSession, this.hql);
+						if (this.hql.getPageStartNo() != 0) {
+							// 与query的分页一致
+							int first = (this.hql.getPageStartNo() - 1)
+									* this.hql.getPerPageSize();
+							total = Math.max(0, Math.min(total - first,
+									this.hql.getPerPageSize()));
+						}
+					}
+					this.rowCount = total;
+				} catch (PersistException e) {
+					throw new IllegalStateException("Exception counting rows: "
+							+ e.getMessage(), e);
+				}
+			}
+		}
+		return this.rowCount;
+	}
+
+	/**
+	 * 只能向前读取，start不能在当前窗口之前
+	 * 
+	 * @see com.ifeng.common.dm.QueryResult#getData(int, int)
+	 */
+	public List getData(int start, int end) {
+		if (start < this.windowStart) {
+			throw new UnsupportedOperationException(
+					"Cursor is forward only, row " + start + " has been evicted");
+		}
+		this.position = Math.min(start, this.windowStart + this.window.size());
+		List result = new ArrayList(Math.max(0, end - start));
+		for (int i = this.position; i < end; i++) {
+			Object row = nextRow();
+			if (row == END) {
+				break;
+			}
+			if (i >= start) {
+				result.add(row);
+			}
+		}
+		return result;
+	}
+
+	public Object getData(int index) {
+		List list = getData(index, index + 1);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	public void close() {
+		if (!this.closed) {
+			this.closed = true;
+			try {
+				clearWindow();
+				this.window = Collections.EMPTY_LIST;
+				this.scroll.close();
+			} catch (HibernateException e) {
+				log.warn("Exception closing cursor", e);
+			}
+		}
+	}
+}
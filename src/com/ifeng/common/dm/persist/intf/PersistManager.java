@@ -2,7 +2,9 @@ package com.ifeng.common.dm.persist.intf;
 
 import java.util.List;
 
+import com.ifeng.common.dm.BatchResult;
 import com.ifeng.common.dm.QueryResult;
+import com.ifeng.common.dm.persist.CursorQueryResult;
 import com.ifeng.common.dm.persist.HQuery;
 import com.ifeng.common.dm.persist.exception.PersistException;
 
@@ -105,6 +107,31 @@ public interface PersistManager {
      * @throws PersistException 错误
      */
     public void deepModify(Object obj, String[] fields) throws PersistException;
+
+    /**
+     * 批量创建对象，自己控制事务：每transactionSize个对象一个事务，
+     * 每flushSize个对象写入数据库并清空session。单个对象失败不影响其它对象
+     * @param objs 对象
+     * @param transactionSize 每个事务的对象个数
+     * @param flushSize 每次flush的对象个数
+     * @return 每个对象的结果
+     * @throws PersistException 错误
+     */
+    public BatchResult addAll(List objs, int transactionSize, int flushSize)
+            throws PersistException;
+
+    /**
+     * 批量修改对象，见addAll
+     * @param fields 所要修改的字段集合。如果为空，修改所有的字段
+     */
+    public BatchResult modifyAll(List objs, String[] fields,
+            int transactionSize, int flushSize) throws PersistException;
+
+    /**
+     * 批量删除对象，见addAll
+     */
+    public BatchResult deleteAll(List objs, int transactionSize, int flushSize)
+            throws PersistException;
     
     /**
      * 根据hql查询对应的对象
@@ -114,6 +141,16 @@ public interface PersistManager {
      */
     public QueryResult query(HQuery hql) throws PersistException;
 
+    /**
+     * 以游标方式查询，数据按窗口调入和转换，用于大数据量的查询
+     * @param hql 封装的HQL对象
+     * @param windowSize 每次调入的行数
+     * @return 查询结果，使用完后必须close，而且要在closeSession之前
+     * @throws PersistException 错误
+     */
+    public CursorQueryResult scroll(HQuery hql, int windowSize)
+            throws PersistException;
+
     /**
      * @param hql 封装的HQL对象
      * @return 符合条件的记录个数
@@ -121,6 +158,15 @@ public interface PersistManager {
      */
     public int getResultSize(HQuery hql) throws PersistException;
 
+    /**
+     * 数到limit+1行就停止的count
+     * @param hql 封装的HQL对象
+     * @param limit 最多数到的行数，&lt;=0表示不限制
+     * @return 符合条件的记录个数；超过limit时返回limit+1
+     * @throws PersistException 错误
+     */
+    public int getResultSize(HQuery hql, int limit) throws PersistException;
+
     /**
      * 根据id查询对应的对象
      * @param clazz 类；用于多态时为父类，返回子类
@@ -2,6 +2,8 @@ package com.ifeng.common.dm.persist.intf;
 
 import java.util.List;
 
+import com.ifeng.common.dm.BatchResult;
+import com.ifeng.common.dm.persist.CursorQueryResult;
 import com.ifeng.common.dm.persist.HQuery;
 import com.ifeng.common.dm.persist.ObjectWrapper;
 import com.ifeng.common.dm.persist.QueryResultWrapper;
@@ -82,6 +84,34 @@ public interface PersistManagerImpl {
     public void deepModify(PersistSession session, Object obj, String[] fields)
             throws PersistException;
 
+    /**
+     * 批量创建对象。每transactionSize个对象一个事务，每flushSize个对象写入数据库并
+     * 清空session。一个事务失败时，其中的对象逐个重做，找出失败的对象，其它对象不受影响。
+     * session中不能有未完成的事务
+     * @param session 会话@link #openSession()打开的
+     * @param objs 对象
+     * @param transactionSize 每个事务的对象个数
+     * @param flushSize 每次flush的对象个数
+     * @return 每个对象的结果
+     * @throws PersistException 错误
+     */
+    public BatchResult addAll(PersistSession session, List objs,
+            int transactionSize, int flushSize) throws PersistException;
+
+    /**
+     * 批量修改对象，见addAll
+     * @param fields 所要修改的字段集合。如果为空，修改所有的字段
+     */
+    public BatchResult modifyAll(PersistSession session, List objs,
+            String[] fields, int transactionSize, int flushSize)
+            throws PersistException;
+
+    /**
+     * 批量删除对象，见addAll
+     */
+    public BatchResult deleteAll(PersistSession session, List objs,
+            int transactionSize, int flushSize) throws PersistException;
+
     /**
      * 根据hql查询对应的对象
      * @param session 会话@link #openSession()打开的
@@ -92,6 +122,17 @@ public interface PersistManagerImpl {
     public QueryResultWrapper query(PersistSession session, HQuery hql)
             throws PersistException;
 
+    /**
+     * 以游标方式查询，数据按窗口调入和转换，用于大数据量的查询
+     * @param session 会话@link #openSession()打开的，在结果close之前不能关闭
+     * @param hql 封装的HQL对象
+     * @param windowSize 每次调入的行数
+     * @return 查询结果，使用完后必须close
+     * @throws PersistException 错误
+     */
+    public CursorQueryResult scroll(PersistSession session, HQuery hql,
+            int windowSize) throws PersistException;
+
     /**
      * @param hql 封装的HQL对象
      * @return 符合条件的记录（对象）数
@@ -99,6 +140,16 @@ public interface PersistManagerImpl {
      */
     public int getResultSize(PersistSession session, HQuery hql) throws PersistException;
 
+    /**
+     * 数到limit+1行就停止的count，用于总数很大时只需要显示“limit+”的情况
+     * @param hql 封装的HQL对象
+     * @param limit 最多数到的行数，&lt;=0表示不限制
+     * @return 符合条件的记录数；超过limit时返回limit+1
+     * @throws PersistException 错误
+     */
+    public int getResultSize(PersistSession session, HQuery hql, int limit)
+            throws PersistException;
+
     /**
      * 根据id查询对应的对象。如果没找到则抛错ObjectNotFoundException
      * @param session 会话@link #openSession()打开的
@@ -131,6 +182,19 @@ public interface PersistManagerImpl {
      */
     public ObjectWrapper loadLazyCollection(PersistSession session,
             LazyCollection collection) throws PersistException;
+
+    /**
+     * 批量调入同一个查询结果中的多个lazy collection。
+     * 第一个一定调入；其它的只调入与第一个同类(同一个集合属性)、还没有调入的，
+     * 一次最多调入的个数由实现决定
+     * @param session 会话@link #openSession()打开的
+     * @param collections LazyCollection的列表，第一个是正在访问的
+     * @return 用ObjectWrapper包装的Map(IdentityHashMap)，
+     *          key为调入了的LazyCollection，value为新调入的collection
+     * @throws PersistException 错误
+     */
+    public ObjectWrapper loadLazyCollections(PersistSession session,
+            List collections) throws PersistException;
     
     /**
      * @param session 会话@link #openSession()打开的
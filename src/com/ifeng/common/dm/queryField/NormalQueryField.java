@@ -48,7 +48,7 @@ public class NormalQueryField implements QueryField {
     }
     
     public boolean testObject(Object obj) {
-        return this.value == null || obj.equals(this.value);
+        return this.value == null || this.value.equals(obj);
     }
     
     public boolean getFromClause(String prefix, StringBuffer ql) {
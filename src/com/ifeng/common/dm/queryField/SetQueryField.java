@@ -1,7 +1,9 @@
 package com.ifeng.common.dm.queryField;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.ifeng.common.dm.QueryField;
 
@@ -17,9 +19,29 @@ import com.ifeng.common.dm.QueryField;
  */
 public class SetQueryField implements QueryField {
 
+    /**
+     * 集合大于这个数目时，testObject使用hash查找
+     */
+    private static final int HASH_THRESHOLD = 8;
+
     private final Object[] set;
+
+    /**
+     * set比较大时用于testObject，否则为null
+     */
+    private final Set hashSet;
+
     public SetQueryField(Object[] set) {
         this.set = set == null ? null : (Object[])set.clone();
+        this.hashSet = set == null || set.length <= HASH_THRESHOLD ? null
+                : new HashSet(Arrays.asList(set));
+    }
+
+    /**
+     * @return 匹配的集合，null表示不限制。不要修改返回的数组
+     */
+    public Object[] getSet() {
+        return this.set;
     }
     
     public boolean getQL(String fieldName, StringBuffer ql) {
@@ -38,6 +60,9 @@ public class SetQueryField implements QueryField {
     }
 
     public boolean testObject(Object obj) {
+        if (this.hashSet != null) {
+            return this.hashSet.contains(obj);
+        }
         if (this.set != null) {
             for (int i = 0; i < this.set.length; i++) {
                 if (this.set[i].equals(obj)) {
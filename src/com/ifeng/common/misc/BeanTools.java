@@ -142,6 +142,12 @@ public final class BeanTools {
 			}
 			return dynaProperty.getType();
 		} else {
+			if (!(target instanceof Map)) {
+				Class type = PropertyAccessor.getPropertyType(target, propName);
+				if (type != null) {
+					return type;
+				}
+			}
 			PropertyDescriptor descriptor = null;
 			try {
 				descriptor = PropertyUtils.getPropertyDescriptor(target,
@@ -180,23 +186,6 @@ public final class BeanTools {
 		return PropertyUtils.getPropertyDescriptor(bean, name) instanceof MappedPropertyDescriptor;
 	}
 
-	/**
-	 * 找到一串字符中，在字符串中出现最左边的位置。如果一个都没找到，返回-1
-	 */
-	private static int minIndexOf(String name, char[] chars) {
-		int result = -1;
-		for (int i = 0; i < chars.length; i++) {
-			int index = name.indexOf(chars[i]);
-			if (index != -1 && (result == -1 || result > index)) {
-				result = index;
-			}
-		}
-		return result;
-	}
-
-	private static final char[] DELIM_CHARS = { PropertyUtils.NESTED_DELIM,
-			PropertyUtils.MAPPED_DELIM, PropertyUtils.INDEXED_DELIM, };
-
 	/**
 	 * 从PropertyUtils里面拷贝的setNestedProperty，做了如下改变 1.
 	 * 如果property名字路径中有null，如果value也是null，则直接返回，而不抛异常
@@ -239,68 +228,9 @@ public final class BeanTools {
 			boolean autoCreateInterim, PropertyInterceptor interceptor)
 			throws IllegalAccessException, InvocationTargetException,
 			NoSuchMethodException, InstantiationException {
-		while (bean != null) {
-			int delimPos = minIndexOf(name, DELIM_CHARS);
-			if (delimPos < 0) {
-				// 最后一级，设置完后退出
-				if (value != null
-						|| !getBeanPropertyClass(bean, name).isPrimitive()) {
-					// 如果value是null，而且目标类型是primitive，则不设置
-					setSimpleProperty(bean, name, value);
-				}
-				return;
-			} else {
-				char delim = name.charAt(delimPos);
-				switch (delim) {
-				case PropertyUtils.NESTED_DELIM:
-					if (delimPos > 0) {
-						bean = getOrCreateSimpleProperty(bean, name.substring(
-								0, delimPos), autoCreateInterim
-								&& value != null, interceptor);
-					} // 否则，直接去掉这个NESTED_DELIM，等下一次循环
-					break;
-				case PropertyUtils.MAPPED_DELIM: {
-					int startPos = delimPos;
-					delimPos = name.indexOf(PropertyUtils.MAPPED_DELIM2,
-							delimPos);
-					String propName = name.substring(0, startPos);
-					String key = name.substring(startPos + 1, delimPos);
-					if (delimPos == name.length() - 1) {
-						// 已经是最后一级了
-						setMappedProperty(bean, propName, key, value,
-								interceptor);
-						return;
-					} else {
-						bean = getOrCreateMappedProperty(bean, propName, key,
-								autoCreateInterim && value != null, interceptor);
-					}
-					break;
-				}
-				case PropertyUtils.INDEXED_DELIM: {
-					int startPos = delimPos;
-					delimPos = name.indexOf(PropertyUtils.INDEXED_DELIM2,
-							delimPos);
-					String propName = name.substring(0, startPos);
-					// don't check exception
-					int index = Integer.parseInt(name.substring(startPos + 1,
-							delimPos));
-					if (delimPos == name.length() - 1) {
-						// 已经是最后一级了
-						setIndexedProperty(bean, propName, index, value,
-								interceptor);
-						return;
-					} else {
-						bean = getOrCreateIndexedProperty(bean, propName,
-								index, autoCreateInterim && value != null,
-								interceptor);
-					}
-					break;
-				}
-				default:
-					// nothing
-				}
-				name = name.substring(delimPos + 1);
-			}
+		if (bean != null) {
+			PropertyAccessor.forPath(name).set(bean, value,
+					autoCreateInterim, interceptor);
 		}
 	}
 
@@ -390,7 +320,11 @@ public final class BeanTools {
 			if (value != null
 					|| !getBeanPropertyClass(bean, name).isPrimitive()) {
 				// 如果value是null，而且目标类型是primitive，则不设置
-				PropertyUtils.setSimpleProperty(bean, name, value);
+				if (bean instanceof DynaBean) {
+					PropertyUtils.setSimpleProperty(bean, name, value);
+				} else {
+					PropertyAccessor.setSimple(bean, name, value);
+				}
 			}
 		}
 	}
@@ -506,46 +440,10 @@ public final class BeanTools {
 			PropertyInterceptor interceptor) throws IllegalAccessException,
 			InvocationTargetException, NoSuchMethodException {
 		// 任何一层对象如果是null，则直接返回null，而抛错
-		while (bean != null && name.length() > 0) {
-			int delimPos = minIndexOf(name, DELIM_CHARS);
-			if (delimPos < 0) {
-				bean = getSimpleProperty(bean, name, interceptor);
-				break;
-			} else {
-				char delim = name.charAt(delimPos);
-				switch (delim) {
-				case PropertyUtils.NESTED_DELIM:
-					if (delimPos > 0) {
-						bean = getSimpleProperty(bean, name.substring(0,
-								delimPos), interceptor);
-					} // 否则，直接去掉这个NESTED_DELIM，等下一次循环
-					break;
-				case PropertyUtils.MAPPED_DELIM: {
-					int startPos = delimPos;
-					delimPos = name.indexOf(PropertyUtils.MAPPED_DELIM2,
-							delimPos);
-					bean = getMappedProperty(bean, name.substring(0, startPos),
-							name.substring(startPos + 1, delimPos), interceptor);
-					break;
-				}
-				case PropertyUtils.INDEXED_DELIM: {
-					int startPos = delimPos;
-					delimPos = name.indexOf(PropertyUtils.INDEXED_DELIM2,
-							delimPos);
-					bean = getIndexedProperty(bean,
-							name.substring(0, startPos),
-							// don't check exception
-							Integer.parseInt(name.substring(startPos + 1,
-									delimPos)), interceptor);
-					break;
-				}
-				default:
-					// nothing
-				}
-				name = name.substring(delimPos + 1);
-			}
+		if (bean == null) {
+			return null;
 		}
-		return bean;
+		return PropertyAccessor.forPath(name).get(bean, interceptor);
 	}
 
 	/**
@@ -563,12 +461,7 @@ public final class BeanTools {
 		if (interceptor != null) {
 			interceptor.beforeGet(bean, name, null);
 		}
-		Object result = null;
-		if (bean instanceof Map) {
-			result = ((Map) bean).get(name);
-		} else {
-			result = PropertyUtils.getSimpleProperty(bean, name);
-		}
+		Object result = PropertyAccessor.getSimple(bean, name);
 		if (interceptor != null) {
 			interceptor.afterGet(bean, name, null, result);
 		}
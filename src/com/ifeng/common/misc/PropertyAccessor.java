@@ -0,0 +1,424 @@
+package com.ifeng.common.misc;
+
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.cglib.reflect.FastClass;
+import net.sf.cglib.reflect.FastMethod;
+
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.MappedPropertyDescriptor;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * <title>PropertyAccessor </title>
+ * 
+ * <pre>预先解析的property路径，是BeanTools.getProperty/setProperty的实现。
+ * 路径(如a.b(key)[0].c)只解析一次，按路径字符串缓存；
+ * 普通Java bean的simple property通过cglib生成的FastMethod调用，
+ * 每个类每个property的getter/setter只查找一次。
+ * Map和DynaBean仍然按原来的方式处理，语义与BeanTools完全相同。
+ * 在循环中访问同一个property时，可以先用forPath得到accessor，再反复调用get/set。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public final class PropertyAccessor {
+
+	private static final int SIMPLE = 0;
+	private static final int MAPPED = 1;
+	private static final int INDEXED = 2;
+
+	private static final int KIND_BEAN = 0;
+	private static final int KIND_MAP = 1;
+	private static final int KIND_DYNA = 2;
+
+	/**
+	 * 缓存的路径数目上限。mapped的key是动态生成时，路径可能无限多，超过后不再缓存
+	 */
+	private static final int MAX_CACHED_PATHS = 10000;
+
+	/**
+	 * key: 路径; value: PropertyAccessor
+	 */
+	private static final ConcurrentMap accessors = new ConcurrentHashMap();
+
+	/**
+	 * key: Class; value: ClassInfo
+	 */
+	private static final ConcurrentMap classInfos = new ConcurrentHashMap();
+
+	/**
+	 * 找不到getter/setter等，交给PropertyUtils处理(一般是抛出异常)
+	 */
+	private static final Property UNSUPPORTED = new Property(null, null, null);
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private final String path;
+
+	private final Segment[] segments;
+
+	/**
+	 * 路径是否以'.'结束(或者是空串)。setProperty在这种情况下最后设置名字为""的property
+	 */
+	private final boolean endsWithNested;
+
+	private PropertyAccessor(String path) {
+		this.path = path;
+		List list = new ArrayList();
+		String name = path;
+		boolean nested = true;
+		// 与BeanTools原来的getProperty逐级处理的方式相同
+		while (name.length() > 0) {
+			int delimPos = minIndexOf(name);
+			nested = false;
+			if (delimPos < 0) {
+				list.add(new Segment(SIMPLE, name, null, 0));
+				break;
+			}
+			char delim = name.charAt(delimPos);
+			switch (delim) {
+			case PropertyUtils.NESTED_DELIM:
+				if (delimPos > 0) {
+					list.add(new Segment(SIMPLE, name.substring(0, delimPos),
+							null, 0));
+				}
+				nested = true;
+				break;
+			case PropertyUtils.MAPPED_DELIM: {
+				int startPos = delimPos;
+				delimPos = name.indexOf(PropertyUtils.MAPPED_DELIM2, delimPos);
+				list.add(new Segment(MAPPED, name.substring(0, startPos), name
+						.substring(startPos + 1, delimPos), 0));
+				break;
+			}
+			case PropertyUtils.INDEXED_DELIM: {
+				int startPos = delimPos;
+				delimPos = name.indexOf(PropertyUtils.INDEXED_DELIM2, delimPos);
+				list.add(new Segment(INDEXED, name.substring(0, startPos),
+						null, Integer.parseInt(name.substring(startPos + 1,
+								delimPos))));
+				break;
+			}
+			default:
+				// nothing
+			}
+			name = name.substring(delimPos + 1);
+		}
+		this.segments = (Segment[])list.toArray(new Segment[list.size()]);
+		this.endsWithNested = nested;
+	}
+
+	/**
+	 * 得到一个路径的accessor
+	 * @param path property路径，语法同BeanTools.getProperty
+	 */
+	public static PropertyAccessor forPath(String path) {
+		PropertyAccessor accessor = (PropertyAccessor)accessors.get(path);
+		if (accessor == null) {
+			accessor = new PropertyAccessor(path);
+			if (accessors.size() < MAX_CACHED_PATHS) {
+				accessors.putIfAbsent(path, accessor);
+			}
+		}
+		return accessor;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @see BeanTools#getProperty(Object, String, BeanTools.PropertyInterceptor)
+	 */
+	public Object get(Object bean, BeanTools.PropertyInterceptor interceptor)
+			throws IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException {
+		// 任何一层对象如果是null，则直接返回null
+		for (int i = 0; i < this.segments.length && bean != null; i++) {
+			Segment seg = this.segments[i];
+			switch (seg.type) {
+			case SIMPLE:
+				bean = BeanTools.getSimpleProperty(bean, seg.name, interceptor);
+				break;
+			case MAPPED:
+				bean = BeanTools.getMappedProperty(bean, seg.name, seg.key,
+						interceptor);
+				break;
+			default:
+				bean = BeanTools.getIndexedProperty(bean, seg.name, seg.index,
+						interceptor);
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * @see BeanTools#setProperty(Object, String, Object, boolean, BeanTools.PropertyInterceptor)
+	 */
+	public void set(Object bean, Object value, boolean autoCreateInterim,
+			BeanTools.PropertyInterceptor interceptor)
+			throws IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException, InstantiationException {
+		int last = this.endsWithNested ? this.segments.length
+				: this.segments.length - 1;
+		boolean create = autoCreateInterim && value != null;
+		for (int i = 0; i < last; i++) {
+			if (bean == null) {
+				return;
+			}
+			Segment seg = this.segments[i];
+			switch (seg.type) {
+			case SIMPLE:
+				bean = BeanTools.getOrCreateSimpleProperty(bean, seg.name,
+						create, interceptor);
+				break;
+			case MAPPED:
+				bean = BeanTools.getOrCreateMappedProperty(bean, seg.name,
+						seg.key, create, interceptor);
+				break;
+			default:
+				bean = BeanTools.getOrCreateIndexedProperty(bean, seg.name,
+						seg.index, create, interceptor);
+			}
+		}
+		if (bean == null) {
+			return;
+		}
+		if (this.endsWithNested) {
+			setLast(bean, "", value);
+			return;
+		}
+		Segment seg = this.segments[last];
+		switch (seg.type) {
+		case SIMPLE:
+			setLast(bean, seg.name, value);
+			break;
+		case MAPPED:
+			BeanTools.setMappedProperty(bean, seg.name, seg.key, value,
+					interceptor);
+			break;
+		default:
+			BeanTools.setIndexedProperty(bean, seg.name, seg.index, value,
+					interceptor);
+		}
+	}
+
+	private static void setLast(Object bean, String name, Object value)
+			throws IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException {
+		if (value != null
+				|| !BeanTools.getBeanPropertyClass(bean, name).isPrimitive()) {
+			// 如果value是null，而且目标类型是primitive，则不设置
+			BeanTools.setSimpleProperty(bean, name, value);
+		}
+	}
+
+	/**
+	 * 读一个simple property，支持Map和DynaBean
+	 */
+	static Object getSimple(Object bean, String name)
+			throws IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException {
+		ClassInfo info = getClassInfo(bean.getClass());
+		if (info.kind == KIND_MAP) {
+			return ((Map)bean).get(name);
+		} else if (info.kind == KIND_DYNA) {
+			return PropertyUtils.getSimpleProperty(bean, name);
+		}
+		Property prop = getProperty(info, bean, name);
+		if (prop.reader == null) {
+			return PropertyUtils.getSimpleProperty(bean, name);
+		}
+		return prop.reader.invoke(bean, NO_ARGS);
+	}
+
+	/**
+	 * 写一个普通Java bean(不是Map或DynaBean)的simple property
+	 */
+	static void setSimple(Object bean, String name, Object value)
+			throws IllegalAccessException, InvocationTargetException,
+			NoSuchMethodException {
+		Property prop = getProperty(getClassInfo(bean.getClass()), bean, name);
+		if (prop.writer == null) {
+			PropertyUtils.setSimpleProperty(bean, name, value);
+			return;
+		}
+		if (value != null && !prop.valueType.isInstance(value)) {
+			// 与Method.invoke一致
+			throw new IllegalArgumentException("argument type mismatch");
+		}
+		prop.writer.invoke(bean, new Object[] { value });
+	}
+
+	/**
+	 * 一个普通Java bean的property的类型
+	 * @return 如果没有这个property，返回null
+	 */
+	static Class getPropertyType(Object bean, String name) {
+		Property prop;
+		try {
+			prop = getProperty(getClassInfo(bean.getClass()), bean, name);
+		} catch (Exception e) {
+			return null;
+		}
+		return prop.type;
+	}
+
+	/**
+	 * 类型的判断也缓存起来，避免每次instanceof
+	 */
+	private static ClassInfo getClassInfo(Class clazz) {
+		ClassInfo info = (ClassInfo)classInfos.get(clazz);
+		if (info == null) {
+			ClassInfo newInfo = new ClassInfo(clazz);
+			info = (ClassInfo)classInfos.putIfAbsent(clazz, newInfo);
+			if (info == null) {
+				info = newInfo;
+			}
+		}
+		return info;
+	}
+
+	private static Property getProperty(ClassInfo info, Object bean,
+			String name) throws IllegalAccessException,
+			InvocationTargetException, NoSuchMethodException {
+		ConcurrentMap props = info.properties;
+		Property prop = (Property)props.get(name);
+		if (prop == null) {
+			PropertyDescriptor desc = PropertyUtils.getPropertyDescriptor(bean,
+					name);
+			if (desc == null || minIndexOf(name) >= 0) {
+				// 带分隔符的名字由PropertyUtils处理，保持原来的异常
+				prop = UNSUPPORTED;
+			} else if (desc instanceof MappedPropertyDescriptor) {
+				prop = new Property(desc.getPropertyType(), null, null);
+			} else {
+				prop = new Property(desc.getPropertyType(), invoker(PropertyUtils
+						.getReadMethod(desc)), invoker(PropertyUtils
+						.getWriteMethod(desc)));
+			}
+			props.put(name, prop);
+		}
+		return prop;
+	}
+
+	private static Invoker invoker(Method method) {
+		if (method == null) {
+			return null;
+		}
+		try {
+			return new FastInvoker(FastClass.create(method.getDeclaringClass())
+					.getMethod(method));
+		} catch (Throwable e) {
+			// cglib不能生成(类不可访问等)，使用反射
+			return new ReflectInvoker(method);
+		}
+	}
+
+	private static int minIndexOf(String name) {
+		int result = -1;
+		for (int i = 0; i < DELIM_CHARS.length; i++) {
+			int index = name.indexOf(DELIM_CHARS[i]);
+			if (index != -1 && (result == -1 || result > index)) {
+				result = index;
+			}
+		}
+		return result;
+	}
+
+	private static final char[] DELIM_CHARS = { PropertyUtils.NESTED_DELIM,
+			PropertyUtils.MAPPED_DELIM, PropertyUtils.INDEXED_DELIM, };
+
+	/**
+	 * 路径中的一级
+	 */
+	private static final class Segment {
+		final int type;
+		final String name;
+		final String key;
+		final int index;
+
+		Segment(int type, String name, String key, int index) {
+			this.type = type;
+			this.name = name;
+			this.key = key;
+			this.index = index;
+		}
+	}
+
+	private static final class ClassInfo {
+		final int kind;
+		/**
+		 * key: property名; value: Property
+		 */
+		final ConcurrentMap properties = new ConcurrentHashMap();
+
+		ClassInfo(Class clazz) {
+			if (Map.class.isAssignableFrom(clazz)) {
+				this.kind = KIND_MAP;
+			} else if (DynaBean.class.isAssignableFrom(clazz)) {
+				this.kind = KIND_DYNA;
+			} else {
+				this.kind = KIND_BEAN;
+			}
+		}
+	}
+
+	private static final class Property {
+		final Class type;
+		/**
+		 * setter可以接受的值的类型，primitive类型换成对应的包装类
+		 */
+		final Class valueType;
+		final Invoker reader;
+		final Invoker writer;
+
+		Property(Class type, Invoker reader, Invoker writer) {
+			this.type = type;
+			this.valueType = type != null && type.isPrimitive() ? ClassUtils
+					.primitiveToWrapper(type) : type;
+			this.reader = reader;
+			this.writer = writer;
+		}
+	}
+
+	private interface Invoker {
+		public Object invoke(Object bean, Object[] args)
+				throws IllegalAccessException, InvocationTargetException;
+	}
+
+	private static final class FastInvoker implements Invoker {
+		private final FastMethod method;
+
+		FastInvoker(FastMethod method) {
+			this.method = method;
+		}
+
+		public Object invoke(Object bean, Object[] args)
+				throws InvocationTargetException {
+			return this.method.invoke(bean, args);
+		}
+	}
+
+	private static final class ReflectInvoker implements Invoker {
+		private final Method method;
+
+		ReflectInvoker(Method method) {
+			this.method = method;
+		}
+
+		public Object invoke(Object bean, Object[] args)
+				throws IllegalAccessException, InvocationTargetException {
+			return this.method.invoke(bean, args);
+		}
+	}
+}
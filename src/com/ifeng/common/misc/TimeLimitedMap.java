@@ -1,13 +1,20 @@
 package com.ifeng.common.misc;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 
 
@@ -15,6 +22,12 @@ import java.util.TimerTask;
  * 具有时间限制的Map，最后访问时间或生存期超过一定时间的元素自动删除。
  * 它是一个线程安全的Map，无需在外边再加同步
  * <p>
+ * 每个元素的到期时间记录在它自己的Expiry中，不再为每次put/get创建TimerTask。
+ * 过期的元素在被访问时删除；每次put/get还会顺带清理过期队列头部的少量元素；
+ * 另外每个Map在共用的timer线程上有一个周期性的清理任务，保证不再被访问的元素也能被删除。
+ * 如果innerMap是ConcurrentMap，get和put不使用全局锁；否则innerMap会被
+ * Collections.synchronizedMap包装。
+ * <p>
  * 如果需要监听Map的变化(即删除时通知)，可以利用commons collection的AbstractMapDecorator的机制：
  * <pre>
  * TimeLimitedMap map = new TimeLimitedMap(new AbstractMapDecorator(new HashMap()) {
@@ -29,15 +42,76 @@ import java.util.TimerTask;
 public class TimeLimitedMap implements Map, Serializable {
 	private static Logger logger = Logger.getLogger(TimeLimitedMap.class);
 	private static final long serialVersionUID = -7347776598951280571L;
+    /**
+     * 每次put/get顺带清理的过期元素的最大个数
+     */
+    private static final int SWEEP_BATCH = 4;
+    private static final long MIN_SWEEP_INTERVAL = 100;
+    private static final long MAX_SWEEP_INTERVAL = 1000;
 	private Map innerMap;
     /**
-     * key: same key of innerMap; value: timertask
+     * key: same key of innerMap; value: Expiry
+     */
+    private ConcurrentMap expiries = new ConcurrentHashMap();
+    /**
+     * 按创建顺序排列的Expiry，用于清理过期元素
      */
-    private Map timerMap = new HashMap();
+    private Queue expiryQueue = new ConcurrentLinkedQueue();
     private int timeLimit;
     private boolean fullLife;
     private static final Timer timer = TimerManager.getTimer("TimeLimitedMap Timer");
-    private static Thread timerThread;
+    /**
+     * 当前线程是否正在删除过期元素
+     */
+    private static final ThreadLocal expiring = new ThreadLocal();
+
+    /**
+     * 一个元素的到期时间
+     */
+    private static final class Expiry implements Serializable {
+        private static final long serialVersionUID = 4129335318946112458L;
+        final Object key;
+        volatile long deadline;
+        /**
+         * 放入expiryQueue时的deadline。get/put延长deadline时不移动队列中的位置，
+         * sweep时据此判断队列头部的元素是否被刷新过
+         */
+        volatile long queuedDeadline;
+        /**
+         * 已经从Map中删除。修改时需要synchronized(this)
+         */
+        volatile boolean removed;
+
+        Expiry(Object key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+            this.queuedDeadline = deadline;
+        }
+    }
+
+    /**
+     * 周期性清理过期元素。只持有Map的弱引用，Map被回收后自动cancel
+     */
+    private static final class SweepTask extends TimerTask {
+        private final WeakReference mapRef;
+
+        SweepTask(TimeLimitedMap map) {
+            this.mapRef = new WeakReference(map);
+        }
+
+        public void run() {
+            TimeLimitedMap map = (TimeLimitedMap)this.mapRef.get();
+            if (map == null) {
+                cancel();
+                return;
+            }
+            try {
+                map.sweepAll(System.currentTimeMillis());
+            } catch (Throwable e) {
+                logger.error("Error in TimeLimitedMap timer", e);
+            }
+        }
+    }
 
     /**
      * 缺省fullLife=true
@@ -52,58 +126,86 @@ public class TimeLimitedMap implements Map, Serializable {
      * @param fullLife  时间限制是指put之后的整个生存期，还是最近访问(指get，不计values访问的)
      */
     public TimeLimitedMap(Map innerMap, int timeLimit, boolean fullLife) {
-        this.innerMap = innerMap;
+        this.innerMap = innerMap instanceof ConcurrentMap ? innerMap
+                : Collections.synchronizedMap(innerMap);
         this.timeLimit = timeLimit;
         this.fullLife = fullLife;
+        scheduleSweep();
+    }
+
+    private void scheduleSweep() {
+        long interval = Math.max(MIN_SWEEP_INTERVAL, Math.min(
+                MAX_SWEEP_INTERVAL, this.timeLimit / 4));
+        timer.schedule(new SweepTask(this), interval, interval);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        scheduleSweep();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#size()
      */
-    public synchronized int size() {
+    public int size() {
         return this.innerMap.size();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#clear()
      */
-    public synchronized void clear() {
+    public void clear() {
+        for (Iterator it = this.expiries.values().iterator(); it.hasNext(); ) {
+            Expiry e = (Expiry)it.next();
+            synchronized (e) {
+                e.removed = true;
+            }
+        }
+        this.expiries.clear();
+        this.expiryQueue.clear();
         this.innerMap.clear();
-        this.timerMap.clear();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#isEmpty()
      */
-    public synchronized boolean isEmpty() {
+    public boolean isEmpty() {
         return this.innerMap.isEmpty();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#containsKey(java.lang.Object)
      */
-    public synchronized boolean containsKey(Object key) {
+    public boolean containsKey(Object key) {
+        Expiry e = (Expiry)this.expiries.get(key);
+        if (e != null) {
+            long now = System.currentTimeMillis();
+            if (e.deadline <= now) {
+                expire(e, now);
+            }
+        }
         return this.innerMap.containsKey(key);
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#containsValue(java.lang.Object)
      */
-    public synchronized boolean containsValue(Object value) {
+    public boolean containsValue(Object value) {
         return this.innerMap.containsValue(value);
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#values()
      */
-    public synchronized Collection values() {
+    public Collection values() {
         return this.innerMap.values();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#putAll(java.util.Map)
      */
-    public synchronized void putAll(Map t) {
+    public void putAll(Map t) {
         // 不直接delegate，而是调用put
         for (Iterator it = t.entrySet().iterator(); it.hasNext(); ) {
             Entry entry = (Entry)it.next();
@@ -114,34 +216,51 @@ public class TimeLimitedMap implements Map, Serializable {
     /* (non-Javadoc)
      * @see java.util.Map#entrySet()
      */
-    public synchronized Set entrySet() {
+    public Set entrySet() {
         return this.innerMap.entrySet();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#keySet()
      */
-    public synchronized Set keySet() {
+    public Set keySet() {
         return this.innerMap.keySet();
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#get(java.lang.Object)
      */
-    public synchronized Object get(Object key) {
-        if (!this.fullLife) {
-            refreshTime(key);
+    public Object get(Object key) {
+        long now = System.currentTimeMillis();
+        Expiry e = (Expiry)this.expiries.get(key);
+        if (e != null) {
+            if (e.deadline <= now) {
+                expire(e, now);
+            } else if (!this.fullLife) {
+                e.deadline = now + this.timeLimit;
+            }
         }
-        return this.innerMap.get(key);
+        Object result = this.innerMap.get(key);
+        sweep(now);
+        return result;
     }
 
     /* (non-Javadoc)
      * @see java.util.Map#remove(java.lang.Object)
      */
-    public synchronized Object remove(Object key) {
-        TimerTask oldTask = (TimerTask)this.timerMap.remove(key);
-        if (oldTask != null) {
-            oldTask.cancel();
+    public Object remove(Object key) {
+        Expiry e = (Expiry)this.expiries.get(key);
+        if (e != null) {
+            synchronized (e) {
+                if (!e.removed) {
+                    e.removed = true;
+                    // 先删除值再释放expiries中的位置：位置被占用时put会等待e的锁然后重试，
+                    // 不会在两步之间放入新值而被这里删除
+                    Object result = this.innerMap.remove(key);
+                    this.expiries.remove(key, e);
+                    return result;
+                }
+            }
         }
         return this.innerMap.remove(key);
     }
@@ -149,79 +268,156 @@ public class TimeLimitedMap implements Map, Serializable {
     /* (non-Javadoc)
      * @see java.util.Map#put(java.lang.Object, java.lang.Object)
      */
-    public synchronized Object put(Object key, Object value) {
-        Object result = this.innerMap.put(key, value);
-        refreshTime0(key);
+    public Object put(Object key, Object value) {
+        long now = System.currentTimeMillis();
+        long deadline = now + this.timeLimit;
+        Object result;
+        while (true) {
+            Expiry e = (Expiry)this.expiries.get(key);
+            if (e == null) {
+                Expiry created = new Expiry(key, deadline);
+                e = (Expiry)this.expiries.putIfAbsent(key, created);
+                if (e == null) {
+                    e = created;
+                    this.expiryQueue.offer(created);
+                }
+            }
+            synchronized (e) {
+                if (!e.removed) {
+                    e.deadline = deadline;
+                    result = this.innerMap.put(key, value);
+                    break;
+                }
+            }
+            // e刚刚被删除，重试
+        }
+        sweep(now);
         return result;
     }
 
-    private void refreshTime0(final Object key) {
-        TimerTask oldTask = (TimerTask)this.timerMap.get(key);
-        if (oldTask != null) {
-            oldTask.cancel();
-        }
-        TimerTask task = new TimerTask() {
-            public void run() {
-                try {
-                    timerThread = Thread.currentThread();
-                    removeOnTimeout(key);
-                } catch (Throwable e) {
-                	logger.error("Error in TimeLimitedMap timer", e);
-                }
+    /**
+     * 删除一个到期的元素
+     * @return true 如果元素已经不在Map中；false 如果元素的时间在此期间被刷新了
+     */
+    private boolean expire(Expiry e, long now) {
+        synchronized (e) {
+            if (e.removed) {
+                return true;
+            }
+            if (e.deadline > now) {
+                return false;
+            }
+            e.removed = true;
+            Object old = expiring.get();
+            expiring.set(Boolean.TRUE);
+            try {
+                // 与remove相同，先删除值再释放expiries中的位置
+                this.innerMap.remove(e.key);
+            } finally {
+                expiring.set(old);
             }
-        };
-        this.timerMap.put(key, task);
-        timer.schedule(task, this.timeLimit);
+            this.expiries.remove(e.key, e);
+            return true;
+        }
     }
 
-    synchronized void removeOnTimeout(Object key) {
-    	TimerTask oldTask = (TimerTask)this.timerMap.remove(key);
-        if (oldTask != null) {
-            if(oldTask.cancel()) {
-            	logger.warn("removeOnTimeout key=" + key+" cancel another task.");
- 
+    /**
+     * 清理过期队列头部的少量过期元素。头部的元素如果被get/put刷新过时间，
+     * 按新的时间放回队列尾部，继续检查下一个；遇到真正未过期的元素即停止
+     */
+    private void sweep(long now) {
+        for (int i = 0; i < SWEEP_BATCH; i++) {
+            Expiry head = (Expiry)this.expiryQueue.peek();
+            if (head == null || (!head.removed && head.deadline > now
+                    && head.queuedDeadline > now)) {
+                return;
+            }
+            head = (Expiry)this.expiryQueue.poll();
+            if (head == null) {
+                return;
+            }
+            if (!head.removed && head.deadline > now) {
+                // 放入队列后被刷新了时间
+                requeue(head);
+            } else if (!expire(head, now)) {
+                // 被其它线程刷新了时间
+                requeue(head);
             }
         }
-        //this.timerMap.remove(key);
-        if (this.innerMap.containsKey(key)) {
-            this.innerMap.remove(key);
+    }
+
+    private void requeue(Expiry e) {
+        e.queuedDeadline = e.deadline;
+        this.expiryQueue.offer(e);
+    }
+
+    /**
+     * 清理所有过期元素，由timer周期调用
+     */
+    void sweepAll(long now) {
+        for (Iterator it = this.expiryQueue.iterator(); it.hasNext(); ) {
+            Expiry e = (Expiry)it.next();
+            if (e.removed || (e.deadline <= now && expire(e, now))) {
+                it.remove();
+            }
         }
     }
 
     /**
      * 刷新key对应的时间
      */
-    public synchronized void refreshTime(Object key) {
-        if (this.innerMap.containsKey(key)) {
-            refreshTime0(key);
+    public void refreshTime(Object key) {
+        Expiry e = (Expiry)this.expiries.get(key);
+        if (e != null) {
+            e.deadline = System.currentTimeMillis() + this.timeLimit;
         }
     }
 
-    public synchronized boolean equals(Object obj) {
+    /**
+     * @return key对应的元素距离过期还剩的毫秒数(可能是0)；如果key不存在，返回-1
+     */
+    public long getRemainingTime(Object key) {
+        Expiry e = (Expiry)this.expiries.get(key);
+        if (e == null || e.removed) {
+            return -1;
+        }
+        return Math.max(0, e.deadline - System.currentTimeMillis());
+    }
+
+    public int getTimeLimit() {
+        return this.timeLimit;
+    }
+
+    public boolean equals(Object obj) {
         return this.innerMap.equals(obj);
     }
 
-    public synchronized int hashCode() {
+    public int hashCode() {
         return this.innerMap.hashCode();
     }
 
-    public synchronized String toString() {
+    public String toString() {
         StringBuffer buf = new StringBuffer();
         buf.append('{');
-        for (Iterator it = this.innerMap.entrySet().iterator(); it.hasNext(); ) {
-            Entry e = (Entry)it.next();
-            buf.append(this.timerMap.get(e.getKey()) + ":" + e.getKey() + '='
-                    + e.getValue() + ' ');
+        long now = System.currentTimeMillis();
+        synchronized (this.innerMap) {
+            for (Iterator it = this.innerMap.entrySet().iterator(); it.hasNext(); ) {
+                Entry entry = (Entry)it.next();
+                Expiry e = (Expiry)this.expiries.get(entry.getKey());
+                buf.append((e == null ? "-" : String.valueOf(e.deadline - now))
+                        + ":" + entry.getKey() + '=' + entry.getValue() + ' ');
+            }
         }
         buf.append('}');
         return buf.toString();
     }
 
     /**
-     * 供使用者判断innerMap的remove是否来自timer
+     * 供使用者判断innerMap的remove是否来自超时删除
+     * (可能在timer线程中，也可能在访问Map的线程中)
      */
     public static boolean isInTimer() {
-        return Thread.currentThread() == timerThread;
+        return expiring.get() != null;
     }
 
 }
@@ -489,6 +489,40 @@ public final class XmlLoader {
 		}
 	}
 
+	/**
+	 * 取得表示字节数的属性，支持k/m/g后缀(大小写均可，可以再跟一个b)，如"512m"、"64KB"
+	 */
+	public static long getAttributeAsByteSize(Element element,
+			String attributeName, long defaultValue) {
+		String attrValue = getAttribute(element, attributeName, null);
+		if (attrValue == null) {
+			return defaultValue;
+		}
+		String value = attrValue.trim().toLowerCase();
+		if (value.endsWith("b")) {
+			value = value.substring(0, value.length() - 1);
+		}
+		long unit = 1;
+		if (value.endsWith("k")) {
+			unit = 1024L;
+		} else if (value.endsWith("m")) {
+			unit = 1024L * 1024;
+		} else if (value.endsWith("g")) {
+			unit = 1024L * 1024 * 1024;
+		}
+		if (unit != 1) {
+			value = value.substring(0, value.length() - 1).trim();
+		}
+		try {
+			return Long.parseLong(value) * unit;
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Cannot parse the value '" + attrValue
+					+ "' as a byte size in the attribute '" + attributeName
+					+ "' on the element '" + element.getTagName() + "' at "
+					+ getElementLocation(element));
+		}
+	}
+
 	public static double getAttributeAsDouble(Element element,
 			String attributeName) {
 		String attrValue = getAttribute(element, attributeName);
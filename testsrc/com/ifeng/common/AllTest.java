@@ -0,0 +1,22 @@
+package com.ifeng.common;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
+
+import com.ifeng.common.dm.QueuedWriteDataManagerTest;
+import com.ifeng.common.dm.WriteJournalTest;
+
+/**
+ * <title>AllTest </title>
+ *
+ * <pre>ant junit运行的所有测试(build.properties中的testcases)
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+@RunWith(Suite.class)
+@SuiteClasses( { WriteJournalTest.class, QueuedWriteDataManagerTest.class })
+public class AllTest {
+    // suite
+}
@@ -0,0 +1,204 @@
+package com.ifeng.common.dm;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <title>CachedDataManagerBenchmark </title>
+ * 
+ * <pre>AbstractCachedDataManager的微基准，不随jar发布.
+ * 1. 命中：1到2*CPU个线程随机getById已经缓存的对象，比较无锁的命中和
+ *    synchronized的getById(原来的实现)每秒的调用次数。
+ * 2. 未命中：多个线程同时getById不在缓存中的对象，内部DataManager每次调用
+ *    耗时10毫秒。比较single-flight、不合并未命中和synchronized三种实现中
+ *    内部getById被调用的次数和总耗时。
+ * ant compile之后运行：
+ *   java -cp ${build.testdest}:${build.dest}:lib下的jar com.ifeng.common.dm.CachedDataManagerBenchmark
+ * 命中的吞吐量要在多核的机器上看随线程数的变化。
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved. 
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class CachedDataManagerBenchmark {
+    private static final int SIZE = 10000;
+
+    private static final long HIT_MILLIS = 2000;
+
+    private static final long LOAD_MILLIS = 10;
+
+    public static class Item {
+        private Integer id;
+
+        public Item(int id) {
+            this.id = new Integer(id);
+        }
+
+        public Integer getId() {
+            return this.id;
+        }
+    }
+
+    /**
+     * 内部DataManager：SIZE+1个对象，记录getById的调用次数
+     */
+    private static class Backend extends MemoryDataManager {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final long delay;
+
+        Backend(long delay) throws DataManagerException {
+            super(Item.class, "id", false);
+            this.delay = delay;
+            for (int i = 0; i <= SIZE; i++) {
+                add(new Item(i), null);
+            }
+        }
+
+        public Object getById(Object id) throws DataManagerException {
+            this.calls.incrementAndGet();
+            if (this.delay > 0) {
+                try {
+                    Thread.sleep(this.delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getById(id);
+        }
+    }
+
+    /**
+     * 原来的实现：getById整个方法synchronized
+     */
+    private static class SynchronizedCache extends LRUSizeCachedDataManager {
+        SynchronizedCache(DataManager manager, int size) {
+            super(manager, size);
+        }
+
+        public synchronized Object getById(Object id)
+                throws DataManagerException {
+            return super.getById(id);
+        }
+    }
+
+    /**
+     * 不合并未命中：每个未命中的线程都调用内部DataManager
+     */
+    private static class UncoalescedCache extends LRUSizeCachedDataManager {
+        UncoalescedCache(DataManager manager, int size) {
+            super(manager, size);
+        }
+
+        public Object getById(Object id) throws DataManagerException {
+            Object result = getBufferedById(id);
+            if (result == null) {
+                result = getManager().getById(id);
+                putLoaded(id, result);
+            }
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        System.out.println("CPUs: " + cpus);
+        // 预热
+        hits(new LRUSizeCachedDataManager(new Backend(0), SIZE), 1);
+        hits(new SynchronizedCache(new Backend(0), SIZE), 1);
+        System.out.println("hits: threads, lock-free ops/s, synchronized ops/s");
+        for (int threads = 1; threads <= Math.max(2, cpus * 2); threads *= 2) {
+            long free = hits(new LRUSizeCachedDataManager(new Backend(0),
+                    SIZE), threads);
+            long sync = hits(new SynchronizedCache(new Backend(0), SIZE),
+                    threads);
+            System.out.println(threads + ", " + free + ", " + sync);
+        }
+        System.out.println("misses on one id: threads, backend calls/ms of"
+                + " single-flight, uncoalesced, synchronized");
+        for (int threads = 2; threads <= 32; threads *= 4) {
+            System.out.println(threads + ", " + misses(1, threads, 0) + ", "
+                    + misses(1, threads, 1) + ", " + misses(1, threads, 2));
+        }
+        System.out.println("misses on distinct ids: threads, backend calls/ms of"
+                + " single-flight, synchronized");
+        for (int threads = 2; threads <= 32; threads *= 4) {
+            System.out.println(threads + ", " + misses(threads, threads, 0)
+                    + ", " + misses(threads, threads, 2));
+        }
+    }
+
+    /**
+     * @return 每秒的命中次数
+     */
+    private static long hits(final DataManager cache, int threads)
+            throws Exception {
+        for (int i = 0; i < SIZE; i++) {
+            cache.getById(new Integer(i));
+        }
+        final AtomicLong ops = new AtomicLong();
+        final long end = System.currentTimeMillis() + HIT_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t * 7919 + 1;
+            workers[t] = new Thread() {
+                public void run() {
+                    int x = seed;
+                    long n = 0;
+                    try {
+                        while ((n & 1023) != 0
+                                || System.currentTimeMillis() < end) {
+                            x ^= x << 13;
+                            x ^= x >>> 17;
+                            x ^= x << 5;
+                            cache.getById(new Integer((x & 0x7fffffff) % SIZE));
+                            n++;
+                        }
+                    } catch (DataManagerException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    ops.addAndGet(n);
+                }
+            };
+            workers[t].start();
+        }
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+        }
+        return ops.get() * 1000 / HIT_MILLIS;
+    }
+
+    /**
+     * threads个线程同时读取未缓存的对象，第t个线程读取第t % ids个
+     * @param kind 0: single-flight; 1: 不合并; 2: synchronized
+     * @return "内部调用次数/总毫秒数"
+     */
+    private static String misses(final int ids, int threads, int kind)
+            throws Exception {
+        Backend backend = new Backend(LOAD_MILLIS);
+        final DataManager cache = kind == 0 ? new LRUSizeCachedDataManager(
+                backend, SIZE) : kind == 1 ? (DataManager) new UncoalescedCache(
+                backend, SIZE) : new SynchronizedCache(backend, SIZE);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Integer id = new Integer(SIZE - t % ids);
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        cache.getById(id);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        long begin = System.currentTimeMillis();
+        start.countDown();
+        done.await();
+        return backend.calls.get() + "/" + (System.currentTimeMillis() - begin);
+    }
+}
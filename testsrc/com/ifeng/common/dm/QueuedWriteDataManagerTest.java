@@ -0,0 +1,323 @@
+package com.ifeng.common.dm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <title>QueuedWriteDataManagerTest </title>
+ *
+ * <pre>QueuedWriteDataManager的预写日志(replay、dead-letter)，
+ * 以及各种overflow设置下同一个id的写操作的顺序和合并
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class QueuedWriteDataManagerTest {
+    /**
+     * 不会到时的flush-interval，操作只在flush时写出
+     */
+    private static final long NEVER = 3600 * 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    public static class Item implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private Integer id;
+
+        private String name;
+
+        public Item() {
+            // for bean
+        }
+
+        public Item(int id, String name) {
+            this.id = new Integer(id);
+            this.name = name;
+        }
+
+        public Integer getId() {
+            return this.id;
+        }
+
+        public void setId(Integer id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * 记录收到的写操作；可以让写操作失败，或者让第一个写操作等待gate
+     */
+    private static class RecordingDataManager extends MemoryDataManager {
+        final List ops = Collections.synchronizedList(new ArrayList());
+
+        volatile boolean failing;
+
+        volatile CountDownLatch gate;
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        RecordingDataManager() {
+            super(Item.class, "id", false);
+        }
+
+        private void record(String op, Object obj) throws DataManagerException {
+            if (this.failing) {
+                throw new DataManagerException("Backend is down");
+            }
+            this.entered.countDown();
+            CountDownLatch gate = this.gate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new DataManagerException(e);
+                }
+            }
+            Item item = (Item) obj;
+            this.ops.add(op + ":" + item.getId() + ":" + item.getName());
+        }
+
+        protected Object doAdd(Object obj, Map params)
+                throws DataManagerException {
+            record("add", obj);
+            return super.doAdd(obj, params);
+        }
+
+        protected void doModify(Object obj, String[] fields, Map params)
+                throws DataManagerException {
+            record("modify", obj);
+            super.doModify(obj, fields, params);
+        }
+
+        protected void doDelete(Object obj, Map params)
+                throws DataManagerException {
+            record("delete", obj);
+            super.doDelete(obj, params);
+        }
+    }
+
+    private WriteJournal openJournal(File dir) throws DataManagerException {
+        return new WriteJournal(dir, 64 * 1024, 10);
+    }
+
+    /**
+     * 没有close(进程崩溃)时队列中的操作，下次启动时从日志恢复并写出
+     */
+    @Test
+    public void testReplayAfterUncleanClose() throws Exception {
+        File dir = this.tmp.newFolder("journal");
+        RecordingDataManager crashed = new RecordingDataManager();
+        QueuedWriteDataManager before = new QueuedWriteDataManager(crashed, 1);
+        before.setFlushInterval(NEVER);
+        before.setJournal(openJournal(dir));
+        before.add(new Item(1, "a"), null);
+        before.modify(new Item(1, "b"), null, null);
+        before.add(new Item(2, "c"), null);
+        assertEquals(3, before.getJournal().getPendingCount());
+        // 不close，也没有写出
+
+        RecordingDataManager backend = new RecordingDataManager();
+        QueuedWriteDataManager after = new QueuedWriteDataManager(backend, 1);
+        after.setFlushInterval(NEVER);
+        WriteJournal journal = openJournal(dir);
+        after.setJournal(journal);
+        assertEquals(2, after.getPendingCount());
+        after.flush();
+        assertEquals(Arrays.asList(new String[] { "add:1:b", "add:2:c" }),
+                backend.ops);
+        assertEquals(0, journal.getPendingCount());
+        after.close();
+        assertTrue(crashed.ops.isEmpty());
+    }
+
+    /**
+     * 写失败的操作移到dead-letter文件，不占用日志；后端恢复后retryDeadLetters重新写出
+     */
+    @Test
+    public void testDeadLetterRetry() throws Exception {
+        File dir = this.tmp.newFolder("journal");
+        RecordingDataManager backend = new RecordingDataManager();
+        QueuedWriteDataManager manager = new QueuedWriteDataManager(backend, 1);
+        manager.setFlushInterval(NEVER);
+        WriteJournal journal = openJournal(dir);
+        manager.setJournal(journal);
+        try {
+            backend.failing = true;
+            manager.add(new Item(1, "a"), null);
+            manager.flush();
+            assertEquals(1, manager.getErrorCount());
+            assertNull(backend.getById(new Integer(1)));
+            assertEquals(0, journal.getPendingCount());
+            assertTrue(new File(dir, "dead-letter.log").exists());
+
+            backend.failing = false;
+            assertEquals(1, manager.retryDeadLetters());
+            assertFalse(new File(dir, "dead-letter.log").exists());
+            manager.flush();
+            assertNotNull(backend.getById(new Integer(1)));
+            assertEquals(Arrays.asList(new String[] { "add:1:a" }),
+                    backend.ops);
+            assertEquals(0, journal.getPendingCount());
+            assertEquals(0, manager.retryDeadLetters());
+        } finally {
+            manager.close();
+        }
+    }
+
+    /**
+     * 还没有写出的同一个id的操作合并
+     */
+    @Test
+    public void testCoalesce() throws Exception {
+        RecordingDataManager backend = new RecordingDataManager();
+        QueuedWriteDataManager manager = new QueuedWriteDataManager(backend, 2);
+        manager.setFlushInterval(NEVER);
+        try {
+            // add之后的modify(全部字段)：用最新的对象add
+            manager.add(new Item(1, "a"), null);
+            manager.modify(new Item(1, "b"), null, null);
+            // modify之后包含前一个字段的modify：只写最后一个
+            manager.modify(new Item(2, "c"), new String[] { "name" }, null);
+            manager.modify(new Item(2, "d"), null, null);
+            // 不包含前一个的字段，不合并
+            manager.modify(new Item(2, "e"), new String[] { "name" }, null);
+            // modify之后的delete：只delete
+            manager.modify(new Item(3, "f"), null, null);
+            manager.delete(new Item(3, "g"), null);
+            assertEquals(3, manager.getCoalescedCount());
+            assertEquals(4, manager.getPendingCount());
+            manager.flush();
+            List ops = new ArrayList(backend.ops);
+            assertEquals(4, ops.size());
+            assertTrue(ops.contains("add:1:b"));
+            assertTrue(ops.contains("delete:3:g"));
+            assertTrue(ops.indexOf("modify:2:d") < ops.indexOf("modify:2:e"));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testOverflowBlock() throws Exception {
+        checkOverflow(QueuedWriteDataManager.OVERFLOW_BLOCK);
+    }
+
+    @Test
+    public void testOverflowReject() throws Exception {
+        checkOverflow(QueuedWriteDataManager.OVERFLOW_REJECT);
+    }
+
+    @Test
+    public void testOverflowCallerRuns() throws Exception {
+        checkOverflow(QueuedWriteDataManager.OVERFLOW_CALLER_RUNS);
+    }
+
+    /**
+     * 一个通道，队列长度2。第一个操作在后端等待时填满队列：
+     * 能合并的操作在队列满时仍然合并；不能合并的操作按overflow等待、拒绝或由调用者写出，
+     * 同一个id的操作按调用的顺序写出
+     */
+    private void checkOverflow(int overflow) throws Exception {
+        RecordingDataManager backend = new RecordingDataManager();
+        backend.gate = new CountDownLatch(1);
+        final QueuedWriteDataManager manager = new QueuedWriteDataManager(
+                backend, 1);
+        manager.setQueueSize(2);
+        manager.setFlushSize(1);
+        manager.setOverflow(overflow);
+        try {
+            manager.modify(new Item(1, "v1"), null, null);
+            assertTrue(backend.entered.await(5, TimeUnit.SECONDS));
+            manager.modify(new Item(1, "v2"), null, null);
+            manager.add(new Item(3, "x"), null);
+            assertEquals(2, manager.getPendingCount());
+            // 队列已满，仍然合并
+            manager.modify(new Item(1, "v3"), null, null);
+            assertEquals(1, manager.getCoalescedCount());
+
+            final Exception[] error = new Exception[1];
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        // 前一个是全部字段的modify，不合并
+                        manager.modify(new Item(1, "v4"),
+                                new String[] { "name" }, null);
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            writer.start();
+            writer.join(200);
+            if (overflow == QueuedWriteDataManager.OVERFLOW_REJECT) {
+                assertFalse(writer.isAlive());
+                assertTrue(error[0] instanceof DataManagerException);
+                assertEquals(1, manager.getRejectedCount());
+            } else {
+                // 等待队列的空间，或者等待通道写完当前的一批
+                assertTrue(writer.isAlive());
+            }
+
+            backend.gate.countDown();
+            writer.join(5000);
+            assertFalse(writer.isAlive());
+            manager.flush();
+
+            List expected = new ArrayList(Arrays.asList(new String[] {
+                    "modify:1:v1", "modify:1:v3", "add:3:x" }));
+            if (overflow != QueuedWriteDataManager.OVERFLOW_REJECT) {
+                assertNull(error[0]);
+                expected.add("modify:1:v4");
+            }
+            assertEquals(expected, backend.ops);
+        } finally {
+            backend.gate.countDown();
+            manager.close();
+        }
+    }
+
+    /**
+     * retryDeadLetters要求使用日志
+     */
+    @Test
+    public void testRetryWithoutJournal() throws Exception {
+        QueuedWriteDataManager manager = new QueuedWriteDataManager(
+                new RecordingDataManager(), 1);
+        try {
+            manager.retryDeadLetters();
+            fail("retry without journal");
+        } catch (DataManagerException e) {
+            // expected
+        } finally {
+            manager.close();
+        }
+    }
+}
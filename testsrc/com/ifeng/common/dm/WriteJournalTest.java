@@ -0,0 +1,141 @@
+package com.ifeng.common.dm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * <title>WriteJournalTest </title>
+ *
+ * <pre>WriteJournal的replay、截断记录的处理和段的删除
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class WriteJournalTest {
+    /**
+     * 长度、CRC、序号、类型，与WriteJournal相同
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] data(int n, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (n + i);
+        }
+        return result;
+    }
+
+    private static List replay(WriteJournal journal)
+            throws DataManagerException {
+        final List seqs = new ArrayList();
+        journal.replay(new RowVisitor() {
+            public boolean visit(Object row) {
+                seqs.add(new Long(((WriteJournal.Entry) row).getSeq()));
+                return true;
+            }
+        });
+        return seqs;
+    }
+
+    private static File[] segmentFiles(File dir) {
+        return dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith("journal-");
+            }
+        });
+    }
+
+    /**
+     * 没有close(进程崩溃)，最后一条记录只写了一部分：
+     * 重新打开后replay没有ack的完整记录，丢掉截断的记录，序号接着最后一条完整的记录
+     */
+    @Test
+    public void testReplayAfterUncleanClose() throws Exception {
+        File dir = this.tmp.newFolder("journal");
+        WriteJournal journal = new WriteJournal(dir, 64 * 1024, 10);
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(i, journal.append(0, data(i, 8)));
+        }
+        journal.ack(2);
+        // 不close。第4条记录的数据写坏一个字节，CRC不符
+        RandomAccessFile raf = new RandomAccessFile(new File(dir,
+                "journal-0000000000000001.log"), "rw");
+        try {
+            long offset = 3 * (HEADER_SIZE + 8) + HEADER_SIZE;
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        WriteJournal reopened = new WriteJournal(dir, 64 * 1024, 10);
+        try {
+            assertEquals(2, reopened.getPendingCount());
+            List seqs = replay(reopened);
+            assertEquals(2, seqs.size());
+            assertEquals(new Long(1), seqs.get(0));
+            assertEquals(new Long(3), seqs.get(1));
+            assertEquals(4, reopened.append(0, data(5, 8)));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * 一个段中的记录都ack之后删除这个段的文件；当前段在close时删除
+     */
+    @Test
+    public void testSegmentDeletedWhenAllAcked() throws Exception {
+        File dir = this.tmp.newFolder("journal");
+        // 每条记录117字节，一个段放8条
+        WriteJournal journal = new WriteJournal(dir, 1024, 10);
+        for (int i = 1; i <= 20; i++) {
+            journal.append(0, data(i, 100));
+        }
+        assertEquals(3, journal.getSegmentCount());
+        assertEquals(3, segmentFiles(dir).length);
+
+        for (int i = 1; i <= 7; i++) {
+            journal.ack(i);
+        }
+        assertEquals(3, journal.getSegmentCount());
+        journal.ack(8);
+        assertEquals(2, journal.getSegmentCount());
+        assertEquals(2, segmentFiles(dir).length);
+        assertFalse(new File(dir, "journal-0000000000000001.log").exists());
+        // 重复的ack不影响计数
+        journal.ack(8);
+        assertEquals(12, journal.getPendingCount());
+
+        for (int i = 9; i <= 20; i++) {
+            journal.ack(i);
+        }
+        assertEquals(0, journal.getPendingCount());
+        assertEquals(1, journal.getSegmentCount());
+        journal.close();
+        assertEquals(0, segmentFiles(dir).length);
+
+        WriteJournal reopened = new WriteJournal(dir, 1024, 10);
+        try {
+            assertTrue(replay(reopened).isEmpty());
+        } finally {
+            reopened.close();
+        }
+    }
+}
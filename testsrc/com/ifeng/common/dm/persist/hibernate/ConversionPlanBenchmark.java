@@ -0,0 +1,340 @@
+package com.ifeng.common.dm.persist.hibernate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.EntityMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.type.AbstractComponentType;
+import org.hibernate.type.Type;
+
+/**
+ * <title>ConversionPlanBenchmark </title>
+ *
+ * <pre>PersistentObjectConvertor转换大的查询结果的微基准，不随jar发布.
+ * 在嵌入式Derby中建ROWS个Item(共享OWNERS个Owner的many-to-one，带一个Address组件)，
+ * 查出后比较三种转换每次的毫秒数：
+ *   cold: 清空ConversionPlan的缓存后第一次转换(包括生成计划)
+ *   plan: 计划已经缓存，convertCollectionItems
+ *   lookup: 原来的实现，每个对象都从session查EntityPersister和属性类型
+ * 每种方式跑ROUNDS轮，取最快的一轮。
+ * ant compile之后运行(需要lib/test下的derby.jar)：
+ *   java -cp ${build.testdest}:${build.dest}:lib下的jar com.ifeng.common.dm.persist.hibernate.ConversionPlanBenchmark
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class ConversionPlanBenchmark {
+    private static final int ROWS = 10000;
+
+    private static final int OWNERS = 100;
+
+    private static final int ROUNDS = 50;
+
+    private static final String MAPPING = "<?xml version='1.0'?>"
+            + "<!DOCTYPE hibernate-mapping PUBLIC"
+            + " '-//Hibernate/Hibernate Mapping DTD 3.0//EN'"
+            + " 'http://hibernate.sourceforge.net/hibernate-mapping-3.0.dtd'>"
+            + "<hibernate-mapping package='com.ifeng.common.dm.persist.hibernate'"
+            + " default-lazy='false'>"
+            + "<class name='ConversionPlanBenchmark$Owner' table='BENCH_OWNER'>"
+            + "<id name='id'><generator class='assigned'/></id>"
+            + "<property name='name'/></class>"
+            + "<class name='ConversionPlanBenchmark$Item' table='BENCH_ITEM'>"
+            + "<id name='id'><generator class='assigned'/></id>"
+            + "<property name='name'/><property name='price'/>"
+            + "<property name='created'/>"
+            + "<many-to-one name='owner' class='ConversionPlanBenchmark$Owner'/>"
+            + "<component name='address'"
+            + " class='ConversionPlanBenchmark$Address'>"
+            + "<property name='city'/><property name='street'/></component>"
+            + "</class></hibernate-mapping>";
+
+    public static class Owner {
+        private Long id;
+
+        private String name;
+
+        public Long getId() {
+            return this.id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class Address {
+        private String city;
+
+        private String street;
+
+        public String getCity() {
+            return this.city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+
+        public String getStreet() {
+            return this.street;
+        }
+
+        public void setStreet(String street) {
+            this.street = street;
+        }
+    }
+
+    public static class Item {
+        private Long id;
+
+        private String name;
+
+        private Double price;
+
+        private java.util.Date created;
+
+        private Owner owner;
+
+        private Address address;
+
+        public Long getId() {
+            return this.id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public Double getPrice() {
+            return this.price;
+        }
+
+        public void setPrice(Double price) {
+            this.price = price;
+        }
+
+        public java.util.Date getCreated() {
+            return this.created;
+        }
+
+        public void setCreated(java.util.Date created) {
+            this.created = created;
+        }
+
+        public Owner getOwner() {
+            return this.owner;
+        }
+
+        public void setOwner(Owner owner) {
+            this.owner = owner;
+        }
+
+        public Address getAddress() {
+            return this.address;
+        }
+
+        public void setAddress(Address address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * 原来的实现(只包括实体、组件和简单属性)：每个对象都查EntityPersister和属性类型
+     */
+    private static class LookupConvertor {
+        private final SessionImplementor session;
+
+        private final Map convertedObjs = new IdentityHashMap();
+
+        LookupConvertor(Session session) {
+            this.session = (SessionImplementor) session;
+        }
+
+        List convertCollectionItems(Collection collection) throws Exception {
+            List result = new ArrayList(collection.size());
+            for (Iterator it = collection.iterator(); it.hasNext();) {
+                result.add(convertObject(it.next()));
+            }
+            return result;
+        }
+
+        private Object convertObject(Object obj) throws Exception {
+            Object newObj = this.convertedObjs.get(obj);
+            if (newObj != null) {
+                return newObj;
+            }
+            newObj = obj.getClass().newInstance();
+            this.convertedObjs.put(obj, newObj);
+            EntityPersister persister = this.session.getEntityPersister(null,
+                    obj);
+            Type[] types = persister.getPropertyTypes();
+            Object[] values = persister.getPropertyValues(obj, EntityMode.POJO);
+            convertValues(types, values);
+            persister.setIdentifier(newObj, persister.getIdentifier(obj,
+                    EntityMode.POJO), EntityMode.POJO);
+            persister.setPropertyValues(newObj, values, EntityMode.POJO);
+            return newObj;
+        }
+
+        private void convertValues(Type[] types, Object[] values)
+                throws Exception {
+            for (int i = 0; i < types.length; i++) {
+                if (values[i] == null) {
+                    continue;
+                }
+                if (types[i].isEntityType()) {
+                    values[i] = convertObject(values[i]);
+                } else if (types[i].isComponentType()) {
+                    AbstractComponentType type = (AbstractComponentType) types[i];
+                    Object newObj = values[i].getClass().newInstance();
+                    Object[] subvalues = type.getPropertyValues(values[i],
+                            EntityMode.POJO);
+                    convertValues(type.getSubtypes(), subvalues);
+                    type.setPropertyValues(newObj, subvalues, EntityMode.POJO);
+                    values[i] = newObj;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "ConversionPlanBenchmark");
+        dir.mkdirs();
+        System.setProperty("derby.stream.error.file", new File(dir,
+                "derby.log").getPath());
+        Configuration configuration = new Configuration();
+        configuration.setProperty("hibernate.dialect",
+                "org.hibernate.dialect.DerbyDialect");
+        configuration.setProperty("hibernate.connection.driver_class",
+                "org.apache.derby.jdbc.EmbeddedDriver");
+        configuration.setProperty("hibernate.connection.url", "jdbc:derby:"
+                + new File(dir, "db").getPath() + ";create=true");
+        configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+        configuration.addXML(MAPPING);
+        SessionFactory factory = configuration.buildSessionFactory();
+        try {
+            populate(factory);
+            Session session = factory.openSession();
+            Transaction tx = session.beginTransaction();
+            try {
+                List rows = session.createQuery(
+                        "from ConversionPlanBenchmark$Item").list();
+                System.out.println("rows: " + rows.size() + ", owners: "
+                        + OWNERS);
+                // 预热
+                for (int i = 0; i < ROUNDS; i++) {
+                    new PersistentObjectConvertor(session)
+                            .convertCollectionItems(rows);
+                    new LookupConvertor(session).convertCollectionItems(rows);
+                }
+                System.out.println("cold ms, plan ms, lookup ms");
+                System.out.println(cold(session, rows) + ", "
+                        + plan(session, rows) + ", " + lookup(session, rows));
+            } finally {
+                tx.commit();
+                session.close();
+            }
+        } finally {
+            factory.close();
+        }
+    }
+
+    private static void populate(SessionFactory factory) {
+        Session session = factory.openSession();
+        Transaction tx = session.beginTransaction();
+        Owner[] owners = new Owner[OWNERS];
+        for (int i = 0; i < OWNERS; i++) {
+            owners[i] = new Owner();
+            owners[i].setId(new Long(i));
+            owners[i].setName("owner" + i);
+            session.save(owners[i]);
+        }
+        for (int i = 0; i < ROWS; i++) {
+            Item item = new Item();
+            item.setId(new Long(i));
+            item.setName("item" + i);
+            item.setPrice(new Double(i / 100.0));
+            item.setCreated(new java.util.Date());
+            item.setOwner(owners[i % OWNERS]);
+            Address address = new Address();
+            address.setCity("city" + i % 10);
+            address.setStreet("street" + i);
+            item.setAddress(address);
+            session.save(item);
+            if (i % 1000 == 999) {
+                session.flush();
+                session.clear();
+                for (int j = 0; j < OWNERS; j++) {
+                    owners[j] = (Owner) session.load(Owner.class,
+                            new Long(j));
+                }
+            }
+        }
+        tx.commit();
+        session.close();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10000.0) / 100.0;
+    }
+
+    private static double cold(Session session, List rows) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            ConversionPlan.getCache().clear();
+            long begin = System.nanoTime();
+            new PersistentObjectConvertor(session).convertCollectionItems(rows);
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return millis(best);
+    }
+
+    private static double plan(Session session, List rows) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long begin = System.nanoTime();
+            new PersistentObjectConvertor(session).convertCollectionItems(rows);
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return millis(best);
+    }
+
+    private static double lookup(Session session, List rows) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long begin = System.nanoTime();
+            new LookupConvertor(session).convertCollectionItems(rows);
+            best = Math.min(best, System.nanoTime() - begin);
+        }
+        return millis(best);
+    }
+}
@@ -0,0 +1,181 @@
+package com.ifeng.common.misc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * <title>PropertyAccessorBenchmark </title>
+ *
+ * <pre>PropertyAccessor与commons-beanutils的PropertyUtils的微基准，不随jar发布.
+ * 对simple、nested、indexed、mapped几种路径，比较PropertyUtils.getNestedProperty、
+ * 每次按路径查找accessor的BeanTools.getProperty和预先取得的PropertyAccessor.get
+ * 每次调用的纳秒数；setter比较PropertyUtils.setNestedProperty和PropertyAccessor.set。
+ * 每种方式跑ROUNDS轮，取最快的一轮。
+ * ant compile之后运行：
+ *   java -cp ${build.testdest}:${build.dest}:lib下的jar com.ifeng.common.misc.PropertyAccessorBenchmark
+ * </pre>
+ * Copyright © 2011 Phoenix New Media Limited All Rights Reserved.
+ * @author <a href="mailto:jinmy@ifeng.com">Jin Mingyan</a>
+ */
+public class PropertyAccessorBenchmark {
+    private static final int ITERATIONS = 1000000;
+
+    private static final int ROUNDS = 5;
+
+    private static final String[] PATHS = { "id", "owner.name",
+            "owner.tags[1]", "attrs(color)" };
+
+    public static class Owner {
+        private String name = "owner";
+
+        private List tags = new ArrayList();
+
+        public Owner() {
+            this.tags.add("a");
+            this.tags.add("b");
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public List getTags() {
+            return this.tags;
+        }
+
+        public void setTags(List tags) {
+            this.tags = tags;
+        }
+    }
+
+    public static class Item {
+        private Integer id = new Integer(1);
+
+        private Owner owner = new Owner();
+
+        private Map attrs = new HashMap();
+
+        public Item() {
+            this.attrs.put("color", "red");
+        }
+
+        public Integer getId() {
+            return this.id;
+        }
+
+        public void setId(Integer id) {
+            this.id = id;
+        }
+
+        public Owner getOwner() {
+            return this.owner;
+        }
+
+        public void setOwner(Owner owner) {
+            this.owner = owner;
+        }
+
+        public Map getAttrs() {
+            return this.attrs;
+        }
+
+        public void setAttrs(Map attrs) {
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * 一种访问方式
+     */
+    private abstract static class Access {
+        abstract Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception;
+    }
+
+    private static final Access BEANUTILS_GET = new Access() {
+        Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception {
+            return PropertyUtils.getNestedProperty(bean, path);
+        }
+    };
+
+    private static final Access BEANTOOLS_GET = new Access() {
+        Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception {
+            return BeanTools.getProperty(bean, path);
+        }
+    };
+
+    private static final Access ACCESSOR_GET = new Access() {
+        Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception {
+            return accessor.get(bean, null);
+        }
+    };
+
+    private static final Access BEANUTILS_SET = new Access() {
+        Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception {
+            PropertyUtils.setNestedProperty(bean, path, "x");
+            return bean;
+        }
+    };
+
+    private static final Access ACCESSOR_SET = new Access() {
+        Object run(Item bean, String path, PropertyAccessor accessor)
+                throws Exception {
+            accessor.set(bean, "x", false, null);
+            return bean;
+        }
+    };
+
+    /**
+     * 防止JIT把调用优化掉
+     */
+    private static int sink;
+
+    public static void main(String[] args) throws Exception {
+        Item bean = new Item();
+        System.out.println("get: path, PropertyUtils ns/op, BeanTools ns/op,"
+                + " PropertyAccessor ns/op");
+        for (int i = 0; i < PATHS.length; i++) {
+            String path = PATHS[i];
+            System.out.println(path + ", " + time(BEANUTILS_GET, bean, path)
+                    + ", " + time(BEANTOOLS_GET, bean, path) + ", "
+                    + time(ACCESSOR_GET, bean, path));
+        }
+        System.out.println("set: path, PropertyUtils ns/op,"
+                + " PropertyAccessor ns/op");
+        String path = "owner.name";
+        System.out.println(path + ", " + time(BEANUTILS_SET, bean, path)
+                + ", " + time(ACCESSOR_SET, bean, path));
+        System.out.println("(" + sink + ")");
+    }
+
+    /**
+     * @return 最快一轮中每次调用的纳秒数
+     */
+    private static double time(Access access, Item bean, String path)
+            throws Exception {
+        PropertyAccessor accessor = PropertyAccessor.forPath(path);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            int h = 0;
+            long begin = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                h += System.identityHashCode(access.run(bean, path, accessor));
+            }
+            best = Math.min(best, System.nanoTime() - begin);
+            sink += h;
+        }
+        return Math.round(best * 10.0 / ITERATIONS) / 10.0;
+    }
+}